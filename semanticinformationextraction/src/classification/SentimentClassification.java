@@ -22,7 +22,6 @@ import gate.Corpus;
 import gate.CorpusController;
 import gate.Document;
 import gate.DocumentContent;
-import gate.Factory;
 import gate.FeatureMap;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
@@ -52,6 +51,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -60,6 +60,8 @@ import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 
+import utils.ControllerPool;
+import utils.CorpusLifecycle;
 import utils.GateInitSingleton;
 import utils.GlobalParameters;
 import utils.UHOH_GateApplication;
@@ -78,6 +80,12 @@ public class SentimentClassification extends UHOH_GateApplication {
 
   private DatabaseFacade databaseConn = DatabaseFacade.getSingletonFacade();
 
+  // first map key of the sentences of the next segment of a segmented document
+  private int segmentSentenceKey = 0;
+
+  // maximum execution time of the application per document in ms, 0 for no deadline
+  private final long deadline = GlobalParameters.extractLongProperty("classificationDeadline", 0);
+
   public SentimentClassification(CorpusController gateApp) {
     super();
     application = gateApp;
@@ -86,6 +94,14 @@ public class SentimentClassification extends UHOH_GateApplication {
     log.info("Setting EXECUTE_FUZZY to: " + EXECUTE_FUZZY);
   }
 
+  /**
+   * @param applicationPool a controller is checked out of the pool for each execution
+   */
+  public SentimentClassification(ControllerPool applicationPool) {
+    this((CorpusController) null);
+    this.applicationPool = applicationPool;
+  }
+
   /**
    * @param inputFileName
    * @param dbDocument
@@ -102,34 +118,33 @@ public class SentimentClassification extends UHOH_GateApplication {
     long appRunEnd = 0;
 
     Corpus corpus = null;
-    try {
-      corpus = Factory.newCorpus(gateDoc.getName() + "_Corpus");
-
-    } catch (ResourceInstantiationException e) {
-      log.error("ResourceInstantiationException on creating Corpus on document: " + gateDoc.getName()
-          + " and databaseID: " + dbDocument.getId());
-      GateInitSingleton.executeResetApplication(gateDoc);
-      GateInitSingleton.unloadGateResources(gateDoc, corpus);
-      throw e;
-    }
 
     // Extract InputSentimentObjects aus preprocessed Input-XML
     AnnotationSet preprocessedAnnotations = gateDoc.getAnnotations();
 
     Set<String> preAnnotType = preprocessedAnnotations.getAllTypes();
 
-    corpus.add(gateDoc);
-
-    // Applikation auf Corpus ausfhren
-    application.setCorpus(corpus);
-
     try {
+      // Applikation auf Corpus ausfhren, the controller is only borrowed for the execution
+      CorpusController controller = checkoutApplication();
+      boolean failed = true;
 
       appRunStart = new Date().getTime();
 
-      application.execute();
+      try {
+        corpus = CorpusLifecycle.getInstance().attach(controller, gateDoc);
+        executeWithDeadline(controller, "classification", gateDoc.getName(), deadline);
+        failed = false;
+      } catch (ResourceInstantiationException e) {
+        log.error("ResourceInstantiationException on creating Corpus on document: " + gateDoc.getName()
+            + " and databaseID: " + dbDocument.getId());
+        throw e;
+      } finally {
+        CorpusLifecycle.getInstance().detach(controller);
+        checkinApplication(controller, failed);
+      }
 
-      log.info("Application :'" + application.getName() + "' executet on Corpus: '" + corpus.getName()
+      log.info("Application :'" + controller.getName() + "' executet on Corpus: '" + corpus.getName()
           + "'");
       appRunEnd = new Date().getTime();
       long classificationRunTime = appRunEnd - appRunStart;
@@ -155,20 +170,183 @@ public class SentimentClassification extends UHOH_GateApplication {
       log.error("Cannot Execute Application on Corpus: '" + corpus.getName() + "'");
       log.error(e.getMessage());
 
-      GateInitSingleton.executeResetApplication(gateDoc);
-      GateInitSingleton.unloadGateResources(gateDoc, corpus);
+      GateInitSingleton.resetDocument(gateDoc);
       throw e;
     } catch (Exception ex) {
-      GateInitSingleton.executeResetApplication(gateDoc);
-      GateInitSingleton.unloadGateResources(gateDoc, corpus);
+      GateInitSingleton.resetDocument(gateDoc);
       throw ex;
     }
 
-    GateInitSingleton.unloadGateResources(null, corpus);
+    return gateDoc;
+  }
+
+  /**
+   * Executes the classification application once on a corpus containing all documents
+   * and aggregates the sentiments of each document
+   * 
+   * @param gateDocs the preprocessed documents
+   * @param dbDocuments the DocumentMetaData of each document in the order of gateDocs
+   * @return the ClassifiedDocument of each document in the order of gateDocs
+   * @throws Exception the documents are not unloaded, the caller decides
+   *         whether to process them again one by one
+   */
+  @SuppressWarnings("unchecked")
+  public List<ClassifiedDocument> executeDocuments(List<Document> gateDocs, List<DocumentMetaData> dbDocuments)
+      throws Exception {
+
+    log.debug("Starting classifying " + gateDocs.size() + " documents");
+
+    List<ClassifiedDocument> classifiedDocuments = new ArrayList<ClassifiedDocument>();
+    Corpus corpus = null;
+    try {
+      CorpusController controller = checkoutApplication();
+      boolean failed = true;
+
+      long appRunStart = new Date().getTime();
+
+      try {
+        corpus = CorpusLifecycle.getInstance().attach(controller, gateDocs);
+        executeWithDeadline(controller, "classification", gateDocs.size() + " documents", batchDeadline(deadline,
+            gateDocs.size()));
+        failed = false;
+      } finally {
+        CorpusLifecycle.getInstance().detach(controller);
+        checkinApplication(controller, failed);
+      }
+
+      log.info("Application :'" + controller.getName() + "' executet on Corpus: '" + corpus.getName()
+          + "'");
+      long appRunEnd = new Date().getTime();
+      long classificationRunTime = appRunEnd - appRunStart;
+      log.info("--------------------------------------------------------");
+      log.info("Application run time: " + classificationRunTime);
+      log.info("on " + gateDocs.size() + " Gatedocuments");
+      log.info("--------------------------------------------------------");
+
+      timeMeasurement.setClassificationRunTime(classificationRunTime);
+
+      for (int i = 0; i < gateDocs.size(); i++) {
+        Document gateDoc = gateDocs.get(i);
+        DocumentMetaData dbDocument = dbDocuments.get(i);
+
+        classifiedDocument = new ClassifiedDocument(dbDocument);
+
+        AnnotationSet annotations = gateDoc.getAnnotations("Sentiment");
+        // Sentiment aggregation process
+        this.defineSentimentDocuments(gateDoc, annotations, dbDocument);
+        classifiedDocuments.add(classifiedDocument);
+      }
+    } catch (ExecutionException e) {
+      log.error("Cannot Execute Application on Corpus: '" + corpus.getName() + "'");
+      log.error(e.getMessage());
+      throw e;
+    }
+
+    return classifiedDocuments;
+  }
+
+  /**
+   * Executes the classification application on one segment of a segmented document
+   * or on a document of the staged pipeline, the sentiments are aggregated later by
+   * aggregateSegment or aggregateDocument in the thread holding the database session
+   * 
+   * @param gateDoc the preprocessed segment
+   * @return the classified segment
+   * @throws Exception the segment is not unloaded
+   */
+  @SuppressWarnings("unchecked")
+  public Document executeApplication(Document gateDoc) throws Exception {
+    try {
+      CorpusController controller = checkoutApplication();
+      boolean failed = true;
+
+      long appRunStart = new Date().getTime();
+
+      try {
+        CorpusLifecycle.getInstance().attach(controller, gateDoc);
+        executeWithDeadline(controller, "classification", gateDoc.getName(), deadline);
+        failed = false;
+      } finally {
+        CorpusLifecycle.getInstance().detach(controller);
+        checkinApplication(controller, failed);
+      }
+
+      long classificationRunTime = new Date().getTime() - appRunStart;
+      log.info("Application :'" + controller.getName() + "' executet on segment: '" + gateDoc.getName()
+          + "' in " + classificationRunTime + " ms");
+    } catch (ExecutionException e) {
+      log.error("Cannot Execute Application on segment: '" + gateDoc.getName() + "'");
+      log.error(e.getMessage());
+      throw e;
+    }
 
     return gateDoc;
   }
 
+  /**
+   * Aggregate the sentiments of a document classified by executeApplication,
+   * including the hybrid fuzzy classifier, like executeDocument
+   * 
+   * @param gateDoc the classified document
+   * @param dbDocument
+   * @return the ClassifiedDocument of the document
+   * @throws Exception the document is not unloaded
+   */
+  public ClassifiedDocument aggregateDocument(Document gateDoc, DocumentMetaData dbDocument) throws Exception {
+    classifiedDocument = new ClassifiedDocument(dbDocument);
+
+    AnnotationSet annotations = gateDoc.getAnnotations("Sentiment");
+    // Sentiment aggregation process
+    this.defineSentimentDocuments(gateDoc, annotations, dbDocument);
+
+    return classifiedDocument;
+  }
+
+  /**
+   * Start the aggregation of a segmented document with a new ClassifiedDocument, its
+   * constructor deletes the existing Knowledge-Based (and Fuzzy) sentiments of the document
+   * 
+   * @param dbDocument
+   * @throws Exception
+   */
+  public void startSegmentedDocument(DocumentMetaData dbDocument) throws Exception {
+    classifiedDocument = new ClassifiedDocument(dbDocument);
+    segmentSentenceKey = 0;
+  }
+
+  /**
+   * Add the sentiment sentences of a classified segment to the ClassifiedDocument
+   * started by startSegmentedDocument. The offsets of the sentences and phrases are
+   * moved by the start of the segment in the complete document.
+   * 
+   * @param segmentDoc classified segment
+   * @param segmentOffset start of the segment in the complete document
+   * @param dbDocument
+   * @throws Exception
+   */
+  public void aggregateSegment(Document segmentDoc, long segmentOffset, DocumentMetaData dbDocument)
+      throws Exception {
+    AnnotationSet annotations = segmentDoc.getAnnotations("Sentiment");
+    segmentSentenceKey = this.defineSentimentSentences(segmentDoc, annotations, dbDocument, segmentOffset,
+        segmentSentenceKey);
+  }
+
+  /**
+   * Calculate the document level sentiments of a segmented document.
+   * The hybrid fuzzy classifier needs the complete Gate-Document and is not executed.
+   * 
+   * @return the ClassifiedDocument of all segments
+   */
+  public ClassifiedDocument finishSegmentedDocument() {
+    // the document level score only depends on the sentence polarities
+    calculateDocSentimentScore(null);
+
+    if (EXECUTE_FUZZY) {
+      log.info("Hybrid fuzzy classification is not executed on segmented documents");
+    }
+    return classifiedDocument;
+  }
+
   /**
    * calculate the sentiment of a Gate-Document on document-Level
    * 
@@ -178,7 +356,43 @@ public class SentimentClassification extends UHOH_GateApplication {
   private void defineSentimentDocuments(Document doc, AnnotationSet sentimentAnnotationSet,
       DocumentMetaData documentMeta) throws Exception {
 
+    this.defineSentimentSentences(doc, sentimentAnnotationSet, documentMeta, 0, 0);
+
+    try {
+
+      calculateDocSentimentScore(doc);
+
+      if (EXECUTE_FUZZY) {
+        NewApproachHybridFuzzy fuzzyClassifier = new NewApproachHybridFuzzy();
+        fuzzyClassifier.run(doc, classifiedDocument);
+      }
+      
+    } catch (HibernateException hibEx) {
+      log.error("Cannot update Sentiment on docLevel");
+      throw hibEx;
+    } catch (Exception e) {
+      log.error(e.getClass().getName() + " occured on fuzzy classificton");
+      throw e;
+    }
+  }
+
+  /**
+   * Assign the sentiment sentences of the document to the sentiment documents of the
+   * ClassifiedDocument
+   * 
+   * @param doc
+   * @param sentimentAnnotationSet
+   * @param documentMeta
+   * @param offset added to the offsets of the sentences and phrases
+   * @param sentenceKey added to the annotation ids used as keys of the sentence maps
+   * @return sentenceKey for the sentences of the next segment
+   * @throws Exception
+   */
+  private int defineSentimentSentences(Document doc, AnnotationSet sentimentAnnotationSet,
+      DocumentMetaData documentMeta, long offset, int sentenceKey) throws Exception {
+
     AnnotationSet annotatioSentimentSentenceSet = sentimentAnnotationSet;
+    int nextSentenceKey = sentenceKey;
     
     /**
      * Iterates through all sentences that contains sentiment (pos or neg)
@@ -271,10 +485,12 @@ public class SentimentClassification extends UHOH_GateApplication {
         /* SENTENCES */
         SentimentSentence currentSentenceLevel = this.defineSentenceLevel(doc, sentLevelObj, so, sft,
             constantDBentities.sentimentLevelSentence, constantDBentities.classifierTypeCrisp,
-            documentMeta);
+            documentMeta, offset);
 
         if (currentSentenceLevel != null) {
-          sentimentSentenceMapInDoc.put(Integer.valueOf(sentLevelObj.getId()), currentSentenceLevel);
+          int key = sentenceKey + sentLevelObj.getId().intValue();
+          nextSentenceKey = Math.max(nextSentenceKey, key + 1);
+          sentimentSentenceMapInDoc.put(Integer.valueOf(key), currentSentenceLevel);
           currentSentimentDocument.setSentimentSentencesMap(sentimentSentenceMapInDoc);
         }
       }else{
@@ -284,27 +500,12 @@ public class SentimentClassification extends UHOH_GateApplication {
       }
     }
 
-    try {
-
-      calculateDocSentimentScore(doc);
-
-      if (EXECUTE_FUZZY) {
-        NewApproachHybridFuzzy fuzzyClassifier = new NewApproachHybridFuzzy();
-        fuzzyClassifier.run(doc, classifiedDocument);
-      }
-      
-    } catch (HibernateException hibEx) {
-      log.error("Cannot update Sentiment on docLevel");
-      throw hibEx;
-    } catch (Exception e) {
-      log.error(e.getClass().getName() + " occured on fuzzy classificton");
-      throw e;
-    }
+    return nextSentenceKey;
   }
 
   private SentimentSentence defineSentenceLevel(Document doc, Annotation sentenceLevelAnnotation,
       SentimentObject so, SentimentFeatureType sft, SentimentLevelDefinition sentimentLevelSentence,
-      SentimentClassifierType classifierTypeCrisp, DocumentMetaData docMeta) {
+      SentimentClassifierType classifierTypeCrisp, DocumentMetaData docMeta, long offset) {
 
     /* Extract needed sentence information */
 
@@ -507,6 +708,11 @@ public class SentimentClassification extends UHOH_GateApplication {
         }
       }
 
+      // offsets of a segment are stored as offsets in the complete document
+      if (offset != 0) {
+        currentSentenceLevel.shiftOffsets(offset);
+      }
+
       currentSentenceLevel.setAllSentimentPhraseRelations();
       //DatabaseFacade.getSingletonFacade().createDBSentimentEntry(currentSentenceLevel.getDbSentenceLevelSentiment(), sentimentSession);
     }
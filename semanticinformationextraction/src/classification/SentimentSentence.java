@@ -126,6 +126,38 @@ public class SentimentSentence {
     this.endNode = endNode;
   }
 
+  /**
+   * Move the sentence and all of its phrases by offset characters, used to map
+   * the offsets of a document segment to the offsets in the complete document
+   *
+   * @param offset start of the segment in the complete document
+   */
+  public void shiftOffsets(long offset) {
+    this.startNode += offset;
+    this.endNode += offset;
+
+    shiftPhrase(sentencePhrase, offset);
+    shiftPhrase(sentimentSentencePhrase, offset);
+    shiftPhrase(sentimentObjectPhrase, offset);
+    shiftPhrase(sentimentFeaturePhrase, offset);
+    shiftPhrase(sentimentIndicatorPhrase, offset);
+    for (Phrase orientationTermPhrase : orientationTermPhraseList) {
+      shiftPhrase(orientationTermPhrase, offset);
+    }
+  }
+
+  private static void shiftPhrase(Phrase phrase, long offset) {
+    if (phrase == null) {
+      return;
+    }
+    if (phrase.getStartnode() != null) {
+      phrase.setStartnode((int) (phrase.getStartnode() + offset));
+    }
+    if (phrase.getEndnode() != null) {
+      phrase.setEndnode((int) (phrase.getEndnode() + offset));
+    }
+  }
+
   public List<Phrase> getOrientationTermPhraseList() {
     return orientationTermPhraseList;
   }
@@ -47,6 +47,7 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 import org.hibernate.Session;
 
+import utils.CorpusLifecycle;
 import utils.GateInitSingleton;
 import utils.GlobalParameters;
 import zeroMQ.messageQueue.WorkerThread;
@@ -123,6 +124,17 @@ public class NewApproachHybridFuzzy {
   */
   
   public void run(Document sourceDocument, ClassifiedDocument classifiedDocument) throws Exception {
+    // one corpus for all sentiment object/feature combinations of the document
+    Corpus corpus = Factory.newCorpus("Fuzzy_Corpus");
+    try {
+      classify(sourceDocument, classifiedDocument, corpus);
+    } finally {
+      GateInitSingleton.unloadGateResources(corpus);
+    }
+  }
+
+  private void classify(Document sourceDocument, ClassifiedDocument classifiedDocument, Corpus corpus)
+      throws Exception {
 
 	// execute preprocessing using Hybrid_GAPP
     sourceDocument = modifyGeneralAnnotation(sourceDocument);
@@ -135,19 +147,12 @@ public class NewApproachHybridFuzzy {
 
       CorpusController applicationPos = null;
       CorpusController applicationNeg = null;
-      Corpus corpus = null;
       Document doc = null;
 
       try {
         SentimentDocument sentDocument = extractedSentimentDocuments.get(i);
         AnnotationSet definedSentiment = null;
 
-        try {
-          corpus = Factory.newCorpus("Fuzzy_Corpus");
-        } catch (ResourceInstantiationException e) {
-          log.debug("Cannot create Corpus" + e.getMessage());
-        }
-        
         String so = sentDocument.getSentimentObject().getName();
         String sf = sentDocument.getSentimentFeature().getName();
 
@@ -305,8 +310,8 @@ public class NewApproachHybridFuzzy {
         applicationNeg.setCorpus(null);
         hybridGapp.setCorpus(null);
         
-        GateInitSingleton.executeResetApplication(doc);
-        GateInitSingleton.unloadGateResources(doc, corpus);
+        GateInitSingleton.resetDocument(doc);
+        corpus.clear();
 
         Factory.deleteResource(applicationPos);
         Factory.deleteResource(applicationNeg);
@@ -323,21 +328,17 @@ public class NewApproachHybridFuzzy {
    * @throws ResourceInstantiationException
    */
   private Document modifyGeneralAnnotation(Document sourceDocument) {
-    Corpus corpus = null;
     try {
-      corpus = Factory.newCorpus("modifyFuzzy");
+      CorpusLifecycle.getInstance().attach(hybridGapp, sourceDocument);
+      hybridGapp.execute();
     } catch (ResourceInstantiationException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
-    }
-    corpus.add(sourceDocument);
-
-    hybridGapp.setCorpus(corpus);
-    try {
-      hybridGapp.execute();
     } catch (ExecutionException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
+    } finally {
+      CorpusLifecycle.getInstance().detach(hybridGapp);
     }
 
 	// Create empty document annotations. These annotations are used 
@@ -346,8 +347,6 @@ public class NewApproachHybridFuzzy {
     sourceDocument = labelGateDoc("LabelPos", sourceDocument);
     sourceDocument = labelGateDoc("LabelNeg", sourceDocument);
 
-    GateInitSingleton.unloadGateResources(corpus);
-
     return sourceDocument;
   }
 
@@ -196,6 +196,11 @@ public class DatabaseFacade {
    * @throws HibernateException
    */
   public void saveOrUpdateObjectToDatabase(Object object) throws HibernateException {
+    saveOrUpdateObjectToDatabase(hibernateSession, object);
+  }
+
+  private static void saveOrUpdateObjectToDatabase(Session hibernateSession, Object object)
+      throws HibernateException {
    
     int counter = 0;
     
@@ -234,21 +239,52 @@ public class DatabaseFacade {
    * @throws Exception
    */
   public void createDocumentVersion(String type, File file, DocumentMetaData docMeta) throws Exception {
+    createDocumentVersion(type, file, networkConfig.getCurrentSmbFile(), docMeta);
+  }
+
+  /**
+   * Create a Documenversion for a file copied by CifsNetworkConfig.copyFile,
+   * independent of the last file copied by another thread.
+   * 
+   * @param type - the type of the current Document, which represents the process step like 'classified', 'txt' or 'ontology' 
+   * @param file - the file Object containing the path information which will be saved in database 
+   * @param smbFile - the network file returned by CifsNetworkConfig.copyFile, null if the file was not copied
+   * @param docMeta - the DocumentMetaData which the DocumentVersion belongs to.
+   * @throws Exception
+   */
+  public void createDocumentVersion(String type, File file, SmbFile smbFile, DocumentMetaData docMeta)
+      throws Exception {
+    createDocumentVersion(hibernateSession, type, file, smbFile, docMeta);
+  }
+
+  /**
+   * Create a Documenversion like createDocumentVersion(type, file, smbFile, docMeta) in the given
+   * session, so a caller with a session and transaction of its own does not use the session of the facade.
+   * 
+   * @param hibernateSession - the session to save the DocumentVersion and its relations in
+   * @param type - the type of the current Document
+   * @param file - the file Object containing the path information which will be saved in database 
+   * @param smbFile - the network file returned by CifsNetworkConfig.copyFile, null if the file was not copied
+   * @param docMeta - the DocumentMetaData which the DocumentVersion belongs to, loaded in hibernateSession
+   * @throws Exception
+   */
+  public void createDocumentVersion(Session hibernateSession, String type, File file, SmbFile smbFile,
+      DocumentMetaData docMeta) throws Exception {
     log.debug("Start createDocumentVersion with type: " + type + " for DocumentMetaData with ID: "
         + docMeta.getId());
 
     /*
      * reload the doument-data from db
      */
-    DocumentVersion docVersion = createDocumentVersionFKRelations(type, file);
+    DocumentVersion docVersion = createDocumentVersionFKRelations(hibernateSession, type, file, smbFile);
 
     try {
 
       docVersion.setDocumentMetaData(docMeta);
 
-      setOntologyURL(docVersion);
+      setOntologyURL(hibernateSession, docVersion);
 
-      saveOrUpdateObjectToDatabase(docVersion);
+      saveOrUpdateObjectToDatabase(hibernateSession, docVersion);
       log.info("UpdateObjectToDatabase finished on docMeta: " + docMeta.getId());
 
     } catch (HibernateException hibEx) {
@@ -263,10 +299,11 @@ public class DatabaseFacade {
    * Set the Url information of the used Ontology for GATE processing steps
    * 'preprocessing' and 'classification'. 
    * 
+   * @param hibernateSession - the session of the DocumentVersion
    * @param docVersion - the DocumentVersion to set the used Ontology information
    * @throws Exception
    */
-  private void setOntologyURL(DocumentVersion docVersion) throws Exception {
+  private void setOntologyURL(Session hibernateSession, DocumentVersion docVersion) throws Exception {
 
     String docVersionDescription = docVersion.getDocumentType().getType();
 
@@ -274,7 +311,7 @@ public class DatabaseFacade {
         || docVersionDescription.equalsIgnoreCase("preprocessed")
         || docVersionDescription.equalsIgnoreCase("classified")) {
 
-      Url ontologyURL = DatabaseFacade.getSingletonFacade().checkOntology();
+      Url ontologyURL = checkOntology(hibernateSession);
 
       docVersion.setUrlByOntologyUrlFk(ontologyURL);
     }
@@ -284,27 +321,29 @@ public class DatabaseFacade {
    * Create a new Documentversion and set the correspong URL,
    * which contains the path information from the file. 
    * 
+   * @param hibernateSession - the session to save the DocumentVersion in
    * @param type - the type to set of the DocumentVersion
    * @param file - create a DocumentVersion and corresponding relations with these file information 
+   * @param smbFile - the network file of the file or null
    * @return
    * @throws MalformedURLException
    * @throws SmbException
    */
-  private DocumentVersion createDocumentVersionFKRelations(String type, File file)
-      throws MalformedURLException, SmbException {
+  private DocumentVersion createDocumentVersionFKRelations(Session hibernateSession, String type, File file,
+      SmbFile smbFile) throws MalformedURLException, SmbException {
 
     log.debug("*******Setting docVersion properties************");
     DocumentVersion docVersion = new DocumentVersion();
 
     if (file != null) {
-      hibernate.entities.Url dbURL = setURL_FKRelation(file);
+      hibernate.entities.Url dbURL = setURL_FKRelation(hibernateSession, file, smbFile);
       log.debug("Setting URL with ID: " + dbURL.getId());
       docVersion.setUrl(dbURL);
       log.debug("Setting documentName: " + file.getName());
       docVersion.setDocumentName(file.getName());
     }
 
-    DocumentType docType = constantEntites.selectDocumentType(type);
+    DocumentType docType = constantEntites.selectDocumentType(hibernateSession, type);
     log.debug("Selected DocumentType with ID: " + docType.getId() + " and type: " + docType.getType());
     docVersion.setDocumentType(docType);
     Date creationDate = new Date();
@@ -312,7 +351,7 @@ public class DatabaseFacade {
     log.debug("Setting Creation Date to: " + creationDate);
     docVersion.setCreationDate(creationDate);
 
-    saveOrUpdateObjectToDatabase(docVersion);
+    saveOrUpdateObjectToDatabase(hibernateSession, docVersion);
 
     return docVersion;
   }
@@ -321,13 +360,14 @@ public class DatabaseFacade {
    * Create a new Url for this Ontology-File and save it via hibernate in database.
    * Save the ontology physical per JCIFS on Remote host.   
    * 
+   * @param hibernateSession - the session to save the Url in
    * @param newOntologyVersionSmbPath - the network path to save the file
    * @param ontology - the ontology to save
    * @return
    * @throws Exception
    */
-  private hibernate.entities.Url setOntologyURL_FKRelation(String newOntologyVersionSmbPath,
-      WeblogTag ontology) throws Exception {
+  private hibernate.entities.Url setOntologyURL_FKRelation(Session hibernateSession,
+      String newOntologyVersionSmbPath, WeblogTag ontology) throws Exception {
     log.debug("*******Setting URL properties************");
 
     hibernate.entities.Url dbUrl = new Url();
@@ -379,18 +419,20 @@ public class DatabaseFacade {
   /**
    * Create a new Url for this file and save it to database via hibernate.
    * 
+   * @param hibernateSession - the session to save the Url in
    * @param file - the file which contains the Url information to save
+   * @param smbFile - the network file of the file or null
    * @return the new Url database object
    * @throws MalformedURLException
    * @throws SmbException
    */
-  private hibernate.entities.Url setURL_FKRelation(File file) throws MalformedURLException, SmbException {
+  private hibernate.entities.Url setURL_FKRelation(Session hibernateSession, File file, SmbFile smbFile)
+      throws MalformedURLException, SmbException {
     log.debug("*******Setting URL properties************");
 
     hibernate.entities.Url dbUrl = new Url();
 
-    //If this file is set in networkConfig, the file has been copied via smb
-    SmbFile smbFile = networkConfig.getCurrentSmbFile();
+    //If this file is set, the file has been copied via smb
 
     if (smbFile != null) {
       if (smbFile.getName().equals(file.getName())) {
@@ -419,7 +461,7 @@ public class DatabaseFacade {
     }
 
     try {
-      saveOrUpdateObjectToDatabase(dbUrl);
+      saveOrUpdateObjectToDatabase(hibernateSession, dbUrl);
 
     } catch (HibernateException hibEx) {
       log.error("Error adding new URL in database for file: " + file.getAbsolutePath());
@@ -612,6 +654,17 @@ public class DatabaseFacade {
    * @throws Exception
    */
   public Url checkOntology() throws Exception {
+    return checkOntology(hibernateSession);
+  }
+
+  /**
+   * Like checkOntology(), a new ontology URL is saved in the given session
+   * 
+   * @param hibernateSession - the session to load or save the ontology URL in
+   * @return
+   * @throws Exception
+   */
+  public Url checkOntology(Session hibernateSession) throws Exception {
     log.info("Starting to check Ontology Version");
 
     WeblogTag ontology = WeblogTag.getInstance();
@@ -642,7 +695,7 @@ public class DatabaseFacade {
         CifsNetworkConfig networkConfig = CifsNetworkConfig.getINSTANCE();
         newOntologyVersionSmbPath = networkConfig.copyOntologyFile(ontologyFile, false);
 
-        ontologyURL = setOntologyURL_FKRelation(newOntologyVersionSmbPath, ontology);
+        ontologyURL = setOntologyURL_FKRelation(hibernateSession, newOntologyVersionSmbPath, ontology);
         ontologyURL.setVersionInfo(currentOntologyVersionInfo);
 
         constantEntites.getOntologyVersionsMap().put(ontologyURL.getVersionInfo(), ontologyURL.getId());
@@ -1348,11 +1401,21 @@ public class DatabaseFacade {
    * @throws SQLException
    */
   public void startTransaction() throws SQLException {
-    tx = hibernateSession.getTransaction();
-    tx.setTimeout(TRANSACTION_TIMEOUT);
-    tx.begin();
-    log.trace("Transaction startet with hashcode: " + tx.hashCode());
-    
+    tx = startTransaction(hibernateSession);
+  }
+
+  /**
+   * Start a database transaction in the given session, the transaction of the facade is not changed
+   * 
+   * @param hibernateSession
+   * @return the started transaction
+   */
+  public static Transaction startTransaction(Session hibernateSession) {
+    Transaction sessionTx = hibernateSession.getTransaction();
+    sessionTx.setTimeout(TRANSACTION_TIMEOUT);
+    sessionTx.begin();
+    log.trace("Transaction startet with hashcode: " + sessionTx.hashCode());
+    return sessionTx;
   }
 
   /**
@@ -248,10 +248,17 @@ public class HibernateConstantEntities {
   }
   
   public DocumentType selectDocumentType(String typeStr) {
+    return selectDocumentType(DatabaseFacade.getSingletonFacade().getHibernateSession(), typeStr);
+  }
 
-    DocumentType type = null;
+  /**
+   * @param hibernateSession - the session to select the DocumentType in
+   * @param typeStr - the type of the DocumentType
+   * @return the first DocumentType with the type, null if it does not exist
+   */
+  public DocumentType selectDocumentType(Session hibernateSession, String typeStr) {
 
-    Session hibernateSession = DatabaseFacade.getSingletonFacade().getHibernateSession();
+    DocumentType type = null;
 
     Criteria crit = hibernateSession.createCriteria(DocumentType.class);
     crit.add(Restrictions.like("type", typeStr));
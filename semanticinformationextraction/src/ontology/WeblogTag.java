@@ -49,6 +49,7 @@ import org.apache.log4j.Logger;
 
 import utils.GateInitSingleton;
 import utils.GlobalParameters;
+import utils.SharedResources;
 
 /**
  * In order to extract the meta information about a web-site,
@@ -106,6 +107,13 @@ public class WeblogTag {
       log.error(e1.getMessage());
     }
 
+    // with sharedResources the ontology loaded by the Gate-Applications is reused
+    onto = (Ontology) SharedResources.findLoaded(Ontology.class, "rdfXmlURL", fm.get("rdfXmlURL"));
+    if (onto != null) {
+      log.info("Reusing loaded ontology " + onto.getName());
+      return;
+    }
+
     try {
       onto = (Ontology) Factory.createResource("gate.creole.ontology.impl.sesame.OWLIMOntology", fm);
 
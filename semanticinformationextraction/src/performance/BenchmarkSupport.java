@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Command line and report helpers of the benchmarks: the usage check, the gate-xml files of
+ * the message directory and the tab separated result table on System.out.
+ *
+ * @author lgredel
+ *
+ */
+class BenchmarkSupport {
+
+  private BenchmarkSupport() {
+  }
+
+  /**
+   * @param args command line arguments
+   * @param required number of required arguments
+   * @param usage arguments of the benchmark, printed after its name
+   * @param benchmark class of the benchmark
+   * @return true if enough arguments are given, else the usage is printed
+   */
+  static boolean checkUsage(String[] args, int required, Class<?> benchmark, String usage) {
+    if (args.length >= required) {
+      return true;
+    }
+    System.out.println("Usage: " + benchmark.getSimpleName() + " " + usage);
+    return false;
+  }
+
+  /**
+   * @param args command line arguments
+   * @param index index of the optional argument
+   * @param defaultValue value if the argument is not given
+   * @return the integer argument or the default
+   */
+  static int intArgument(String[] args, int index, int defaultValue) {
+    return (args.length > index) ? Integer.parseInt(args[index]) : defaultValue;
+  }
+
+  /**
+   * @param directory directory with gate-xml files
+   * @return the files of the directory, if there are none a message is printed
+   */
+  static List<File> listMessageFiles(String directory) {
+    List<File> messageFiles = new ArrayList<File>();
+    File[] files = new File(directory).listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isFile()) {
+          messageFiles.add(file);
+        }
+      }
+    }
+    if (messageFiles.isEmpty()) {
+      System.out.println("No messages found in: " + directory);
+    }
+    return messageFiles;
+  }
+
+  /**
+   * @param file gate-xml file
+   * @return the message of the file
+   * @throws IOException
+   */
+  static String readMessage(File file) throws IOException {
+    return FileUtils.readFileToString(file, "UTF-8");
+  }
+
+  /**
+   * @param directory directory with gate-xml files
+   * @return the messages of all files, if there are none a message is printed
+   * @throws IOException
+   */
+  static List<String> loadMessages(String directory) throws IOException {
+    List<String> messages = new ArrayList<String>();
+    for (File file : listMessageFiles(directory)) {
+      messages.add(readMessage(file));
+    }
+    return messages;
+  }
+
+  /**
+   * Print one line of the result table, the columns are separated by tabs
+   *
+   * @param columns
+   */
+  static void printRow(Object... columns) {
+    StringBuilder row = new StringBuilder();
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        row.append('\t');
+      }
+      row.append(columns[i]);
+    }
+    System.out.println(row);
+  }
+
+  /**
+   * @param value
+   * @param decimals number of decimal places
+   * @return the value with a fixed number of decimal places
+   */
+  static String decimal(double value, int decimals) {
+    return String.format("%." + decimals + "f", value);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import gate.Document;
+import gate.Factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.GateInitSingleton;
+import utils.GateXmlStreamLoader;
+import zeroMQ.messageQueue.MessageCodec;
+
+/**
+ * Compares the loading of queued messages as Gate-Document:
+ * decoding the block to a String and Factory.newDocument(String) against
+ * building the document from the stream of the block with GateXmlStreamLoader.
+ *
+ * Usage: DocumentLoadBenchmark <directory with gate-xml files> [compression level] [iterations]
+ *
+ * For each path the parse time per MB and the peak heap above the heap before loading
+ * (mean per MB of message and maximum per document) are printed. The heap is collected before
+ * every document, the peak contains the garbage of the parser until the next collection.
+ * Documents with different text length or annotation count in both paths are reported.
+ *
+ * @author lgredel
+ *
+ */
+public class DocumentLoadBenchmark {
+
+  private static final double MB = 1024.0 * 1024.0;
+
+  private static final String[] PATHS = { "String", "Stream" };
+
+  public static void main(String[] args) throws Exception {
+    if (!BenchmarkSupport.checkUsage(args, 1, DocumentLoadBenchmark.class, "<directory with gate-xml files>"
+        + " [compression level] [iterations]")) {
+      return;
+    }
+    int compressionLevel = BenchmarkSupport.intArgument(args, 1, 1);
+    int iterations = BenchmarkSupport.intArgument(args, 2, 3);
+
+    GateInitSingleton.getInstance();
+    MessageCodec codec = new MessageCodec(compressionLevel);
+
+    List<byte[]> blocks = new ArrayList<byte[]>();
+    List<String> names = new ArrayList<String>();
+    long utf8Bytes = 0;
+    for (File file : BenchmarkSupport.listMessageFiles(args[0])) {
+      byte[] block = codec.encode(BenchmarkSupport.readMessage(file));
+      blocks.add(block);
+      names.add(file.getName());
+      utf8Bytes += MessageCodec.decodedLength(block);
+    }
+    if (blocks.isEmpty()) {
+      return;
+    }
+
+    double megaBytes = utf8Bytes / MB;
+    BenchmarkSupport.printRow("Messages: " + blocks.size(), "UTF-8 MB: " + BenchmarkSupport.decimal(megaBytes, 2),
+        "compression level: " + compressionLevel, "iterations: " + iterations);
+
+    // warm up JIT and GATE
+    for (String path : PATHS) {
+      for (byte[] block : blocks) {
+        Factory.deleteResource(load(path, block));
+      }
+    }
+
+    compareDocuments(blocks, names);
+
+    BenchmarkSupport.printRow("path", "parse ms/MB", "peak heap MB per message MB", "max peak heap MB per document");
+    for (String path : PATHS) {
+      long loadNanos = 0;
+      double peakHeapPerMB = 0;
+      long maxPeakHeap = 0;
+
+      for (int i = 0; i < iterations; i++) {
+        for (byte[] block : blocks) {
+          long baseline = collectHeap();
+
+          long start = System.nanoTime();
+          Document doc = load(path, block);
+          loadNanos += System.nanoTime() - start;
+
+          long peakHeap = Math.max(0, peakHeapUsage() - baseline);
+          peakHeapPerMB += peakHeap / MB / (MessageCodec.decodedLength(block) / MB);
+          maxPeakHeap = Math.max(maxPeakHeap, peakHeap);
+
+          Factory.deleteResource(doc);
+        }
+      }
+
+      long loads = (long) iterations * blocks.size();
+      BenchmarkSupport.printRow(path, BenchmarkSupport.decimal(loadNanos / 1000000.0 / iterations / megaBytes, 2),
+          BenchmarkSupport.decimal(peakHeapPerMB / loads, 2), BenchmarkSupport.decimal(maxPeakHeap / MB, 2));
+    }
+  }
+
+  private static Document load(String path, byte[] block) throws Exception {
+    if (path.equals("String")) {
+      return Factory.newDocument(MessageCodec.decode(block));
+    }
+
+    InputStream in = MessageCodec.openStream(block);
+    try {
+      Document doc = GateXmlStreamLoader.newDocument(in);
+      if (doc == null) {
+        throw new IOException("Message is no gate-xml document");
+      }
+      return doc;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void compareDocuments(List<byte[]> blocks, List<String> names) throws Exception {
+    int differences = 0;
+    for (int i = 0; i < blocks.size(); i++) {
+      Document stringDoc = load(PATHS[0], blocks.get(i));
+      Document streamDoc = load(PATHS[1], blocks.get(i));
+
+      long stringLength = stringDoc.getContent().size();
+      long streamLength = streamDoc.getContent().size();
+      int stringAnnotations = countAnnotations(stringDoc);
+      int streamAnnotations = countAnnotations(streamDoc);
+      if (stringLength != streamLength || stringAnnotations != streamAnnotations) {
+        differences++;
+        System.out.println("Different documents for " + names.get(i) + " - text length: " + stringLength + "/"
+            + streamLength + " annotations: " + stringAnnotations + "/" + streamAnnotations);
+      }
+
+      Factory.deleteResource(stringDoc);
+      Factory.deleteResource(streamDoc);
+    }
+    System.out.println("Documents with differences between both paths: " + differences);
+  }
+
+  private static int countAnnotations(Document doc) {
+    int annotations = doc.getAnnotations().size();
+    if (doc.getNamedAnnotationSets() != null) {
+      for (String setName : doc.getNamedAnnotationSets().keySet()) {
+        annotations += doc.getAnnotations(setName).size();
+      }
+    }
+    return annotations;
+  }
+
+  /**
+   * Collect the heap and reset the peak usage of the heap pools
+   *
+   * @return used heap bytes after the collection
+   */
+  private static long collectHeap() {
+    System.gc();
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+        used += pool.getUsage().getUsed();
+      }
+    }
+    return used;
+  }
+
+  /**
+   * @return sum of the peak usage of the heap pools since the last reset
+   */
+  private static long peakHeapUsage() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import gate.AnnotationSet;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.GateInitSingleton;
+import utils.GlobalParameters;
+
+/**
+ * Compares the reset of documents by one DocumentResetApplication shared by all workers
+ * (the former GateInitSingleton.executeResetApplication, executed without synchronization)
+ * against the thread-confined GateInitSingleton.clearAnnotations, for 1, 4 and 8 workers.
+ *
+ * Usage: DocumentResetBenchmark <directory with gate-xml files> [documents per run]
+ *
+ * Each worker loads a document, adds 'annotations' synthetic annotations to the default and to
+ * a named annotation set and resets the document. Printed are the reset time per document, the
+ * documents per second, the documents which still contain annotations after their reset
+ * (another worker changed the corpus of the shared application) and the failed resets.
+ *
+ * @author lgredel
+ *
+ */
+public class DocumentResetBenchmark {
+
+  private static final int[] WORKER_COUNTS = { 1, 4, 8 };
+  private static final String[] MODES = { "shared resetApplication", "clearAnnotations" };
+  private static final int ANNOTATIONS = 200;
+
+  public static void main(String[] args) throws Exception {
+    if (!BenchmarkSupport.checkUsage(args, 1, DocumentResetBenchmark.class, "<directory with gate-xml files>"
+        + " [documents per run]")) {
+      return;
+    }
+
+    GateInitSingleton.getInstance();
+    CorpusController resetApplication = null;
+    File docResetApp = GlobalParameters.getDocResetApp();
+    if (docResetApp.isFile()) {
+      resetApplication = GateInitSingleton.getInstance().loadApplication(docResetApp);
+    } else {
+      System.out.println("No reset application found in: " + docResetApp.getAbsolutePath()
+          + " -> only clearAnnotations is measured");
+    }
+
+    List<String> messages = BenchmarkSupport.loadMessages(args[0]);
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    int documents = BenchmarkSupport.intArgument(args, 1, messages.size() * 10);
+    BenchmarkSupport.printRow("Documents per run: " + documents, "synthetic annotations per document: "
+        + ANNOTATIONS);
+
+    // warm up JIT and GATE
+    run(MODES[1], 2, Math.min(documents, messages.size()), messages, resetApplication);
+
+    BenchmarkSupport.printRow("workers", "mode", "reset us/doc", "docs/s", "not reset", "failed");
+    for (int workers : WORKER_COUNTS) {
+      for (String mode : MODES) {
+        if (mode.equals(MODES[0]) && resetApplication == null) {
+          continue;
+        }
+        long[] result = run(mode, workers, documents, messages, resetApplication);
+
+        BenchmarkSupport.printRow(workers, mode, BenchmarkSupport.decimal(result[1] / 1000.0 / documents, 1),
+            BenchmarkSupport.decimal(documents * 1000.0 / Math.max(1, result[0]), 1), result[2], result[3]);
+      }
+    }
+
+    if (resetApplication != null) {
+      Factory.deleteResource(resetApplication);
+    }
+  }
+
+  /**
+   * @return elapsed ms, summed reset ns, documents with annotations after the reset, failed resets
+   */
+  private static long[] run(final String mode, int workers, int documents, final List<String> messages,
+      final CorpusController resetApplication) throws Exception {
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger remaining = new AtomicInteger(documents);
+    final AtomicLong resetTime = new AtomicLong();
+    final AtomicInteger notReset = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < workers; i++) {
+      threads.add(new Thread("Benchmark_" + i) {
+        @Override
+        public void run() {
+          try {
+            while (remaining.getAndDecrement() > 0) {
+              String message = messages.get(next.getAndIncrement() % messages.size());
+              Document doc = Factory.newDocument(message);
+              addAnnotations(doc);
+
+              long start = System.nanoTime();
+              try {
+                if (mode.equals(MODES[0])) {
+                  executeSharedReset(resetApplication, doc);
+                } else {
+                  GateInitSingleton.clearAnnotations(doc);
+                }
+              } catch (Exception e) {
+                failed.incrementAndGet();
+              }
+              resetTime.addAndGet(System.nanoTime() - start);
+
+              if (!doc.getAnnotations().isEmpty() || doc.getNamedAnnotationSets().containsKey("Benchmark")) {
+                notReset.incrementAndGet();
+              }
+              Factory.deleteResource(doc);
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      });
+    }
+
+    long start = System.currentTimeMillis();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+
+    if (!errors.isEmpty()) {
+      throw new Exception("Benchmark worker failed: " + errors.get(0).getMessage(), errors.get(0));
+    }
+    return new long[] { elapsed, resetTime.get(), notReset.get(), failed.get() };
+  }
+
+  /**
+   * The reset of the former GateInitSingleton.executeResetApplication, without unloading the document
+   */
+  private static void executeSharedReset(CorpusController resetApplication, Document doc) throws Exception {
+    Corpus corpus = Factory.newCorpus("Corpus");
+    try {
+      corpus.add(doc);
+      resetApplication.setCorpus(corpus);
+      resetApplication.execute();
+      resetApplication.cleanup();
+      resetApplication.setCorpus(null);
+    } finally {
+      corpus.unloadDocument(doc);
+      Factory.deleteResource(corpus);
+    }
+  }
+
+  private static void addAnnotations(Document doc) throws Exception {
+    long length = doc.getContent().size().longValue();
+    AnnotationSet defaultSet = doc.getAnnotations();
+    AnnotationSet namedSet = doc.getAnnotations("Benchmark");
+    for (int i = 0; i < ANNOTATIONS && length > 0; i++) {
+      long startOffset = (i * 7L) % length;
+      long endOffset = Math.min(length, startOffset + 5);
+      defaultSet.add(Long.valueOf(startOffset), Long.valueOf(endOffset), "Token", Factory.newFeatureMap());
+      namedSet.add(Long.valueOf(startOffset), Long.valueOf(endOffset), "Sentence", Factory.newFeatureMap());
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import utils.CorpusLifecycle;
+import utils.FusedController;
+import utils.GateInitSingleton;
+
+/**
+ * Compares the latency and the allocation per document of the two-step execution (preprocessing,
+ * toXml of the preprocessed document, classification of documents with SO annotations) against
+ * the fused execution of both applications by one FusedController without serialization.
+ *
+ * Usage: FusedPipelineBenchmark <directory with gate-xml files> <preprocessing gapp> <classification gapp>
+ * [documents per run]
+ *
+ * The allocated bytes are measured with the ThreadMXBean of the HotSpot JVM, n/a on other JVMs.
+ *
+ * @author lgredel
+ *
+ */
+public class FusedPipelineBenchmark {
+
+  private static final String[] MODES = { "two-step", "fused" };
+
+  public static void main(String[] args) throws Exception {
+    if (!BenchmarkSupport.checkUsage(args, 3, FusedPipelineBenchmark.class, "<directory with gate-xml files>"
+        + " <preprocessing gapp> <classification gapp> [documents per run]")) {
+      return;
+    }
+
+    GateInitSingleton.getInstance();
+    CorpusController preprocessing = GateInitSingleton.getInstance().loadApplication(new File(args[1]));
+    CorpusController classification = GateInitSingleton.getInstance().loadApplication(new File(args[2]));
+    CorpusController fused = FusedController.create(preprocessing, classification);
+
+    List<String> messages = BenchmarkSupport.loadMessages(args[0]);
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    int documents = BenchmarkSupport.intArgument(args, 3, messages.size() * 5);
+    BenchmarkSupport.printRow("Documents per run: " + documents);
+
+    // warm up JIT and GATE
+    for (String mode : MODES) {
+      run(mode, Math.min(documents, messages.size()), messages, preprocessing, classification, fused);
+    }
+
+    BenchmarkSupport.printRow("mode", "ms/doc", "p50 ms", "p99 ms", "KB allocated/doc", "classified");
+    for (String mode : MODES) {
+      LatencyHistogram latencies = new LatencyHistogram();
+      long[] result = run(mode, documents, messages, preprocessing, classification, fused, latencies);
+
+      BenchmarkSupport.printRow(mode, BenchmarkSupport.decimal(latencies.getMean(), 1), latencies.percentile(50),
+          latencies.percentile(99), (result[0] < 0) ? "n/a" : String.valueOf(result[0] / 1024 / documents),
+          result[1]);
+    }
+
+    FusedController.release(fused);
+    Factory.deleteResource(preprocessing);
+    Factory.deleteResource(classification);
+  }
+
+  private static long[] run(String mode, int documents, List<String> messages, CorpusController preprocessing,
+      CorpusController classification, CorpusController fused) throws Exception {
+    return run(mode, documents, messages, preprocessing, classification, fused, new LatencyHistogram());
+  }
+
+  /**
+   * @return allocated bytes of the run or -1 if not measurable, number of classified documents
+   */
+  private static long[] run(String mode, int documents, List<String> messages, CorpusController preprocessing,
+      CorpusController classification, CorpusController fused, LatencyHistogram latencies) throws Exception {
+    long allocatedStart = allocatedBytes();
+    long classified = 0;
+
+    for (int i = 0; i < documents; i++) {
+      Document doc = Factory.newDocument(messages.get(i % messages.size()));
+      try {
+        long start = System.currentTimeMillis();
+        if (mode.equals(MODES[0])) {
+          execute(preprocessing, doc);
+          doc.toXml();
+          if (!doc.getAnnotations().get("SO").isEmpty()) {
+            execute(classification, doc);
+            classified++;
+          }
+        } else {
+          execute(fused, doc);
+          if (!doc.getAnnotations().get("SO").isEmpty()) {
+            classified++;
+          }
+        }
+        latencies.record(System.currentTimeMillis() - start);
+      } finally {
+        Factory.deleteResource(doc);
+      }
+    }
+
+    long allocatedEnd = allocatedBytes();
+    return new long[] { (allocatedStart < 0) ? -1 : allocatedEnd - allocatedStart, classified };
+  }
+
+  private static void execute(CorpusController application, Document doc) throws Exception {
+    try {
+      CorpusLifecycle.getInstance().attach(application, doc);
+      application.execute();
+    } finally {
+      CorpusLifecycle.getInstance().detach(application);
+    }
+  }
+
+  /**
+   * @return bytes allocated by the current thread, -1 if the JVM does not measure them
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) threadBean;
+      if (hotspotBean.isThreadAllocatedMemorySupported() && hotspotBean.isThreadAllocatedMemoryEnabled()) {
+        return hotspotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+}
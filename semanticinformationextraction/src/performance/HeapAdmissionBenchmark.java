@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.GateInitSingleton;
+import utils.MemoryManager;
+
+/**
+ * Compares the document throughput of concurrent workers with a System.gc() after every document
+ * (the former CompletePipelineWorker.clean) against the admission by the MemoryManager without
+ * forced collections, for 4, 8 and 16 workers.
+ *
+ * Usage: HeapAdmissionBenchmark <directory with gate-xml files> [gapp file] [documents per run]
+ *
+ * Each worker loads a document, runs its duplicate of the application if one is given, serializes
+ * the document with toXml like the workers do and deletes it. Printed are documents per second,
+ * the number and time of collections and the time the workers waited for admission.
+ *
+ * @author lgredel
+ *
+ */
+public class HeapAdmissionBenchmark {
+
+  private static final int[] WORKER_COUNTS = { 4, 8, 16 };
+  private static final String[] MODES = { "System.gc", "MemoryManager" };
+
+  public static void main(String[] args) throws Exception {
+    if (!BenchmarkSupport.checkUsage(args, 1, HeapAdmissionBenchmark.class, "<directory with gate-xml files>"
+        + " [gapp file] [documents per run]")) {
+      return;
+    }
+
+    GateInitSingleton.getInstance();
+    CorpusController application = null;
+    if (args.length > 1 && !args[1].equals("-")) {
+      application = GateInitSingleton.getInstance().loadApplication(new File(args[1]));
+    }
+
+    List<String> messages = BenchmarkSupport.loadMessages(args[0]);
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    int documents = BenchmarkSupport.intArgument(args, 2, messages.size() * 10);
+
+    MemoryManager memoryManager = MemoryManager.getInstance();
+    BenchmarkSupport.printRow("Documents per run: " + documents, "application: "
+        + ((application == null) ? "none" : args[1]), "max heap MB: "
+        + (Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+
+    // warm up JIT and GATE
+    run(MODES[1], 2, Math.min(documents, messages.size()), messages, application, memoryManager);
+
+    BenchmarkSupport.printRow("workers", "mode", "docs/s", "collections", "collection ms", "admission wait ms");
+    for (int workers : WORKER_COUNTS) {
+      for (String mode : MODES) {
+        long collections = collectionCount();
+        long collectionTime = collectionTime();
+        long[] result = run(mode, workers, documents, messages, application, memoryManager);
+
+        BenchmarkSupport.printRow(workers, mode, BenchmarkSupport.decimal(documents * 1000.0 / Math.max(1, result[0]),
+            1), collectionCount() - collections, collectionTime() - collectionTime, result[1]);
+      }
+    }
+  }
+
+  /**
+   * @return elapsed ms and the summed admission wait ms of the workers
+   */
+  private static long[] run(final String mode, int workers, int documents, final List<String> messages,
+      CorpusController application, final MemoryManager memoryManager) throws Exception {
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger remaining = new AtomicInteger(documents);
+    final long[] waitTimes = new long[workers];
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    List<CorpusController> duplicates = new ArrayList<CorpusController>();
+
+    for (int i = 0; i < workers; i++) {
+      final CorpusController controller = (application == null) ? null : (CorpusController) Factory
+          .duplicate(application);
+      if (controller != null) {
+        duplicates.add(controller);
+      }
+      final int workerNo = i;
+
+      threads.add(new Thread("Benchmark_" + i) {
+        @Override
+        public void run() {
+          try {
+            Corpus corpus = null;
+            if (controller != null) {
+              corpus = Factory.newCorpus("Benchmark corpus");
+              controller.setCorpus(corpus);
+            }
+
+            while (remaining.getAndDecrement() > 0) {
+              if (mode.equals(MODES[1])) {
+                long start = System.currentTimeMillis();
+                while (!memoryManager.awaitAdmission(1000)) {
+                  // wait for the heap
+                }
+                waitTimes[workerNo] += System.currentTimeMillis() - start;
+              }
+
+              String message = messages.get(next.getAndIncrement() % messages.size());
+              Document doc = Factory.newDocument(message);
+              if (controller != null) {
+                corpus.add(doc);
+                controller.execute();
+                corpus.clear();
+              }
+              doc.toXml();
+              Factory.deleteResource(doc);
+
+              if (mode.equals(MODES[0])) {
+                System.gc();
+              }
+            }
+
+            if (corpus != null) {
+              controller.setCorpus(null);
+              Factory.deleteResource(corpus);
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      });
+    }
+
+    long start = System.currentTimeMillis();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+
+    for (CorpusController duplicate : duplicates) {
+      Factory.deleteResource(duplicate);
+    }
+    if (!errors.isEmpty()) {
+      throw new Exception("Benchmark worker failed: " + errors.get(0).getMessage(), errors.get(0));
+    }
+
+    long waitTime = 0;
+    for (long workerWait : waitTimes) {
+      waitTime += workerWait;
+    }
+    return new long[] { elapsed, waitTime };
+  }
+
+  private static long collectionCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, collector.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long collectionTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, collector.getCollectionTime());
+    }
+    return time;
+  }
+}
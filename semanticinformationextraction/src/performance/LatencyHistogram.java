@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+/**
+ * Histogram with power-of-two buckets for time or size values.
+ * Percentiles are estimated with the upper bound of the bucket,
+ * so the memory needed does not depend on the number of recorded values.
+ *
+ * @author lgredel
+ */
+public class LatencyHistogram {
+
+  // bucket i contains values in [2^(i-1), 2^i), bucket 0 contains 0
+  private static final int BUCKETS = 48;
+
+  private final long[] buckets = new long[BUCKETS];
+  private long count = 0;
+  private long sum = 0;
+  private long max = 0;
+
+  public synchronized void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    buckets[bucket]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Add all values of the other histogram to this histogram
+   *
+   * @param other
+   */
+  public void add(LatencyHistogram other) {
+    long[] otherBuckets;
+    long otherCount;
+    long otherSum;
+    long otherMax;
+    synchronized (other) {
+      otherBuckets = other.buckets.clone();
+      otherCount = other.count;
+      otherSum = other.sum;
+      otherMax = other.max;
+    }
+
+    synchronized (this) {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] += otherBuckets[i];
+      }
+      count += otherCount;
+      sum += otherSum;
+      max = Math.max(max, otherMax);
+    }
+  }
+
+  /**
+   * @param percentile value between 0 and 100
+   * @return upper bound of the bucket containing the percentile
+   */
+  public synchronized long percentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(count * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i];
+      if (seen >= Math.max(1, rank)) {
+        return Math.min(max, (i == 0) ? 0 : (1L << i) - 1);
+      }
+    }
+    return max;
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized double getMean() {
+    return (count == 0) ? 0 : (double) sum / (double) count;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  public synchronized void clear() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = 0;
+    }
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  @Override
+  public String toString() {
+    return "count: " + getCount() + " mean: " + String.format("%.1f", getMean()) + " p50: " + percentile(50)
+        + " p90: " + percentile(90) + " p99: " + percentile(99) + " max: " + getMax();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import zeroMQ.messageQueue.MessageCodec;
+
+/**
+ * Compares the queued message representation of MessageFileQueue:
+ * the former String (UTF-16) representation against the encoded byte blocks
+ * of MessageCodec with different Deflate levels.
+ *
+ * Usage: MessageCodecBenchmark <directory with gate-xml files> [iterations]
+ *
+ * For each representation the queued heap bytes, the ratio to the String representation
+ * and the encode/decode time per MB of message text are printed.
+ *
+ * @author lgredel
+ *
+ */
+public class MessageCodecBenchmark {
+
+  private static final int[] COMPRESSION_LEVELS = { 0, 1, 6, 9 };
+
+  public static void main(String[] args) throws IOException {
+    if (!BenchmarkSupport.checkUsage(args, 1, MessageCodecBenchmark.class, "<directory with gate-xml files>"
+        + " [iterations]")) {
+      return;
+    }
+    int iterations = BenchmarkSupport.intArgument(args, 1, 5);
+
+    List<String> messages = BenchmarkSupport.loadMessages(args[0]);
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    long stringHeapBytes = 0;
+    long utf8Bytes = 0;
+    for (String message : messages) {
+      stringHeapBytes += 2L * message.length();
+      utf8Bytes += message.getBytes("UTF-8").length;
+    }
+    double megaBytes = utf8Bytes / (1024.0 * 1024.0);
+
+    BenchmarkSupport.printRow("Messages: " + messages.size(), "UTF-8 MB: " + BenchmarkSupport.decimal(megaBytes, 2),
+        "iterations: " + iterations);
+    BenchmarkSupport.printRow("representation", "queued bytes", "ratio to String", "encode ms/MB", "decode ms/MB");
+    BenchmarkSupport.printRow("String (UTF-16)", stringHeapBytes, "1.00", "0.00", "0.00");
+
+    for (int level : COMPRESSION_LEVELS) {
+      MessageCodec codec = new MessageCodec(level);
+
+      // warm up JIT and zlib
+      List<byte[]> blocks = encodeAll(codec, messages);
+      decodeAll(blocks);
+
+      long encodeNanos = 0;
+      long decodeNanos = 0;
+      long encodedBytes = 0;
+      for (int i = 0; i < iterations; i++) {
+        long start = System.nanoTime();
+        blocks = encodeAll(codec, messages);
+        encodeNanos += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        decodeAll(blocks);
+        decodeNanos += System.nanoTime() - start;
+      }
+
+      for (byte[] block : blocks) {
+        encodedBytes += block.length;
+      }
+
+      String name = (level == 0) ? "UTF-8" : "Deflate " + level;
+      double encodeMsPerMB = encodeNanos / 1000000.0 / iterations / megaBytes;
+      double decodeMsPerMB = decodeNanos / 1000000.0 / iterations / megaBytes;
+      BenchmarkSupport.printRow(name, encodedBytes,
+          BenchmarkSupport.decimal((double) stringHeapBytes / (double) encodedBytes, 2),
+          BenchmarkSupport.decimal(encodeMsPerMB, 2), BenchmarkSupport.decimal(decodeMsPerMB, 2));
+    }
+  }
+
+  private static List<byte[]> encodeAll(MessageCodec codec, List<String> messages) throws IOException {
+    List<byte[]> blocks = new ArrayList<byte[]>(messages.size());
+    for (String message : messages) {
+      blocks.add(codec.encode(message));
+    }
+    return blocks;
+  }
+
+  private static long decodeAll(List<byte[]> blocks) throws IOException {
+    long length = 0;
+    for (byte[] block : blocks) {
+      length += MessageCodec.decode(block).length();
+    }
+    return length;
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import gate.AnnotationSet;
+import gate.CorpusController;
+import gate.Document;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.ConditionalController;
+import gate.creole.RunningStrategy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Wall time, CPU time and annotations added per processing resource and document, recorded
+ * with 'prProfiling' for each execution of a Gate-Application by GateApplication.executeWithDeadline.
+ *
+ * For the execution the running strategy of each processing resource is wrapped: the controller
+ * asks the strategy of a processing resource right before running it, so the measurement of the
+ * previous processing resource ends there and the last one ends with the execution. The original
+ * strategies are restored afterwards, so a duplicate of the controller is not affected. Only
+ * conditional controllers have running strategies, other controllers are not profiled.
+ *
+ * The histograms are kept per worker thread and exported per worker and in aggregate to
+ * 'prProfileFile' as tab-separated table.
+ *
+ * @author lgredel
+ *
+ */
+public class ProcessingResourceProfiler {
+  private static Logger log = Logger.getLogger(ProcessingResourceProfiler.class);
+
+  private static final boolean enabled = GlobalParameters.extractBooleanProperty("prProfiling", false);
+
+  private static ProcessingResourceProfiler INSTANCE;
+
+  private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  private final boolean cpuTimeSupported;
+
+  // statistics by worker thread, then by controller and processing resource in pipeline order
+  private final Map<String, Map<String, ProcessingResourceStatistics>> workers =
+      new TreeMap<String, Map<String, ProcessingResourceStatistics>>();
+  private final Set<String> notProfiled = new HashSet<String>();
+
+  private ProcessingResourceProfiler() {
+    cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+    if (cpuTimeSupported && !threadBean.isThreadCpuTimeEnabled()) {
+      threadBean.setThreadCpuTimeEnabled(true);
+    }
+  }
+
+  public static synchronized ProcessingResourceProfiler getInstance() {
+    if (INSTANCE == null) {
+      INSTANCE = new ProcessingResourceProfiler();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * @return true if the processing resources are profiled ('prProfiling')
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Wrap the running strategies of the controller for one execution by the current thread
+   *
+   * @param controller
+   * @return the execution to finish after the controller was executed, null if it is not profiled
+   */
+  @SuppressWarnings("unchecked")
+  public Execution start(CorpusController controller) {
+    if (!(controller instanceof ConditionalController)) {
+      synchronized (notProfiled) {
+        if (notProfiled.add(controller.getName())) {
+          log.warn(controller.getName() + " is no conditional controller -> processing resources not profiled");
+        }
+      }
+      return null;
+    }
+
+    ConditionalController conditionalController = (ConditionalController) controller;
+    List<RunningStrategy> strategies = new ArrayList<RunningStrategy>();
+    for (Object strategy : conditionalController.getRunningStrategies()) {
+      strategies.add((RunningStrategy) strategy);
+    }
+
+    Execution execution = new Execution(conditionalController, strategies, getWorkerStatistics(Thread
+        .currentThread().getName()));
+    List<RunningStrategy> profilingStrategies = new ArrayList<RunningStrategy>();
+    for (RunningStrategy strategy : strategies) {
+      profilingStrategies.add(new ProfilingStrategy(strategy, controller.getName() + " / "
+          + strategy.getPR().getName(), execution));
+    }
+    conditionalController.setRunningStrategies(profilingStrategies);
+    return execution;
+  }
+
+  /**
+   * Record the last processing resource and restore the running strategies of the controller
+   *
+   * @param execution of start, may be null
+   */
+  public void finish(Execution execution) {
+    if (execution == null) {
+      return;
+    }
+    execution.end();
+    execution.controller.setRunningStrategies(execution.originalStrategies);
+  }
+
+  /**
+   * @param worker name of the worker thread
+   * @return the statistics of the processing resources executed by the worker
+   */
+  public String getStatistics(String worker) {
+    Map<String, ProcessingResourceStatistics> statistics = null;
+    synchronized (workers) {
+      statistics = workers.get(worker);
+    }
+    if (statistics == null) {
+      return "Processing resources of " + worker + ": not profiled";
+    }
+    return format("Processing resources of " + worker, statistics);
+  }
+
+  /**
+   * @return the statistics of the processing resources of all workers
+   */
+  public String getStatistics() {
+    return format("Processing resources of all workers", aggregate());
+  }
+
+  /**
+   * Write the statistics per worker and in aggregate (worker 'all') as tab-separated table,
+   * times in microseconds
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void export(File file) throws IOException {
+    Map<String, Map<String, ProcessingResourceStatistics>> snapshot =
+        new TreeMap<String, Map<String, ProcessingResourceStatistics>>();
+    synchronized (workers) {
+      for (Map.Entry<String, Map<String, ProcessingResourceStatistics>> worker : workers.entrySet()) {
+        synchronized (worker.getValue()) {
+          snapshot.put(worker.getKey(), new LinkedHashMap<String, ProcessingResourceStatistics>(worker.getValue()));
+        }
+      }
+    }
+
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write("worker\tprocessing resource\texecutions\tskipped\twall mean\twall p50\twall p99\twall max"
+          + "\tcpu mean\tcpu p50\tcpu p99\tannotations mean\tannotations p99\n");
+      for (Map.Entry<String, Map<String, ProcessingResourceStatistics>> worker : snapshot.entrySet()) {
+        writeRows(writer, worker.getKey(), worker.getValue());
+      }
+      writeRows(writer, "all", aggregate());
+    } finally {
+      writer.close();
+    }
+    log.info("Exported processing resource profile to: " + file.getAbsolutePath());
+  }
+
+  private void writeRows(Writer writer, String worker, Map<String, ProcessingResourceStatistics> statistics)
+      throws IOException {
+    for (Map.Entry<String, ProcessingResourceStatistics> entry : statistics.entrySet()) {
+      ProcessingResourceStatistics pr = entry.getValue();
+      writer.write(worker + "\t" + entry.getKey() + "\t" + pr.wallTime.getCount() + "\t" + pr.getSkipped() + "\t"
+          + String.format("%.1f", pr.wallTime.getMean()) + "\t" + pr.wallTime.percentile(50) + "\t"
+          + pr.wallTime.percentile(99) + "\t" + pr.wallTime.getMax() + "\t"
+          + String.format("%.1f", pr.cpuTime.getMean()) + "\t" + pr.cpuTime.percentile(50) + "\t"
+          + pr.cpuTime.percentile(99) + "\t" + String.format("%.1f", pr.annotations.getMean()) + "\t"
+          + pr.annotations.percentile(99) + "\n");
+    }
+  }
+
+  private Map<String, ProcessingResourceStatistics> aggregate() {
+    List<Map<String, ProcessingResourceStatistics>> workerStatistics = null;
+    synchronized (workers) {
+      workerStatistics = new ArrayList<Map<String, ProcessingResourceStatistics>>(workers.values());
+    }
+
+    Map<String, ProcessingResourceStatistics> aggregate =
+        new LinkedHashMap<String, ProcessingResourceStatistics>();
+    for (Map<String, ProcessingResourceStatistics> statistics : workerStatistics) {
+      synchronized (statistics) {
+        for (Map.Entry<String, ProcessingResourceStatistics> entry : statistics.entrySet()) {
+          ProcessingResourceStatistics pr = aggregate.get(entry.getKey());
+          if (pr == null) {
+            pr = new ProcessingResourceStatistics();
+            aggregate.put(entry.getKey(), pr);
+          }
+          pr.add(entry.getValue());
+        }
+      }
+    }
+    return aggregate;
+  }
+
+  private static String format(String title, Map<String, ProcessingResourceStatistics> statistics) {
+    StringBuilder text = new StringBuilder(title).append(" (wall/cpu in us, annotations added):");
+    synchronized (statistics) {
+      for (Map.Entry<String, ProcessingResourceStatistics> entry : statistics.entrySet()) {
+        text.append("\n").append(entry.getKey()).append(" - ").append(entry.getValue());
+      }
+    }
+    return text.toString();
+  }
+
+  private Map<String, ProcessingResourceStatistics> getWorkerStatistics(String worker) {
+    synchronized (workers) {
+      Map<String, ProcessingResourceStatistics> statistics = workers.get(worker);
+      if (statistics == null) {
+        statistics = new LinkedHashMap<String, ProcessingResourceStatistics>();
+        workers.put(worker, statistics);
+      }
+      return statistics;
+    }
+  }
+
+  private long cpuTime() {
+    return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+  }
+
+  /**
+   * @return the annotations in the default and the named annotation sets
+   */
+  private static long countAnnotations(Document doc) {
+    if (doc == null) {
+      return 0;
+    }
+    long count = doc.getAnnotations().size();
+    for (Object annotationSet : doc.getNamedAnnotationSets().values()) {
+      count += ((AnnotationSet) annotationSet).size();
+    }
+    return count;
+  }
+
+  /**
+   * One execution of a controller by the current thread, confined to that thread
+   */
+  public class Execution {
+    private final ConditionalController controller;
+    private final List<RunningStrategy> originalStrategies;
+    private final Map<String, ProcessingResourceStatistics> statistics;
+
+    private ProcessingResourceStatistics current = null;
+    private Document currentDoc = null;
+    private long wallStart = 0;
+    private long cpuStart = 0;
+    private long annotationsStart = 0;
+
+    Execution(ConditionalController controller, List<RunningStrategy> originalStrategies,
+        Map<String, ProcessingResourceStatistics> statistics) {
+      this.controller = controller;
+      this.originalStrategies = originalStrategies;
+      this.statistics = statistics;
+    }
+
+    void begin(String name, ProcessingResource pr) {
+      current = getStatistics(name);
+      currentDoc = (pr instanceof LanguageAnalyser) ? ((LanguageAnalyser) pr).getDocument() : null;
+      annotationsStart = countAnnotations(currentDoc);
+      cpuStart = cpuTime();
+      wallStart = System.nanoTime();
+    }
+
+    void end() {
+      if (current == null) {
+        return;
+      }
+      long wallTime = System.nanoTime() - wallStart;
+      long cpuTime = cpuTime() - cpuStart;
+      current.wallTime.record(wallTime / 1000);
+      current.cpuTime.record(cpuTime / 1000);
+      current.annotations.record(countAnnotations(currentDoc) - annotationsStart);
+      current = null;
+      currentDoc = null;
+    }
+
+    void skipped(String name) {
+      getStatistics(name).skipped();
+    }
+
+    private ProcessingResourceStatistics getStatistics(String name) {
+      synchronized (statistics) {
+        ProcessingResourceStatistics pr = statistics.get(name);
+        if (pr == null) {
+          pr = new ProcessingResourceStatistics();
+          statistics.put(name, pr);
+        }
+        return pr;
+      }
+    }
+  }
+
+  /**
+   * Asks the original strategy and measures the processing resource if it runs
+   */
+  static class ProfilingStrategy implements RunningStrategy {
+    private final RunningStrategy strategy;
+    private final String name;
+    private final Execution execution;
+
+    ProfilingStrategy(RunningStrategy strategy, String name, Execution execution) {
+      this.strategy = strategy;
+      this.name = name;
+      this.execution = execution;
+    }
+
+    public boolean shouldRun() {
+      execution.end();
+      boolean run = strategy.shouldRun();
+      if (run) {
+        execution.begin(name, strategy.getPR());
+      } else {
+        execution.skipped(name);
+      }
+      return run;
+    }
+
+    public int getRunMode() {
+      return strategy.getRunMode();
+    }
+
+    public ProcessingResource getPR() {
+      return strategy.getPR();
+    }
+  }
+
+  /**
+   * Histograms of one processing resource, times in microseconds
+   */
+  static class ProcessingResourceStatistics {
+    final LatencyHistogram wallTime = new LatencyHistogram();
+    final LatencyHistogram cpuTime = new LatencyHistogram();
+    // annotations added, a processing resource removing annotations is recorded with 0
+    final LatencyHistogram annotations = new LatencyHistogram();
+    private long skipped = 0;
+
+    synchronized void skipped() {
+      skipped++;
+    }
+
+    synchronized long getSkipped() {
+      return skipped;
+    }
+
+    void add(ProcessingResourceStatistics other) {
+      wallTime.add(other.wallTime);
+      cpuTime.add(other.cpuTime);
+      annotations.add(other.annotations);
+      long otherSkipped = other.getSkipped();
+      synchronized (this) {
+        skipped += otherSkipped;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "wall: " + wallTime + " | cpu: " + cpuTime + " | annotations: " + annotations + " | skipped: "
+          + getSkipped();
+    }
+  }
+}
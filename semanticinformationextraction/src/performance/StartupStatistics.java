@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package performance;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Times of the startup measured from the start of the JVM:
+ * the end of the worker initialization, the first committed document and the steady state.
+ *
+ * The steady state is reached when the mean processing time per document of a window of
+ * 'steadyStateWindow' documents differs less than 'steadyStateTolerance' from the previous window.
+ *
+ * @author lgredel
+ *
+ */
+public class StartupStatistics {
+  private static Logger log = Logger.getLogger(StartupStatistics.class);
+
+  private static final long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+  private static final int windowSize = Math.max(1, GlobalParameters.extractIntProperty("steadyStateWindow", 20));
+  private static final double tolerance = GlobalParameters.extractDoubleProperty("steadyStateTolerance", 0.1);
+
+  private static long readyTime = 0;
+  private static long firstDocumentTime = 0;
+  private static long steadyStateTime = 0;
+
+  private static long documents = 0;
+  private static long windowDocuments = 0;
+  private static long windowTime = 0;
+  private static double previousWindowMean = -1;
+
+  /**
+   * The workers are initialized and warmed up
+   */
+  public static synchronized void workersReady() {
+    readyTime = System.currentTimeMillis() - startTime;
+    log.info("Workers ready " + readyTime + " ms after the start of the JVM");
+  }
+
+  /**
+   * @param count number of committed documents
+   * @param elapsed processing time of the documents in ms
+   */
+  public static synchronized void documentsProcessed(int count, long elapsed) {
+    if (count <= 0) {
+      return;
+    }
+
+    documents += count;
+    if (firstDocumentTime == 0) {
+      firstDocumentTime = System.currentTimeMillis() - startTime;
+      log.info("Time to first document: " + firstDocumentTime + " ms after the start of the JVM, "
+          + (firstDocumentTime - readyTime) + " ms after the workers were ready");
+    }
+    if (steadyStateTime != 0) {
+      return;
+    }
+
+    windowDocuments += count;
+    windowTime += elapsed;
+    if (windowDocuments < windowSize) {
+      return;
+    }
+
+    double windowMean = (double) windowTime / windowDocuments;
+    if (previousWindowMean > 0 && Math.abs(windowMean - previousWindowMean) <= previousWindowMean * tolerance) {
+      steadyStateTime = System.currentTimeMillis() - startTime;
+      log.info("Time to steady state: " + steadyStateTime + " ms after the start of the JVM, after " + documents
+          + " documents with " + String.format("%.1f", windowMean) + " ms per document");
+    }
+    previousWindowMean = windowMean;
+    windowDocuments = 0;
+    windowTime = 0;
+  }
+
+  /**
+   * @return ms from the start of the JVM until the workers were ready, 0 before
+   */
+  public static synchronized long getReadyTime() {
+    return readyTime;
+  }
+
+  /**
+   * @return ms from the start of the JVM until the first document was committed, 0 before
+   */
+  public static synchronized long getFirstDocumentTime() {
+    return firstDocumentTime;
+  }
+
+  /**
+   * @return ms from the start of the JVM until the steady state, 0 before
+   */
+  public static synchronized long getSteadyStateTime() {
+    return steadyStateTime;
+  }
+}
@@ -18,14 +18,17 @@ package preprocessing;
 import gate.Corpus;
 import gate.CorpusController;
 import gate.Document;
-import gate.Factory;
 import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 
 import java.util.Date;
+import java.util.List;
 
+import utils.ControllerPool;
+import utils.CorpusLifecycle;
 import utils.GateApplication;
 import utils.GateInitSingleton;
+import utils.GlobalParameters;
 
 /**
  * Utility subclass relating to preprocessing execution
@@ -35,11 +38,26 @@ import utils.GateInitSingleton;
  */
 public class PreprocessingApplication extends GateApplication {
 
+  // maximum execution time of the application per document in ms, 0 for no deadline
+  private final long deadline = GlobalParameters.extractLongProperty("preprocessingDeadline", 0);
+  private final long classificationDeadline = GlobalParameters.extractLongProperty("classificationDeadline", 0);
+  // the fused execution may take as long as both applications, 0 for no deadline
+  private final long fusedDeadline = (deadline > 0 && classificationDeadline > 0) ? deadline
+      + classificationDeadline : 0;
+
   public PreprocessingApplication(CorpusController gateApp) {
     super();
     application = gateApp;
   }
 
+  /**
+   * @param applicationPool a controller is checked out of the pool for each execution
+   */
+  public PreprocessingApplication(ControllerPool applicationPool) {
+    super();
+    this.applicationPool = applicationPool;
+  }
+
 
   /**
    * Executes the Gate-Preprocessing Application
@@ -48,27 +66,24 @@ public class PreprocessingApplication extends GateApplication {
    * @return the preprocessed Gate-Document
    * @throws Exception
    */
-  @SuppressWarnings("unchecked")
   public Document executeDocument(Document doc) throws Exception {
     log.info("--> Starting preprocessing on Document");
 
     Corpus corpus = null;
+    CorpusController controller = checkoutApplication();
+    boolean failed = true;
 
     try {
-  
-      corpus = Factory.newCorpus("Preprocessing_Corpus");
-      corpus.add(doc);
-
-      application.setCorpus(corpus);
+      corpus = CorpusLifecycle.getInstance().attach(controller, doc);
 
       long appRunStart = 0;
       long appRunEnd = 0;
 
       appRunStart = new Date().getTime();
 
-      application.execute();
+      executeWithDeadline(controller, "preprocessing", doc.getName(), deadline);
       
-      log.info("Application :'" + application.getName() + "' executed on Corpus: '" + corpus.getName()
+      log.info("Application :'" + controller.getName() + "' executed on Corpus: '" + corpus.getName()
           + "'");
       appRunEnd = new Date().getTime();
       long preprocessingRunTime = appRunEnd - appRunStart;
@@ -80,26 +95,24 @@ public class PreprocessingApplication extends GateApplication {
       timeMeasurement.setPreprocessingRunTime(preprocessingRunTime);
 
       /*Put a feature to the document, which contains the name of the current PreprocessingApplication*/
-      String gateApplicationName = application.getName();
+      String gateApplicationName = controller.getName();
       
       doc.getFeatures().put("PreprocessedGapName", gateApplicationName);
+      failed = false;
 
     }catch (ResourceInstantiationException e) {
-      GateInitSingleton.executeResetApplication(doc);
-      GateInitSingleton.unloadGateResources(doc,corpus);
+      GateInitSingleton.resetDocument(doc);
       log.error("Cannot create Gate-Resource");
       throw e;
     } catch (ExecutionException e) {
       log.error(e.getClass().getName() + " occured on executing preprocessing");
       log.error(e.getMessage());
-      GateInitSingleton.executeResetApplication(doc);
-      GateInitSingleton.unloadGateResources(doc,corpus);     
+      GateInitSingleton.resetDocument(doc);
       throw e;
     } catch (Exception e) {
       log.error("Exception with class: " + e.getClass() + " on executing document: " + doc.getName()
-          + " on Application: " + application.getName());
-      GateInitSingleton.executeResetApplication(doc);
-      GateInitSingleton.unloadGateResources(doc,corpus);
+          + " on Application: " + controller.getName());
+      GateInitSingleton.resetDocument(doc);
       
       if (e.getMessage() != null) {
         log.error(e.getMessage());
@@ -107,14 +120,110 @@ public class PreprocessingApplication extends GateApplication {
         log.error("Printing stacktrace of exception without message");
         e.printStackTrace();
       }
-      GateInitSingleton.executeResetApplication(doc);
-      GateInitSingleton.unloadGateResources(doc,corpus);
-      log.error(e.getMessage());
       throw e;
+    } finally {
+      CorpusLifecycle.getInstance().detach(controller);
+      checkinApplication(controller, failed);
     }
     
-    GateInitSingleton.unloadGateResources(null, corpus);
-    
     return doc;
   }
+
+  /**
+   * Executes the Gate-Preprocessing Application once on a corpus containing all documents
+   * 
+   * @param docs - the Documents to process
+   * @return the preprocessed Gate-Documents
+   * @throws Exception the documents are not unloaded, the caller decides
+   *         whether to process them again one by one
+   */
+  public List<Document> executeDocuments(List<Document> docs) throws Exception {
+    log.info("--> Starting preprocessing on " + docs.size() + " Documents");
+
+    Corpus corpus = null;
+    CorpusController controller = checkoutApplication();
+    boolean failed = true;
+
+    try {
+      corpus = CorpusLifecycle.getInstance().attach(controller, docs);
+
+      long appRunStart = new Date().getTime();
+
+      executeWithDeadline(controller, "preprocessing", docs.size() + " documents", batchDeadline(deadline,
+          docs.size()));
+
+      log.info("Application :'" + controller.getName() + "' executed on Corpus: '" + corpus.getName()
+          + "'");
+      long appRunEnd = new Date().getTime();
+      long preprocessingRunTime = appRunEnd - appRunStart;
+      log.info("--------------------------------------------------------");
+      log.info("Application run time: " + preprocessingRunTime);
+      log.info("on " + docs.size() + " Gatedocuments");
+      log.info("--------------------------------------------------------");
+
+      timeMeasurement.setPreprocessingRunTime(preprocessingRunTime);
+
+      String gateApplicationName = controller.getName();
+      for (Document doc : docs) {
+        doc.getFeatures().put("PreprocessedGapName", gateApplicationName);
+      }
+      failed = false;
+    } catch (ResourceInstantiationException e) {
+      log.error("Cannot create Gate-Resource");
+      throw e;
+    } catch (ExecutionException e) {
+      log.error(e.getClass().getName() + " occured on executing preprocessing on " + docs.size() + " documents");
+      log.error(e.getMessage());
+      throw e;
+    } finally {
+      CorpusLifecycle.getInstance().detach(controller);
+      checkinApplication(controller, failed);
+    }
+
+    return docs;
+  }
+
+  /**
+   * Preprocess and classify the documents in one execution of a controller created by
+   * FusedController, the documents are not serialized between the two applications
+   * 
+   * @param fusedController controller of the calling worker
+   * @param docs - the Documents to process
+   * @return the preprocessed and, if they contain SO annotations, classified Gate-Documents
+   * @throws Exception the documents are not unloaded, the caller decides
+   *         whether to process them again one by one
+   */
+  public List<Document> executeFused(CorpusController fusedController, List<Document> docs) throws Exception {
+    log.info("--> Starting fused preprocessing and classification on " + docs.size() + " Documents");
+
+    try {
+      Corpus corpus = CorpusLifecycle.getInstance().attach(fusedController, docs);
+
+      long appRunStart = new Date().getTime();
+      executeWithDeadline(fusedController, "fused", (docs.size() == 1) ? docs.get(0).getName() : docs.size()
+          + " documents", batchDeadline(fusedDeadline, docs.size()));
+
+      log.info("Application :'" + fusedController.getName() + "' executed fused on Corpus: '" + corpus.getName()
+          + "'");
+      long fusedRunTime = new Date().getTime() - appRunStart;
+      log.info("--------------------------------------------------------");
+      log.info("Fused application run time: " + fusedRunTime);
+      log.info("on " + docs.size() + " Gatedocuments");
+      log.info("--------------------------------------------------------");
+
+      timeMeasurement.setPreprocessingRunTime(fusedRunTime);
+
+      for (Document doc : docs) {
+        doc.getFeatures().put("PreprocessedGapName", fusedController.getName());
+      }
+    } catch (ExecutionException e) {
+      log.error(e.getClass().getName() + " occured on fused execution on " + docs.size() + " documents");
+      log.error(e.getMessage());
+      throw e;
+    } finally {
+      CorpusLifecycle.getInstance().detach(fusedController);
+    }
+
+    return docs;
+  }
 }
@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package preprocessing;
+
+import gate.Document;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Predicts before the preprocessing whether a document can contain a sentiment object (SO).
+ *
+ * The labels and names of the subclasses and individuals of 'soPrefilterRootClass' in the
+ * ontology and the entries of the gazetteer lists in 'soPrefilterGazetteerLists' are compiled
+ * into an Aho-Corasick automaton, which scans the document text once.
+ * The match is conservative: case and whitespace are ignored and a label has to start at a
+ * word boundary only, so inflected forms like 'firms' for the label 'firm' are found as well.
+ * A document without a match is predicted to contain no SO.
+ *
+ * The preprocessing can find SOs by gazetteer lists which are not part of the ontology, so
+ * the predictions of documents preprocessed completely are verified against their SO annotations,
+ * see getStatistics.
+ *
+ * @author lgredel
+ *
+ */
+public class SentimentObjectPrefilter {
+  private static Logger log = Logger.getLogger(SentimentObjectPrefilter.class);
+
+  private static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+  private static final String RDFS = "http://www.w3.org/2000/01/rdf-schema#";
+  private static final String OWL = "http://www.w3.org/2002/07/owl#";
+
+  private static SentimentObjectPrefilter INSTANCE;
+
+  private final Automaton automaton;
+  private final int labelCount;
+
+  private long documents = 0;
+  private long predictedWithoutSO = 0;
+  private long verified = 0;
+  private long missed = 0;
+  private long falseAlarms = 0;
+
+  private SentimentObjectPrefilter() throws IOException {
+    File ontologyFile = new File(GlobalParameters.loadConfigFile().getProperty("soPrefilterOntology",
+        GlobalParameters.getOntologyFile().getPath()));
+    String rootClass = GlobalParameters.loadConfigFile().getProperty("soPrefilterRootClass",
+        "http://project-first.eu/ontology#SentimentObject");
+    int minLabelLength = GlobalParameters.extractIntProperty("soPrefilterMinLabelLength", 2);
+
+    long start = System.currentTimeMillis();
+    Set<String> labels = new TreeSet<String>();
+    for (String label : new OntologyLabels(ontologyFile).getLabels(rootClass)) {
+      String pattern = normalize(label);
+      if (pattern.length() >= minLabelLength) {
+        labels.add(pattern);
+      }
+    }
+    // gazetteer lists of sentiment objects which are not part of the ontology, one entry per line
+    String lists = GlobalParameters.loadConfigFile().getProperty("soPrefilterGazetteerLists", "");
+    for (String list : lists.split(",")) {
+      if (list.trim().length() == 0) {
+        continue;
+      }
+      for (Object line : FileUtils.readLines(new File(list.trim()), "UTF-8")) {
+        // features of the entry follow a tab or '&'
+        String pattern = normalize(line.toString().split("[\t&]", 2)[0]);
+        if (pattern.length() >= minLabelLength) {
+          labels.add(pattern);
+        }
+      }
+    }
+    if (labels.isEmpty()) {
+      throw new IOException("No labels of " + rootClass + " found in ontology: " + ontologyFile.getAbsolutePath());
+    }
+
+    automaton = new Automaton(labels);
+    labelCount = labels.size();
+    log.info("SentimentObjectPrefilter compiled " + labelCount + " labels of " + rootClass + " to "
+        + automaton.getStates() + " states in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * @return the SentimentObjectPrefilter, created on the first call
+   * @throws IOException if the ontology cannot be read
+   */
+  public static synchronized SentimentObjectPrefilter getInstance() throws IOException {
+    if (INSTANCE == null) {
+      INSTANCE = new SentimentObjectPrefilter();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * @return the SentimentObjectPrefilter if it was created, else null
+   */
+  public static synchronized SentimentObjectPrefilter getStartedInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param doc loaded document, not preprocessed
+   * @return false if no label of a sentiment object occurs in the text of the document
+   */
+  public boolean mayContainSentimentObject(Document doc) {
+    boolean match = automaton.matches(normalize(doc.getContent().toString()));
+    synchronized (this) {
+      documents++;
+      if (!match) {
+        predictedWithoutSO++;
+      }
+    }
+    return match;
+  }
+
+  /**
+   * Compare the prediction of a document with its SO annotations after the complete preprocessing
+   *
+   * @param predictedSO result of mayContainSentimentObject
+   * @param containsSO the preprocessed document contains SO annotations
+   */
+  public synchronized void verify(boolean predictedSO, boolean containsSO) {
+    verified++;
+    if (!predictedSO && containsSO) {
+      missed++;
+    } else if (predictedSO && !containsSO) {
+      falseAlarms++;
+    }
+  }
+
+  public synchronized String getStatistics() {
+    return "SO prefilter: " + labelCount + " labels, " + documents + " documents, " + predictedWithoutSO
+        + " predicted without SO, " + verified + " verified with " + missed + " missed SO documents and "
+        + falseAlarms + " false alarms";
+  }
+
+  /**
+   * Lower case with whitespace runs replaced by one space
+   */
+  private static String normalize(String text) {
+    StringBuilder normalized = new StringBuilder(text.length());
+    boolean space = true;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c) || c == '_') {
+        if (!space) {
+          normalized.append(' ');
+          space = true;
+        }
+      } else {
+        normalized.append(Character.toLowerCase(c));
+        space = false;
+      }
+    }
+    int length = normalized.length();
+    if (length > 0 && normalized.charAt(length - 1) == ' ') {
+      normalized.setLength(length - 1);
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Aho-Corasick automaton with the edges of each state as sorted arrays
+   */
+  static class Automaton {
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] fail;
+    // lengths of the patterns ending in the state, including those of its fail states
+    private final int[][] lengths;
+
+    Automaton(Collection<String> patterns) {
+      List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+      List<Integer> patternLengths = new ArrayList<Integer>();
+      children.add(new TreeMap<Character, Integer>());
+      patternLengths.add(0);
+
+      for (String pattern : patterns) {
+        int state = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+          Integer next = children.get(state).get(pattern.charAt(i));
+          if (next == null) {
+            next = children.size();
+            children.get(state).put(pattern.charAt(i), next);
+            children.add(new TreeMap<Character, Integer>());
+            patternLengths.add(0);
+          }
+          state = next;
+        }
+        patternLengths.set(state, pattern.length());
+      }
+
+      int states = children.size();
+      keys = new char[states][];
+      targets = new int[states][];
+      fail = new int[states];
+      lengths = new int[states][];
+      for (int state = 0; state < states; state++) {
+        keys[state] = new char[children.get(state).size()];
+        targets[state] = new int[children.get(state).size()];
+        int i = 0;
+        for (Map.Entry<Character, Integer> edge : children.get(state).entrySet()) {
+          keys[state][i] = edge.getKey();
+          targets[state][i] = edge.getValue();
+          i++;
+        }
+      }
+
+      // fail states in breadth-first order, the fail state of a state is less deep
+      LinkedList<Integer> queue = new LinkedList<Integer>();
+      lengths[0] = new int[0];
+      for (int child : targets[0]) {
+        fail[child] = 0;
+        queue.add(child);
+      }
+      while (!queue.isEmpty()) {
+        int state = queue.removeFirst();
+        int own = patternLengths.get(state);
+        int[] inherited = lengths[fail[state]];
+        lengths[state] = new int[inherited.length + ((own > 0) ? 1 : 0)];
+        System.arraycopy(inherited, 0, lengths[state], 0, inherited.length);
+        if (own > 0) {
+          lengths[state][inherited.length] = own;
+        }
+
+        for (int i = 0; i < keys[state].length; i++) {
+          int child = targets[state][i];
+          int failState = fail[state];
+          while (failState != 0 && next(failState, keys[state][i]) < 0) {
+            failState = fail[failState];
+          }
+          int failTarget = next(failState, keys[state][i]);
+          fail[child] = (failTarget >= 0 && failTarget != child) ? failTarget : 0;
+          queue.add(child);
+        }
+      }
+    }
+
+    /**
+     * @param text normalized text
+     * @return true if a pattern occurs starting at a word boundary
+     */
+    boolean matches(String text) {
+      int state = 0;
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        int next = next(state, c);
+        while (next < 0 && state != 0) {
+          state = fail[state];
+          next = next(state, c);
+        }
+        state = (next < 0) ? 0 : next;
+
+        for (int length : lengths[state]) {
+          int start = i - length + 1;
+          if (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1))) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    int getStates() {
+      return keys.length;
+    }
+
+    private int next(int state, char c) {
+      char[] stateKeys = keys[state];
+      int low = 0;
+      int high = stateKeys.length - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (stateKeys[middle] < c) {
+          low = middle + 1;
+        } else if (stateKeys[middle] > c) {
+          high = middle - 1;
+        } else {
+          return targets[state][middle];
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Labels, local names and is-a relations (subClassOf, type) of the entities of an
+   * RDF/XML ontology, read with StAX
+   */
+  static class OntologyLabels {
+    private final Map<String, Set<String>> labels = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+
+    OntologyLabels(File ontologyFile) throws IOException {
+      InputStream in = new FileInputStream(ontologyFile);
+      try {
+        read(XMLInputFactory.newInstance().createXMLStreamReader(in));
+      } catch (XMLStreamException e) {
+        throw new IOException(e.getClass().getName() + " occured on reading ontology: "
+            + ontologyFile.getAbsolutePath() + ": " + e.getMessage());
+      } finally {
+        in.close();
+      }
+    }
+
+    /**
+     * @param rootClass
+     * @return labels and local names of the root class, its subclasses and their individuals
+     */
+    Set<String> getLabels(String rootClass) {
+      Set<String> result = new HashSet<String>();
+      Map<String, Boolean> isA = new HashMap<String, Boolean>();
+      Set<String> entities = new HashSet<String>(labels.keySet());
+      entities.addAll(parents.keySet());
+      for (String entity : entities) {
+        if (isA(entity, rootClass, isA, new HashSet<String>())) {
+          int hash = entity.lastIndexOf('#');
+          if (hash >= 0 && hash < entity.length() - 1) {
+            result.add(entity.substring(hash + 1));
+          }
+          if (labels.containsKey(entity)) {
+            result.addAll(labels.get(entity));
+          }
+        }
+      }
+      return result;
+    }
+
+    private boolean isA(String entity, String rootClass, Map<String, Boolean> isA, Set<String> visiting) {
+      if (entity.equals(rootClass)) {
+        return true;
+      }
+      Boolean known = isA.get(entity);
+      if (known != null) {
+        return known;
+      }
+      if (!visiting.add(entity)) {
+        return false;
+      }
+
+      boolean result = false;
+      Set<String> entityParents = parents.get(entity);
+      if (entityParents != null) {
+        for (String parent : entityParents) {
+          if (isA(parent, rootClass, isA, visiting)) {
+            result = true;
+            break;
+          }
+        }
+      }
+      isA.put(entity, result);
+      return result;
+    }
+
+    /**
+     * Node elements and property elements alternate in RDF/XML, a node element nested in
+     * rdfs:subClassOf or rdf:type is a parent of the enclosing node
+     */
+    private void read(XMLStreamReader xsr) throws XMLStreamException {
+      // entity of each open node element, null for property elements and anonymous nodes
+      LinkedList<String> nodes = new LinkedList<String>();
+      // name of each open property element, null for node elements
+      LinkedList<String> properties = new LinkedList<String>();
+      StringBuilder label = null;
+
+      while (xsr.hasNext()) {
+        int event = xsr.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String name = xsr.getNamespaceURI() + xsr.getLocalName();
+          boolean nodeElement = properties.isEmpty() || properties.getFirst() != null;
+
+          if (properties.isEmpty() && (RDF + "RDF").equals(name)) {
+            // the children of the root are node elements
+            nodes.addFirst(null);
+            properties.addFirst(name);
+          } else if (nodeElement) {
+            String entity = xsr.getAttributeValue(RDF, "about");
+            String owner = (nodes.size() > 1) ? nodes.get(1) : null;
+            String property = properties.getFirst();
+            if (entity != null && owner != null
+                && ((RDFS + "subClassOf").equals(property) || (RDF + "type").equals(property))) {
+              addParent(owner, entity);
+            }
+            // typed node element like <ontology:Company rdf:about="...">
+            String namespace = xsr.getNamespaceURI();
+            if (entity != null && namespace != null && !RDF.equals(namespace) && !RDFS.equals(namespace)
+                && !OWL.equals(namespace)) {
+              addParent(entity, name);
+            }
+            nodes.addFirst(entity);
+            properties.addFirst(null);
+          } else {
+            String owner = nodes.getFirst();
+            String resource = xsr.getAttributeValue(RDF, "resource");
+            if (owner != null && resource != null
+                && ((RDFS + "subClassOf").equals(name) || (RDF + "type").equals(name))) {
+              addParent(owner, resource);
+            }
+            label = (RDFS + "label").equals(name) ? new StringBuilder() : null;
+            nodes.addFirst(null);
+            properties.addFirst(name);
+          }
+        } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+          if (label != null) {
+            label.append(xsr.getText());
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          if (label != null && (RDFS + "label").equals(properties.getFirst()) && nodes.size() > 1
+              && nodes.get(1) != null) {
+            addLabel(nodes.get(1), label.toString());
+          }
+          label = null;
+          nodes.removeFirst();
+          properties.removeFirst();
+        }
+      }
+      xsr.close();
+    }
+
+    private void addParent(String entity, String parent) {
+      Set<String> entityParents = parents.get(entity);
+      if (entityParents == null) {
+        entityParents = new HashSet<String>();
+        parents.put(entity, entityParents);
+      }
+      entityParents.add(parent);
+    }
+
+    private void addLabel(String entity, String label) {
+      Set<String> entityLabels = labels.get(entity);
+      if (entityLabels == null) {
+        entityLabels = new HashSet<String>();
+        labels.put(entity, entityLabels);
+      }
+      entityLabels.add(label.trim());
+    }
+  }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.Gate;
+import gate.jape.Batch;
+import gate.jape.JapeException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Versioned snapshots of Gate-Applications in 'applicationSnapshotDirectory', loaded by
+ * GateInitSingleton.loadApplication with 'applicationSnapshotCache' instead of the .gapp file.
+ *
+ * A snapshot contains the JAPE grammars of the JAPE transducers precompiled and serialized,
+ * and a copy of the .gapp file loading them by binaryGrammarURL, with the relative paths
+ * resolved against the directory of the original .gapp file. So neither a restart nor a
+ * Factory.duplicate of the application parses and compiles the grammars again, the transducers
+ * only deserialize them. Gazetteers and other resources are loaded from their original files.
+ *
+ * A snapshot is named by the SHA-1 hash of the .gapp file, the files in the directories of its
+ * grammars, the GATE library and the snapshot format, so changing one of them builds a new
+ * snapshot and deletes the outdated one. A grammar which cannot be compiled on its own
+ * (e.g. custom operators) is kept as source in the snapshot.
+ *
+ * @author lgredel
+ *
+ */
+public class ApplicationSnapshotCache {
+  private static Logger log = Logger.getLogger(ApplicationSnapshotCache.class);
+
+  private static final String SNAPSHOT_VERSION = "1";
+  private static final String TRANSDUCER = "gate.creole.Transducer";
+  private static final String RELPATH = "$relpath$";
+  private static final String GATEHOME = "$gatehome$";
+  private static final String GATEPLUGINS = "$gateplugins$";
+
+  private static ApplicationSnapshotCache INSTANCE;
+
+  private final File cacheDir;
+  private long hits = 0;
+  private long builds = 0;
+  private long invalidated = 0;
+
+  private ApplicationSnapshotCache() throws IOException {
+    cacheDir = new File(GlobalParameters.loadConfigFile().getProperty("applicationSnapshotDirectory",
+        "applicationSnapshots"));
+    if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+      throw new IOException("Cannot create application snapshot directory: " + cacheDir.getAbsolutePath());
+    }
+  }
+
+  /**
+   * @return the ApplicationSnapshotCache, created on the first call
+   * @throws IOException if the snapshot directory cannot be created
+   */
+  public static synchronized ApplicationSnapshotCache getInstance() throws IOException {
+    if (INSTANCE == null) {
+      INSTANCE = new ApplicationSnapshotCache();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * The snapshot of the application, built if it does not exist for the current content
+   *
+   * @param gateApp .gapp file of the application
+   * @return the .gapp file of the snapshot or null if the application has no grammar to precompile
+   * @throws IOException if the snapshot cannot be built
+   */
+  public synchronized File getSnapshot(File gateApp) throws IOException {
+    Document gapp = parse(gateApp);
+    List<Element> grammarEntries = findGrammarEntries(gapp);
+    if (grammarEntries.isEmpty()) {
+      log.debug("No JAPE grammar to precompile in " + gateApp.getName());
+      return null;
+    }
+
+    URL gappDirUrl = gateApp.getAbsoluteFile().getParentFile().toURI().toURL();
+    List<URL> grammarUrls = new ArrayList<URL>();
+    for (Element entry : grammarEntries) {
+      grammarUrls.add(resolve(urlString(entry), gappDirUrl));
+    }
+
+    String baseName = FilenameUtils.getBaseName(gateApp.getName());
+    File snapshotDir = new File(cacheDir, baseName + "-" + hash(gateApp, grammarUrls));
+    File snapshotApp = new File(snapshotDir, gateApp.getName());
+    if (snapshotApp.isFile()) {
+      hits++;
+      log.info("Loading " + gateApp.getName() + " from snapshot " + snapshotDir.getName());
+      return snapshotApp;
+    }
+
+    long start = System.currentTimeMillis();
+    deleteOutdated(baseName, snapshotDir);
+    File tmpDir = new File(cacheDir, snapshotDir.getName() + ".tmp");
+    FileUtils.deleteQuietly(tmpDir);
+    if (!tmpDir.mkdirs()) {
+      throw new IOException("Cannot create application snapshot directory: " + tmpDir.getAbsolutePath());
+    }
+
+    try {
+      int compiled = 0;
+      for (int i = 0; i < grammarEntries.size(); i++) {
+        Element entry = grammarEntries.get(i);
+        String binaryName = i + "_" + FilenameUtils.getBaseName(grammarUrls.get(i).getPath()) + ".jape.ser";
+        if (compile(grammarUrls.get(i), encoding(entry), new File(tmpDir, binaryName))) {
+          firstElement(entry, "string").setTextContent("binaryGrammarURL");
+          urlStringElement(entry).setTextContent(new File(snapshotDir, binaryName).toURI().toURL().toString());
+          compiled++;
+        }
+      }
+
+      // the snapshot is not next to the original .gapp file
+      NodeList urlStrings = gapp.getElementsByTagName("urlString");
+      for (int i = 0; i < urlStrings.getLength(); i++) {
+        String url = urlStrings.item(i).getTextContent().trim();
+        if (url.startsWith(RELPATH)) {
+          urlStrings.item(i).setTextContent(gappDirUrl.toString() + url.substring(RELPATH.length()));
+        }
+      }
+      write(gapp, new File(tmpDir, gateApp.getName()));
+
+      if (!tmpDir.renameTo(snapshotDir)) {
+        throw new IOException("Cannot rename " + tmpDir.getName() + " to " + snapshotDir.getName());
+      }
+      builds++;
+      log.info("Built snapshot " + snapshotDir.getName() + " of " + gateApp.getName() + " with " + compiled + " of "
+          + grammarEntries.size() + " grammars precompiled in " + (System.currentTimeMillis() - start) + " ms");
+    } finally {
+      FileUtils.deleteQuietly(tmpDir);
+    }
+    return snapshotApp;
+  }
+
+  /**
+   * Delete a snapshot which could not be loaded, it is built again on the next load
+   *
+   * @param snapshotApp .gapp file of the snapshot
+   */
+  public synchronized void invalidate(File snapshotApp) {
+    invalidated++;
+    log.warn("Deleting application snapshot: " + snapshotApp.getParentFile().getAbsolutePath());
+    FileUtils.deleteQuietly(snapshotApp.getParentFile());
+  }
+
+  public synchronized String getStatistics() {
+    return "Application snapshots: " + hits + " loaded, " + builds + " built, " + invalidated + " invalidated";
+  }
+
+  /**
+   * Compile the grammar and serialize it like the transducer does on 'Serialize Transducer'
+   *
+   * @return false if the grammar cannot be compiled outside of its transducer
+   */
+  private boolean compile(URL grammarUrl, String encoding, File binaryFile) throws IOException {
+    Batch batch = null;
+    try {
+      batch = new Batch(grammarUrl, encoding);
+    } catch (JapeException e) {
+      log.warn(e.getClass().getName() + " occured on precompiling grammar: " + grammarUrl
+          + " -> kept as source in the snapshot");
+      log.warn(e.getMessage());
+      return false;
+    }
+
+    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(binaryFile));
+    try {
+      out.writeObject(batch);
+    } finally {
+      out.close();
+    }
+    return true;
+  }
+
+  /**
+   * @return the grammarURL entries of the init parameters of the JAPE transducers
+   */
+  private static List<Element> findGrammarEntries(Document gapp) {
+    List<Element> grammarEntries = new ArrayList<Element>();
+    NodeList entries = gapp.getElementsByTagName("entry");
+    for (int i = 0; i < entries.getLength(); i++) {
+      Element entry = (Element) entries.item(i);
+      Element key = firstElement(entry, "string");
+      if (key == null || !"grammarURL".equals(key.getTextContent().trim()) || urlStringElement(entry) == null) {
+        continue;
+      }
+      if (TRANSDUCER.equals(resourceType(entry))) {
+        grammarEntries.add(entry);
+      }
+    }
+    return grammarEntries;
+  }
+
+  /**
+   * @return the resourceType of the persisted resource containing the entry
+   */
+  private static String resourceType(Element entry) {
+    for (Node node = entry.getParentNode(); node instanceof Element; node = node.getParentNode()) {
+      Element resourceType = firstElement((Element) node, "resourceType");
+      if (resourceType != null) {
+        return resourceType.getTextContent().trim();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the encoding init parameter next to the grammarURL entry, UTF-8 if not set
+   */
+  private static String encoding(Element grammarEntry) {
+    NodeList entries = grammarEntry.getParentNode().getChildNodes();
+    for (int i = 0; i < entries.getLength(); i++) {
+      if (!(entries.item(i) instanceof Element)) {
+        continue;
+      }
+      NodeList values = ((Element) entries.item(i)).getElementsByTagName("string");
+      if (values.getLength() == 2 && "encoding".equals(values.item(0).getTextContent().trim())) {
+        return values.item(1).getTextContent().trim();
+      }
+    }
+    return "UTF-8";
+  }
+
+  private static String urlString(Element entry) {
+    return urlStringElement(entry).getTextContent().trim();
+  }
+
+  private static Element urlStringElement(Element entry) {
+    NodeList urlStrings = entry.getElementsByTagName("urlString");
+    return (urlStrings.getLength() > 0) ? (Element) urlStrings.item(0) : null;
+  }
+
+  private static Element firstElement(Element parent, String tagName) {
+    NodeList children = parent.getChildNodes();
+    for (int i = 0; i < children.getLength(); i++) {
+      if (children.item(i) instanceof Element && tagName.equals(children.item(i).getNodeName())) {
+        return (Element) children.item(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Resolve an url of the .gapp file like the PersistenceManager
+   */
+  private static URL resolve(String url, URL gappDirUrl) throws MalformedURLException {
+    if (url.startsWith(RELPATH)) {
+      return new URL(gappDirUrl, url.substring(RELPATH.length()));
+    } else if (url.startsWith(GATEHOME)) {
+      return new URL(Gate.getGateHome().toURI().toURL(), url.substring(GATEHOME.length()));
+    } else if (url.startsWith(GATEPLUGINS)) {
+      return new URL(Gate.getPluginsHome().toURI().toURL(), url.substring(GATEPLUGINS.length()));
+    }
+    return new URL(url);
+  }
+
+  /**
+   * SHA-1 of the snapshot format, the GATE library, the .gapp file and the files in the
+   * directories of the grammars, which contain the phases of multiphase grammars
+   */
+  private static String hash(File gateApp, List<URL> grammarUrls) throws IOException {
+    MessageDigest digest = null;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+
+    digest.update(SNAPSHOT_VERSION.getBytes("UTF-8"));
+    File gateLibrary = toFile(Gate.class.getProtectionDomain().getCodeSource().getLocation());
+    if (gateLibrary != null) {
+      digest.update((gateLibrary.getName() + gateLibrary.length() + gateLibrary.lastModified()).getBytes("UTF-8"));
+    }
+
+    TreeMap<String, File> files = new TreeMap<String, File>();
+    files.put(gateApp.getAbsolutePath(), gateApp);
+    for (URL grammarUrl : grammarUrls) {
+      File grammarFile = toFile(grammarUrl);
+      if (grammarFile == null || grammarFile.getParentFile() == null) {
+        digest.update(grammarUrl.toString().getBytes("UTF-8"));
+        continue;
+      }
+      Collection<File> grammarDirFiles = FileUtils.listFiles(grammarFile.getParentFile(), null, true);
+      for (File file : grammarDirFiles) {
+        files.put(file.getAbsolutePath(), file);
+      }
+    }
+
+    byte[] buffer = new byte[8192];
+    for (File file : files.values()) {
+      digest.update(file.getAbsolutePath().getBytes("UTF-8"));
+      InputStream in = new FileInputStream(file);
+      try {
+        int read = 0;
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    StringBuilder hash = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hash.append(String.format("%02x", b & 0xff));
+    }
+    return hash.toString();
+  }
+
+  private static File toFile(URL url) {
+    if (url == null || !"file".equals(url.getProtocol())) {
+      return null;
+    }
+    try {
+      return new File(url.toURI());
+    } catch (URISyntaxException e) {
+      return new File(url.getPath());
+    }
+  }
+
+  /**
+   * Delete the snapshots of the application built for another content
+   */
+  private void deleteOutdated(String baseName, File snapshotDir) {
+    File[] snapshots = cacheDir.listFiles();
+    if (snapshots == null) {
+      return;
+    }
+    for (File snapshot : snapshots) {
+      String name = snapshot.getName();
+      // base name, '-' and 40 hex digits, optionally '.tmp'
+      if (name.startsWith(baseName + "-") && !snapshot.equals(snapshotDir)
+          && name.replace(".tmp", "").length() == baseName.length() + 41) {
+        log.info("Deleting outdated application snapshot: " + name);
+        FileUtils.deleteQuietly(snapshot);
+      }
+    }
+  }
+
+  private static Document parse(File gateApp) throws IOException {
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(gateApp);
+    } catch (ParserConfigurationException e) {
+      throw new IOException(e.getClass().getName() + " occured on parsing " + gateApp.getName() + ": "
+          + e.getMessage());
+    } catch (SAXException e) {
+      throw new IOException(e.getClass().getName() + " occured on parsing " + gateApp.getName() + ": "
+          + e.getMessage());
+    }
+  }
+
+  private static void write(Document gapp, File file) throws IOException {
+    try {
+      TransformerFactory.newInstance().newTransformer().transform(new DOMSource(gapp), new StreamResult(file));
+    } catch (TransformerException e) {
+      throw new IOException(e.getClass().getName() + " occured on writing " + file.getName() + ": " + e.getMessage());
+    }
+  }
+}
@@ -119,8 +119,7 @@ public class CifsNetworkConfig {
 
     String destinationFilePath = NETWORK_FOLDER + relativeDestFilePath;
 
-    networkCopy(sourceFile, destinationFilePath, deleteSourceFile);
-    return currentSmbFile;
+    return networkCopy(sourceFile, destinationFilePath, deleteSourceFile);
   }
 
   /**
@@ -151,16 +150,20 @@ public class CifsNetworkConfig {
    * @param sourceFile File to send
    * @param destinationFilePath destination path where to send the file
    * @param deleteSourceFile delete source file after it has been successfully sent to the network share
+   * @return the destination file, also set as currentSmbFile. Threads copying in parallel
+   *         have to use the returned file instead of currentSmbFile
    * 
    * @throws IOException
    */
-  public void networkCopy(File sourceFile, String destinationFilePath, boolean deleteSourceFile)
+  public SmbFile networkCopy(File sourceFile, String destinationFilePath, boolean deleteSourceFile)
       throws IOException {
     SmbFileOutputStream sfos = null;
     FileInputStream sourceInputStream = null;
+    SmbFile currentSmbFile = null;
 
     try {
-      this.currentSmbFile = new SmbFile(destinationFilePath, auth);
+      currentSmbFile = new SmbFile(destinationFilePath, auth);
+      this.currentSmbFile = currentSmbFile;
 
       if (!currentSmbFile.exists()) {
         log.debug("SMB file will be created new: " + currentSmbFile.getPath());
@@ -207,6 +210,7 @@ public class CifsNetworkConfig {
         GlobalParameters.deleteFile(sourceFile);
       }
     }
+    return currentSmbFile;
   }
 
   public String getServerIP() {
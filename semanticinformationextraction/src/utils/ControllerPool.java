@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.CorpusController;
+import gate.Factory;
+import gate.creole.ResourceInstantiationException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import performance.LatencyHistogram;
+
+/**
+ * Pool of copies of one Gate-Application, created by GateInitSingleton.getControllerPool.
+ *
+ * Threads check out a controller only for the execution of a corpus and check it in afterwards,
+ * so more threads than copies of the application can share the pipelines. The loaded application
+ * is the template of the pool and never checked out, so it is not executing while it is duplicated.
+ * The copies are duplicated from it on demand up to 'maxSize'.
+ *
+ * On checkin the corpus of the controller is reset. A controller returned after a failed execution
+ * or interrupted is deleted and replaced by a new duplicate on the next checkout.
+ *
+ * @author lgredel
+ *
+ */
+public class ControllerPool {
+  private static Logger log = Logger.getLogger(ControllerPool.class);
+
+  private final String name;
+  private final CorpusController template;
+  private final int maxSize;
+
+  private final LinkedList<CorpusController> idleControllers = new LinkedList<CorpusController>();
+  private final List<CorpusController> controllers = new ArrayList<CorpusController>();
+  private boolean closed = false;
+
+  private long checkouts = 0;
+  private long discarded = 0;
+  private final LatencyHistogram checkoutWaitTimes = new LatencyHistogram();
+
+  /**
+   * @param name name of the application file, used for logging
+   * @param template loaded application, owned by the pool
+   * @param maxSize maximum number of copies checked out at the same time
+   */
+  ControllerPool(String name, CorpusController template, int maxSize) {
+    super();
+    this.name = name;
+    this.template = template;
+    this.maxSize = Math.max(1, maxSize);
+  }
+
+  /**
+   * Borrow a controller, waiting while all controllers are checked out
+   *
+   * @return a controller without corpus
+   * @throws InterruptedException
+   * @throws ResourceInstantiationException if a new copy cannot be duplicated
+   */
+  public CorpusController checkout() throws InterruptedException, ResourceInstantiationException {
+    long start = System.currentTimeMillis();
+    CorpusController controller = null;
+
+    synchronized (this) {
+      while (idleControllers.isEmpty() && (controllers.size() >= maxSize || closed)) {
+        if (closed) {
+          throw new IllegalStateException("ControllerPool " + name + " is closed");
+        }
+        wait();
+      }
+
+      if (!idleControllers.isEmpty()) {
+        controller = idleControllers.removeFirst();
+      } else {
+        // reserve the place of the new copy, the duplication runs outside the lock
+        controllers.add(null);
+      }
+    }
+
+    if (controller == null) {
+      controller = duplicate();
+    }
+
+    synchronized (this) {
+      checkouts++;
+      checkoutWaitTimes.record(System.currentTimeMillis() - start);
+    }
+    return controller;
+  }
+
+  /**
+   * Return a borrowed controller
+   *
+   * @param controller
+   * @param failed true if the execution failed, the controller is replaced
+   */
+  public void checkin(CorpusController controller, boolean failed) {
+    if (controller == null) {
+      return;
+    }
+
+    boolean valid = !failed && !controller.isInterrupted();
+    if (valid) {
+      try {
+        controller.setCorpus(null);
+      } catch (RuntimeException e) {
+        log.error(e.getClass().getName() + " occured on resetting controller of " + name);
+        log.error(e.getMessage());
+        valid = false;
+      }
+    }
+
+    boolean keep;
+    boolean poolClosed;
+    synchronized (this) {
+      poolClosed = closed;
+      keep = valid && !closed;
+      if (keep) {
+        idleControllers.addFirst(controller);
+      } else {
+        controllers.remove(controller);
+        if (!valid) {
+          discarded++;
+        }
+      }
+      notifyAll();
+    }
+
+    if (!keep) {
+      if (!valid && !poolClosed) {
+        log.info("Replacing controller of " + name + " after failed execution");
+      }
+      Factory.deleteResource(controller);
+    }
+  }
+
+  private CorpusController duplicate() throws ResourceInstantiationException {
+    long start = System.currentTimeMillis();
+    CorpusController controller = null;
+    try {
+      controller = SharedResources.duplicate(template);
+      log.info("Duplicated controller " + getSize() + "/" + maxSize + " of " + name + " in "
+          + (System.currentTimeMillis() - start) + " ms");
+      return controller;
+    } finally {
+      synchronized (this) {
+        controllers.remove(null);
+        if (controller != null) {
+          controllers.add(controller);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Delete the template and the idle controllers, controllers checked in later are deleted on checkin
+   */
+  public void close() {
+    List<CorpusController> idle = null;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      idle = new ArrayList<CorpusController>(idleControllers);
+      idleControllers.clear();
+      controllers.removeAll(idle);
+      notifyAll();
+    }
+    for (CorpusController controller : idle) {
+      Factory.deleteResource(controller);
+    }
+    Factory.deleteResource(template);
+    log.info(getStatistics());
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the loaded application, copies are duplicated from it, it is never checked out
+   */
+  public CorpusController getTemplate() {
+    return template;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return number of existing copies without the template
+   */
+  public synchronized int getSize() {
+    return controllers.size();
+  }
+
+  public synchronized int getIdleCount() {
+    return idleControllers.size();
+  }
+
+  /**
+   * @return checkout, controllers, discarded controllers and wait time for a controller
+   */
+  public synchronized String getStatistics() {
+    return "ControllerPool " + name + " - controllers: " + controllers.size() + "/" + maxSize + " idle: "
+        + idleControllers.size() + " checkouts: " + checkouts + " discarded: " + discarded
+        + "\n  checkout wait time (ms) " + checkoutWaitTimes;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.Resource;
+import gate.creole.ResourceInstantiationException;
+import gate.event.CreoleEvent;
+import gate.event.CreoleListener;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps one long-lived corpus per controller, so executing a Gate-Application on a document
+ * does not create and delete a corpus in the CREOLE register each time.
+ *
+ * A controller is only executed by the worker owning it or having it checked out of its
+ * ControllerPool, so its corpus is confined to that worker. attach puts the documents into the
+ * corpus of the controller, detach removes them again without unloading them; detach has to be
+ * called in a finally block after the execution. The corpus is deleted when its controller is
+ * deleted, which is noticed by a CreoleListener.
+ *
+ * @author lgredel
+ *
+ */
+public class CorpusLifecycle implements CreoleListener {
+  private static Logger log = Logger.getLogger(CorpusLifecycle.class);
+
+  private static CorpusLifecycle INSTANCE;
+
+  private final Map<CorpusController, Corpus> corpora = new IdentityHashMap<CorpusController, Corpus>();
+  private long createdCorpora = 0;
+  private long attachments = 0;
+
+  private CorpusLifecycle() {
+    Gate.getCreoleRegister().addCreoleListener(this);
+  }
+
+  /**
+   * @return the CorpusLifecycle, Gate has to be initialized
+   */
+  public static synchronized CorpusLifecycle getInstance() {
+    if (INSTANCE == null) {
+      INSTANCE = new CorpusLifecycle();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Put the document into the corpus of the controller
+   *
+   * @param controller
+   * @param doc
+   * @return the corpus of the controller
+   * @throws ResourceInstantiationException if the corpus cannot be created
+   */
+  public Corpus attach(CorpusController controller, Document doc) throws ResourceInstantiationException {
+    return attach(controller, Collections.singletonList(doc));
+  }
+
+  /**
+   * Put the documents into the corpus of the controller, documents left by a missing detach are removed
+   *
+   * @param controller
+   * @param docs
+   * @return the corpus of the controller
+   * @throws ResourceInstantiationException if the corpus cannot be created
+   */
+  @SuppressWarnings("unchecked")
+  public Corpus attach(CorpusController controller, Collection<Document> docs)
+      throws ResourceInstantiationException {
+    Corpus corpus = null;
+    synchronized (corpora) {
+      corpus = corpora.get(controller);
+      if (corpus == null) {
+        corpus = Factory.newCorpus(controller.getName() + "_Corpus");
+        corpora.put(controller, corpus);
+        createdCorpora++;
+      }
+      attachments++;
+    }
+
+    if (!corpus.isEmpty()) {
+      log.debug("Removing " + corpus.size() + " documents left in corpus " + corpus.getName());
+      corpus.clear();
+    }
+    corpus.addAll(docs);
+    if (controller.getCorpus() != corpus) {
+      controller.setCorpus(corpus);
+    }
+    return corpus;
+  }
+
+  /**
+   * Remove the documents from the corpus of the controller, the documents are not unloaded
+   *
+   * @param controller
+   */
+  public void detach(CorpusController controller) {
+    Corpus corpus = null;
+    synchronized (corpora) {
+      corpus = corpora.get(controller);
+    }
+    if (corpus != null) {
+      corpus.clear();
+    }
+  }
+
+  public String getStatistics() {
+    synchronized (corpora) {
+      return "Corpus lifecycle: " + corpora.size() + " corpora, " + createdCorpora + " created, " + attachments
+          + " attachments";
+    }
+  }
+
+  public void resourceUnloaded(CreoleEvent e) {
+    Resource resource = e.getResource();
+    Corpus corpus = null;
+    synchronized (corpora) {
+      if (resource instanceof CorpusController) {
+        corpus = corpora.remove(resource);
+      } else if (resource instanceof Corpus) {
+        // the corpus was deleted by someone else, a new one is created on the next attach
+        Iterator<Corpus> corpusIter = corpora.values().iterator();
+        while (corpusIter.hasNext()) {
+          if (corpusIter.next() == resource) {
+            corpusIter.remove();
+          }
+        }
+      }
+    }
+
+    if (corpus != null) {
+      corpus.clear();
+      Factory.deleteResource(corpus);
+    }
+  }
+
+  public void resourceLoaded(CreoleEvent e) {
+  }
+
+  public void datastoreOpened(CreoleEvent e) {
+  }
+
+  public void datastoreCreated(CreoleEvent e) {
+  }
+
+  public void datastoreClosed(CreoleEvent e) {
+  }
+
+  public void resourceRenamed(Resource resource, String oldName, String newName) {
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.creole.ExecutionException;
+
+import java.util.Properties;
+
+/**
+ * A Gate-Application was interrupted by the ExecutionWatchdog after its deadline
+ *
+ * @author lgredel
+ *
+ */
+public class DeadlineExceededException extends ExecutionException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final ExecutionWatchdog.Execution execution;
+  private final String documentName;
+
+  public DeadlineExceededException(ExecutionWatchdog.Execution execution, String documentName) {
+    super("Deadline of " + execution.getDeadline() + " ms exceeded in stage " + execution.getStage()
+        + " on document: " + documentName + " after " + execution.getElapsed() + " ms");
+    this.execution = execution;
+    this.documentName = documentName;
+  }
+
+  public String getStage() {
+    return execution.getStage();
+  }
+
+  /**
+   * @return stage, deadline, execution time and the stack of the interrupted thread
+   */
+  public Properties getProfile() {
+    Properties profile = new Properties();
+    profile.setProperty("document", String.valueOf(documentName));
+    profile.setProperty("stage", execution.getStage());
+    profile.setProperty("deadline", String.valueOf(execution.getDeadline()));
+    profile.setProperty("elapsed", String.valueOf(execution.getElapsed()));
+
+    StackTraceElement[] stackTrace = execution.getStackTrace();
+    if (stackTrace != null) {
+      StringBuilder stack = new StringBuilder();
+      for (StackTraceElement element : stackTrace) {
+        stack.append(element.toString()).append('\n');
+      }
+      profile.setProperty("stackAtInterrupt", stack.toString());
+    }
+    return profile;
+  }
+}
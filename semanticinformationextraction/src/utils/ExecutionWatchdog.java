@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.Executable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Interrupts Gate-Applications running longer than their deadline.
+ *
+ * Every 'watchdogInterval' ms the running executions are checked, an execution past its deadline
+ * is interrupted with Executable.interrupt, the processing resources stop at their next check of the
+ * interrupted flag and execute throws an ExecutionInterruptedException. The stack of the executing
+ * thread is kept at the time of the interruption to show where the document got stuck.
+ *
+ * @author lgredel
+ *
+ */
+public class ExecutionWatchdog extends Thread {
+  private static Logger log = Logger.getLogger(ExecutionWatchdog.class);
+
+  private static ExecutionWatchdog INSTANCE;
+
+  private final long interval;
+  private final List<Execution> executions = new ArrayList<Execution>();
+  private long timeouts = 0;
+
+  private ExecutionWatchdog() {
+    super("ExecutionWatchdog");
+    setDaemon(true);
+    interval = Math.max(10, GlobalParameters.extractLongProperty("watchdogInterval", 1000));
+  }
+
+  /**
+   * @return the started watchdog
+   */
+  public static synchronized ExecutionWatchdog getInstance() {
+    if (INSTANCE == null) {
+      INSTANCE = new ExecutionWatchdog();
+      INSTANCE.start();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Watch an execution in the current thread, finish has to be called after the execution
+   *
+   * @param executable the application to interrupt
+   * @param stage name of the stage for the log and the profile
+   * @param documentName
+   * @param deadline maximum execution time in ms, 0 for no deadline
+   * @return the watched execution
+   */
+  public Execution start(Executable executable, String stage, String documentName, long deadline) {
+    Execution execution = new Execution(executable, stage, documentName, deadline);
+    if (deadline > 0) {
+      synchronized (executions) {
+        executions.add(execution);
+      }
+    }
+    return execution;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        Thread.sleep(interval);
+
+        List<Execution> expired = new ArrayList<Execution>();
+        long now = System.currentTimeMillis();
+        // interrupted under the lock of finish, a finished execution is removed and not interrupted
+        synchronized (executions) {
+          for (Execution execution : executions) {
+            if (!execution.timedOut && now - execution.start > execution.deadline) {
+              execution.timedOut = true;
+              execution.stackTrace = execution.thread.getStackTrace();
+              execution.executable.interrupt();
+              expired.add(execution);
+            }
+          }
+        }
+
+        for (Execution execution : expired) {
+          synchronized (this) {
+            timeouts++;
+          }
+          log.error("Deadline of " + execution.deadline + " ms exceeded in stage " + execution.stage
+              + " on document: " + execution.documentName + " in thread " + execution.thread.getName()
+              + " -> interrupting the application");
+        }
+      }
+    } catch (InterruptedException e) {
+      log.info("ExecutionWatchdog interrupted");
+    }
+  }
+
+  public synchronized long getTimeoutCount() {
+    return timeouts;
+  }
+
+  /**
+   * One watched execution of an application
+   */
+  public class Execution {
+    private final Executable executable;
+    private final String stage;
+    private final String documentName;
+    private final long deadline;
+    private final long start = System.currentTimeMillis();
+    private final Thread thread = Thread.currentThread();
+    private volatile boolean timedOut = false;
+    private volatile StackTraceElement[] stackTrace = null;
+    private long end = 0;
+
+    Execution(Executable executable, String stage, String documentName, long deadline) {
+      this.executable = executable;
+      this.stage = stage;
+      this.documentName = documentName;
+      this.deadline = deadline;
+    }
+
+    /**
+     * The execution ended, it is not interrupted anymore
+     */
+    public void finish() {
+      end = System.currentTimeMillis();
+      synchronized (executions) {
+        executions.remove(this);
+      }
+    }
+
+    public boolean isTimedOut() {
+      return timedOut;
+    }
+
+    public String getStage() {
+      return stage;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+
+    /**
+     * @return execution time in ms until finish or until now
+     */
+    public long getElapsed() {
+      return ((end != 0) ? end : System.currentTimeMillis()) - start;
+    }
+
+    /**
+     * @return stack of the executing thread when it was interrupted, null if not timed out
+     */
+    public StackTraceElement[] getStackTrace() {
+      return stackTrace;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.ConditionalController;
+import gate.creole.ConditionalSerialAnalyserController;
+import gate.creole.ResourceInstantiationException;
+import gate.creole.RunningStrategy;
+import gate.creole.SerialController;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Joins the processing resources of a preprocessing and a classification application to one
+ * conditional pipeline, so a document is preprocessed and classified in one execution on one
+ * corpus. The processing resources of the classification only run on documents containing
+ * SO annotations after the preprocessing, the running strategies of conditional applications
+ * are kept and combined with the SO condition for the classification.
+ *
+ * The processing resources are shared with the two applications, the fused controller has to be
+ * used by the thread owning the applications and released with release, which does not delete them.
+ *
+ * @author lgredel
+ *
+ */
+public class FusedController {
+  private static Logger log = Logger.getLogger(FusedController.class);
+
+  /**
+   * @param preprocessingGateApp
+   * @param classificationGateApp
+   * @return the fused controller, named like the preprocessing application
+   * @throws ResourceInstantiationException
+   */
+  @SuppressWarnings("unchecked")
+  public static CorpusController create(CorpusController preprocessingGateApp, CorpusController classificationGateApp)
+      throws ResourceInstantiationException {
+    List<ProcessingResource> prs = new ArrayList<ProcessingResource>();
+    List<RunningStrategy> strategies = new ArrayList<RunningStrategy>();
+
+    for (RunningStrategy strategy : runningStrategies(preprocessingGateApp)) {
+      prs.add(strategy.getPR());
+      strategies.add(strategy);
+    }
+
+    for (RunningStrategy strategy : runningStrategies(classificationGateApp)) {
+      prs.add(strategy.getPR());
+      strategies.add(new AnnotationTypeStrategy(strategy, "SO"));
+    }
+
+    ConditionalSerialAnalyserController fused = (ConditionalSerialAnalyserController) Factory.createResource(
+        "gate.creole.ConditionalSerialAnalyserController", Factory.newFeatureMap(), Factory.newFeatureMap(),
+        preprocessingGateApp.getName());
+    fused.setPRs(prs);
+    fused.setRunningStrategies(strategies);
+
+    log.info("Fused " + preprocessingGateApp.getName() + " and " + classificationGateApp.getName() + " to "
+        + prs.size() + " processing resources");
+    return fused;
+  }
+
+  /**
+   * @param application
+   * @return the running strategies of a conditional application, else a RunAlwaysStrategy per processing resource
+   */
+  private static List<RunningStrategy> runningStrategies(CorpusController application) {
+    List<RunningStrategy> strategies = new ArrayList<RunningStrategy>();
+    if (application instanceof ConditionalController) {
+      for (Object strategy : ((ConditionalController) application).getRunningStrategies()) {
+        strategies.add((RunningStrategy) strategy);
+      }
+    } else {
+      for (Object pr : application.getPRs()) {
+        strategies.add(new RunningStrategy.RunAlwaysStrategy((ProcessingResource) pr));
+      }
+    }
+    return strategies;
+  }
+
+  /**
+   * Delete the fused controller without deleting the processing resources of the applications
+   *
+   * @param fused
+   */
+  public static void release(CorpusController fused) {
+    if (fused == null) {
+      return;
+    }
+    ((SerialController) fused).setPRs(Collections.<ProcessingResource> emptyList());
+    Factory.deleteResource(fused);
+  }
+
+  /**
+   * Runs the processing resource only if its original strategy allows it and the document
+   * contains an annotation of the type in the default annotation set
+   */
+  static class AnnotationTypeStrategy implements RunningStrategy {
+    private final RunningStrategy original;
+    private final String annotationType;
+
+    AnnotationTypeStrategy(RunningStrategy original, String annotationType) {
+      this.original = original;
+      this.annotationType = annotationType;
+    }
+
+    public boolean shouldRun() {
+      if (original.getRunMode() == RUN_NEVER
+          || (original.getRunMode() == RUN_CONDITIONAL && !original.shouldRun())) {
+        return false;
+      }
+      if (!(getPR() instanceof LanguageAnalyser)) {
+        return true;
+      }
+      Document doc = ((LanguageAnalyser) getPR()).getDocument();
+      return doc != null && !doc.getAnnotations().get(annotationType).isEmpty();
+    }
+
+    public int getRunMode() {
+      return (original.getRunMode() == RUN_NEVER) ? RUN_NEVER : RUN_CONDITIONAL;
+    }
+
+    public ProcessingResource getPR() {
+      return original.getPR();
+    }
+  }
+}
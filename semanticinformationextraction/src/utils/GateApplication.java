@@ -18,6 +18,7 @@ package utils;
 import gate.CorpusController;
 import gate.Document;
 import gate.FeatureMap;
+import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 import gate.persist.PersistenceException;
 import hibernate.DatabaseFacade;
@@ -37,6 +38,7 @@ import javax.swing.JOptionPane;
 import org.apache.log4j.Logger;
 
 import performance.PerformanceMeasurement;
+import performance.ProcessingResourceProfiler;
 import classification.SentimentClassification;
 
 /**
@@ -53,7 +55,8 @@ public abstract class GateApplication {
 
   protected static GateInitSingleton gateInit;
   protected CorpusController application = null;
-  protected static CorpusController resetApplication = null;
+  // if set, a controller is checked out of the pool for each execution instead of using 'application'
+  protected ControllerPool applicationPool = null;
 
   protected static ResourceBundle bundle = ResourceBundle.getBundle("messages");
   protected DatabaseFacade databaseConn = DatabaseFacade.getSingletonFacade();
@@ -75,6 +78,73 @@ public abstract class GateApplication {
 
   }
 
+  /**
+   * @return the controller for the next execution, checked out of the pool if the application is pooled
+   * @throws InterruptedException
+   * @throws ResourceInstantiationException
+   */
+  protected CorpusController checkoutApplication() throws InterruptedException, ResourceInstantiationException {
+    if (applicationPool == null) {
+      return application;
+    }
+    return applicationPool.checkout();
+  }
+
+  /**
+   * Return a controller of checkoutApplication
+   * 
+   * @param controller
+   * @param failed true if the execution failed
+   */
+  protected void checkinApplication(CorpusController controller, boolean failed) {
+    if (applicationPool != null) {
+      applicationPool.checkin(controller, failed);
+    }
+  }
+
+  /**
+   * @param deadline maximum execution time per document in ms, 0 for no deadline
+   * @param documents number of documents executed together
+   * @return deadline of the batch, 0 for no deadline
+   */
+  protected static long batchDeadline(long deadline, int documents) {
+    return (deadline > 0) ? deadline * Math.max(1, documents) : 0;
+  }
+
+  /**
+   * Execute the controller, the ExecutionWatchdog interrupts it after the deadline.
+   * With 'prProfiling' the processing resources are profiled by the ProcessingResourceProfiler
+   * 
+   * @param controller
+   * @param stage name of the stage for the log and the profile
+   * @param documentName name of the document or the batch
+   * @param deadline maximum execution time in ms, 0 for no deadline
+   * @throws ExecutionException
+   * @throws DeadlineExceededException if the controller was interrupted after the deadline
+   */
+  protected void executeWithDeadline(CorpusController controller, String stage, String documentName, long deadline)
+      throws ExecutionException {
+    ExecutionWatchdog.Execution execution = ExecutionWatchdog.getInstance().start(controller, stage, documentName,
+        deadline);
+    ProcessingResourceProfiler.Execution profile = null;
+    if (ProcessingResourceProfiler.isEnabled()) {
+      profile = ProcessingResourceProfiler.getInstance().start(controller);
+    }
+    try {
+      controller.execute();
+    } catch (ExecutionException e) {
+      if (execution.isTimedOut()) {
+        throw new DeadlineExceededException(execution, documentName);
+      }
+      throw e;
+    } finally {
+      execution.finish();
+      if (profile != null) {
+        ProcessingResourceProfiler.getInstance().finish(profile);
+      }
+    }
+  }
+
   /**
    * Initialize the Gateapplication from parameter file and load all 
    * corresponding resources.
@@ -85,7 +155,6 @@ public abstract class GateApplication {
     try {
       application = gateInit.loadApplication(gateApp);
       log.debug("Load GateApplication: " + gateApp.getAbsolutePath());
-      resetApplication = gateInit.loadApplication(GlobalParameters.getDocResetApp());
     } catch (PersistenceException e) {
       log.error("PersistenceException loading Gatepapplication" + e.getMessage());
       e.printStackTrace();
@@ -22,7 +22,6 @@ import gate.Factory;
 import gate.Gate;
 import gate.LanguageResource;
 import gate.Resource;
-import gate.creole.ExecutionException;
 import gate.creole.RealtimeCorpusController;
 import gate.creole.ResourceInstantiationException;
 import gate.persist.PersistenceException;
@@ -32,10 +31,15 @@ import gate.util.persistence.PersistenceManager;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
 
 import javax.swing.JOptionPane;
 
@@ -61,9 +65,14 @@ public class GateInitSingleton {
 	private File GATE_SITE_CONFIG_FILE = new File(System.getProperty("user.dir")+ File.separator + "resources" + File.separator + "config" + File.separator + "common" + File.separator + "gate.xml");
 	private File USER_SITE_CONFIG_FILE = new File(System.getProperty("user.dir")+ File.separator + "resources" + File.separator + "config" + File.separator + "user" + File.separator + "gate.xml");
 
-	// Gate application that deletes all annotation in the document in order to free Heap Space
-	private File docResetApp = GlobalParameters.getDocResetApp();
-	private static CorpusController resetApplication = null;
+	// annotation sets kept by resetDocument, like the Document Reset PR keeps the original markups
+	private static final Set<String> resetKeepAnnotationSets = extractResetKeepAnnotationSets();
+
+	// load the applications from precompiled snapshots, see ApplicationSnapshotCache
+	private static final boolean useSnapshotCache = GlobalParameters.extractBooleanProperty("applicationSnapshotCache", false);
+
+	// pools of controllers by the canonical path of the application file
+	private static final Map<String, ControllerPool> controllerPools = new HashMap<String, ControllerPool>();
 	
 	private static GateInitSingleton INSTANCE;
 		
@@ -128,20 +137,6 @@ public class GateInitSingleton {
           // TODO Auto-generated catch block
           e1.printStackTrace();
       }
-		
-		//init ResetApplication
-    	try {
-          resetApplication = loadApplication(docResetApp);
-        } catch (PersistenceException e) {
-          log.error("PersistenceException loading resetApplication");
-          log.error(e.getMessage());
-        } catch (ResourceInstantiationException e) {
-          log.error("ResourceInstantiationException loading resetApplication");
-          log.error(e.getMessage());
-        } catch (IOException e) {
-          log.error("IOException loading resetApplication");
-          log.error(e.getMessage());
-        }
 	}
 
 	/**
@@ -173,7 +168,12 @@ public class GateInitSingleton {
 		long appInitStart = new Date().getTime();
 		log.debug("Starting load Application on: " + appInitStart);
 
-		application = (CorpusController)PersistenceManager.loadObjectFromFile(gateApp);
+		if (useSnapshotCache) {
+			application = loadSnapshot(gateApp);
+		}
+		if (application == null) {
+			application = (CorpusController)PersistenceManager.loadObjectFromFile(gateApp);
+		}
 				
 		long appInitEnd = new Date().getTime();
 		log.info("--------------------------------------------------------");
@@ -183,6 +183,73 @@ public class GateInitSingleton {
 		return application;
 	}
 
+	/**
+	 * Load the application from its snapshot of the ApplicationSnapshotCache
+	 * 
+	 * @param gateApp - the file where the pipeline is stored
+	 * @return the application or null if it has to be loaded from the file
+	 */
+	private CorpusController loadSnapshot(File gateApp) {
+		ApplicationSnapshotCache snapshotCache = null;
+		File snapshotApp = null;
+		try {
+			snapshotCache = ApplicationSnapshotCache.getInstance();
+			snapshotApp = snapshotCache.getSnapshot(gateApp);
+			if (snapshotApp != null) {
+				return (CorpusController)PersistenceManager.loadObjectFromFile(snapshotApp);
+			}
+		} catch (IOException e) {
+			log.error(e.getClass().getName() + " occured on snapshot of: " + gateApp.getName());
+			log.error(e.getMessage());
+		} catch (PersistenceException e) {
+			log.error(e.getClass().getName() + " occured on loading snapshot of: " + gateApp.getName());
+			log.error(e.getMessage());
+			snapshotCache.invalidate(snapshotApp);
+		} catch (ResourceInstantiationException e) {
+			log.error(e.getClass().getName() + " occured on loading snapshot of: " + gateApp.getName());
+			log.error(e.getMessage());
+			snapshotCache.invalidate(snapshotApp);
+		}
+		return null;
+	}
+
+	/**
+	 * Pool of controllers of a GATE processing pipeline, loaded on the first call for the file.
+	 * Threads check out a controller for each execution instead of owning a copy.
+	 * 
+	 * @param gateApp - the file where the pipeline is stored
+	 * @param maxSize - maximum number of copies, only used if the pool is created
+	 * @return the pool of the application
+	 * @throws PersistenceException
+	 * @throws ResourceInstantiationException
+	 * @throws IOException
+	 */
+	public ControllerPool getControllerPool(File gateApp, int maxSize) throws PersistenceException, ResourceInstantiationException, IOException
+	{
+		String key = gateApp.getCanonicalPath();
+		synchronized (controllerPools) {
+			ControllerPool pool = controllerPools.get(key);
+			if (pool == null) {
+				pool = new ControllerPool(gateApp.getName(), loadApplication(gateApp), maxSize);
+				controllerPools.put(key, pool);
+				log.info("Created controller pool of " + gateApp.getName() + " with up to " + maxSize + " controllers");
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Delete the controllers of all pools
+	 */
+	public static void closeControllerPools() {
+		synchronized (controllerPools) {
+			for (ControllerPool pool : controllerPools.values()) {
+				pool.close();
+			}
+			controllerPools.clear();
+		}
+	}
+
 	public File getGATE_PLUGINS_HOME() {
 		return GATE_PLUGINS_HOME;
 	}
@@ -191,35 +258,50 @@ public class GateInitSingleton {
 		GATE_PLUGINS_HOME = gATE_PLUGINS_HOME;
 	}
 	
-	 /**
-	 * Executes the reset application on document in order to delete 
-	 * all annotation in the document and to free the Heap Space
-	 * @param doc: document to be processed
-	 */ 
-	public static void executeResetApplication(Document doc) {
-	  
-	  log.trace("Starting resetApplication");
-	    Corpus corpus = null;
-      try {
-        corpus = Factory.newCorpus("Corpus");
-        if(doc != null){
-          corpus.add(doc);
-        
-        resetApplication.setCorpus(corpus);
-        resetApplication.execute();
-        resetApplication.cleanup();
-        resetApplication.setCorpus(null);
-        }
-      } catch (ResourceInstantiationException e) {
-        log.error("Cannot create Corpus for executing ResetApplication");
-        log.error(e.getMessage());
-      } catch (ExecutionException e) {
-        log.error("Error executing ResetApplication");
-        log.error(e.getMessage());
-      } 
-	  
-      unloadGateResources(doc,corpus);
-	}
+  /**
+   * Delete all annotations of the document in order to free the Heap Space and unload it.
+   * Only the document of the calling thread is touched, no Gate-Application is executed,
+   * so parallel workers do not share any state.
+   * @param doc: document to be processed
+   */
+  public static void resetDocument(Document doc) {
+    log.trace("Starting reset of document");
+    clearAnnotations(doc);
+    unloadGateResources(doc);
+  }
+
+  /**
+   * Clear the default annotation set and remove the named annotation sets of the document,
+   * except the sets in 'resetKeepAnnotationSets'
+   * @param doc: document to be processed
+   */
+  public static void clearAnnotations(Document doc) {
+    if (doc == null) {
+      return;
+    }
+
+    if (!resetKeepAnnotationSets.contains("")) {
+      doc.getAnnotations().clear();
+    }
+    Set<String> setNames = doc.getNamedAnnotationSets().keySet();
+    for (String setName : new ArrayList<String>(setNames)) {
+      if (!resetKeepAnnotationSets.contains(setName)) {
+        doc.removeAnnotationSet(setName);
+      }
+    }
+  }
+
+  /**
+   * @return names of the annotation sets kept by clearAnnotations, an empty name keeps the default set
+   */
+  private static Set<String> extractResetKeepAnnotationSets() {
+    Set<String> setNames = new HashSet<String>();
+    String keepSets = GlobalParameters.loadConfigFile().getProperty("resetKeepAnnotationSets", "Original markups");
+    for (String setName : keepSets.split(",")) {
+      setNames.add(setName.trim());
+    }
+    return setNames;
+  }
 
 	 /**
 	 * Unload the corpus instance
@@ -280,7 +362,6 @@ public class GateInitSingleton {
    */
   public void deleteGateApplications(CorpusController application) {
       Factory.deleteResource(application);
-      Factory.deleteResource(resetApplication);
   }
 
   /**
@@ -299,12 +380,4 @@ public class GateInitSingleton {
       Factory.deleteResource(currentResource);
     }
   }
-
-  public CorpusController getResetApplication() {
-    return resetApplication;
-  }
-
-  public void setResetApplication(CorpusController resetApplication) {
-    this.resetApplication = resetApplication;
-  }
 }
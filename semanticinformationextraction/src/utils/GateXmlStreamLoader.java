@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.corpora.DocumentStaxUtils;
+import gate.creole.ResourceInstantiationException;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Builds a Gate-Document directly from a stream of gate-xml.
+ *
+ * Factory.newDocument(String) needs the complete message as String and keeps it as
+ * document content until the markup is unpacked. Here the StAX reader of GATE fills an
+ * empty document while reading the stream, so only the document text and the annotations
+ * are held in memory.
+ *
+ * @author lgredel
+ *
+ */
+public class GateXmlStreamLoader {
+  private static Logger log = Logger.getLogger(GateXmlStreamLoader.class);
+
+  private static final String GATE_DOCUMENT_ELEMENT = "GateDocument";
+
+  private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+  private GateXmlStreamLoader() {
+  }
+
+  /**
+   * @param in UTF-8 gate-xml, not closed by this method
+   * @return the document or null if the stream does not contain a GateDocument element
+   * @throws ResourceInstantiationException if the document cannot be created or the xml is corrupt
+   */
+  public static Document newDocument(InputStream in) throws ResourceInstantiationException {
+    XMLStreamReader xsr = null;
+    Document doc = null;
+    try {
+      synchronized (inputFactory) {
+        xsr = inputFactory.createXMLStreamReader(in, "UTF-8");
+      }
+
+      if (!moveToGateDocument(xsr)) {
+        return null;
+      }
+
+      FeatureMap params = Factory.newFeatureMap();
+      params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, "");
+      params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, "text/plain");
+      params.put(Document.DOCUMENT_MARKUP_AWARE_PARAMETER_NAME, Boolean.FALSE);
+      doc = (Document) Factory.createResource("gate.corpora.DocumentImpl", params);
+
+      DocumentStaxUtils.readGateXmlDocument(xsr, doc);
+      return doc;
+    } catch (XMLStreamException e) {
+      log.error(e.getClass().getName() + " occured on reading gate-xml stream");
+      log.error(e.getMessage());
+      if (doc != null) {
+        Factory.deleteResource(doc);
+      }
+      throw new ResourceInstantiationException(e);
+    } finally {
+      if (xsr != null) {
+        try {
+          xsr.close();
+        } catch (XMLStreamException e) {
+          log.error(e.getMessage());
+        }
+      }
+    }
+  }
+
+  private static boolean moveToGateDocument(XMLStreamReader xsr) throws XMLStreamException {
+    while (xsr.hasNext()) {
+      if (xsr.next() == XMLStreamConstants.START_ELEMENT) {
+        return GATE_DOCUMENT_ELEMENT.equals(xsr.getLocalName());
+      }
+    }
+    return false;
+  }
+}
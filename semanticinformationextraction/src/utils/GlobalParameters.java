@@ -241,7 +241,6 @@ public class GlobalParameters {
       outStream.closeEntry();
       outStream.close();
       outStream = null;
-      System.gc();
     } catch (IOException e) {
       log.error("IOException on writing String to zipFile: " + outputZipFile.getAbsolutePath());
       throw e;
@@ -404,6 +403,102 @@ public class GlobalParameters {
     return maxMessageBufferSize;
   }
   
+  /**
+   * Read an optional int-Value from the config-File.
+   * If the property is missing or cannot be parsed the defaultValue is returned
+   *
+   * @param propertyName name of the property in the config-File
+   * @param defaultValue value used if the property is not configured
+   * @return the configured or the default value
+   */
+  public static int extractIntProperty(String propertyName, int defaultValue) {
+    String propertyStr = loadConfigFile().getProperty(propertyName);
+
+    if (propertyStr == null) {
+      log.debug("No property " + propertyName + " in config-File, using default: " + defaultValue);
+      return defaultValue;
+    }
+
+    try{
+      return new Integer(propertyStr.trim()).intValue();
+    }catch (NumberFormatException nfe) {
+      log.error("Cannot read " + propertyName + " " + propertyStr + " as int-Value from config-File");
+      log.error(nfe.getMessage());
+      log.info("Setting " + propertyName + " to default: " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Read an optional long-Value from the config-File.
+   * If the property is missing or cannot be parsed the defaultValue is returned
+   *
+   * @param propertyName name of the property in the config-File
+   * @param defaultValue value used if the property is not configured
+   * @return the configured or the default value
+   */
+  public static long extractLongProperty(String propertyName, long defaultValue) {
+    String propertyStr = loadConfigFile().getProperty(propertyName);
+
+    if (propertyStr == null) {
+      log.debug("No property " + propertyName + " in config-File, using default: " + defaultValue);
+      return defaultValue;
+    }
+
+    try{
+      return new Long(propertyStr.trim()).longValue();
+    }catch (NumberFormatException nfe) {
+      log.error("Cannot read " + propertyName + " " + propertyStr + " as long-Value from config-File");
+      log.error(nfe.getMessage());
+      log.info("Setting " + propertyName + " to default: " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Read an optional double-Value from the config-File.
+   * If the property is missing or no double the defaultValue is returned
+   *
+   * @param propertyName name of the property in the config-File
+   * @param defaultValue value used if the property is not configured
+   * @return the configured or the default value
+   */
+  public static double extractDoubleProperty(String propertyName, double defaultValue) {
+    String propertyStr = loadConfigFile().getProperty(propertyName);
+
+    if (propertyStr == null) {
+      log.debug("No property " + propertyName + " in config-File, using default: " + defaultValue);
+      return defaultValue;
+    }
+
+    try{
+      return new Double(propertyStr.trim()).doubleValue();
+    }catch (NumberFormatException nfe) {
+      log.error("Cannot read " + propertyName + " " + propertyStr + " as double-Value from config-File");
+      log.error(nfe.getMessage());
+      log.info("Setting " + propertyName + " to default: " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Read an optional boolean-Value from the config-File.
+   * If the property is missing the defaultValue is returned
+   *
+   * @param propertyName name of the property in the config-File
+   * @param defaultValue value used if the property is not configured
+   * @return the configured or the default value
+   */
+  public static boolean extractBooleanProperty(String propertyName, boolean defaultValue) {
+    String propertyStr = loadConfigFile().getProperty(propertyName);
+
+    if (propertyStr == null) {
+      log.debug("No property " + propertyName + " in config-File, using default: " + defaultValue);
+      return defaultValue;
+    }
+    return Boolean.parseBoolean(propertyStr.trim());
+  }
+
   public static int extractSleepTimeout() {
     
     String maxTimeOutStr = configProperties.get("ThreadSleepTime").toString();
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.Document;
+import gate.Gate;
+import gate.Resource;
+import gate.event.CreoleEvent;
+import gate.event.CreoleListener;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control of the workers by the heap occupancy, replacing the System.gc() after every document.
+ *
+ * The live set of the heap pools is observed by MemoryMXBean notifications: a collection usage threshold at
+ * 'memoryHighWatermark' (fraction of the pool maximum) is set on every heap pool supporting it. When the heap
+ * is still above the threshold after a collection, workers wait in awaitAdmission before they take the next
+ * message. The throttle ends when the usage of all pools falls below 'memoryLowWatermark', checked every
+ * 'memoryAdmissionCheckInterval' ms by the waiting workers. A collection is never forced.
+ *
+ * The live Gate-Documents are counted by a CreoleListener. If no document is loaded, a worker is admitted
+ * even if the heap is above the threshold, so the documents left in the queue are processed one at a time
+ * instead of blocking the pipeline.
+ *
+ * With 'heapAdmission' = false the workers are always admitted.
+ *
+ * @author lgredel
+ *
+ */
+public class MemoryManager implements NotificationListener, CreoleListener {
+  private static Logger log = Logger.getLogger(MemoryManager.class);
+
+  private static final long MB = 1024L * 1024L;
+
+  private static MemoryManager INSTANCE;
+
+  private final boolean enabled;
+  private final double highWatermark;
+  private final double lowWatermark;
+  private final long checkInterval;
+  private final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+
+  private final Object admissionLock = new Object();
+  private boolean throttled = false;
+  private long throttledSince = 0;
+
+  private final AtomicInteger liveDocuments = new AtomicInteger();
+  private int maxLiveDocuments = 0;
+  private long throttleCount = 0;
+  private long throttledTime = 0;
+  private long waitingWorkerTime = 0;
+
+  private MemoryManager() {
+    enabled = GlobalParameters.extractBooleanProperty("heapAdmission", true);
+    highWatermark = Math.max(0.1, Math.min(1.0, GlobalParameters.extractDoubleProperty("memoryHighWatermark", 0.85)));
+    lowWatermark = Math.min(highWatermark, GlobalParameters.extractDoubleProperty("memoryLowWatermark", 0.70));
+    checkInterval = GlobalParameters.extractLongProperty("memoryAdmissionCheckInterval", 1000);
+
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+          && pool.getUsage().getMax() > 0) {
+        pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * highWatermark));
+        heapPools.add(pool);
+      }
+    }
+
+    ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    Gate.getCreoleRegister().addCreoleListener(this);
+
+    log.info("Heap admission " + (enabled ? "enabled" : "disabled") + " with high watermark " + highWatermark
+        + " and low watermark " + lowWatermark + " on " + heapPools.size() + " heap pools");
+  }
+
+  /**
+   * Gate has to be initialized before
+   *
+   * @return the MemoryManager
+   */
+  public static synchronized MemoryManager getInstance() {
+    if (INSTANCE == null) {
+      GateInitSingleton.getInstance();
+      INSTANCE = new MemoryManager();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Wait until the heap allows to take the next message
+   *
+   * @param maxWait maximum wait time in ms
+   * @return true if the worker is admitted, false if the heap is still above the limit after maxWait
+   * @throws InterruptedException
+   */
+  public boolean awaitAdmission(long maxWait) throws InterruptedException {
+    if (!enabled) {
+      return true;
+    }
+
+    long start = System.currentTimeMillis();
+    synchronized (admissionLock) {
+      try {
+        while (throttled) {
+          if (heapBelow(lowWatermark)) {
+            endThrottle();
+            break;
+          }
+          if (liveDocuments.get() == 0) {
+            // nothing left to release, process the next document alone
+            break;
+          }
+
+          long remaining = maxWait - (System.currentTimeMillis() - start);
+          if (remaining <= 0) {
+            return false;
+          }
+          admissionLock.wait(Math.min(remaining, checkInterval));
+        }
+        return true;
+      } finally {
+        waitingWorkerTime += System.currentTimeMillis() - start;
+      }
+    }
+  }
+
+  /**
+   * Called by the MemoryMXBean after a collection left a heap pool above the high watermark
+   */
+  @Override
+  public void handleNotification(Notification notification, Object handback) {
+    if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+      return;
+    }
+
+    synchronized (admissionLock) {
+      if (!throttled) {
+        throttled = true;
+        throttledSince = System.currentTimeMillis();
+        throttleCount++;
+        log.info("Heap above high watermark after collection -> throttling dequeueing, " + getHeapState());
+      }
+    }
+  }
+
+  private void endThrottle() {
+    throttled = false;
+    throttledTime += System.currentTimeMillis() - throttledSince;
+    log.info("Heap admission resumed after " + (System.currentTimeMillis() - throttledSince) + " ms, "
+        + getHeapState());
+    admissionLock.notifyAll();
+  }
+
+  /**
+   * A pool is below the fraction if its usage after the last collection or its current usage is,
+   * no collection is requested for the check
+   *
+   * @param fraction of the pool maximum
+   * @return true if all observed pools are below the fraction
+   */
+  private boolean heapBelow(double fraction) {
+    for (MemoryPoolMXBean pool : heapPools) {
+      if (settledUsage(pool) > pool.getUsage().getMax() * fraction) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Heap which can still be allocated, the heap pools are counted with their usage after the
+   * last collection, so garbage is not counted as used. No collection is requested and the
+   * MemoryManager does not have to be created.
+   *
+   * @return free heap in bytes
+   */
+  public static long getFreeHeapAfterCollection() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        used += settledUsage(pool);
+      }
+    }
+    return Runtime.getRuntime().maxMemory() - used;
+  }
+
+  /**
+   * @return usage of the pool after its last collection, or the current usage if it is lower
+   */
+  private static long settledUsage(MemoryPoolMXBean pool) {
+    long used = pool.getUsage().getUsed();
+    MemoryUsage collectionUsage = pool.getCollectionUsage();
+    if (collectionUsage != null) {
+      used = Math.min(used, collectionUsage.getUsed());
+    }
+    return used;
+  }
+
+  public boolean isThrottled() {
+    synchronized (admissionLock) {
+      return throttled;
+    }
+  }
+
+  public int getLiveDocuments() {
+    return liveDocuments.get();
+  }
+
+  /**
+   * @return heap usage and live documents
+   */
+  public String getHeapState() {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    return "heap used: " + (heap.getUsed() / MB) + " MB of max: " + (heap.getMax() / MB) + " MB live documents: "
+        + liveDocuments.get();
+  }
+
+  /**
+   * @return throttle periods, throttled time and the time workers waited for admission
+   */
+  public String getStatistics() {
+    synchronized (admissionLock) {
+      return "Heap admission - throttled: " + throttled + " throttle periods: " + throttleCount
+          + " throttled ms: " + throttledTime + " worker wait ms: " + waitingWorkerTime
+          + " max live documents: " + maxLiveDocuments + " " + getHeapState();
+    }
+  }
+
+  public void resourceLoaded(CreoleEvent e) {
+    if (e.getResource() instanceof Document) {
+      int live = liveDocuments.incrementAndGet();
+      synchronized (admissionLock) {
+        maxLiveDocuments = Math.max(maxLiveDocuments, live);
+      }
+    }
+  }
+
+  public void resourceUnloaded(CreoleEvent e) {
+    if (e.getResource() instanceof Document) {
+      liveDocuments.decrementAndGet();
+    }
+  }
+
+  public void datastoreOpened(CreoleEvent e) {
+  }
+
+  public void datastoreCreated(CreoleEvent e) {
+  }
+
+  public void datastoreClosed(CreoleEvent e) {
+  }
+
+  public void resourceRenamed(Resource resource, String oldName, String newName) {
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package utils;
+
+import gate.Controller;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.LanguageResource;
+import gate.ProcessingResource;
+import gate.Resource;
+import gate.creole.Parameter;
+import gate.creole.ResourceData;
+import gate.creole.ResourceInstantiationException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Duplicates Gate-Applications, with 'sharedResources' = true the language resources referenced
+ * by the processing resources of the template (ontologies, gazetteer lists, lookup tables) are
+ * not copied: every duplicate references the instance loaded with the template. These resources
+ * must not be modified while the applications are executed, documents and corpora are never
+ * shared.
+ *
+ * GATE copies every resource found in the parameters of the duplicated processing resources,
+ * unless the resource is already known to the duplication context. The context is seeded with
+ * the shared resources mapped to themselves, if the context of the GATE version cannot be
+ * seeded the applications are duplicated without sharing.
+ *
+ * Compiled gazetteers and transducers are shared by GATE itself, see 'Sharable' of gate.creole.metadata.
+ *
+ * @author lgredel
+ *
+ */
+public class SharedResources {
+  private static Logger log = Logger.getLogger(SharedResources.class);
+
+  private static final boolean enabled = GlobalParameters.extractBooleanProperty("sharedResources", false);
+
+  private static boolean seedingFailed = false;
+  private static final Map<Controller, Boolean> reported = new IdentityHashMap<Controller, Boolean>();
+
+  /**
+   * @return true if 'sharedResources' is enabled
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Duplicate an application, sharing the language resources of the template if enabled
+   *
+   * @param template loaded application
+   * @return the duplicate
+   * @throws ResourceInstantiationException
+   */
+  public static CorpusController duplicate(CorpusController template) throws ResourceInstantiationException {
+    if (!enabled) {
+      return (CorpusController) Factory.duplicate(template);
+    }
+
+    List<LanguageResource> shared = collectLanguageResources(template);
+    Factory.DuplicationContext context = newContext(shared);
+    if (context == null) {
+      return (CorpusController) Factory.duplicate(template);
+    }
+
+    synchronized (reported) {
+      if (!reported.containsKey(template)) {
+        reported.put(template, Boolean.TRUE);
+        StringBuilder names = new StringBuilder();
+        for (LanguageResource resource : shared) {
+          names.append((names.length() == 0) ? "" : ", ").append(resource.getName());
+        }
+        log.info("Duplicates of " + template.getName() + " share " + shared.size() + " language resources: "
+            + names);
+      }
+    }
+    return (CorpusController) Factory.duplicate(template, context);
+  }
+
+  /**
+   * Reuse a language resource loaded by an application instead of creating another instance
+   *
+   * @param type class or interface of the resource
+   * @param parameter name of the init parameter identifying the source, e.g. rdfXmlURL
+   * @param value value of the parameter
+   * @return the loaded resource or null if sharing is disabled or no resource matches
+   */
+  public static LanguageResource findLoaded(Class<?> type, String parameter, Object value) {
+    if (!enabled || value == null) {
+      return null;
+    }
+
+    for (LanguageResource resource : Gate.getCreoleRegister().getLrInstances()) {
+      if (!type.isInstance(resource)) {
+        continue;
+      }
+      try {
+        Object loadedValue = resource.getParameterValue(parameter);
+        if (loadedValue != null && loadedValue.toString().equals(value.toString())) {
+          return resource;
+        }
+      } catch (ResourceInstantiationException e) {
+        log.debug(resource.getName() + " has no parameter " + parameter);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Run the garbage collector and return the used heap, so two values can be compared
+   *
+   * @return used heap in bytes
+   */
+  public static long getSettledHeap() {
+    System.gc();
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * Heap of one duplicate of each template without sharing, the duplicates and their copies of
+   * the language resources are deleted afterwards
+   *
+   * @param templates loaded applications
+   * @return used heap of the duplicates in bytes
+   * @throws ResourceInstantiationException
+   */
+  public static long measureUnsharedDuplicate(CorpusController... templates) throws ResourceInstantiationException {
+    List<CorpusController> duplicates = new ArrayList<CorpusController>();
+    long heapBefore = getSettledHeap();
+    try {
+      for (CorpusController template : templates) {
+        duplicates.add((CorpusController) Factory.duplicate(template));
+      }
+      return getSettledHeap() - heapBefore;
+    } finally {
+      for (int i = 0; i < duplicates.size(); i++) {
+        List<LanguageResource> copies = collectLanguageResources(duplicates.get(i));
+        copies.removeAll(collectLanguageResources(templates[i]));
+        Factory.deleteResource(duplicates.get(i));
+        for (LanguageResource copy : copies) {
+          Factory.deleteResource(copy);
+        }
+      }
+    }
+  }
+
+  /**
+   * The language resources in the parameters of all processing resources of the controller and
+   * its nested controllers, without documents and corpora
+   */
+  private static List<LanguageResource> collectLanguageResources(Controller controller) {
+    Map<LanguageResource, Boolean> resources = new IdentityHashMap<LanguageResource, Boolean>();
+    collectLanguageResources(controller, resources);
+    return new ArrayList<LanguageResource>(resources.keySet());
+  }
+
+  private static void collectLanguageResources(Controller controller, Map<LanguageResource, Boolean> resources) {
+    for (Object pr : controller.getPRs()) {
+      if (pr instanceof Controller) {
+        collectLanguageResources((Controller) pr, resources);
+      }
+      collectParameterValues((ProcessingResource) pr, resources);
+    }
+  }
+
+  private static void collectParameterValues(ProcessingResource pr, Map<LanguageResource, Boolean> resources) {
+    ResourceData resourceData = Gate.getCreoleRegister().get(pr.getClass().getName());
+    if (resourceData == null) {
+      return;
+    }
+
+    List<Object> disjunctions = new ArrayList<Object>();
+    disjunctions.addAll(resourceData.getParameterList().getInitimeParameters());
+    disjunctions.addAll(resourceData.getParameterList().getRuntimeParameters());
+    for (Object disjunction : disjunctions) {
+      for (Object parameter : (Collection<?>) disjunction) {
+        String name = ((Parameter) parameter).getName();
+        try {
+          Object value = pr.getParameterValue(name);
+          if (value instanceof LanguageResource && !(value instanceof Document) && !(value instanceof Corpus)) {
+            resources.put((LanguageResource) value, Boolean.TRUE);
+          }
+        } catch (ResourceInstantiationException e) {
+          log.debug(pr.getName() + " has no value for parameter " + name);
+        }
+      }
+    }
+  }
+
+  /**
+   * A duplication context knowing the shared resources as their own duplicates
+   *
+   * @return the context or null if the context of this GATE version cannot be seeded
+   */
+  @SuppressWarnings("unchecked")
+  private static synchronized Factory.DuplicationContext newContext(List<LanguageResource> shared) {
+    if (seedingFailed) {
+      return null;
+    }
+
+    try {
+      Constructor<Factory.DuplicationContext> constructor = Factory.DuplicationContext.class
+          .getDeclaredConstructor();
+      constructor.setAccessible(true);
+      Factory.DuplicationContext context = constructor.newInstance();
+
+      Field knownResources = Factory.DuplicationContext.class.getDeclaredField("knownResources");
+      knownResources.setAccessible(true);
+      Map<Resource, Resource> known = (Map<Resource, Resource>) knownResources.get(context);
+      for (LanguageResource resource : shared) {
+        known.put(resource, resource);
+      }
+      return context;
+    } catch (Exception e) {
+      seedingFailed = true;
+      log.error(e.getClass().getName() + " occured on seeding the duplication context, resources are not shared");
+      log.error(e.getMessage());
+      return null;
+    }
+  }
+}
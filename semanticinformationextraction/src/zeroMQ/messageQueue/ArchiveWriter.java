@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import hibernate.DatabaseFacade;
+import hibernate.entities.DocumentMetaData;
+import jcifs.smb.SmbFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import utils.CifsNetworkConfig;
+import utils.GlobalParameters;
+
+/**
+ * Uploads the archive files of the workers (gate-xml, preprocessed, classified, result, txt)
+ * to the network share in 'archiveUploadThreads' threads, so the workers do not wait for
+ * the file server.
+ *
+ * The workers write the files to the local tmp directory and submit them after the commit
+ * of their documents. Each submitted file is recorded in 'archiveSpoolDirectory' until its
+ * DocumentVersion is saved, files left from the last run are uploaded again on start.
+ * At most 'archiveQueueCapacity' files are pending, submit waits while the spool is full.
+ *
+ * The DatabaseFacade holds one hibernate session, so the DocumentVersions of the uploaded
+ * files are not saved by the upload threads, but by the next committing worker after its own
+ * commit (reconcileUploads) and by close after all workers finished. The DocumentVersions are
+ * committed in a session and transaction of their own, the session of the DatabaseFacade is not
+ * used, so a failing DocumentVersion never rolls back the documents of a worker.
+ *
+ * A file whose DocumentVersion cannot be committed, or which cannot be uploaded within
+ * 'archiveUploadRetries' attempts, is tried again after a backoff starting with 'archiveRetryDelay' ms
+ * and doubling up to 'archiveMaxRetryDelay' ms. A file which failed once is reconciled in a
+ * transaction of its own, so it cannot fail the DocumentVersions of other files.
+ *
+ * @author lgredel
+ *
+ */
+public class ArchiveWriter {
+  private static Logger log = Logger.getLogger(ArchiveWriter.class);
+
+  private static final String SPOOL_SUFFIX = ".archive";
+
+  private static ArchiveWriter archiveWriter = null;
+
+  private final CifsNetworkConfig networkConfig = CifsNetworkConfig.getINSTANCE();
+  private final File spoolDir;
+  private final Semaphore pendingFiles;
+  private final ScheduledThreadPoolExecutor uploadPool;
+  private final ConcurrentLinkedQueue<ArchivedFile> uploadedFiles = new ConcurrentLinkedQueue<ArchivedFile>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final int uploadRetries;
+  private final long retryDelay;
+  private final long maxRetryDelay;
+  private final int reconcileBatch;
+
+  private ArchiveWriter() throws IOException {
+    super();
+    spoolDir = new File(GlobalParameters.loadConfigFile().getProperty("archiveSpoolDirectory", "archiveSpool"));
+    if (!spoolDir.exists() && !spoolDir.mkdirs()) {
+      throw new IOException("Cannot create archive spool directory: " + spoolDir.getAbsolutePath());
+    }
+
+    int capacity = GlobalParameters.extractIntProperty("archiveQueueCapacity", 1000);
+    int uploadThreads = GlobalParameters.extractIntProperty("archiveUploadThreads", 2);
+    uploadRetries = GlobalParameters.extractIntProperty("archiveUploadRetries", 3);
+    retryDelay = Math.max(1, GlobalParameters.extractLongProperty("archiveRetryDelay", 5000));
+    maxRetryDelay = Math.max(retryDelay, GlobalParameters.extractLongProperty("archiveMaxRetryDelay", 600000));
+    reconcileBatch = GlobalParameters.extractIntProperty("archiveReconcileBatch", 100);
+
+    uploadPool = new ScheduledThreadPoolExecutor(Math.max(1, uploadThreads), new ThreadFactory() {
+      private int threadNo = 0;
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ArchiveUpload_" + threadNo++);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // files waiting for their backoff are uploaded on the next start
+    uploadPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+    List<ArchivedFile> spooledFiles = loadSpool();
+    // files of the last run may exceed the capacity, new files wait until they are reconciled
+    pendingFiles = new Semaphore(capacity - spooledFiles.size());
+    for (ArchivedFile spooledFile : spooledFiles) {
+      uploadPool.execute(new Upload(spooledFile));
+    }
+    log.info("ArchiveWriter started with " + uploadThreads + " upload threads, " + spooledFiles.size()
+        + " files of the last run are uploaded again");
+  }
+
+  /**
+   * @return the ArchiveWriter, created and started on the first call
+   * @throws IOException if the spool directory cannot be created
+   */
+  public static synchronized ArchiveWriter getInstance() throws IOException {
+    if (archiveWriter == null) {
+      archiveWriter = new ArchiveWriter();
+    }
+    return archiveWriter;
+  }
+
+  /**
+   * @return the ArchiveWriter if it was started, else null
+   */
+  public static synchronized ArchiveWriter getStartedInstance() {
+    return archiveWriter;
+  }
+
+  /**
+   * Record the file in the spool and upload it, waits while 'archiveQueueCapacity' files are pending
+   *
+   * @param type DocumentType of the DocumentVersion
+   * @param file local file in the tmp directory, deleted after the DocumentVersion is saved
+   * @param dbDocument committed DocumentMetaData of the file
+   * @throws IOException if the file cannot be recorded in the spool
+   * @throws InterruptedException
+   */
+  public void submit(String type, File file, DocumentMetaData dbDocument) throws IOException,
+      InterruptedException {
+    pendingFiles.acquire();
+    try {
+      ArchivedFile archivedFile = new ArchivedFile(sequence.incrementAndGet(), type, file, dbDocument.getId());
+      writeSpoolEntry(archivedFile);
+      uploadPool.execute(new Upload(archivedFile));
+    } catch (IOException e) {
+      pendingFiles.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Commit the DocumentVersions of up to 'archiveReconcileBatch' uploaded files in a session
+   * and transaction of their own, called by a worker after the commit of its documents.
+   * Files whose DocumentVersion fails are tried again after a backoff.
+   *
+   * @param databaseConn facade opening the session, its own session is not changed
+   * @return number of committed DocumentVersions
+   */
+  public int reconcileUploads(DatabaseFacade databaseConn) {
+    return reconcileUploads(databaseConn, false);
+  }
+
+  private int reconcileUploads(DatabaseFacade databaseConn, boolean ignoreBackoff) {
+    List<ArchivedFile> dueFiles = pollDueFiles(ignoreBackoff);
+    if (dueFiles.isEmpty()) {
+      return 0;
+    }
+
+    int committed = 0;
+    Session hibernateSession = databaseConn.openSession();
+    try {
+      List<ArchivedFile> batch = new ArrayList<ArchivedFile>();
+      for (ArchivedFile dueFile : dueFiles) {
+        // a file which failed before is committed alone
+        if (dueFile.failures > 0) {
+          committed += commitDocumentVersions(databaseConn, hibernateSession, Collections.singletonList(dueFile));
+        } else {
+          batch.add(dueFile);
+        }
+      }
+      committed += commitDocumentVersions(databaseConn, hibernateSession, batch);
+    } finally {
+      DatabaseFacade.closeDBSession(hibernateSession);
+    }
+
+    if (committed > 0) {
+      log.info("Committed DocumentVersions of " + committed + " uploaded archive files");
+    }
+    return committed;
+  }
+
+  /**
+   * Commit the DocumentVersions of the files in one transaction, on failure the files are
+   * tried again after their backoff
+   *
+   * @return number of committed DocumentVersions
+   */
+  private int commitDocumentVersions(DatabaseFacade databaseConn, Session hibernateSession,
+      List<ArchivedFile> files) {
+    if (files.isEmpty()) {
+      return 0;
+    }
+
+    List<ArchivedFile> reconciledFiles = new ArrayList<ArchivedFile>();
+    List<ArchivedFile> missingFiles = new ArrayList<ArchivedFile>();
+    Transaction tx = null;
+    try {
+      tx = DatabaseFacade.startTransaction(hibernateSession);
+      for (ArchivedFile archivedFile : files) {
+        DocumentMetaData dbDocument = (DocumentMetaData) hibernateSession.get(DocumentMetaData.class,
+            Long.valueOf(archivedFile.documentId));
+        if (dbDocument == null) {
+          log.error("DocumentMetaData with ID: " + archivedFile.documentId + " of archive file "
+              + archivedFile.file.getName() + " not found -> no DocumentVersion created");
+          missingFiles.add(archivedFile);
+          continue;
+        }
+        databaseConn.createDocumentVersion(hibernateSession, archivedFile.type, archivedFile.file,
+            archivedFile.smbFile, dbDocument);
+        reconciledFiles.add(archivedFile);
+      }
+      tx.commit();
+    } catch (Exception e) {
+      log.error(e.getClass().getName() + " occured on committing the DocumentVersions of " + files.size()
+          + " archive files");
+      log.error(e.getMessage());
+      if (tx != null && tx.isActive()) {
+        tx.rollback();
+      }
+      // objects of the failed transaction must not be flushed with the next files
+      hibernateSession.clear();
+      for (ArchivedFile archivedFile : files) {
+        if (!missingFiles.contains(archivedFile)) {
+          retryLater(archivedFile);
+        }
+      }
+      for (ArchivedFile missingFile : missingFiles) {
+        removeArchivedFile(missingFile);
+      }
+      return 0;
+    }
+
+    for (ArchivedFile missingFile : missingFiles) {
+      removeArchivedFile(missingFile);
+    }
+    for (ArchivedFile reconciledFile : reconciledFiles) {
+      removeArchivedFile(reconciledFile);
+    }
+    return reconciledFiles.size();
+  }
+
+  /**
+   * @return up to 'archiveReconcileBatch' uploaded files whose backoff has passed
+   */
+  private List<ArchivedFile> pollDueFiles(boolean ignoreBackoff) {
+    List<ArchivedFile> dueFiles = new ArrayList<ArchivedFile>();
+    List<ArchivedFile> waitingFiles = new ArrayList<ArchivedFile>();
+    long now = System.currentTimeMillis();
+
+    int polled = uploadedFiles.size();
+    ArchivedFile archivedFile = null;
+    while (dueFiles.size() < reconcileBatch && polled-- > 0 && (archivedFile = uploadedFiles.poll()) != null) {
+      if (ignoreBackoff || archivedFile.nextAttempt <= now) {
+        dueFiles.add(archivedFile);
+      } else {
+        waitingFiles.add(archivedFile);
+      }
+    }
+    uploadedFiles.addAll(waitingFiles);
+    return dueFiles;
+  }
+
+  /**
+   * The DocumentVersion of the file failed, reconcile it again after the backoff
+   */
+  private void retryLater(ArchivedFile archivedFile) {
+    archivedFile.failures++;
+    long delay = backoff(archivedFile.failures);
+    archivedFile.nextAttempt = System.currentTimeMillis() + delay;
+    log.info("DocumentVersion of archive file " + archivedFile.file.getName() + " is committed again in "
+        + delay + " ms");
+    uploadedFiles.add(archivedFile);
+  }
+
+  /**
+   * @param failures number of failures, at least 1
+   * @return delay in ms before the next attempt
+   */
+  private long backoff(int failures) {
+    return Math.min(maxRetryDelay, retryDelay << Math.min(failures - 1, 30));
+  }
+
+  /**
+   * @return number of submitted files without a committed DocumentVersion
+   */
+  public int getPendingCount() {
+    return listSpoolEntries().length;
+  }
+
+  /**
+   * Wait for the running uploads and commit the DocumentVersions of all uploaded files
+   * in a new session. Only called after all workers finished.
+   *
+   * @param timeout maximum wait time in ms for the uploads
+   */
+  public void close(long timeout) {
+    uploadPool.shutdown();
+    try {
+      if (!uploadPool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+        log.info("Archive uploads not finished within " + timeout + " ms, they are uploaded on the next start");
+        uploadPool.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      log.error("Interrupted while waiting for the archive uploads");
+      uploadPool.shutdownNow();
+    }
+
+    // files which fail again are reconciled on the next start
+    DatabaseFacade databaseConn = DatabaseFacade.getSingletonFacade();
+    while (!uploadedFiles.isEmpty() && reconcileUploads(databaseConn, true) > 0) {
+      log.debug(uploadedFiles.size() + " uploaded archive files left to reconcile");
+    }
+    if (!uploadedFiles.isEmpty()) {
+      log.error("DocumentVersions of " + uploadedFiles.size() + " archive files not committed"
+          + " -> reconciled again on the next start");
+    }
+  }
+
+  private void removeArchivedFile(ArchivedFile archivedFile) {
+    GlobalParameters.deleteFile(archivedFile.file);
+    GlobalParameters.deleteFile(spoolEntry(archivedFile.sequence));
+    pendingFiles.release();
+  }
+
+  private File spoolEntry(long entrySequence) {
+    return new File(spoolDir, entrySequence + SPOOL_SUFFIX);
+  }
+
+  private void writeSpoolEntry(ArchivedFile archivedFile) throws IOException {
+    Properties entry = new Properties();
+    entry.setProperty("type", archivedFile.type);
+    entry.setProperty("file", archivedFile.file.getAbsolutePath());
+    entry.setProperty("documentId", Long.toString(archivedFile.documentId));
+
+    File spoolFile = spoolEntry(archivedFile.sequence);
+    File tmpFile = new File(spoolDir, spoolFile.getName() + ".tmp");
+    OutputStream out = new FileOutputStream(tmpFile);
+    try {
+      entry.store(out, null);
+    } finally {
+      out.close();
+    }
+    if (!tmpFile.renameTo(spoolFile)) {
+      GlobalParameters.deleteFile(tmpFile);
+      throw new IOException("Cannot write archive spool entry: " + spoolFile.getAbsolutePath());
+    }
+  }
+
+  private File[] listSpoolEntries() {
+    File[] spoolFiles = spoolDir.listFiles();
+    if (spoolFiles == null) {
+      return new File[0];
+    }
+    List<File> entries = new ArrayList<File>();
+    for (File spoolFile : spoolFiles) {
+      if (spoolFile.getName().endsWith(SPOOL_SUFFIX)) {
+        entries.add(spoolFile);
+      }
+    }
+    return entries.toArray(new File[entries.size()]);
+  }
+
+  /*
+   * Files of the last run, entries without local file are removed
+   */
+  private List<ArchivedFile> loadSpool() {
+    List<ArchivedFile> spooledFiles = new ArrayList<ArchivedFile>();
+    for (File spoolFile : listSpoolEntries()) {
+      String name = spoolFile.getName();
+      try {
+        long entrySequence = Long.parseLong(name.substring(0, name.length() - SPOOL_SUFFIX.length()));
+        sequence.set(Math.max(sequence.get(), entrySequence));
+
+        Properties entry = new Properties();
+        InputStream in = new FileInputStream(spoolFile);
+        try {
+          entry.load(in);
+        } finally {
+          in.close();
+        }
+
+        File file = new File(entry.getProperty("file"));
+        if (!file.exists()) {
+          log.error("Archive file " + file.getAbsolutePath() + " of spool entry " + name + " does not exist");
+          GlobalParameters.deleteFile(spoolFile);
+          continue;
+        }
+        spooledFiles.add(new ArchivedFile(entrySequence, entry.getProperty("type"), file, Long.parseLong(entry
+            .getProperty("documentId"))));
+      } catch (Exception e) {
+        log.error(e.getClass().getName() + " occured on reading archive spool entry " + name);
+        log.error(e.getMessage());
+      }
+    }
+    return spooledFiles;
+  }
+
+  /**
+   * Copies one file to the network share, the local file is kept until the
+   * DocumentVersion is committed
+   */
+  private class Upload implements Runnable {
+    private final ArchivedFile archivedFile;
+
+    Upload(ArchivedFile archivedFile) {
+      this.archivedFile = archivedFile;
+    }
+
+    @Override
+    public void run() {
+      for (int attempt = 1; attempt <= uploadRetries; attempt++) {
+        try {
+          archivedFile.smbFile = networkConfig.copyFile(archivedFile.file, false);
+          uploadedFiles.add(archivedFile);
+          return;
+        } catch (IOException e) {
+          log.error(e.getClass().getName() + " occured on uploading archive file " + archivedFile.file.getName()
+              + " (attempt " + attempt + " of " + uploadRetries + ")");
+          log.error(e.getMessage());
+        }
+
+        try {
+          Thread.sleep(retryDelay * attempt);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      archivedFile.failures++;
+      long delay = backoff(archivedFile.failures);
+      log.error("Archive file " + archivedFile.file.getName() + " not uploaded -> uploaded again in " + delay + " ms");
+      try {
+        uploadPool.schedule(this, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        log.info("ArchiveWriter is closed -> archive file " + archivedFile.file.getName()
+            + " is uploaded on the next start");
+      }
+    }
+  }
+
+  /**
+   * A file submitted by a worker
+   */
+  public static class ArchivedFile {
+    private final long sequence;
+    private final String type;
+    private final File file;
+    private final long documentId;
+    private volatile SmbFile smbFile = null;
+    // failed uploads or DocumentVersions and time of the next attempt in ms
+    private volatile int failures = 0;
+    private volatile long nextAttempt = 0;
+
+    ArchivedFile(long sequence, String type, File file, long documentId) {
+      this.sequence = sequence;
+      this.type = type;
+      this.file = file;
+      this.documentId = documentId;
+    }
+  }
+}
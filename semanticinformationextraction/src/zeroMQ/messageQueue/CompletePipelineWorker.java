@@ -20,29 +20,38 @@ import gate.CorpusController;
 import gate.Document;
 import gate.Factory;
 import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
 import hibernate.DatabaseFacade;
 import hibernate.entities.DocumentMetaData;
+import jcifs.smb.SmbFile;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.bind.JAXB;
 
 import org.first.messaging.Messenger;
-import org.hibernate.FlushMode;
 import org.hibernate.HibernateException;
-import org.hibernate.Session;
-import org.hibernate.Transaction;
 
 import performance.PerformanceMeasurement;
+import performance.ProcessingResourceProfiler;
+import performance.StartupStatistics;
 import preprocessing.PreprocessingApplication;
+import preprocessing.SentimentObjectPrefilter;
+import utils.ControllerPool;
+import utils.DeadlineExceededException;
+import utils.FusedController;
 import utils.GateInitSingleton;
 import utils.GlobalParameters;
+import utils.MemoryManager;
 import zeroMQ.receiver.CompletePipelineReceiver;
 import classification.ClassifiedDocument;
 import classification.SentimentClassification;
@@ -62,27 +71,89 @@ public class CompletePipelineWorker extends WorkerThread {
 
   private PreprocessingApplication preprocessing = null;
   private SentimentClassification classification = null;
+  private SegmentedDocumentProcessor segmentProcessor = null;
 
-  public Session hibernateSession;
-  private Transaction tx = null;
+  // uploads the files after the commit if 'asyncArchive' is configured, else null
+  private ArchiveWriter archiveWriter = null;
+  private List<ArchiveFile> archiveFiles = new ArrayList<ArchiveFile>();
+
+  // set if the worker belongs to an adaptive pool, else null
+  private WorkerPoolScaler poolScaler = null;
+  private final CorpusController preprocessingGateApp;
+  private final CorpusController classificationGateApp;
+  private volatile boolean retired = false;
+  // start of the current idle period in ms, 0 while a batch is processed
+  private volatile long idleSince = System.currentTimeMillis();
+  private final MemoryManager memoryManager = MemoryManager.getInstance();
+  private final StageJournal stageJournal = StageJournal.getStartedInstance();
+  // digest of the message of each document in the current batch, only with the StageJournal
+  private final Map<Document, String> journalKeys = new IdentityHashMap<Document, String>();
+  // preprocessing and classification in one execution, see FusedController
+  private CorpusController fusedGateApp = null;
+  // predicts documents without SO before the preprocessing, see SentimentObjectPrefilter
+  private final SentimentObjectPrefilter soPrefilter = SentimentObjectPrefilter.getStartedInstance();
+  // light application for the documents predicted without SO, null to verify the predictions only
+  private static ControllerPool lightPreprocessingPool = null;
+  private final PreprocessingApplication lightPreprocessing = (lightPreprocessingPool != null)
+      ? new PreprocessingApplication(lightPreprocessingPool) : null;
   
-  public CompletePipelineWorker(CorpusController preprocessingGateApp, CorpusController classificationGateApp, String workerThreadName) throws FileNotFoundException {
+  public CompletePipelineWorker(CorpusController preprocessingGateApp, CorpusController classificationGateApp, String workerThreadName) throws IOException {
 
     super(workerThreadName);
+    this.preprocessingGateApp = preprocessingGateApp;
+    this.classificationGateApp = classificationGateApp;
     this.preprocessing = new PreprocessingApplication(preprocessingGateApp);
     this.classification = new SentimentClassification(classificationGateApp);
+    this.segmentProcessor = new SegmentedDocumentProcessor(preprocessingGateApp, classificationGateApp,
+        GlobalParameters.extractIntProperty("segmentParallelism", 2), workerThreadName);
+    if (GlobalParameters.extractBooleanProperty("asyncArchive", false)) {
+      this.archiveWriter = ArchiveWriter.getInstance();
+    }
+    if (isFusedPipeline()) {
+      try {
+        this.fusedGateApp = FusedController.create(preprocessingGateApp, classificationGateApp);
+      } catch (ResourceInstantiationException e) {
+        log.error(e.getClass().getName() + " occured on creating fused controller of " + workerThreadName
+            + " -> executing preprocessing and classification separately");
+        log.error(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Worker borrowing the controllers of the pools for each execution
+   * 
+   * @param preprocessingPool
+   * @param classificationPool
+   * @param workerThreadName
+   * @throws IOException
+   */
+  public CompletePipelineWorker(ControllerPool preprocessingPool, ControllerPool classificationPool, String workerThreadName) throws IOException {
+
+    super(workerThreadName);
+    this.preprocessingGateApp = null;
+    this.classificationGateApp = null;
+    this.preprocessing = new PreprocessingApplication(preprocessingPool);
+    this.classification = new SentimentClassification(classificationPool);
+    this.segmentProcessor = new SegmentedDocumentProcessor(preprocessingPool, classificationPool,
+        GlobalParameters.extractIntProperty("segmentParallelism", 2), workerThreadName);
+    if (GlobalParameters.extractBooleanProperty("asyncArchive", false)) {
+      this.archiveWriter = ArchiveWriter.getInstance();
+    }
   }
 
 
   /**
    * Thread run method
-   * read Gate-Document from Queue and process each document
+   * read Gate-Documents from Queue and process them in batches of 'batchMaxCount'
+   * documents, 'batchMaxBytes' bytes or 'batchMaxWait' ms, see MessageFileQueue.popMessages.
+   * If a batch fails, its documents are processed again one by one.
+   * Documents above 'maxMessageLength' are processed in segments, see processSegmentedDocument.
+   * The worker finishes after the queue is shut down and no message is left.
    * 
    */
   @Override
   public void run() {
-    DocumentMetaData dbDocument = null;
-
     boolean loop = true;
 
     PerformanceMeasurement timeMeasurement = null;
@@ -90,6 +161,7 @@ public class CompletePipelineWorker extends WorkerThread {
       timeMeasurement = new PerformanceMeasurement(this.getName());
       this.preprocessing.setTimeMeasurement(timeMeasurement);
       this.classification.setTimeMeasurement(timeMeasurement);
+      this.segmentProcessor.setTimeMeasurement(timeMeasurement);
     } catch (NullPointerException e1) {
       log.error(e1.getClass().getName() + " occured on initializing PerformanceMeasurement");
       log.error(e1.getMessage());
@@ -102,240 +174,754 @@ public class CompletePipelineWorker extends WorkerThread {
       System.exit(MIN_PRIORITY);
     }
 
-    while (loop) {
-      String currentMessageString = null;
-      Document gateDoc = null;
-      Long docID = null;
-      
-      try {
-        currentMessageString = queue.popMessage();
-       
-        log.info("*******************************************************************************************");
-        log.info("Thread " + this.getName() + " with ID: " + this.getId() + " startet executing preprocessing");
-        timeMeasurement.startTimeMeasurementLoop();
-       
-        hibernateSession = databaseConn.openSession();
-        hibernateSession.setFlushMode(FlushMode.COMMIT);
-        int level = hibernateSession.connection().getTransactionIsolation();
-        log.trace("TransactionIsolationLevel: " + level);
-        hibernateSession.connection().setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
-        databaseConn.setHibernateSession(hibernateSession);
-                
+    int batchMaxCount = GlobalParameters.extractIntProperty("batchMaxCount", 1);
+    long batchMaxBytes = GlobalParameters.extractLongProperty("batchMaxBytes", 256L * 1024);
+    long batchMaxWait = GlobalParameters.extractLongProperty("batchMaxWait", 100);
+    boolean segmentOversizedDocuments = GlobalParameters.extractBooleanProperty("segmentOversizedDocuments", true);
+    int maxMessageLength = GlobalParameters.extractIntProperty("maxMessageLength", 1000000);
+    int segmentMaxLength = GlobalParameters.extractIntProperty("segmentMaxLength", 200000);
+    long idleCheckInterval = GlobalParameters.extractLongProperty("workerPoolIdleCheckInterval", 1000);
+
+    try {
+      while (loop) {
+        if (retired) {
+          log.info(this.getName() + " retired by the worker pool");
+          loop = false;
+          continue;
+        }
+        if (idleSince == 0) {
+          idleSince = System.currentTimeMillis();
+        }
+
+        List<QueuedMessage> currentMessages = null;
+
+        try {
+          // the heap limits the number of documents in process, no collection is forced
+          if (!memoryManager.awaitAdmission(idleCheckInterval)) {
+            continue;
+          }
+          if (poolScaler != null) {
+            // wake up regularly to notice the retirement
+            currentMessages = queue.pollMessages(batchMaxCount, batchMaxBytes, batchMaxWait, idleCheckInterval);
+            if (currentMessages == null) {
+              continue;
+            }
+          } else {
+            currentMessages = queue.popMessages(batchMaxCount, batchMaxBytes, batchMaxWait);
+          }
+        } catch (InterruptedException iex) {
+          log.error("take message from Messageque interrupted");
+          log.error(iex.getMessage());
+          log.error("Continue with next message");
+          continue;
+        }
+
+        if (currentMessages.isEmpty()) {
+          log.info("Queue is shut down -> " + this.getName() + " finished");
+          loop = false;
+          continue;
+        }
+        idleSince = 0;
+
+        /*
+         * The decoded size in bytes is at least the number of chars, the chars are only counted
+         * for larger messages. The receiver only queues oversized documents if segmentation is enabled
+         */
+        if (segmentOversizedDocuments) {
+          List<QueuedMessage> normalMessages = new ArrayList<QueuedMessage>();
+          for (QueuedMessage currentMessage : currentMessages) {
+            if (currentMessage.getDecodedSize() > maxMessageLength && isOversized(currentMessage, maxMessageLength)) {
+              processSegmentedDocument(currentMessage, segmentMaxLength, timeMeasurement);
+            } else {
+              normalMessages.add(currentMessage);
+            }
+          }
+          currentMessages = normalMessages;
+          if (currentMessages.isEmpty()) {
+            continue;
+          }
+        }
+
+        if (!processBatch(currentMessages, timeMeasurement)) {
+          log.info("Processing batch of " + currentMessages.size()
+              + " documents failed -> processing documents one by one");
+          for (QueuedMessage currentMessage : currentMessages) {
+            // checkpointed during shutdown, delivered again after the restart
+            if (!queue.isInFlight(currentMessage)) {
+              continue;
+            }
+            processBatch(Collections.singletonList(currentMessage), timeMeasurement);
+          }
+        }
+      }
+    } finally {
+      segmentProcessor.close();
+      FusedController.release(fusedGateApp);
+      log.info(memoryManager.getStatistics());
+      if (ProcessingResourceProfiler.isEnabled()) {
+        log.info(ProcessingResourceProfiler.getInstance().getStatistics(getName()));
+      }
+      if (poolScaler != null) {
+        poolScaler.workerFinished(this);
+      }
+      workerFinished();
+    }
+
+    log.trace("End of run-Method in PreprocessingWorkerThread: " + this.getName());
+  }
+
+  /**
+   * Process the documents of the messages with one preprocessing and one classification run
+   * and commit all documents in one transaction.
+   * 
+   * @param currentMessages messages taken from the queue
+   * @param timeMeasurement
+   * @return false if a batch of several documents failed and has to be processed
+   *         again one by one, else true (also if a single document failed)
+   */
+  private boolean processBatch(List<QueuedMessage> currentMessages, PerformanceMeasurement timeMeasurement) {
+    boolean singleDocument = currentMessages.size() == 1;
+    boolean finished = true;
+    String stage = "load";
+    Exception failure = null;
+
+    List<Document> gateDocs = new ArrayList<Document>();
+    List<DocumentMetaData> dbDocuments = new ArrayList<DocumentMetaData>();
+    List<Document> resumedDocs = new ArrayList<Document>();
+    long batchStart = System.currentTimeMillis();
+
+    try {
+      log.info("*******************************************************************************************");
+      log.info("Thread " + this.getName() + " with ID: " + this.getId() + " startet executing preprocessing on "
+          + currentMessages.size() + " documents");
+      timeMeasurement.startTimeMeasurementLoop();
+
+      int level = openHibernateSession();
+
+      for (QueuedMessage currentMessage : currentMessages) {
         long startLoadDocument = System.currentTimeMillis();
 
         log.debug("Starting load Gate-Document for preprocessing on: " + startLoadDocument);
-        
-        gateDoc = Factory.newDocument(currentMessageString);        
-        
+
+        Document gateDoc = loadGateDocument(currentMessage);
+        String jsiID = (stageJournal != null) ? preprocessing.extractIDFromGateFeature(gateDoc) : null;
+        String journalKey = (stageJournal != null) ? currentMessage.getDigest() : null;
+        if (stageJournal != null && stageJournal.isCommitted(journalKey)) {
+          stageJournal.skipped(jsiID);
+          GateInitSingleton.unloadGateResources(gateDoc);
+          continue;
+        }
+        gateDocs.add(gateDoc);
+        if (journalKey != null) {
+          journalKeys.put(gateDoc, journalKey);
+        }
+
         long endLoadDocument = System.currentTimeMillis();
         log.debug("End load Gate-Document for preprocessing on: " + endLoadDocument);
         long loadGateDocumentDuration = endLoadDocument - startLoadDocument;
         log.debug("Loading Gate-Document needs : " + loadGateDocumentDuration + " ms ");
 
-        dbDocument = classification.extractDocumentMetaData(gateDoc);
-        
-        docID =  dbDocument.getId();
-        
-        Date publicationDate = dbDocument.getPublicationDate();
-        
-        boolean writeInputFile = Boolean.parseBoolean(configProperties.get("writeInputFile").toString());
-        if (writeInputFile) {
-          boolean zipFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
-
-          String suffix = ".gate-xml.xml";
-          
-          if (zipFile) {
-            String fileName = preprocessing.extractIDFromGateFeature(gateDoc);
-
-            File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-            File outputZipFile = new File(outputDir, fileName
-                + suffix);
-            outputZipFile = GlobalParameters.zipStringToFile(gateDoc.toXml(), outputZipFile);
-            networkConfig.copyFile(outputZipFile,true);
-            
-            DatabaseFacade.getSingletonFacade().createDocumentVersion("gate-xml", outputZipFile, dbDocument);
-          } else {
-            
-            File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-            File outputFile = preprocessing.writeGateDocumentXML(gateDoc, suffix, outputDir);
-            networkConfig.copyFile(outputFile,true);
-            
-            DatabaseFacade.getSingletonFacade().createDocumentVersion("gate-xml", outputFile, dbDocument);
+        DocumentMetaData dbDocument = classification.extractDocumentMetaData(gateDoc);
+        dbDocuments.add(dbDocument);
+
+        writeInputFile(gateDoc, dbDocument);
+
+        Document resumedDoc = (stageJournal != null) ? stageJournal.loadPreprocessed(journalKey, jsiID) : null;
+        if (resumedDoc != null) {
+          gateDocs.set(gateDocs.size() - 1, resumedDoc);
+          journalKeys.put(resumedDoc, journalKey);
+          GateInitSingleton.unloadGateResources(gateDoc);
+          resumedDocs.add(resumedDoc);
+        }
+      }
+
+      if (gateDocs.isEmpty()) {
+        return finished;
+      }
+
+      stage = "preprocessing";
+      List<Document> preprocessDocs = gateDocs;
+      if (!resumedDocs.isEmpty()) {
+        preprocessDocs = new ArrayList<Document>(gateDocs);
+        preprocessDocs.removeAll(resumedDocs);
+      }
+      List<Document> noSoDocs = new ArrayList<Document>();
+      List<Document> lightDocs = Collections.emptyList();
+      if (soPrefilter != null) {
+        for (Document gateDoc : preprocessDocs) {
+          if (!soPrefilter.mayContainSentimentObject(gateDoc)) {
+            noSoDocs.add(gateDoc);
           }
         }
-            
-        gateDoc = preprocessing.executeDocument(gateDoc);
-        
-        String preprocessedDocumentStr = gateDoc.toXml();
+        if (lightPreprocessing != null && !noSoDocs.isEmpty()) {
+          stage = "light preprocessing";
+          lightDocs = noSoDocs;
+          preprocessDocs = new ArrayList<Document>(preprocessDocs);
+          preprocessDocs.removeAll(lightDocs);
+          log.info(lightDocs.size() + " documents predicted without SO -> light preprocessing");
+          lightPreprocessing.executeDocuments(lightDocs);
+          stage = "preprocessing";
+        }
+      }
 
-        boolean writepreprocessingOutputFile = Boolean.parseBoolean(configProperties.get("writeOutputFile")
-            .toString());
-        if (writepreprocessingOutputFile) {
-          boolean zipFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
+      if (preprocessDocs.isEmpty()) {
+        log.debug("No documents left for the preprocessing");
+      } else if (fusedGateApp != null) {
+        stage = "fused";
+        preprocessing.executeFused(fusedGateApp, preprocessDocs);
+      } else if (preprocessDocs.size() == 1) {
+        preprocessing.executeDocument(preprocessDocs.get(0));
+      } else {
+        preprocessing.executeDocuments(preprocessDocs);
+      }
+      List<Document> soDocs = new ArrayList<Document>();
+      List<DocumentMetaData> soDbDocuments = new ArrayList<DocumentMetaData>();
 
-          if (zipFile) {
-            String fileName = preprocessing.extractIDFromGateFeature(gateDoc);
+      for (int i = 0; i < gateDocs.size(); i++) {
+        Document gateDoc = gateDocs.get(i);
+        DocumentMetaData dbDocument = dbDocuments.get(i);
 
-            File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-            File outputZipFile = new File(outputDir, fileName
-                + ".preprocessed.xml");
-            outputZipFile = GlobalParameters.zipStringToFile(preprocessedDocumentStr, outputZipFile);
-            networkConfig.copyFile(outputZipFile,true);
-            DatabaseFacade.getSingletonFacade().createDocumentVersion("preprocessed", outputZipFile, dbDocument);
-          } else {
-            String suffix = ".preprocessed.xml";
-            File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-            File outputFile = preprocessing.writeGateDocumentXML(gateDoc, suffix, outputDir);
-            networkConfig.copyFile(outputFile,true);
-            DatabaseFacade.getSingletonFacade().createDocumentVersion("preprocessed", outputFile, dbDocument);
+        File preprocessedFile = resumedDocs.contains(gateDoc)
+            ? stageJournal.getPreprocessedFile(journalKeys.get(gateDoc)) : null;
+        if (preprocessedFile != null) {
+          // the resumed document is archived with the preprocessed file of the last run
+          archiveFile("preprocessed", preprocessedFile, dbDocument);
+        } else {
+          preprocessedFile = writePreprocessedFile(gateDoc, dbDocument);
+          if (stageJournal != null && preprocessedFile != null) {
+            stageJournal.preprocessed(journalKeys.get(gateDoc), preprocessing.extractIDFromGateFeature(gateDoc),
+                preprocessedFile);
           }
         }
-        
+
         AnnotationSet docAnnotSet = gateDoc.getAnnotations();
         Set<String> annotationTypes = docAnnotSet.getAllTypes();
-        
-        if (!annotationTypes.contains("SO")){
+        if (soPrefilter != null && preprocessDocs.contains(gateDoc)) {
+          soPrefilter.verify(!noSoDocs.contains(gateDoc), annotationTypes.contains("SO"));
+        }
+
+        if (!annotationTypes.contains("SO")) {
           /**
            * No Sentimentobject 
            * -> POS/NEG ORIENTATION TERM WORD COUNT AGGREGATION
-           */   
-          log.info("Input Document contains no SO -> starting with PosNegWordRatio Sentiment on database DocumentMetaData-object: " + docID);
-          DatabaseFacade.getSingletonFacade().deleteSentimentsWithClassifierType(dbDocument,"PosNegWordRatio","CRISP");
-          
-          try{   
-            this.calculatePosNegWordRatioSentiment(gateDoc, dbDocument,classification);
-                        
-          }catch (HibernateException hibex) {
-            log.error("Hibernateexception on calculating Pos/Neg Word-Ratio Sentiment on document: " + gateDoc.getName() + " in databaseObject with ID: " + docID);
+           */
+          log.info("Input Document contains no SO -> starting with PosNegWordRatio Sentiment on database DocumentMetaData-object: "
+              + dbDocument.getId());
+          DatabaseFacade.getSingletonFacade().deleteSentimentsWithClassifierType(dbDocument, "PosNegWordRatio",
+              "CRISP");
+
+          try {
+            this.calculatePosNegWordRatioSentiment(gateDoc, dbDocument, classification);
+
+          } catch (HibernateException hibex) {
+            log.error("Hibernateexception on calculating Pos/Neg Word-Ratio Sentiment on document: "
+                + gateDoc.getName() + " in databaseObject with ID: " + dbDocument.getId());
             log.error(hibex.getMessage());
-            GateInitSingleton.executeResetApplication(gateDoc);
+            GateInitSingleton.resetDocument(gateDoc);
           }
-        }else{
+        } else {
           /*
            * Sentimentobject extracted
            * KnowledgebasedCrisp Sentimentextraction
            */
-          log.info("Input Document contains SO -> starting with Knowledgebased CRISP Sentimentclassification on database DocumentMetaData-object: " + docID);
-                   
-          gateDoc = classification.executeDocument(gateDoc,dbDocument);
-                    
-          boolean writeOutputFile = Boolean.parseBoolean(configProperties.get("writeOutputFile").toString());
-          if(writeOutputFile){
-            boolean zipFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
-            
-            if(zipFile){
-              String currentDocString = gateDoc.toXml();
-              String fileName = classification.extractIDFromGateFeature(gateDoc);
-              
-              File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-              File outputZipFile = new File(outputDir, fileName
-                  + ".classified.xml");
-              outputZipFile = GlobalParameters.zipStringToFile(currentDocString, outputZipFile);
-              networkConfig.copyFile(outputZipFile,true);
-              DatabaseFacade.getSingletonFacade().createDocumentVersion("classified", outputZipFile, dbDocument);
-            } else {
-              String suffix = ".classified.xml";
-              File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-              File outputFile = classification.writeGateDocumentXML(gateDoc, suffix, outputDir);
-              networkConfig.copyFile(outputFile,true);
-              DatabaseFacade.getSingletonFacade().createDocumentVersion("classified", outputFile, dbDocument);
-            }    
-                      
-          boolean writeResultXML = Boolean.parseBoolean(configProperties.get("writeResultXML").toString());       
-          if(writeResultXML){          
-            boolean zipResultFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
-
-            String fileName = classification.extractIDFromGateFeature(gateDoc);
-            File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-            File classificationResultXML = new File(outputDir, fileName + ".result.xml");
-            log.info("Starting marshalling Result of Classification to: " + classificationResultXML.getAbsolutePath());
-            ClassifiedDocument result = classification.getClassifiedDocument();
-            JAXB.marshal(result, classificationResultXML);
-            
-            if(zipResultFile){                             
-              GlobalParameters.zipFile(classificationResultXML);
-              
-              classificationResultXML = new File(classificationResultXML.getAbsolutePath() + ".zip");
-              networkConfig.copyFile(classificationResultXML,true);
-              DatabaseFacade.getSingletonFacade().createDocumentVersion("result", classificationResultXML, dbDocument);
-            }
+          log.info("Input Document contains SO -> starting with Knowledgebased CRISP Sentimentclassification on database DocumentMetaData-object: "
+              + dbDocument.getId());
+          soDocs.add(gateDoc);
+          soDbDocuments.add(dbDocument);
+        }
+      }
+
+      stage = "classification";
+      if (!soDocs.isEmpty()) {
+        List<ClassifiedDocument> classifiedDocuments = null;
+        if (fusedGateApp != null) {
+          // classified by the fused execution
+          classifiedDocuments = new ArrayList<ClassifiedDocument>();
+          for (int i = 0; i < soDocs.size(); i++) {
+            classifiedDocuments.add(classification.aggregateDocument(soDocs.get(i), soDbDocuments.get(i)));
           }
+        } else if (soDocs.size() == 1) {
+          classification.executeDocument(soDocs.get(0), soDbDocuments.get(0));
+          classifiedDocuments = Collections.singletonList(classification.getClassifiedDocument());
+        } else {
+          classifiedDocuments = classification.executeDocuments(soDocs, soDbDocuments);
         }
+
+        for (int i = 0; i < soDocs.size(); i++) {
+          writeClassifiedFiles(soDocs.get(i), soDbDocuments.get(i), classifiedDocuments.get(i));
         }
-                
-        //Write txt-File with DocumentContent
-        String txtFileName = classification.extractIDFromGateFeature(gateDoc);
-        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
-        File txtContentFile = new File(outputDir, txtFileName + ".txt");
-        
-        String gateDocContent = gateDoc.getContent().toString();
-        GlobalParameters.zipStringToFile(gateDocContent, txtContentFile);
-        txtContentFile = new File(txtContentFile.getAbsolutePath() + ".zip");
-        networkConfig.copyFile(txtContentFile,true);
-        
-        DatabaseFacade.getSingletonFacade().createDocumentVersion("txt", txtContentFile,dbDocument);
-        
-        databaseConn.startTransaction();
-        tx = databaseConn.getTx();
-        databaseConn.saveOrUpdateObjectToDatabase(dbDocument);
-        log.trace("Starting commit");
-        long start = System.currentTimeMillis();
-        tx.commit(); 
-        long end = System.currentTimeMillis();
-        long commitTime = end-start;
-        log.trace("Commit time for one doucment: " + commitTime);
-        hibernateSession.connection().setTransactionIsolation(level);
-        log.info("Added and committet new Document in Database with ID: " + dbDocument.getId() + " sucessfully");
-        dbDocument = null;
-      } catch (NullPointerException npe) {
-        log.error("NullPointerException: " + npe.getClass().getName() + " occured during processing Document");
-        if (npe.getMessage() != null) {
-          log.error(npe.getMessage());
-        } else {
-          log.error("NullPointerException without message occured");
-          npe.printStackTrace();
+      }
+
+      for (int i = 0; i < gateDocs.size(); i++) {
+        writeTxtFile(gateDocs.get(i), dbDocuments.get(i));
+      }
+
+      if (!queue.beginCommit(currentMessages)) {
+        log.info("Documents with IDs: " + extractIDs(dbDocuments)
+            + " were checkpointed during shutdown -> not committed");
+        return finished;
+      }
+
+      stage = "commit";
+      commitAndArchive(dbDocuments, level);
+      for (Document gateDoc : gateDocs) {
+        journal(gateDoc, StageJournal.COMMITTED);
+      }
+      messagesCommitted(currentMessages);
+      StartupStatistics.documentsProcessed(dbDocuments.size(), System.currentTimeMillis() - batchStart);
+    } catch (NullPointerException npe) {
+      log.error("NullPointerException: " + npe.getClass().getName() + " occured during processing Document");
+      if (npe.getMessage() != null) {
+        log.error(npe.getMessage());
+      } else {
+        log.error("NullPointerException without message occured", npe);
+      }
+      failure = npe;
+      finished = singleDocument;
+    } catch (HibernateException hibex) {
+      log.error("HibernateException: " + hibex.getClass().getName() + " occured during processing Document");
+      log.error(hibex.getMessage());
+      log.error("Continue with next message");
+
+      if (tx != null) {
+        tx.rollback();
+      }
+      failure = hibex;
+      finished = singleDocument;
+    } catch (RuntimeException runtEx) {
+      log.error("RuntimeException: " + runtEx.getClass().getName() + " occured during processing Document");
+      log.error(runtEx.getMessage());
+      log.error("Continue with next message");
+
+      if (tx != null) {
+        tx.rollback();
+      }
+      failure = runtEx;
+      finished = singleDocument;
+    } catch (DeadlineExceededException deadlineEx) {
+      log.error(deadlineEx.getMessage());
+      // a batch is processed again one by one to find the document exceeding the deadline
+      if (singleDocument) {
+        quarantine(currentMessages.get(0), deadlineEx);
+      }
+      finished = singleDocument;
+    } catch (ExecutionException executionEx) {
+      log.error("ExecutionException on preprocessing occured");
+      log.error(executionEx.getMessage());
+      failure = executionEx;
+      finished = singleDocument;
+    } catch (Exception e) {
+      log.error("Exception " + e.getClass().getName() + " occured on preprocessing document: ");
+      log.error(e.getMessage());
+      log.error("Continue with next message");
+      failure = e;
+      finished = singleDocument;
+    } finally {
+      // a batch is processed again one by one, only a failed single document is a dead letter
+      if (singleDocument && failure != null) {
+        deadLetter(currentMessages.get(0), stage, failure);
+      }
+      if (finished) {
+        for (QueuedMessage currentMessage : currentMessages) {
+          queue.acknowledge(currentMessage);
         }
-        continue;
-      } catch (HibernateException hibex){
-        log.error("HibernateException: " + hibex.getClass().getName() + " occured during processing Document");
-        log.error(hibex.getMessage());
-        log.error("Continue with next message");
-        
-        if (tx != null) {
-          tx.rollback();
-        }    
-        continue;
-      }catch (RuntimeException runtEx){
-        log.error("RuntimeException: " + runtEx.getClass().getName() + " occured during processing Document");
-        log.error(runtEx.getMessage());
-        log.error("Continue with next message");
-        
-        if (tx != null) {
-          tx.rollback();
+      }
+      discardArchiveFiles();
+      journalKeys.clear();
+      clean(timeMeasurement, gateDocs);
+      log.info("Finished with current Documents withIDs: " + extractIDs(dbDocuments));
+    }
+
+    return finished;
+  }
+
+  /**
+   * @param currentMessage
+   * @param maxMessageLength maximum length in chars
+   * @return true if the message has more than maxMessageLength chars, false if it cannot be read
+   */
+  private static boolean isOversized(QueuedMessage currentMessage, int maxMessageLength) {
+    try {
+      return currentMessage.getCharLength() > maxMessageLength;
+    } catch (IOException e) {
+      // the unreadable message fails in processBatch and is dead-lettered there
+      log.error(e.getClass().getName() + " occured on counting the chars of a queued message");
+      log.error(e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Process a document above 'maxMessageLength' without creating a Gate-Document of the
+   * complete message. The text is split in segments of at most 'segmentMaxLength' chars on
+   * paragraph or sentence boundaries, which run through preprocessing and classification
+   * in parallel. The sentiment sentences of all segments are aggregated with their offsets in
+   * the complete document to one ClassifiedDocument.
+   * 
+   * Only the txt and the result-xml file are written, the input annotations of the message
+   * are not kept and the hybrid fuzzy classifier is not executed.
+   * 
+   * The text of the complete document is kept as String for the segments and the txt file,
+   * the Gate-Documents are bounded by 'segmentParallelism' segments of 'segmentMaxLength' chars.
+   * 
+   * @param currentMessage
+   * @param segmentMaxLength maximum length of a segment in chars
+   * @param timeMeasurement
+   */
+  private void processSegmentedDocument(QueuedMessage currentMessage, int segmentMaxLength,
+      PerformanceMeasurement timeMeasurement) {
+    List<Document> gateDocs = new ArrayList<Document>();
+    List<DocumentMetaData> dbDocuments = new ArrayList<DocumentMetaData>();
+    String stage = "load";
+
+    try {
+      log.info("*******************************************************************************************");
+      log.info("Thread " + this.getName() + " with ID: " + this.getId()
+          + " startet executing segmented processing on document with " + currentMessage.getDecodedSize()
+          + " bytes");
+      timeMeasurement.startTimeMeasurementLoop();
+
+      int level = openHibernateSession();
+
+      String currentMessageString = currentMessage.getMessageString();
+      Document headerDoc = Factory.newDocument(DocumentSegmenter.extractHeader(currentMessageString));
+      gateDocs.add(headerDoc);
+      String text = DocumentSegmenter.extractText(currentMessageString);
+      currentMessageString = null;
+
+      final DocumentMetaData dbDocument = classification.extractDocumentMetaData(headerDoc);
+      dbDocuments.add(dbDocument);
+      String fileName = classification.extractIDFromGateFeature(headerDoc);
+
+      List<int[]> segments = DocumentSegmenter.split(text, segmentMaxLength);
+      log.info("Split document with ID: " + dbDocument.getId() + " and " + text.length() + " chars in "
+          + segments.size() + " segments");
+
+      final int[] orientationTerms = new int[2];
+      final boolean[] containsSO = new boolean[1];
+
+      stage = "segments";
+      segmentProcessor.process(text, segments, headerDoc.getFeatures(),
+          new SegmentedDocumentProcessor.SegmentHandler() {
+            @Override
+            public void segmentProcessed(Document segmentDoc, long offset) throws Exception {
+              int[] segmentTerms = countOrientationTerms(segmentDoc);
+              orientationTerms[0] += segmentTerms[0];
+              orientationTerms[1] += segmentTerms[1];
+
+              if (segmentDoc.getAnnotations().getAllTypes().contains("SO")) {
+                if (!containsSO[0]) {
+                  classification.startSegmentedDocument(dbDocument);
+                  containsSO[0] = true;
+                }
+                classification.aggregateSegment(segmentDoc, offset, dbDocument);
+              }
+            }
+          });
+
+      if (containsSO[0]) {
+        log.info("Segmented Document contains SO -> Knowledgebased CRISP Sentimentclassification on database DocumentMetaData-object: "
+            + dbDocument.getId());
+        ClassifiedDocument result = classification.finishSegmentedDocument();
+
+        boolean writeOutputFile = Boolean.parseBoolean(configProperties.get("writeOutputFile").toString());
+        if (writeOutputFile) {
+          writeResultFile(fileName, dbDocument, result);
         }
-        continue;
-      }catch (InterruptedException iex) {
-        log.error("take message from Messageque interrupted");
-        log.error(iex.getMessage());
-        log.error("Continue with next message");
-        continue;
-      } catch (ExecutionException executionEx) {
-        log.error("ExecutionException on preprocessing occured");
-        log.error(executionEx.getMessage());
-        continue;
-      } catch (Exception e) {
-        log.error("Exception " + e.getClass().getName() + " occured on preprocessing document: ");
-        log.error(e.getMessage());
-        log.error("Continue with next message");
-        continue;
-      } finally {   
-        dbDocument = null;    
-        clean(timeMeasurement, gateDoc);         
-        log.info("Finished with current Document withID: " + docID);
+      } else {
+        log.info("Segmented Document contains no SO -> starting with PosNegWordRatio Sentiment on database DocumentMetaData-object: "
+            + dbDocument.getId());
+        DatabaseFacade.getSingletonFacade().deleteSentimentsWithClassifierType(dbDocument, "PosNegWordRatio",
+            "CRISP");
+        savePosNegWordRatioSentiment(orientationTerms[0], orientationTerms[1], fileName, dbDocument,
+            classification);
+      }
+
+      writeTxtFile(text, fileName, dbDocument);
+
+      if (!queue.beginCommit(Collections.singletonList(currentMessage))) {
+        log.info("Document with ID: " + dbDocument.getId() + " was checkpointed during shutdown -> not committed");
+        return;
       }
+
+      stage = "commit";
+      commitAndArchive(dbDocuments, level);
+      messagesCommitted(Collections.singletonList(currentMessage));
+    } catch (HibernateException hibex) {
+      log.error("HibernateException: " + hibex.getClass().getName() + " occured during processing segmented Document");
+      log.error(hibex.getMessage());
+      log.error("Continue with next message");
+
+      if (tx != null) {
+        tx.rollback();
+      }
+      deadLetter(currentMessage, stage, hibex);
+    } catch (DeadlineExceededException deadlineEx) {
+      log.error(deadlineEx.getMessage());
+      quarantine(currentMessage, deadlineEx);
+    } catch (Exception e) {
+      log.error("Exception " + e.getClass().getName() + " occured on processing segmented document");
+      log.error(e.getMessage());
+      log.error("Continue with next message");
+      deadLetter(currentMessage, stage, e);
+    } finally {
+      queue.acknowledge(currentMessage);
+      discardArchiveFiles();
+      clean(timeMeasurement, gateDocs);
+      log.info("Finished with segmented Document with ID: " + extractIDs(dbDocuments));
     }
+  }
 
-    log.trace("End of run-Method in PreprocessingWorkerThread: " + this.getName());
+  /**
+   * The fused execution is used with 'fusedPipeline', if no preprocessed gate-xml is needed
+   * for the output files ('writeOutputFile')
+   * 
+   * @return true if the workers with their own controllers create a fused controller
+   */
+  private static boolean isFusedPipeline() {
+    return GlobalParameters.extractBooleanProperty("fusedPipeline", false)
+        && !Boolean.parseBoolean(configProperties.getProperty("writeOutputFile", "false"));
+  }
+
+  /**
+   * Record the completed stage of the document in the StageJournal, if 'stageJournal' is configured
+   * 
+   * @param gateDoc
+   * @param stage
+   */
+  private void journal(Document gateDoc, String stage) {
+    if (stageJournal != null) {
+      stageJournal.stageCompleted(journalKeys.get(gateDoc), preprocessing.extractIDFromGateFeature(gateDoc),
+          stage);
+    }
+  }
+
+  /**
+   * Commit the documents. With 'asyncArchive' the DocumentVersions of the files uploaded
+   * by the ArchiveWriter are committed after the documents in a transaction of the ArchiveWriter,
+   * and the files of the documents are submitted to the ArchiveWriter.
+   * 
+   * @param dbDocuments
+   * @param level transaction isolation level returned by openHibernateSession
+   * @throws Exception
+   */
+  private void commitAndArchive(List<DocumentMetaData> dbDocuments, int level) throws Exception {
+    if (archiveWriter == null) {
+      commitDocuments(dbDocuments, level);
+      return;
+    }
+
+    commitDocuments(dbDocuments, level);
+    // own transaction of the ArchiveWriter, a failing DocumentVersion does not affect the documents
+    archiveWriter.reconcileUploads(databaseConn);
+
+    try {
+      for (ArchiveFile archiveFile : archiveFiles) {
+        archiveWriter.submit(archiveFile.type, archiveFile.file, archiveFile.dbDocument);
+        archiveFile.submitted = true;
+      }
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on submitting archive files of documents with IDs: "
+          + extractIDs(dbDocuments));
+      log.error(e.getMessage());
+    } catch (InterruptedException e) {
+      log.error("Interrupted while submitting archive files of documents with IDs: " + extractIDs(dbDocuments));
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Copy the file to the network share and create its DocumentVersion.
+   * With 'asyncArchive' the file is submitted to the ArchiveWriter after the commit.
+   * 
+   * @param type DocumentType of the DocumentVersion
+   * @param file local file, deleted after the copy
+   * @param dbDocument
+   * @throws Exception
+   */
+  private void archiveFile(String type, File file, DocumentMetaData dbDocument) throws Exception {
+    if (archiveWriter != null) {
+      archiveFiles.add(new ArchiveFile(type, file, dbDocument));
+      return;
+    }
+
+    SmbFile smbFile = networkConfig.copyFile(file, true);
+    DatabaseFacade.getSingletonFacade().createDocumentVersion(type, file, smbFile, dbDocument);
+  }
+
+  /**
+   * Delete the local files not submitted to the ArchiveWriter
+   */
+  private void discardArchiveFiles() {
+    for (ArchiveFile archiveFile : archiveFiles) {
+      if (!archiveFile.submitted) {
+        GlobalParameters.deleteFile(archiveFile.file);
+      }
+    }
+    archiveFiles.clear();
+  }
+
+  /**
+   * Write the input gate-xml file, if 'writeInputFile' is configured
+   * 
+   * @param gateDoc
+   * @param dbDocument
+   * @throws Exception
+   */
+  private void writeInputFile(Document gateDoc, DocumentMetaData dbDocument) throws Exception {
+    Date publicationDate = dbDocument.getPublicationDate();
+
+    boolean writeInputFile = Boolean.parseBoolean(configProperties.get("writeInputFile").toString());
+    if (writeInputFile) {
+      boolean zipFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
+
+      String suffix = ".gate-xml.xml";
+
+      if (zipFile) {
+        String fileName = preprocessing.extractIDFromGateFeature(gateDoc);
+
+        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
+        File outputZipFile = new File(outputDir, fileName
+            + suffix);
+        outputZipFile = GlobalParameters.zipStringToFile(gateDoc.toXml(), outputZipFile);
+        archiveFile("gate-xml", outputZipFile, dbDocument);
+      } else {
+
+        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
+        File outputFile = preprocessing.writeGateDocumentXML(gateDoc, suffix, outputDir);
+        archiveFile("gate-xml", outputFile, dbDocument);
+      }
+    }
+  }
+
+  /**
+   * Write the preprocessed gate-xml file, if 'writeOutputFile' is configured
+   * 
+   * @param gateDoc
+   * @param dbDocument
+   * @return the archived file or null if no file is written
+   * @throws Exception
+   */
+  private File writePreprocessedFile(Document gateDoc, DocumentMetaData dbDocument) throws Exception {
+    Date publicationDate = dbDocument.getPublicationDate();
+
+    boolean writepreprocessingOutputFile = Boolean.parseBoolean(configProperties.get("writeOutputFile")
+        .toString());
+    if (writepreprocessingOutputFile) {
+      boolean zipFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
+
+      if (zipFile) {
+        String preprocessedDocumentStr = gateDoc.toXml();
+        String fileName = preprocessing.extractIDFromGateFeature(gateDoc);
+
+        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
+        File outputZipFile = new File(outputDir, fileName
+            + ".preprocessed.xml");
+        outputZipFile = GlobalParameters.zipStringToFile(preprocessedDocumentStr, outputZipFile);
+        archiveFile("preprocessed", outputZipFile, dbDocument);
+        return outputZipFile;
+      } else {
+        String suffix = ".preprocessed.xml";
+        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
+        File outputFile = preprocessing.writeGateDocumentXML(gateDoc, suffix, outputDir);
+        archiveFile("preprocessed", outputFile, dbDocument);
+        return outputFile;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Write the classified gate-xml file and the result-xml file, if 'writeOutputFile'
+   * and 'writeResultXML' are configured
+   * 
+   * @param gateDoc
+   * @param dbDocument
+   * @param result the ClassifiedDocument of the gateDoc
+   * @throws Exception
+   */
+  private void writeClassifiedFiles(Document gateDoc, DocumentMetaData dbDocument, ClassifiedDocument result)
+      throws Exception {
+    Date publicationDate = dbDocument.getPublicationDate();
+
+    boolean writeOutputFile = Boolean.parseBoolean(configProperties.get("writeOutputFile").toString());
+    if(writeOutputFile){
+      boolean zipFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
+
+      if(zipFile){
+        String currentDocString = gateDoc.toXml();
+        String fileName = classification.extractIDFromGateFeature(gateDoc);
+
+        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
+        File outputZipFile = new File(outputDir, fileName
+            + ".classified.xml");
+        outputZipFile = GlobalParameters.zipStringToFile(currentDocString, outputZipFile);
+        archiveFile("classified", outputZipFile, dbDocument);
+      } else {
+        String suffix = ".classified.xml";
+        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(publicationDate);
+        File outputFile = classification.writeGateDocumentXML(gateDoc, suffix, outputDir);
+        archiveFile("classified", outputFile, dbDocument);
+      }
+
+      writeResultFile(classification.extractIDFromGateFeature(gateDoc), dbDocument, result);
+    }
+  }
+
+  /**
+   * Write the result-xml file, if 'writeResultXML' is configured
+   * 
+   * @param fileName JSI_WP3_ID of the document
+   * @param dbDocument
+   * @param result
+   * @throws Exception
+   */
+  private void writeResultFile(String fileName, DocumentMetaData dbDocument, ClassifiedDocument result)
+      throws Exception {
+    boolean writeResultXML = Boolean.parseBoolean(configProperties.get("writeResultXML").toString());
+    if(writeResultXML){
+      boolean zipResultFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
+
+      File outputDir = GlobalParameters.createTmpDirectoriesFromDate(dbDocument.getPublicationDate());
+      File classificationResultXML = new File(outputDir, fileName + ".result.xml");
+      log.info("Starting marshalling Result of Classification to: " + classificationResultXML.getAbsolutePath());
+      JAXB.marshal(result, classificationResultXML);
+
+      if(zipResultFile){
+        GlobalParameters.zipFile(classificationResultXML);
+
+        classificationResultXML = new File(classificationResultXML.getAbsolutePath() + ".zip");
+        archiveFile("result", classificationResultXML, dbDocument);
+      }
+    }
+  }
+
+  /**
+   * Write txt-File with DocumentContent
+   * 
+   * @param gateDoc
+   * @param dbDocument
+   * @throws Exception
+   */
+  private void writeTxtFile(Document gateDoc, DocumentMetaData dbDocument) throws Exception {
+    writeTxtFile(gateDoc.getContent().toString(), classification.extractIDFromGateFeature(gateDoc), dbDocument);
+  }
+
+  /**
+   * Write txt-File with the text of the document
+   * 
+   * @param documentText
+   * @param txtFileName JSI_WP3_ID of the document
+   * @param dbDocument
+   * @throws Exception
+   */
+  private void writeTxtFile(String documentText, String txtFileName, DocumentMetaData dbDocument) throws Exception {
+    File outputDir = GlobalParameters.createTmpDirectoriesFromDate(dbDocument.getPublicationDate());
+    File txtContentFile = new File(outputDir, txtFileName + ".txt");
+
+    GlobalParameters.zipStringToFile(documentText, txtContentFile);
+    txtContentFile = new File(txtContentFile.getAbsolutePath() + ".zip");
+    archiveFile("txt", txtContentFile, dbDocument);
   }
 
 
@@ -344,14 +930,15 @@ public class CompletePipelineWorker extends WorkerThread {
    * and reset TimeMeasurement. 
    * 
    * @param timeMeasurement
-   * @param gateDoc
+   * @param gateDocs
    */
-  private void clean(PerformanceMeasurement timeMeasurement, Document gateDoc) {
+  private void clean(PerformanceMeasurement timeMeasurement, List<Document> gateDocs) {
     DatabaseFacade.closeDBSession(hibernateSession);
     hibernateSession = null;
     tx = null;
-    GateInitSingleton.executeResetApplication(gateDoc);
-    GateInitSingleton.unloadGateResources(gateDoc);
+    for (Document gateDoc : gateDocs) {
+      GateInitSingleton.resetDocument(gateDoc);
+    }
 
     timeMeasurement.endTimeMeasurementLoop();
     timeMeasurement.printRunTimeResults();
@@ -360,26 +947,33 @@ public class CompletePipelineWorker extends WorkerThread {
     timeMeasurement.printCurrentGateRunTimes();
     timeMeasurement.printFileWritingTimes();
     PerformanceMeasurement.setWriteFileTimes(new HashMap<String, Long>());
-    
-    System.gc();
   }
 
   /**
-   * Initialize Workerthreads, which are polling on the queue and process each document
-   * 
+   * Initialize Workerthreads, which are polling on the queue and process each document.
+   * If 'stagedPipeline' is configured the documents are processed by a StagedPipelineWorker.
+   *
    * @param messenger
    * @throws Exception
    */
   public static void inizializeWorker(Messenger messenger) throws Exception {
-    
+
+    if (GlobalParameters.extractBooleanProperty("stagedPipeline", false)) {
+      StagedPipelineWorker.inizializePipeline();
+      return;
+    }
+
+    if (GlobalParameters.extractBooleanProperty("deadLetterQueue", true)) {
+      DeadLetterStore.getInstance();
+    }
+    if (GlobalParameters.extractBooleanProperty("stageJournal", false)) {
+      StageJournal.getInstance();
+    }
+
     String executionPipeline = configProperties.getProperty("pipelineExecution");
     
-    WorkerThread currentPipeLineWorker = null;
     CorpusController preprocessingGateApp = null;
-    CorpusController preprocessingGateAppCopy = null;
-
     CorpusController classificationGateApp = null;
-    CorpusController classificationGateAppCopy = null;
     
     Integer MAX_THREAD = null;
     String threadNo = null;
@@ -393,45 +987,187 @@ public class CompletePipelineWorker extends WorkerThread {
     }
     
     
-    for (int i = 0; i < MAX_THREAD; i++) {
-      CompletePipelineReceiver.log.info("Creating new CompletePipelineWorker for executionPipeline: "
-          + executionPipeline);
-      
-      File preprocessingApplicationFile = null;
-      File classificationApplicationFile = null;
-      if (executionPipeline.equalsIgnoreCase("JSI")) {
-        preprocessingApplicationFile = GlobalParameters.getJsiPreprocessingGateApp();
-        classificationApplicationFile = GlobalParameters.getJsiClassificatonGateApp();  
-      }else {
-        if (executionPipeline.equalsIgnoreCase("UHOH")) {
-          classificationApplicationFile = GlobalParameters.getUhohClassificationGateApp();
-          preprocessingApplicationFile = GlobalParameters.getUhohPreprocessingGateApp();
-        }
+    if (GlobalParameters.extractBooleanProperty("fusedPipeline", false)) {
+      if (isFusedPipeline() && !GlobalParameters.extractBooleanProperty("controllerPool", false)) {
+        log.info("Preprocessing and classification are executed fused");
+      } else {
+        log.info("fusedPipeline is ignored with controllerPool or writeOutputFile,"
+            + " the preprocessed documents are needed separately");
       }
-      
-      CorpusController currentPreprocessingGateApp = null;
-      CorpusController currentClassificationGateApp = null;
-      if ((preprocessingGateApp == null) && (classificationGateApp == null)) {
-        preprocessingGateApp = GateInitSingleton.getInstance().loadApplication(preprocessingApplicationFile);       
-        classificationGateApp = GateInitSingleton.getInstance().loadApplication(classificationApplicationFile);
-        currentPreprocessingGateApp = preprocessingGateApp;
-        currentClassificationGateApp = classificationGateApp;
+    }
+
+    if (GlobalParameters.extractBooleanProperty("soPrefilter", false)) {
+      SentimentObjectPrefilter.getInstance();
+      String lightGateApp = configProperties.getProperty("soPrefilterLightGapp");
+      if (lightGateApp != null) {
+        lightPreprocessingPool = GateInitSingleton.getInstance().getControllerPool(new File(lightGateApp),
+            MAX_THREAD);
+        log.info("Documents predicted without SO are preprocessed by " + lightGateApp);
       } else {
-        preprocessingGateAppCopy = (CorpusController) Factory.duplicate(preprocessingGateApp);
-        classificationGateAppCopy = (CorpusController) Factory.duplicate(classificationGateApp);
-        currentPreprocessingGateApp = preprocessingGateAppCopy;
-        currentClassificationGateApp = classificationGateAppCopy;
+        log.info("No soPrefilterLightGapp -> the SO predictions are only verified");
       }
-      
+    }
+
+    if (GlobalParameters.extractBooleanProperty("controllerPool", false)) {
+      inizializePooledWorkers(executionPipeline, MAX_THREAD);
+      return;
+    }
+
+    WorkerPoolScaler poolScaler = null;
+    boolean adaptiveWorkerPool = GlobalParameters.extractBooleanProperty("adaptiveWorkerPool", false);
+    if (adaptiveWorkerPool) {
+      int minWorkers = Math.max(1, GlobalParameters.extractIntProperty("workerPoolMin", 1));
+      int maxWorkers = Math.max(minWorkers, GlobalParameters.extractIntProperty("workerPoolMax", MAX_THREAD));
+      MAX_THREAD = Math.max(minWorkers, Math.min(maxWorkers, MAX_THREAD));
+      log.info("Adaptive worker pool between " + minWorkers + " and " + maxWorkers + " workers, starting "
+          + MAX_THREAD + " workers");
+    }
+
+    File[] applicationFiles = selectApplicationFiles(executionPipeline);
+    preprocessingGateApp = GateInitSingleton.getInstance().loadApplication(applicationFiles[0]);
+    classificationGateApp = GateInitSingleton.getInstance().loadApplication(applicationFiles[1]);
+    if (adaptiveWorkerPool) {
+      poolScaler = new WorkerPoolScaler(preprocessingGateApp, classificationGateApp, MessageFileQueue.getInstance());
+    }
+
+    /*
+     * The copies are duplicated in parallel and warmed up before the first worker takes a
+     * document, the receiver starts pulling from ZeroMQ after this method
+     */
+    List<CorpusController[]> applications = new ArrayList<CorpusController[]>();
+    if (poolScaler == null) {
+      applications.add(new CorpusController[] { preprocessingGateApp, classificationGateApp });
+      applications.addAll(ControllerWarmup.duplicate(preprocessingGateApp, classificationGateApp, MAX_THREAD - 1));
+    } else {
+      // the loaded applications stay idle as templates of the WorkerPoolScaler
+      applications.addAll(ControllerWarmup.duplicate(preprocessingGateApp, classificationGateApp, MAX_THREAD));
+    }
+    ControllerWarmup.warmUp(applications);
+
+    for (int i = 0; i < applications.size(); i++) {
+      CompletePipelineReceiver.log.info("Creating new CompletePipelineWorker for executionPipeline: "
+          + executionPipeline);
       
       String workerThreadName = "CompletepipelineWorker_" + i;
       log.info("Creating new CompletepipelineWorker_-Thread Object with name: " + workerThreadName);
 
-      currentPipeLineWorker = new CompletePipelineWorker(currentPreprocessingGateApp, currentClassificationGateApp, workerThreadName);
-      currentPipeLineWorker.start();
+      startWorker(applications.get(i)[0], applications.get(i)[1], workerThreadName, poolScaler);
     
       log.info("Startet new Thread with CompletepipelineWorkerThread");
-      currenThreadList.add(currentPipeLineWorker);
+    }
+
+    if (poolScaler != null) {
+      poolScaler.start();
+    }
+    StartupStatistics.workersReady();
+  }
+
+  /**
+   * Start workers sharing 'controllerPoolSize' controllers of each application, the workers
+   * check out a controller only for the execution, so more workers than controllers can wait
+   * for the queue, the database or the network share.
+   * 
+   * @param executionPipeline
+   * @param workerCount
+   * @throws Exception
+   */
+  private static void inizializePooledWorkers(String executionPipeline, int workerCount) throws Exception {
+    if (GlobalParameters.extractBooleanProperty("adaptiveWorkerPool", false)) {
+      log.info("adaptiveWorkerPool is ignored with controllerPool, the workers do not own controllers");
+    }
+
+    File[] applicationFiles = selectApplicationFiles(executionPipeline);
+    int poolSize = GlobalParameters.extractIntProperty("controllerPoolSize", workerCount);
+    ControllerPool preprocessingPool = GateInitSingleton.getInstance().getControllerPool(applicationFiles[0],
+        poolSize);
+    ControllerPool classificationPool = GateInitSingleton.getInstance().getControllerPool(applicationFiles[1],
+        poolSize);
+    log.info("Starting " + workerCount + " CompletePipelineWorkers sharing up to " + poolSize
+        + " controllers of each application");
+    ControllerWarmup.warmUp(Collections.singletonList(new CorpusController[] { preprocessingPool.getTemplate(),
+        classificationPool.getTemplate() }));
+
+    for (int i = 0; i < workerCount; i++) {
+      String workerThreadName = "CompletepipelineWorker_" + i;
+      CompletePipelineWorker worker = new CompletePipelineWorker(preprocessingPool, classificationPool,
+          workerThreadName);
+      workerStarted();
+      worker.start();
+      synchronized (currenThreadList) {
+        currenThreadList.add(worker);
+      }
+    }
+    StartupStatistics.workersReady();
+  }
+
+  /**
+   * Start a worker with its own Gate-Applications
+   * 
+   * @param preprocessingGateApp
+   * @param classificationGateApp
+   * @param workerThreadName
+   * @param poolScaler adaptive pool of the worker or null
+   * @return the started worker
+   * @throws IOException
+   */
+  static CompletePipelineWorker startWorker(CorpusController preprocessingGateApp,
+      CorpusController classificationGateApp, String workerThreadName, WorkerPoolScaler poolScaler)
+      throws IOException {
+    CompletePipelineWorker worker = new CompletePipelineWorker(preprocessingGateApp, classificationGateApp,
+        workerThreadName);
+    worker.poolScaler = poolScaler;
+    if (poolScaler != null) {
+      poolScaler.workerStarted(worker);
+    }
+
+    workerStarted();
+    worker.start();
+    synchronized (currenThreadList) {
+      currenThreadList.add(worker);
+    }
+    return worker;
+  }
+
+  /**
+   * The worker finishes after its current batch, the queued messages are processed by
+   * the other workers
+   */
+  void retire() {
+    retired = true;
+  }
+
+  boolean isRetired() {
+    return retired;
+  }
+
+  /**
+   * @return start of the current idle period in ms, 0 while the worker processes a batch
+   */
+  long getIdleSince() {
+    return idleSince;
+  }
+
+  CorpusController getPreprocessingGateApp() {
+    return preprocessingGateApp;
+  }
+
+  CorpusController getClassificationGateApp() {
+    return classificationGateApp;
+  }
+
+  /**
+   * File of the current documents for the ArchiveWriter
+   */
+  private static class ArchiveFile {
+    private final String type;
+    private final File file;
+    private final DocumentMetaData dbDocument;
+    private boolean submitted = false;
+
+    ArchiveFile(String type, File file, DocumentMetaData dbDocument) {
+      this.type = type;
+      this.file = file;
+      this.dbDocument = dbDocument;
     }
   }
 }
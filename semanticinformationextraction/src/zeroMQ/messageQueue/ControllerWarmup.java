@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.creole.ResourceInstantiationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import utils.CorpusLifecycle;
+import utils.GateInitSingleton;
+import utils.GlobalParameters;
+import utils.SharedResources;
+
+/**
+ * Prepares the Gate-Applications of the workers before the first message is received:
+ * the copies of the loaded applications are duplicated by 'controllerDuplicationThreads'
+ * threads in parallel, and each pair of applications processes a set of synthetic documents
+ * 'warmupIterations' times, so the JAPE transducers and gazetteers are compiled by the JIT
+ * before the workers take the first document. The warm-up is skipped with 'controllerWarmup' = false.
+ *
+ * With 'workerHeapReport' = true the heap of each additional pair is measured and logged after the
+ * duplication. The measurement forces garbage collections, so it is disabled by default.
+ * With 'sharedResources' the saving against unshared copies is reported.
+ *
+ * @author lgredel
+ *
+ */
+public class ControllerWarmup {
+  private static Logger log = Logger.getLogger(ControllerWarmup.class);
+
+  private static final long MB = 1024L * 1024L;
+
+  private static final String[] WARMUP_TEXTS = {
+      "Shares of Example Corp. rose 4.5 percent on Monday after the company reported a strong increase in quarterly profit"
+          + " and raised its outlook for the full year. Analysts expect the stock to outperform the market.",
+      "The euro fell against the dollar as investors worried about the debt crisis. Bond yields of several countries"
+          + " climbed to record highs, and the central bank warned of a weak recovery.",
+      "Example Bank AG posted a net loss of 120 million euros in the second quarter. The chief executive said that"
+          + " the restructuring was successful and that revenue will grow again next year.",
+      "Oil prices remained stable on Friday. Traders said the market was calm, although demand from China is expected"
+          + " to decline slightly. Gold gained 1 percent, while copper lost ground." };
+
+  /**
+   * Duplicate pairs of applications in parallel
+   *
+   * @param preprocessingTemplate loaded preprocessing application
+   * @param classificationTemplate loaded classification application
+   * @param copies number of pairs
+   * @return the duplicated pairs, index 0 preprocessing, index 1 classification
+   * @throws ResourceInstantiationException if a copy cannot be duplicated, the other copies are deleted
+   * @throws InterruptedException
+   */
+  public static List<CorpusController[]> duplicate(final CorpusController preprocessingTemplate,
+      final CorpusController classificationTemplate, int copies) throws ResourceInstantiationException,
+      InterruptedException {
+    List<CorpusController[]> pairs = new ArrayList<CorpusController[]>();
+    if (copies <= 0) {
+      return pairs;
+    }
+
+    boolean heapReport = GlobalParameters.extractBooleanProperty("workerHeapReport", false);
+    long heapBefore = heapReport ? SharedResources.getSettledHeap() : 0;
+    long start = System.currentTimeMillis();
+    int threads = Math.max(1, Math.min(copies, GlobalParameters.extractIntProperty("controllerDuplicationThreads",
+        Runtime.getRuntime().availableProcessors())));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    List<Future<CorpusController[]>> futures = new ArrayList<Future<CorpusController[]>>();
+    for (int i = 0; i < copies; i++) {
+      futures.add(executor.submit(new Callable<CorpusController[]>() {
+        @Override
+        public CorpusController[] call() throws Exception {
+          CorpusController preprocessingGateApp = SharedResources.duplicate(preprocessingTemplate);
+          try {
+            return new CorpusController[] { preprocessingGateApp,
+                SharedResources.duplicate(classificationTemplate) };
+          } catch (ResourceInstantiationException e) {
+            Factory.deleteResource(preprocessingGateApp);
+            throw e;
+          }
+        }
+      }));
+    }
+    executor.shutdown();
+
+    ResourceInstantiationException failure = null;
+    for (Future<CorpusController[]> future : futures) {
+      try {
+        pairs.add(future.get());
+      } catch (ExecutionException e) {
+        log.error(e.getCause().getClass().getName() + " occured on duplicating Gate-Applications");
+        log.error(e.getCause().getMessage());
+        if (failure == null) {
+          failure = (e.getCause() instanceof ResourceInstantiationException) ? (ResourceInstantiationException) e
+              .getCause() : new ResourceInstantiationException(e.getCause());
+        }
+      }
+    }
+
+    if (failure != null) {
+      for (CorpusController[] pair : pairs) {
+        Factory.deleteResource(pair[0]);
+        Factory.deleteResource(pair[1]);
+      }
+      throw failure;
+    }
+
+    log.info("Duplicated " + copies + " pairs of Gate-Applications with " + threads + " threads in "
+        + (System.currentTimeMillis() - start) + " ms");
+    if (heapReport) {
+      reportWorkerHeap(preprocessingTemplate, classificationTemplate,
+          (SharedResources.getSettledHeap() - heapBefore) / copies);
+    }
+    return pairs;
+  }
+
+  /**
+   * Log the heap of each additional pair of applications, with 'sharedResources' one pair is
+   * duplicated without sharing for comparison and deleted again
+   *
+   * @param preprocessingTemplate
+   * @param classificationTemplate
+   * @param workerHeap measured heap per duplicated pair in bytes
+   */
+  private static void reportWorkerHeap(CorpusController preprocessingTemplate,
+      CorpusController classificationTemplate, long workerHeap) {
+    if (!SharedResources.isEnabled()) {
+      log.info("Heap per additional worker: " + (workerHeap / MB) + " MB, sharedResources is disabled");
+      return;
+    }
+
+    try {
+      long unsharedHeap = SharedResources.measureUnsharedDuplicate(preprocessingTemplate, classificationTemplate);
+      log.info("Heap per additional worker: " + (workerHeap / MB) + " MB with shared resources, "
+          + (unsharedHeap / MB) + " MB without, saving " + ((unsharedHeap - workerHeap) / MB)
+          + " MB per additional worker");
+    } catch (ResourceInstantiationException e) {
+      log.error(e.getClass().getName() + " occured on measuring the heap of unshared Gate-Applications");
+      log.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Warm up all pairs of applications in parallel, failures of the warm-up are only logged
+   *
+   * @param pairs index 0 preprocessing, index 1 classification
+   * @throws InterruptedException
+   */
+  public static void warmUp(List<CorpusController[]> pairs) throws InterruptedException {
+    if (pairs.isEmpty() || !GlobalParameters.extractBooleanProperty("controllerWarmup", true)) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    int threads = Math.max(1, Math.min(pairs.size(), GlobalParameters.extractIntProperty(
+        "controllerDuplicationThreads", Runtime.getRuntime().availableProcessors())));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    List<Future<Long>> futures = new ArrayList<Future<Long>>();
+    for (final CorpusController[] pair : pairs) {
+      futures.add(executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return Long.valueOf(warmUp(pair[0], pair[1]));
+        }
+      }));
+    }
+    executor.shutdown();
+
+    long maxTime = 0;
+    for (Future<Long> future : futures) {
+      try {
+        maxTime = Math.max(maxTime, future.get().longValue());
+      } catch (ExecutionException e) {
+        log.error(e.getCause().getClass().getName() + " occured on warm-up of Gate-Applications");
+        log.error(e.getCause().getMessage());
+      }
+    }
+
+    log.info("Warmed up " + pairs.size() + " pairs of Gate-Applications with " + threads + " threads in "
+        + (System.currentTimeMillis() - start) + " ms, slowest pair: " + maxTime + " ms");
+  }
+
+  /**
+   * Run the synthetic documents through one pair of applications
+   *
+   * @param preprocessingGateApp
+   * @param classificationGateApp
+   * @return warm-up time in ms
+   * @throws Exception
+   */
+  public static long warmUp(CorpusController preprocessingGateApp, CorpusController classificationGateApp)
+      throws Exception {
+    if (!GlobalParameters.extractBooleanProperty("controllerWarmup", true)) {
+      return 0;
+    }
+
+    long start = System.currentTimeMillis();
+    int iterations = GlobalParameters.extractIntProperty("warmupIterations", 2);
+    for (int i = 0; i < iterations; i++) {
+      for (int j = 0; j < WARMUP_TEXTS.length; j++) {
+        Document doc = Factory.newDocument(WARMUP_TEXTS[j]);
+        doc.setName("Warmup_" + j);
+        try {
+          execute(preprocessingGateApp, doc);
+          if (doc.getAnnotations().getAllTypes().contains("SO")) {
+            execute(classificationGateApp, doc);
+          }
+        } finally {
+          GateInitSingleton.unloadGateResources(doc);
+        }
+      }
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  private static void execute(CorpusController application, Document doc) throws Exception {
+    try {
+      CorpusLifecycle.getInstance().attach(application, doc);
+      application.execute();
+    } finally {
+      CorpusLifecycle.getInstance().detach(application);
+    }
+  }
+}
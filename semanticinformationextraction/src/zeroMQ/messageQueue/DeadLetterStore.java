@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Keeps documents which failed in a worker in 'deadLetterDirectory' instead of dropping them.
+ * Each document is written as gate-xml with a .properties file containing the failing stage,
+ * the exception, the number of failures and the key of the IngressDeduplicator. The entry is named by
+ * the SHA-1 hash of the message, so a retried document which fails again updates its entry. A retried
+ * document is enqueued with its key, so its commit is reported to the IngressDeduplicator.
+ *
+ * The store thread checks every 'deadLetterRetryInterval' ms for entries whose backoff has passed
+ * and enqueues them again, but only while the queue holds at most 'deadLetterRetryQueueSize' messages,
+ * so the retries do not compete with fresh traffic. The backoff starts with 'deadLetterRetryDelay' ms
+ * and doubles with each failure up to 'deadLetterMaxDelay' ms. After 'deadLetterRetryBudget' retries
+ * the entry is kept as exhausted and is not enqueued again, entries of the last run are loaded on start.
+ *
+ * @author lgredel
+ *
+ */
+public class DeadLetterStore extends Thread {
+  private static Logger log = Logger.getLogger(DeadLetterStore.class);
+
+  private static final String MESSAGE_SUFFIX = ".xml";
+  private static final String ENTRY_SUFFIX = ".properties";
+
+  private static final String STATE_PENDING = "pending";
+  private static final String STATE_RETRYING = "retrying";
+  private static final String STATE_EXHAUSTED = "exhausted";
+
+  private static DeadLetterStore INSTANCE;
+
+  private final File deadLetterDir;
+  private final MessageFileQueue queue;
+  private final int retryBudget;
+  private final long retryDelay;
+  private final long maxDelay;
+  private final long retryInterval;
+  private final int retryQueueSize;
+
+  private final Map<String, Properties> entries = new LinkedHashMap<String, Properties>();
+  private volatile int retryingEntries = 0;
+  private long deadLetters = 0;
+  private long retries = 0;
+  private long recovered = 0;
+  private long exhausted = 0;
+
+  private DeadLetterStore(MessageFileQueue queue) throws IOException {
+    super("DeadLetterStore");
+    setDaemon(true);
+    this.queue = queue;
+    deadLetterDir = new File(GlobalParameters.loadConfigFile().getProperty("deadLetterDirectory", "deadLetter"));
+    if (!deadLetterDir.exists() && !deadLetterDir.mkdirs()) {
+      throw new IOException("Cannot create dead letter directory: " + deadLetterDir.getAbsolutePath());
+    }
+
+    retryBudget = GlobalParameters.extractIntProperty("deadLetterRetryBudget", 5);
+    retryDelay = Math.max(1, GlobalParameters.extractLongProperty("deadLetterRetryDelay", 30000));
+    maxDelay = Math.max(retryDelay, GlobalParameters.extractLongProperty("deadLetterMaxDelay", 3600000));
+    retryInterval = Math.max(100, GlobalParameters.extractLongProperty("deadLetterRetryInterval", 10000));
+    retryQueueSize = GlobalParameters.extractIntProperty("deadLetterRetryQueueSize", 10);
+
+    loadEntries();
+  }
+
+  /**
+   * @return the DeadLetterStore, created and started on the first call
+   * @throws IOException if the dead letter directory cannot be created
+   */
+  public static synchronized DeadLetterStore getInstance() throws IOException {
+    if (INSTANCE == null) {
+      INSTANCE = new DeadLetterStore(MessageFileQueue.getInstance());
+      INSTANCE.start();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * @return the DeadLetterStore if it was started, else null
+   */
+  public static synchronized DeadLetterStore getStartedInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Record the failed message, the caller acknowledges the message afterwards
+   *
+   * @param message
+   * @param stage processing stage which failed
+   * @param failure exception of the stage
+   * @throws IOException if the message cannot be written
+   */
+  public void deadLetter(QueuedMessage message, String stage, Exception failure) throws IOException {
+    String id = message.getDigest();
+    long now = System.currentTimeMillis();
+
+    synchronized (this) {
+      Properties entry = entries.get(id);
+      if (entry == null) {
+        writeMessage(message, new File(deadLetterDir, id + MESSAGE_SUFFIX));
+        entry = new Properties();
+        entry.setProperty("failures", "0");
+        entry.setProperty("firstFailure", String.valueOf(now));
+        entries.put(id, entry);
+      } else if (STATE_RETRYING.equals(entry.getProperty("state"))) {
+        retryingEntries--;
+      }
+
+      int failures = Integer.parseInt(entry.getProperty("failures")) + 1;
+      entry.setProperty("failures", String.valueOf(failures));
+      entry.setProperty("lastFailure", String.valueOf(now));
+      entry.setProperty("stage", stage);
+      entry.setProperty("exception", failure.getClass().getName());
+      entry.setProperty("message", String.valueOf(failure.getMessage()));
+      entry.setProperty("worker", Thread.currentThread().getName());
+      if (message.getDedupKey() != null) {
+        entry.setProperty("dedupKey", message.getDedupKey());
+      }
+      deadLetters++;
+
+      if (failures > retryBudget) {
+        entry.setProperty("state", STATE_EXHAUSTED);
+        exhausted++;
+        log.error("Retry budget of " + retryBudget + " exhausted for dead letter " + id + " in stage " + stage
+            + " -> kept in " + deadLetterDir.getAbsolutePath());
+      } else {
+        long delay = Math.min(maxDelay, retryDelay << Math.min(failures - 1, 30));
+        entry.setProperty("state", STATE_PENDING);
+        entry.setProperty("nextRetry", String.valueOf(now + delay));
+        log.info("Recorded dead letter " + id + " failed in stage " + stage + ", retry " + failures + " of "
+            + retryBudget + " in " + delay + " ms");
+      }
+      writeEntry(id, entry);
+    }
+  }
+
+  /**
+   * The message was committed, remove it if it is a retried dead letter
+   *
+   * @param message
+   */
+  public void resolved(QueuedMessage message) {
+    if (retryingEntries == 0) {
+      return;
+    }
+
+    String id = null;
+    try {
+      id = message.getDigest();
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on resolving dead letter");
+      log.error(e.getMessage());
+      return;
+    }
+
+    synchronized (this) {
+      Properties entry = entries.remove(id);
+      if (entry == null) {
+        return;
+      }
+      if (STATE_RETRYING.equals(entry.getProperty("state"))) {
+        retryingEntries--;
+      }
+      recovered++;
+      deleteEntry(id);
+      log.info("Dead letter " + id + " recovered after " + entry.getProperty("failures") + " failures");
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!queue.isShutdown()) {
+        Thread.sleep(retryInterval);
+        retryDueEntries();
+      }
+    } catch (InterruptedException e) {
+      log.info("DeadLetterStore interrupted");
+    }
+  }
+
+  /**
+   * Enqueue the entries whose backoff has passed while the queue is nearly empty
+   */
+  private void retryDueEntries() {
+    List<String> dueEntries = new ArrayList<String>();
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (Map.Entry<String, Properties> entry : entries.entrySet()) {
+        if (STATE_PENDING.equals(entry.getValue().getProperty("state"))
+            && Long.parseLong(entry.getValue().getProperty("nextRetry")) <= now) {
+          dueEntries.add(entry.getKey());
+        }
+      }
+    }
+
+    for (String id : dueEntries) {
+      if (queue.isShutdown() || queue.size() > retryQueueSize) {
+        return;
+      }
+
+      try {
+        String messageString = FileUtils.readFileToString(new File(deadLetterDir, id + MESSAGE_SUFFIX), "UTF-8");
+        synchronized (this) {
+          Properties entry = entries.get(id);
+          if (entry == null || !STATE_PENDING.equals(entry.getProperty("state"))) {
+            continue;
+          }
+          // marked before the push, a worker may fail or commit the message immediately
+          entry.setProperty("state", STATE_RETRYING);
+          retryingEntries++;
+          if (!queue.pushMessage(messageString, entry.getProperty("dedupKey"))) {
+            entry.setProperty("state", STATE_PENDING);
+            retryingEntries--;
+            return;
+          }
+          retries++;
+          writeEntry(id, entry);
+        }
+        log.info("Enqueued dead letter " + id + " again");
+      } catch (IOException e) {
+        log.error(e.getClass().getName() + " occured on retrying dead letter " + id);
+        log.error(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Load the entries of the last run, retried entries which were not committed are pending again
+   */
+  private void loadEntries() {
+    File[] entryFiles = deadLetterDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(ENTRY_SUFFIX);
+      }
+    });
+    if (entryFiles == null) {
+      return;
+    }
+
+    int pending = 0;
+    for (File entryFile : entryFiles) {
+      String id = entryFile.getName().substring(0, entryFile.getName().length() - ENTRY_SUFFIX.length());
+      if (!new File(deadLetterDir, id + MESSAGE_SUFFIX).exists()) {
+        log.error("Message file of dead letter " + id + " not found -> entry removed");
+        deleteEntry(id);
+        continue;
+      }
+
+      Properties entry = new Properties();
+      InputStream in = null;
+      try {
+        in = new FileInputStream(entryFile);
+        entry.load(in);
+      } catch (IOException e) {
+        log.error(e.getClass().getName() + " occured on loading dead letter " + entryFile.getName());
+        log.error(e.getMessage());
+        continue;
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+
+      if (STATE_RETRYING.equals(entry.getProperty("state"))) {
+        entry.setProperty("state", STATE_PENDING);
+      }
+      if (STATE_PENDING.equals(entry.getProperty("state"))) {
+        pending++;
+      }
+      entries.put(id, entry);
+    }
+    log.info("DeadLetterStore started with " + entries.size() + " dead letters of the last run, " + pending
+        + " of them pending");
+  }
+
+  private void writeMessage(QueuedMessage message, File messageFile) throws IOException {
+    InputStream in = message.openStream();
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(messageFile);
+      IOUtils.copy(in, out);
+    } finally {
+      IOUtils.closeQuietly(out);
+      in.close();
+    }
+  }
+
+  private void writeEntry(String id, Properties entry) {
+    File entryFile = new File(deadLetterDir, id + ENTRY_SUFFIX);
+    File tmpFile = new File(deadLetterDir, id + ENTRY_SUFFIX + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tmpFile);
+      entry.store(out, "Dead letter " + id);
+      out.close();
+      out = null;
+      if (!tmpFile.renameTo(entryFile)) {
+        entryFile.delete();
+        if (!tmpFile.renameTo(entryFile)) {
+          throw new IOException("Cannot rename " + tmpFile.getName() + " to " + entryFile.getName());
+        }
+      }
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on writing dead letter " + entryFile.getName());
+      log.error(e.getMessage());
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+  }
+
+  private void deleteEntry(String id) {
+    new File(deadLetterDir, id + ENTRY_SUFFIX).delete();
+    new File(deadLetterDir, id + MESSAGE_SUFFIX).delete();
+  }
+
+  /**
+   * @return number of stored entries
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized String getStatistics() {
+    return "Dead letters: " + entries.size() + " stored, " + deadLetters + " failures recorded, " + retries
+        + " retries, " + recovered + " recovered, " + exhausted + " exhausted";
+  }
+}
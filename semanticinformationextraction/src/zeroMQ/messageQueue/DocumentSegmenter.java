@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the text of an oversized gate-xml message into segments, without
+ * creating a Gate-Document of the complete message.
+ *
+ * The text is the content of TextWithNodes without nodes, with the line ends and
+ * entities resolved like the XML parser of GATE, so the offsets of the segments
+ * are offsets in the document text. The annotations of the message are not kept.
+ *
+ * @author lgredel
+ *
+ */
+public class DocumentSegmenter {
+
+  private static final String TEXT_START_TAG = "<TextWithNodes>";
+  private static final String TEXT_END_TAG = "</TextWithNodes>";
+
+  private static final Pattern NODE_PATTERN = Pattern.compile("<Node[^>]*/>");
+
+  private DocumentSegmenter() {
+  }
+
+  /**
+   * @param message gate-xml message
+   * @return gate-xml with the document features of the message and an empty text
+   */
+  public static String extractHeader(String message) {
+    int textStart = message.indexOf(TEXT_START_TAG);
+    if (textStart < 0) {
+      return message;
+    }
+    return message.substring(0, textStart) + TEXT_START_TAG + " " + TEXT_END_TAG + "\n</GateDocument>\n";
+  }
+
+  /**
+   * @param message gate-xml message
+   * @return document text of the message
+   */
+  public static String extractText(String message) {
+    String text = message;
+    int textStart = message.indexOf(TEXT_START_TAG);
+    int textEnd = message.lastIndexOf(TEXT_END_TAG);
+    if (textStart >= 0 && textEnd > textStart) {
+      text = message.substring(textStart + TEXT_START_TAG.length(), textEnd);
+    }
+
+    text = NODE_PATTERN.matcher(text).replaceAll("");
+    text = text.replace("\r\n", "\n").replace('\r', '\n');
+    return unescape(text);
+  }
+
+  /**
+   * Split the text in segments of at most maxLength chars. A segment ends preferably
+   * after an empty line, else after a line end, a sentence end or a whitespace
+   * in the second half of the segment.
+   *
+   * @param text
+   * @param maxLength maximum length of a segment in chars
+   * @return start (inclusive) and end (exclusive) offset of each segment
+   */
+  public static List<int[]> split(String text, int maxLength) {
+    List<int[]> segments = new ArrayList<int[]>();
+    int length = text.length();
+    int start = 0;
+
+    while (start < length) {
+      int end = Math.min(length, start + maxLength);
+      if (end < length) {
+        end = findBoundary(text, start + Math.max(1, maxLength / 2), end);
+      }
+      segments.add(new int[] { start, end });
+      start = end;
+    }
+    return segments;
+  }
+
+  private static int findBoundary(String text, int min, int limit) {
+    int paragraph = text.lastIndexOf("\n\n", limit - 2);
+    if (paragraph >= min) {
+      return paragraph + 2;
+    }
+
+    int line = text.lastIndexOf('\n', limit - 1);
+    if (line >= min) {
+      return line + 1;
+    }
+
+    for (int i = limit - 2; i >= min; i--) {
+      char c = text.charAt(i);
+      if ((c == '.' || c == '!' || c == '?') && Character.isWhitespace(text.charAt(i + 1))) {
+        return i + 1;
+      }
+    }
+
+    for (int i = limit - 1; i >= min; i--) {
+      if (Character.isWhitespace(text.charAt(i))) {
+        return i + 1;
+      }
+    }
+
+    // do not split a surrogate pair
+    if (Character.isHighSurrogate(text.charAt(limit - 1))) {
+      return limit - 1;
+    }
+    return limit;
+  }
+
+  private static String unescape(String text) {
+    int ampersand = text.indexOf('&');
+    if (ampersand < 0) {
+      return text;
+    }
+
+    StringBuilder unescaped = new StringBuilder(text.length());
+    int position = 0;
+    while (ampersand >= 0) {
+      unescaped.append(text, position, ampersand);
+      int semicolon = text.indexOf(';', ampersand);
+      String entity = (semicolon > ampersand) ? text.substring(ampersand + 1, semicolon) : "";
+
+      String replacement = null;
+      if (entity.equals("lt")) {
+        replacement = "<";
+      } else if (entity.equals("gt")) {
+        replacement = ">";
+      } else if (entity.equals("amp")) {
+        replacement = "&";
+      } else if (entity.equals("quot")) {
+        replacement = "\"";
+      } else if (entity.equals("apos")) {
+        replacement = "'";
+      } else if (entity.startsWith("#")) {
+        try {
+          int codePoint = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16) : Integer
+              .parseInt(entity.substring(1));
+          replacement = new String(Character.toChars(codePoint));
+        } catch (IllegalArgumentException iae) {
+          replacement = null;
+        }
+      }
+
+      if (replacement != null) {
+        unescaped.append(replacement);
+        position = semicolon + 1;
+      } else {
+        unescaped.append('&');
+        position = ampersand + 1;
+      }
+      ampersand = text.indexOf('&', position);
+    }
+    unescaped.append(text, position, text.length());
+    return unescaped.toString();
+  }
+}
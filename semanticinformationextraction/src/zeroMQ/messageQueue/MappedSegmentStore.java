@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Append-only message store on memory-mapped segment files.
+ *
+ * Every record is written as [status][length][payload]. The status is written
+ * after the payload, so a record which was not completely written before a crash
+ * is seen as end of the segment on recovery. A record is marked as acknowledged
+ * after the document has been processed, a segment file is deleted when it is full
+ * and all of its records are acknowledged.
+ *
+ * @author lgredel
+ *
+ */
+public class MappedSegmentStore {
+  private static Logger log = Logger.getLogger(MappedSegmentStore.class);
+
+  private static final String SEGMENT_PREFIX = "segment_";
+  private static final String SEGMENT_SUFFIX = ".dat";
+
+  // status (int) + payload length (int)
+  private static final int HEADER_SIZE = 8;
+
+  private static final int STATUS_EMPTY = 0;
+  private static final int STATUS_READY = 1;
+  private static final int STATUS_ACKNOWLEDGED = 2;
+
+  private File queueDir = null;
+  private int segmentSize;
+  private boolean syncOnWrite;
+
+  private TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+  private Segment writeSegment = null;
+  private long nextSegmentNo = 0;
+
+  /**
+   * @param queueDir directory containing the segment files
+   * @param segmentSize size of a new segment file in bytes
+   * @param syncOnWrite force every appended record to disk (survives an OS-crash, not only a JVM-crash)
+   * @throws IOException
+   */
+  public MappedSegmentStore(File queueDir, int segmentSize, boolean syncOnWrite) throws IOException {
+    super();
+    this.queueDir = queueDir;
+    this.segmentSize = segmentSize;
+    this.syncOnWrite = syncOnWrite;
+
+    if (!queueDir.exists() && !queueDir.mkdirs()) {
+      String errorMessage = "Cannot create queue directory: " + queueDir.getAbsolutePath();
+      log.error(errorMessage);
+      throw new IOException(errorMessage);
+    }
+  }
+
+  /**
+   * Scan all existing segment files and return the records, which were not acknowledged
+   * before the last shutdown/crash, in the order they were appended.
+   *
+   * @return all unacknowledged records
+   * @throws IOException
+   */
+  public synchronized List<Record> recover() throws IOException {
+    List<Record> pendingRecords = new ArrayList<Record>();
+
+    File[] segmentFiles = queueDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX)
+            && file.getName().endsWith(SEGMENT_SUFFIX);
+      }
+    });
+
+    if (segmentFiles == null) {
+      return pendingRecords;
+    }
+
+    Arrays.sort(segmentFiles, new Comparator<File>() {
+      @Override
+      public int compare(File file1, File file2) {
+        return Long.valueOf(extractSegmentNo(file1)).compareTo(Long.valueOf(extractSegmentNo(file2)));
+      }
+    });
+
+    for (File segmentFile : segmentFiles) {
+      long segmentNo = extractSegmentNo(segmentFile);
+      nextSegmentNo = Math.max(nextSegmentNo, segmentNo + 1);
+
+      if (segmentFile.length() < HEADER_SIZE) {
+        log.info("Deleting incomplete segment file: " + segmentFile.getAbsolutePath());
+        GlobalParameters.deleteFile(segmentFile);
+        continue;
+      }
+
+      Segment segment = new Segment(segmentNo, segmentFile, (int) segmentFile.length());
+      int position = 0;
+
+      while (position + HEADER_SIZE <= segment.capacity) {
+        int status = segment.buffer.getInt(position);
+        int length = segment.buffer.getInt(position + 4);
+
+        if (status == STATUS_EMPTY || length < 0 || position + HEADER_SIZE + length > segment.capacity) {
+          break;
+        }
+
+        if (status == STATUS_READY) {
+          pendingRecords.add(new Record(segmentNo, position, length));
+          segment.pendingRecords++;
+        }
+        position += HEADER_SIZE + length;
+      }
+      segment.writePosition = position;
+
+      segments.put(segmentNo, segment);
+      if (writeSegment != null) {
+        sealSegment(writeSegment);
+      }
+      writeSegment = segment;
+
+      log.info("Recovered segment " + segmentFile.getName() + " with " + segment.pendingRecords
+          + " unacknowledged messages");
+    }
+
+    log.info("Recovered " + pendingRecords.size() + " unacknowledged messages from: "
+        + queueDir.getAbsolutePath());
+    return pendingRecords;
+  }
+
+  /**
+   * Append the payload to the current segment, if it does not fit in the
+   * remaining space a new segment file is created.
+   *
+   * @param payload message bytes to store
+   * @return the record pointing to the stored payload
+   * @throws IOException
+   */
+  public synchronized Record append(byte[] payload) throws IOException {
+    int recordSize = HEADER_SIZE + payload.length;
+
+    if ((writeSegment == null) || (writeSegment.writePosition + recordSize > writeSegment.capacity)) {
+      if (writeSegment != null) {
+        sealSegment(writeSegment);
+      }
+      writeSegment = createSegment(Math.max(segmentSize, recordSize));
+    }
+
+    int position = writeSegment.writePosition;
+    MappedByteBuffer buffer = writeSegment.buffer;
+
+    buffer.putInt(position + 4, payload.length);
+    buffer.position(position + HEADER_SIZE);
+    buffer.put(payload);
+    buffer.putInt(position, STATUS_READY);
+
+    if (syncOnWrite) {
+      buffer.force();
+    }
+
+    writeSegment.writePosition += recordSize;
+    writeSegment.pendingRecords++;
+
+    return new Record(writeSegment.segmentNo, position, payload.length);
+  }
+
+  /**
+   * Copy the payload of the record from the mapped segment to the heap
+   *
+   * @param record
+   * @return payload bytes
+   * @throws IOException if the segment of the record does not exist anymore
+   */
+  public synchronized byte[] read(Record record) throws IOException {
+    Segment segment = segments.get(record.segmentNo);
+    if (segment == null) {
+      throw new IOException("Segment " + record.segmentNo + " for message does not exist");
+    }
+
+    byte[] payload = new byte[record.length];
+    MappedByteBuffer buffer = segment.buffer;
+    buffer.position(record.position + HEADER_SIZE);
+    buffer.get(payload);
+
+    return payload;
+  }
+
+  /**
+   * Copy the first bytes of the payload of the record from the mapped segment
+   *
+   * @param record
+   * @param length number of bytes to copy, at most the length of the record
+   * @return the first bytes of the payload
+   * @throws IOException if the segment of the record does not exist anymore
+   */
+  public synchronized byte[] readHead(Record record, int length) throws IOException {
+    Segment segment = segments.get(record.segmentNo);
+    if (segment == null) {
+      throw new IOException("Segment " + record.segmentNo + " for message does not exist");
+    }
+
+    byte[] head = new byte[Math.min(length, record.length)];
+    MappedByteBuffer buffer = segment.buffer;
+    buffer.position(record.position + HEADER_SIZE);
+    buffer.get(head);
+
+    return head;
+  }
+
+  /**
+   * Mark the record as processed. A full segment without unacknowledged
+   * records is deleted.
+   *
+   * @param record
+   */
+  public synchronized void acknowledge(Record record) {
+    Segment segment = segments.get(record.segmentNo);
+    if (segment == null) {
+      log.error("Cannot acknowledge message, segment " + record.segmentNo + " does not exist");
+      return;
+    }
+
+    segment.buffer.putInt(record.position, STATUS_ACKNOWLEDGED);
+    if (syncOnWrite) {
+      segment.buffer.force();
+    }
+    segment.pendingRecords--;
+
+    if (segment.sealed && segment.pendingRecords <= 0) {
+      deleteSegment(segment);
+    }
+  }
+
+  /**
+   * Force all segments to disk and close the files
+   */
+  public synchronized void close() {
+    Iterator<Segment> segmentIt = segments.values().iterator();
+    while (segmentIt.hasNext()) {
+      Segment segment = segmentIt.next();
+      segment.buffer.force();
+      segment.close();
+    }
+    segments.clear();
+    writeSegment = null;
+  }
+
+  private Segment createSegment(int capacity) throws IOException {
+    long segmentNo = nextSegmentNo++;
+    File segmentFile = new File(queueDir, SEGMENT_PREFIX + segmentNo + SEGMENT_SUFFIX);
+
+    Segment segment = new Segment(segmentNo, segmentFile, capacity);
+    segments.put(segmentNo, segment);
+    log.debug("Created new segment file: " + segmentFile.getAbsolutePath() + " with size: " + capacity);
+
+    return segment;
+  }
+
+  private void sealSegment(Segment segment) {
+    segment.sealed = true;
+    if (segment.pendingRecords <= 0) {
+      deleteSegment(segment);
+    }
+  }
+
+  /*
+   * On Windows the file of a mapped buffer cannot be deleted before the buffer is garbage collected,
+   * in this case deleteFile falls back to deleteOnExit and the segment is removed on the next start
+   */
+  private void deleteSegment(Segment segment) {
+    segments.remove(segment.segmentNo);
+    segment.close();
+    GlobalParameters.deleteFile(segment.file);
+  }
+
+  private static long extractSegmentNo(File segmentFile) {
+    String name = segmentFile.getName();
+    try {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException nfe) {
+      log.error("Cannot extract segment number from file: " + name);
+      return -1;
+    }
+  }
+
+  /**
+   * Position of one stored message
+   */
+  public static class Record {
+    private final long segmentNo;
+    private final int position;
+    private final int length;
+
+    Record(long segmentNo, int position, int length) {
+      this.segmentNo = segmentNo;
+      this.position = position;
+      this.length = length;
+    }
+
+    public int getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * One memory-mapped segment file
+   */
+  private static class Segment {
+    private final long segmentNo;
+    private final File file;
+    private final int capacity;
+    private RandomAccessFile randomAccessFile = null;
+    private MappedByteBuffer buffer = null;
+    private int writePosition = 0;
+    private int pendingRecords = 0;
+    private boolean sealed = false;
+
+    Segment(long segmentNo, File file, int capacity) throws IOException {
+      this.segmentNo = segmentNo;
+      this.file = file;
+      this.capacity = capacity;
+
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    void close() {
+      try {
+        randomAccessFile.close();
+      } catch (IOException e) {
+        log.error("Cannot close segment file: " + file.getAbsolutePath());
+        log.error(e.getMessage());
+      }
+    }
+  }
+}
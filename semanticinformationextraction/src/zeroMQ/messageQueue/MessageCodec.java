@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the messages of the MessageFileQueue as compact byte blocks.
+ *
+ * A block starts with one format byte:
+ * FORMAT_UTF8 - followed by the UTF-8 bytes of the message
+ * FORMAT_DEFLATE - followed by the length of the UTF-8 bytes (int) and the deflated UTF-8 bytes
+ *
+ * @author lgredel
+ *
+ */
+public class MessageCodec {
+
+  private static final String CHARSET = "UTF-8";
+
+  private static final byte FORMAT_UTF8 = 0;
+  private static final byte FORMAT_DEFLATE = 1;
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  // format byte + length of the UTF-8 bytes
+  public static final int HEADER_SIZE = 5;
+
+  private final int compressionLevel;
+
+  /**
+   * @param compressionLevel Deflate level 1 (fastest) to 9 (best compression),
+   *          0 stores the UTF-8 bytes uncompressed
+   */
+  public MessageCodec(int compressionLevel) {
+    super();
+    this.compressionLevel = Math.max(0, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+  }
+
+  /**
+   * @param message the message to encode
+   * @return the encoded block
+   * @throws UnsupportedEncodingException
+   */
+  public byte[] encode(String message) throws UnsupportedEncodingException {
+    byte[] utf8 = message.getBytes(CHARSET);
+
+    if (compressionLevel == 0) {
+      byte[] block = new byte[utf8.length + 1];
+      block[0] = FORMAT_UTF8;
+      System.arraycopy(utf8, 0, block, 1, utf8.length);
+      return block;
+    }
+
+    Deflater deflater = new Deflater(compressionLevel);
+    try {
+      deflater.setInput(utf8);
+      deflater.finish();
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4 + 16);
+      out.write(FORMAT_DEFLATE);
+      out.write(utf8.length >>> 24);
+      out.write(utf8.length >>> 16);
+      out.write(utf8.length >>> 8);
+      out.write(utf8.length);
+
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @param block encoded block
+   * @return the decoded message
+   * @throws IOException if the block is corrupt
+   */
+  public static String decode(byte[] block) throws IOException {
+    if (block == null || block.length == 0) {
+      throw new IOException("Empty message block");
+    }
+
+    if (block[0] == FORMAT_UTF8) {
+      return new String(block, 1, block.length - 1, CHARSET);
+    }
+
+    if (block[0] != FORMAT_DEFLATE) {
+      throw new IOException("Unknown message format: " + block[0]);
+    }
+
+    byte[] utf8 = new byte[decodedLength(block)];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(block, HEADER_SIZE, block.length - HEADER_SIZE);
+      int offset = 0;
+      while (offset < utf8.length && !inflater.finished()) {
+        int count = inflater.inflate(utf8, offset, utf8.length - offset);
+        if (count == 0 && inflater.needsInput()) {
+          throw new IOException("Truncated message block");
+        }
+        offset += count;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt message block: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+
+    return new String(utf8, CHARSET);
+  }
+
+  /**
+   * Stream the UTF-8 bytes of the message, a deflated block is inflated while reading,
+   * so the decoded message is never held completely in memory
+   *
+   * @param block encoded block
+   * @return stream of the UTF-8 bytes of the message, has to be closed by the caller
+   * @throws IOException if the format of the block is unknown
+   */
+  public static InputStream openStream(byte[] block) throws IOException {
+    if (block == null || block.length == 0) {
+      throw new IOException("Empty message block");
+    }
+
+    if (block[0] == FORMAT_UTF8) {
+      return new ByteArrayInputStream(block, 1, block.length - 1);
+    }
+
+    if (block[0] != FORMAT_DEFLATE) {
+      throw new IOException("Unknown message format: " + block[0]);
+    }
+
+    final Inflater inflater = new Inflater();
+    return new InflaterInputStream(new ByteArrayInputStream(block, HEADER_SIZE, block.length - HEADER_SIZE),
+        inflater, BUFFER_SIZE) {
+      private boolean closed = false;
+
+      // an Inflater passed to the stream is not released by InflaterInputStream.close
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          super.close();
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * @param block encoded block
+   * @return number of UTF-8 bytes of the decoded message
+   */
+  public static int decodedLength(byte[] block) {
+    return decodedLength(block, block.length);
+  }
+
+  /**
+   * @param header at least the first HEADER_SIZE bytes of the encoded block
+   * @param blockLength length of the complete encoded block
+   * @return number of UTF-8 bytes of the decoded message
+   */
+  public static int decodedLength(byte[] header, int blockLength) {
+    if (header[0] == FORMAT_UTF8) {
+      return blockLength - 1;
+    }
+    return ((header[1] & 0xFF) << 24) | ((header[2] & 0xFF) << 16) | ((header[3] & 0xFF) << 8)
+        | (header[4] & 0xFF);
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+}
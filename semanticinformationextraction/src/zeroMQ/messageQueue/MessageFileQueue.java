@@ -15,36 +15,114 @@
  */
 package zeroMQ.messageQueue;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import performance.LatencyHistogram;
 import utils.GlobalParameters;
 
 /**
  * 
- * Singleton Instance Class, which contains a LinkedBlockingQueue
+ * Singleton Instance Class, which contains a SizeLaneQueue
  * This queue contains Gate-XML-Files to process. 
  * 
+ * The messages are sorted by their decoded size into the lanes small
+ * ('laneSmallMaxBytes'), medium ('laneMediumMaxBytes') and large, each lane has a
+ * share of the workers ('laneShares' in percent), so large documents cannot occupy
+ * all workers. Inside a lane the smallest message is processed first, messages
+ * waiting longer than 'laneMaxWait' ms are processed in arrival order.
+ * 
+ * The messages are held as UTF-8 byte blocks, optionally deflated with
+ * 'queueCompressionLevel' (see MessageCodec), and decoded by the worker taking them.
+ * 
+ * If 'persistentQueue' is configured, the messages are stored in memory-mapped
+ * segment files (MappedSegmentStore) in 'queueDirectory' instead of the heap,
+ * only the positions of the messages are kept in memory. Messages taken with
+ * takeMessage are delivered again after a restart until they are acknowledged.
+ * 
+ * Besides the number of messages the queue is bounded by the number of queued bytes
+ * ('maxQueuedBytes') and the free heap space ('minFreeHeapBytes'), see QueueAdmissionControl.
+ * The segment files of a persistent queue are not held in the heap, their bytes are bounded
+ * by 'maxQueuedDiskBytes' instead of 'maxQueuedBytes'.
+ * 
+ * Messages taken by a worker are in flight until they are acknowledged. On shutdown the
+ * queue delivers the remaining messages, checkpoint stops the delivery and saves all messages,
+ * which are queued or in flight, for the next start (see shutdown and checkpoint).
+ * 
  * @author lgredel
  *
  */
 public class MessageFileQueue {
   private static Logger log = Logger.getLogger(MessageFileQueue.class);
-  private LinkedBlockingQueue<String> fileMessages = null;
+  private SizeLaneQueue fileMessages = null;
   private static Properties configProperties = GlobalParameters.loadConfigFile();
   private static File receivedFileDir = null;
 
   private static MessageFileQueue messageFileQueue = null;
 
+  private MessageCodec codec = null;
+
+  private boolean persistentQueue = false;
+  private MappedSegmentStore segmentStore = null;
+  private final Object pushLock = new Object();
+
+  private QueueAdmissionControl admissionControl = null;
+
+  // messages taken by a worker and not acknowledged yet, guarded by inFlight
+  private final Set<QueuedMessage> inFlight = new HashSet<QueuedMessage>();
+  private final Set<QueuedMessage> committing = new HashSet<QueuedMessage>();
+  private File checkpointFile = null;
+  // message of popMessage per thread until acknowledgePoppedMessage
+  private final ThreadLocal<QueuedMessage> poppedMessage = new ThreadLocal<QueuedMessage>();
+
   private MessageFileQueue() throws FileNotFoundException {
     super();
     
     int capacity = GlobalParameters.extractMaxMessageBufferSize();
-    fileMessages = new LinkedBlockingQueue<String>(capacity);
+    
+    int compressionLevel = GlobalParameters.extractIntProperty("queueCompressionLevel", 0);
+    codec = new MessageCodec(compressionLevel);
+    log.info("Setting compression level of queued messages to: " + codec.getCompressionLevel());
+    
+    persistentQueue = GlobalParameters.extractBooleanProperty("persistentQueue", false);
+    if (persistentQueue) {
+      capacity = GlobalParameters.extractIntProperty("persistentQueueCapacity", 100000);
+    }
+
+    // the payloads of a persistent queue are memory-mapped, they are charged to a disk budget
+    long maxQueuedBytes;
+    if (persistentQueue) {
+      maxQueuedBytes = GlobalParameters.extractLongProperty("maxQueuedDiskBytes", 4L * 1024 * 1024 * 1024);
+    } else {
+      maxQueuedBytes = GlobalParameters.extractLongProperty("maxQueuedBytes", 256L * 1024 * 1024);
+    }
+    long minFreeHeapBytes = GlobalParameters.extractLongProperty("minFreeHeapBytes", 128L * 1024 * 1024);
+    long recheckInterval = GlobalParameters.extractSleepTimeout();
+    admissionControl = new QueueAdmissionControl(maxQueuedBytes, minFreeHeapBytes, recheckInterval);
+    fileMessages = createLaneQueue(capacity);
+    
+    checkpointFile = new File(configProperties.getProperty("queueCheckpointFile", "queue_checkpoint.dat"));
+    if (persistentQueue) {
+      initPersistentQueue();
+    } else {
+      loadCheckpoint();
+    }
     
     try{
     receivedFileDir = GlobalParameters.getShareDirectory();
@@ -61,6 +139,128 @@ public class MessageFileQueue {
   }
 
   
+  /**
+   * @param capacity maximum number of queued messages
+   * @return the queue sorting the messages into the size lanes
+   */
+  private static SizeLaneQueue createLaneQueue(int capacity) {
+    long smallMaxBytes = GlobalParameters.extractLongProperty("laneSmallMaxBytes", 32L * 1024);
+    long mediumMaxBytes = GlobalParameters.extractLongProperty("laneMediumMaxBytes", 512L * 1024);
+    long maxLaneWait = GlobalParameters.extractLongProperty("laneMaxWait", 60L * 1000);
+    int statisticsInterval = GlobalParameters.extractIntProperty("laneStatisticsInterval", 100);
+    int workerCount = GlobalParameters.extractIntProperty("currentThreadNo", 1);
+    int[] laneShares = extractLaneShares();
+
+    log.info("Lanes small <= " + smallMaxBytes + " bytes, medium <= " + mediumMaxBytes
+        + " bytes, large - worker shares (%): " + laneShares[0] + "," + laneShares[1] + ","
+        + laneShares[2] + " - maximum lane wait: " + maxLaneWait + " ms");
+
+    return new SizeLaneQueue(capacity, smallMaxBytes, mediumMaxBytes, laneShares, workerCount,
+        maxLaneWait, statisticsInterval);
+  }
+
+  /**
+   * @return worker shares in percent of the small, medium and large lane from 'laneShares'
+   */
+  private static int[] extractLaneShares() {
+    int[] laneShares = { 60, 25, 15 };
+    String laneSharesStr = configProperties.getProperty("laneShares");
+    if (laneSharesStr == null) {
+      return laneShares;
+    }
+
+    String[] shares = laneSharesStr.split(",");
+    if (shares.length != laneShares.length) {
+      log.error("Cannot read laneShares " + laneSharesStr + " as three comma separated values from config-File");
+      return laneShares;
+    }
+
+    try {
+      int[] configuredShares = new int[shares.length];
+      for (int i = 0; i < shares.length; i++) {
+        configuredShares[i] = Integer.parseInt(shares[i].trim());
+      }
+      return configuredShares;
+    } catch (NumberFormatException nfe) {
+      log.error("Cannot read laneShares " + laneSharesStr + " as int-Values from config-File");
+      return laneShares;
+    }
+  }
+
+  /**
+   * Open the segment files and put all unacknowledged messages of the last run
+   * back into the queue
+   * 
+   * @throws FileNotFoundException
+   */
+  private void initPersistentQueue() throws FileNotFoundException {
+    File queueDir = new File(configProperties.getProperty("queueDirectory", "queue"));
+    int segmentSize = GlobalParameters.extractIntProperty("queueSegmentSize", 64 * 1024 * 1024);
+    boolean syncOnWrite = GlobalParameters.extractBooleanProperty("queueSyncOnWrite", false);
+
+    try {
+      segmentStore = new MappedSegmentStore(queueDir, segmentSize, syncOnWrite);
+      List<MappedSegmentStore.Record> recoveredRecords = segmentStore.recover();
+
+      for (MappedSegmentStore.Record record : recoveredRecords) {
+        // only the header is read to sort the message into its lane
+        byte[] header = segmentStore.readHead(record, MessageCodec.HEADER_SIZE);
+        fileMessages.add(new QueuedMessage(null, record,
+            MessageCodec.decodedLength(header, record.getLength())));
+        admissionControl.reserveUnconditionally(record.getLength());
+      }
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on initializing persistent queue in: "
+          + queueDir.getAbsolutePath());
+      log.error(e.getMessage());
+      throw new FileNotFoundException(e.getMessage());
+    }
+    log.info("Initialized persistent queue in: " + queueDir.getAbsolutePath() + " with "
+        + fileMessages.size() + " recovered messages");
+  }
+
+  /**
+   * Put the messages saved by checkpoint on the last shutdown back into the queue
+   */
+  private void loadCheckpoint() {
+    if (!checkpointFile.isFile()) {
+      return;
+    }
+
+    int loadedMessages = 0;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException eof) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        fileMessages.add(new QueuedMessage(payload));
+        admissionControl.reserveUnconditionally(payload.length);
+        loadedMessages++;
+      }
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on loading checkpoint: " + checkpointFile.getAbsolutePath());
+      log.error(e.getMessage());
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          log.error(e.getMessage());
+        }
+      }
+    }
+
+    log.info("Loaded " + loadedMessages + " checkpointed messages from: " + checkpointFile.getAbsolutePath());
+    GlobalParameters.deleteFile(checkpointFile);
+  }
+
   /**
    * @return Singleton-Instance of MessageFileQueue
    * 
@@ -76,37 +276,407 @@ public class MessageFileQueue {
     return messageFileQueue;
   }
 
-  public LinkedBlockingQueue<String> getFileMessages() {
-    return fileMessages;
+  /**
+   * Set the number of workers the lane shares refer to
+   * 
+   * @param workerCount
+   */
+  public void setWorkerCount(int workerCount) {
+    fileMessages.setWorkerCount(workerCount);
   }
 
-  public void setFileMessages(LinkedBlockingQueue<String> fileMessages) {
-    this.fileMessages = fileMessages;
+  /**
+   * @return queued messages, documents in process and wait times of each lane
+   */
+  public String getLaneStatistics() {
+    return fileMessages.getLaneStatistics();
   }
 
+  /**
+   * @return wait times in ms of the messages taken since the last call
+   */
+  public LatencyHistogram takeRecentWaitTimes() {
+    return fileMessages.takeRecentWaitTimes();
+  }
+
+  /**
+   * @return time in ms the oldest queued message is waiting, 0 if the queue is empty
+   */
+  public long getOldestWaitTime() {
+    return fileMessages.getOldestWaitTime();
+  }
+
+  /**
+   * @return number of messages waiting in the queue
+   */
+  public int size() {
+    return fileMessages.size();
+  }
+
+  /**
+   * @return true if no message is waiting in the queue
+   */
+  public boolean isEmpty() {
+    return fileMessages.isEmpty();
+  }
 
   /**
-   * Retrieves/removes the head-Element from queue with take
+   * Retrieves/removes the next message according to the size lanes with take.
+   * The message stays in flight until the calling thread processed it and called
+   * acknowledgePoppedMessage, like a message of takeMessage.
    * 
-   * @return the Element containing the gate-xml message to process
+   * @return the gate-xml message to process, null if the queue is shut down
+   *         or the message cannot be decoded
    * @throws InterruptedException
    */
   public String popMessage() throws InterruptedException{
 
     String currentStringMessage = null;
+    log.debug("Preparing to take");
+    QueuedMessage currentMessage = takeMessage();
+    if (currentMessage == null) {
+      return null;
+    }
     try {
-      
-      log.debug("Preparing to take");
-       currentStringMessage = fileMessages.take();
-          
-      log.debug("Message taken from Queue");
-    } catch (InterruptedException e) {
-      log.error(e.getClass() + " occured on taken a file from queue");    
+      currentStringMessage = currentMessage.getMessageString();
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on decoding message from queue");
+      log.error(e.getMessage());
+      // an undecodable message is never processed
+      acknowledge(currentMessage);
+      return null;
     }
+    poppedMessage.set(currentMessage);
 
     return currentStringMessage;
   }
 
+  /**
+   * Acknowledges the last message popped by the calling thread after it was processed
+   */
+  public void acknowledgePoppedMessage() {
+    QueuedMessage currentMessage = poppedMessage.get();
+    if (currentMessage != null) {
+      poppedMessage.remove();
+      acknowledge(currentMessage);
+    }
+  }
+
+  /**
+   * Retrieves/removes the next message according to the size lanes, waiting if necessary
+   * until a message becomes available. The message is not decoded,
+   * use QueuedMessage.getMessageString in the worker.
+   * 
+   * @return the message to process, has to be acknowledged after processing,
+   *         null if the queue is shut down
+   * @throws InterruptedException
+   */
+  public QueuedMessage takeMessage() throws InterruptedException {
+    QueuedMessage currentMessage = fileMessages.take();
+    if (currentMessage == null) {
+      log.debug("Queue is shut down, no message taken");
+      return null;
+    }
+    prepareTakenMessage(currentMessage);
+    log.debug("Message taken from Queue");
+
+    return currentMessage;
+  }
+
+  /**
+   * Retrieves/removes a batch of messages, waiting if necessary until the first
+   * message becomes available. Further messages are collected until maxCount messages
+   * or maxBytes decoded bytes are reached, or maxWait ms have elapsed since the first message.
+   * The message exceeding maxBytes is the last message of the batch, so a large message
+   * is always processed alone.
+   * 
+   * @param maxCount maximum number of messages in the batch
+   * @param maxBytes decoded bytes after which no further message is added to the batch
+   * @param maxWait maximum time in ms to wait for further messages after the first one
+   * @return at least one message, each has to be acknowledged after processing,
+   *         an empty list if the queue is shut down
+   * @throws InterruptedException
+   */
+  public List<QueuedMessage> popMessages(int maxCount, long maxBytes, long maxWait) throws InterruptedException {
+    List<QueuedMessage> messages = new ArrayList<QueuedMessage>();
+
+    QueuedMessage currentMessage = fileMessages.take();
+    if (currentMessage == null) {
+      log.debug("Queue is shut down, no message taken");
+      return messages;
+    }
+    return collectBatch(messages, currentMessage, maxCount, maxBytes, maxWait);
+  }
+
+  /**
+   * Like popMessages, but waits at most idleTimeout ms for the first message,
+   * so an idle worker can check whether it has to finish
+   * 
+   * @param maxCount maximum number of messages in the batch
+   * @param maxBytes decoded bytes after which no further message is added to the batch
+   * @param maxWait maximum time in ms to wait for further messages after the first one
+   * @param idleTimeout maximum time in ms to wait for the first message
+   * @return the batch, an empty list if the queue is shut down or null if no message
+   *         arrived within idleTimeout
+   * @throws InterruptedException
+   */
+  public List<QueuedMessage> pollMessages(int maxCount, long maxBytes, long maxWait, long idleTimeout)
+      throws InterruptedException {
+    List<QueuedMessage> messages = new ArrayList<QueuedMessage>();
+
+    QueuedMessage currentMessage = fileMessages.poll(idleTimeout);
+    if (currentMessage == null) {
+      if (fileMessages.isFinished()) {
+        log.debug("Queue is shut down, no message taken");
+        return messages;
+      }
+      return null;
+    }
+    return collectBatch(messages, currentMessage, maxCount, maxBytes, maxWait);
+  }
+
+  private List<QueuedMessage> collectBatch(List<QueuedMessage> messages, QueuedMessage currentMessage,
+      int maxCount, long maxBytes, long maxWait) {
+    prepareTakenMessage(currentMessage);
+    messages.add(currentMessage);
+    long batchBytes = currentMessage.getDecodedSize();
+
+    long deadline = System.currentTimeMillis() + maxWait;
+    while (messages.size() < maxCount && batchBytes < maxBytes) {
+      try {
+        currentMessage = fileMessages.pollBatchMessage(messages.get(0),
+            Math.max(0, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        // the messages already taken are returned, the caller sees the interrupt on its next take
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (currentMessage == null) {
+        break;
+      }
+      prepareTakenMessage(currentMessage);
+      messages.add(currentMessage);
+      batchBytes += currentMessage.getDecodedSize();
+    }
+    log.debug(messages.size() + " messages with " + batchBytes + " bytes taken from Queue");
+
+    return messages;
+  }
+
+  /**
+   * Give the size of the taken message back to the byte budget and
+   * load the payload of a persistent message from its segment
+   * 
+   * @param currentMessage
+   */
+  private void prepareTakenMessage(QueuedMessage currentMessage) {
+    admissionControl.release(currentMessage.getEncodedSize());
+    synchronized (inFlight) {
+      inFlight.add(currentMessage);
+    }
+
+    if (persistentQueue) {
+      try {
+        currentMessage.setPayload(segmentStore.read(currentMessage.getRecord()));
+      } catch (IOException e) {
+        log.error(e.getClass().getName() + " occured on reading message from persistent queue");
+        log.error(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Mark the message as processed, its lane can deliver the next message
+   * and a persistent queue does not deliver it again after a restart
+   * 
+   * @param message message returned by takeMessage, may be null
+   */
+  public void acknowledge(QueuedMessage message) {
+    if (message == null) {
+      return;
+    }
+    fileMessages.completed(message);
+
+    boolean inProcess;
+    synchronized (inFlight) {
+      inProcess = inFlight.remove(message) | committing.remove(message);
+      inFlight.notifyAll();
+    }
+
+    // a checkpointed message is delivered again after the restart
+    if (inProcess && message.getRecord() != null) {
+      segmentStore.acknowledge(message.getRecord());
+    }
+  }
+
+  /**
+   * Called by a worker before committing the documents of the messages, afterwards
+   * the messages are not checkpointed anymore
+   * 
+   * @param messages messages taken by the worker
+   * @return false if the messages were checkpointed during shutdown and must not be committed
+   */
+  public boolean beginCommit(List<QueuedMessage> messages) {
+    synchronized (inFlight) {
+      for (QueuedMessage message : messages) {
+        if (!inFlight.contains(message)) {
+          return false;
+        }
+      }
+      for (QueuedMessage message : messages) {
+        inFlight.remove(message);
+        committing.add(message);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Deliver the remaining messages to the workers, afterwards takeMessage returns null
+   * and popMessages an empty list. No further messages are accepted.
+   */
+  public void shutdown() {
+    log.info("Shutting down queue with " + size() + " queued and " + getInFlightCount()
+        + " documents in process");
+    fileMessages.close();
+  }
+
+  /**
+   * Stop delivering messages and save all messages, which are queued or in flight, for the next start.
+   * A persistent queue keeps them as unacknowledged records in the segment files,
+   * otherwise they are written to 'queueCheckpointFile'. Workers cannot commit checkpointed
+   * messages (see beginCommit), messages already committing are awaited up to commitTimeout ms.
+   * 
+   * @param commitTimeout maximum time in ms to wait for committing documents
+   * @return number of checkpointed messages
+   */
+  public int checkpoint(long commitTimeout) {
+    List<QueuedMessage> checkpointedMessages = fileMessages.stopDelivery();
+    for (QueuedMessage message : checkpointedMessages) {
+      admissionControl.release(message.getEncodedSize());
+    }
+
+    synchronized (inFlight) {
+      checkpointedMessages.addAll(inFlight);
+      inFlight.clear();
+
+      long deadline = System.currentTimeMillis() + commitTimeout;
+      long remaining = commitTimeout;
+      while (!committing.isEmpty() && remaining > 0) {
+        try {
+          inFlight.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+      if (!committing.isEmpty()) {
+        log.info(committing.size() + " documents are still committing after " + commitTimeout
+            + " ms, they are not checkpointed and have to be awaited with awaitCommits");
+      }
+    }
+
+    if (persistentQueue) {
+      log.info(checkpointedMessages.size() + " unacknowledged messages remain in persistent queue for next start");
+      return checkpointedMessages.size();
+    }
+
+    writeCheckpoint(checkpointedMessages);
+    return checkpointedMessages.size();
+  }
+
+  /**
+   * Wait until no worker is committing documents anymore, called before the workers are
+   * interrupted, GATE is unloaded or the segment files are closed. A commit is never cut off,
+   * the waiting is logged every logInterval ms.
+   * 
+   * @param logInterval interval in ms to log the committing documents
+   */
+  public void awaitCommits(long logInterval) {
+    boolean interrupted = false;
+    long waitStart = System.currentTimeMillis();
+    synchronized (inFlight) {
+      while (!committing.isEmpty()) {
+        try {
+          inFlight.wait(Math.max(1, logInterval));
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+        if (!committing.isEmpty()) {
+          log.info("Waiting since " + (System.currentTimeMillis() - waitStart) + " ms for " + committing.size()
+              + " committing documents");
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeCheckpoint(List<QueuedMessage> messages) {
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(checkpointFile)));
+      for (QueuedMessage message : messages) {
+        byte[] payload = message.getPayload();
+        out.writeInt(payload.length);
+        out.write(payload);
+      }
+      log.info("Checkpointed " + messages.size() + " messages to: " + checkpointFile.getAbsolutePath());
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on writing checkpoint: " + checkpointFile.getAbsolutePath());
+      log.error(e.getMessage());
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          log.error(e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return number of messages taken by workers and not acknowledged yet
+   */
+  public int getInFlightCount() {
+    synchronized (inFlight) {
+      return inFlight.size() + committing.size();
+    }
+  }
+
+  /**
+   * @param message message returned by takeMessage
+   * @return false if the message was acknowledged or checkpointed
+   */
+  public boolean isInFlight(QueuedMessage message) {
+    synchronized (inFlight) {
+      return inFlight.contains(message) || committing.contains(message);
+    }
+  }
+
+  /**
+   * @return true after shutdown or checkpoint
+   */
+  public boolean isShutdown() {
+    return fileMessages.isClosed();
+  }
+
+  /**
+   * Close the segment files of a persistent queue
+   */
+  public void close() {
+    if (segmentStore != null) {
+      segmentStore.close();
+    }
+  }
+
   /**
    * Insert the currentMessage in the queue (tail-position)
    * 
@@ -116,9 +686,32 @@ public class MessageFileQueue {
    * @throws NullPointerException
    */
   public boolean pushMessage(String currentMessageString) throws NullPointerException{
+    return pushMessage(currentMessageString, null);
+  }
+
+  /**
+   * Insert the currentMessage in the queue like pushMessage(String)
+   * 
+   * @param currentMessageString the message to add
+   * @param dedupKey key of the IngressDeduplicator, reported by the worker after the commit
+   * @return true if the element was added to this queue, else false
+   * 
+   * @throws NullPointerException
+   */
+  public boolean pushMessage(String currentMessageString, String dedupKey) throws NullPointerException{
     boolean fileOfferd = false;
     try{
-        fileOfferd = fileMessages.offer(currentMessageString);
+      byte[] payload = encodeMessage(currentMessageString);
+      if (payload != null && admissionControl.tryReserve(payload.length)) {
+        try {
+          fileOfferd = enqueue(payload, currentMessageString.length(), dedupKey, false);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (!fileOfferd) {
+          admissionControl.release(payload.length);
+        }
+      }
     }catch(NullPointerException npe){
       log.error("NullpointerException on offer StringMessage to queue occured");
       throw npe;
@@ -126,4 +719,112 @@ public class MessageFileQueue {
     
     return fileOfferd;
   }
+
+  /**
+   * Insert the currentMessage in the queue (tail-position), waiting if necessary
+   * until the byte budget and the free heap space admit the message.
+   * Blocking the caller (the ZeroMQ receive loop) is the backpressure to the sender.
+   * 
+   * @param currentMessageString the message to add
+   * @return true if the element was added to this queue, false if it cannot be stored
+   * @throws InterruptedException
+   */
+  public boolean putMessage(String currentMessageString) throws InterruptedException {
+    return putMessage(currentMessageString, null);
+  }
+
+  /**
+   * Insert the currentMessage in the queue like putMessage(String)
+   * 
+   * @param currentMessageString the message to add
+   * @param dedupKey key of the IngressDeduplicator, reported by the worker after the commit
+   * @return true if the element was added to this queue, false if it cannot be stored
+   * @throws InterruptedException
+   */
+  public boolean putMessage(String currentMessageString, String dedupKey) throws InterruptedException {
+    byte[] payload = encodeMessage(currentMessageString);
+    if (payload == null) {
+      return false;
+    }
+
+    admissionControl.reserve(payload.length);
+    boolean stored = false;
+    try {
+      stored = enqueue(payload, currentMessageString.length(), dedupKey, true);
+    } finally {
+      if (!stored) {
+        admissionControl.release(payload.length);
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * Put the encoded message in the queue, a persistent queue appends it to the
+   * segment files and keeps only its position in the queue
+   * 
+   * @param payload the encoded message to add
+   * @param charLength number of chars of the message
+   * @param dedupKey key of the IngressDeduplicator or null, not persisted
+   * @param wait wait for a free slot if the queue is full
+   * @return true if the message was stored, false if the queue is full or cannot be written
+   * @throws InterruptedException
+   */
+  private boolean enqueue(byte[] payload, int charLength, String dedupKey, boolean wait)
+      throws InterruptedException {
+    if (fileMessages.isClosed()) {
+      log.error("Queue is shut down, message is not added");
+      return false;
+    }
+
+    if (!persistentQueue) {
+      QueuedMessage message = new QueuedMessage(payload);
+      message.setCharLength(charLength);
+      message.setDedupKey(dedupKey);
+      if (wait) {
+        fileMessages.put(message);
+        return true;
+      }
+      return fileMessages.offer(message);
+    }
+
+    synchronized (pushLock) {
+      if (!wait && fileMessages.remainingCapacity() == 0) {
+        return false;
+      }
+
+      try {
+        MappedSegmentStore.Record record = segmentStore.append(payload);
+        QueuedMessage message = new QueuedMessage(null, record, MessageCodec.decodedLength(payload));
+        message.setCharLength(charLength);
+        message.setDedupKey(dedupKey);
+        fileMessages.put(message);
+        return true;
+      } catch (IOException e) {
+        log.error(e.getClass().getName() + " occured on appending message to persistent queue");
+        log.error(e.getMessage());
+      }
+    }
+    return false;
+  }
+
+  private byte[] encodeMessage(String currentMessageString) {
+    if (currentMessageString == null) {
+      throw new NullPointerException();
+    }
+    try {
+      return codec.encode(currentMessageString);
+    } catch (UnsupportedEncodingException e) {
+      log.error("Cannot encode message as UTF-8");
+      log.error(e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return bytes of all messages currently waiting in the queue
+   */
+  public long getQueuedBytes() {
+    return admissionControl.getQueuedBytes();
+  }
 }
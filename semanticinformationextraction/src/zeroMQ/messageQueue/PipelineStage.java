@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import performance.LatencyHistogram;
+
+/**
+ * One stage of the StagedPipelineWorker: a bounded inbox and one thread per handler.
+ * Each handler is only called by its own thread, so a handler can own resources like
+ * Gate-Applications. A full inbox blocks the previous stage (back-pressure), so at most
+ * 'capacity' items wait in front of a stage.
+ *
+ * The stage records the wait time in the inbox, the service time of the handlers,
+ * the time the previous stage was blocked by the full inbox, the inbox depth and the
+ * utilization of the threads since the last call of getStatistics.
+ *
+ * @author lgredel
+ *
+ * @param <T> item passed through the stages
+ */
+public class PipelineStage<T> {
+  private static Logger log = Logger.getLogger(PipelineStage.class);
+
+  // poll timeout of the stage threads to check for the end of the stage
+  private static final long POLL_TIMEOUT = 100;
+
+  private final String name;
+  private final int capacity;
+  private final BlockingQueue<StageEntry<T>> inbox;
+  private final List<Thread> threads = new ArrayList<Thread>();
+  private final CountDownLatch terminated;
+  private volatile boolean finished = false;
+
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final LatencyHistogram waitTimes = new LatencyHistogram();
+  private final LatencyHistogram serviceTimes = new LatencyHistogram();
+  private final LatencyHistogram blockedTimes = new LatencyHistogram();
+  private int maxQueueDepth = 0;
+
+  // busy time of finished items and start of the current item (0 = idle) per thread in ns
+  private final AtomicLongArray completedBusy;
+  private final AtomicLongArray busySince;
+  private long lastStatisticsTime = System.nanoTime();
+  private long lastStatisticsBusy = 0;
+
+  /**
+   * Processes the items of a stage
+   *
+   * @param <T>
+   */
+  public interface Handler<T> {
+    /**
+     * Process the item and hand it to the next stage. The handler has to release the
+     * item on failure, exceptions are only logged by the stage.
+     *
+     * @param item
+     * @return false if the item failed
+     * @throws InterruptedException if the stage is interrupted while waiting for the next stage
+     */
+    boolean process(T item) throws InterruptedException;
+  }
+
+  /**
+   * @param name name of the stage, used for the threads and the statistics
+   * @param capacity maximum number of items waiting in the inbox
+   * @param handlers one thread is started for each handler
+   */
+  public PipelineStage(String name, int capacity, List<? extends Handler<T>> handlers) {
+    super();
+    this.name = name;
+    this.capacity = Math.max(1, capacity);
+    this.inbox = new ArrayBlockingQueue<StageEntry<T>>(this.capacity);
+    this.terminated = new CountDownLatch(handlers.size());
+    this.completedBusy = new AtomicLongArray(handlers.size());
+    this.busySince = new AtomicLongArray(handlers.size());
+
+    for (int i = 0; i < handlers.size(); i++) {
+      threads.add(new StageThread(handlers.get(i), i));
+    }
+  }
+
+  public void start() {
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    log.info("Started stage " + name + " with " + threads.size() + " threads and inbox capacity " + capacity);
+  }
+
+  /**
+   * Hand an item to the stage, waiting while the inbox is full
+   *
+   * @param item
+   * @throws InterruptedException
+   */
+  public void put(T item) throws InterruptedException {
+    long start = System.nanoTime();
+    inbox.put(new StageEntry<T>(item, start));
+    blockedTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+    int queueDepth = inbox.size();
+    synchronized (this) {
+      maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+    }
+  }
+
+  /**
+   * No further items are put, the threads finish after the inbox is empty
+   */
+  public void finish() {
+    finished = true;
+  }
+
+  /**
+   * @param timeout maximum wait time in ms
+   * @return true if all threads of the stage finished
+   * @throws InterruptedException
+   */
+  public boolean awaitTermination(long timeout) throws InterruptedException {
+    return terminated.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the threads without processing the items left in the inbox
+   */
+  public void interrupt() {
+    finished = true;
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * @return the items left in the inbox of an interrupted stage, removed from the inbox
+   */
+  public List<T> drainInbox() {
+    List<StageEntry<T>> entries = new ArrayList<StageEntry<T>>();
+    inbox.drainTo(entries);
+
+    List<T> items = new ArrayList<T>();
+    for (StageEntry<T> entry : entries) {
+      items.add(entry.item);
+    }
+    return items;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getThreadCount() {
+    return threads.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getQueueDepth() {
+    return inbox.size();
+  }
+
+  public synchronized int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  public long getProcessedCount() {
+    return processed.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * @return wait times in ms of the items in the inbox
+   */
+  public LatencyHistogram getWaitTimes() {
+    return waitTimes;
+  }
+
+  /**
+   * @return processing times in ms of the handlers
+   */
+  public LatencyHistogram getServiceTimes() {
+    return serviceTimes;
+  }
+
+  /**
+   * @return times in ms the previous stage waited for space in the inbox
+   */
+  public LatencyHistogram getBlockedTimes() {
+    return blockedTimes;
+  }
+
+  /**
+   * Busy time of all threads divided by the elapsed time of all threads since the last call,
+   * the first call refers to the creation of the stage
+   *
+   * @return utilization between 0 and 1
+   */
+  public synchronized double getUtilization() {
+    long now = System.nanoTime();
+    long busy = 0;
+    for (int i = 0; i < threads.size(); i++) {
+      busy += completedBusy.get(i);
+      long since = busySince.get(i);
+      if (since != 0) {
+        busy += now - since;
+      }
+    }
+
+    long elapsed = (now - lastStatisticsTime) * threads.size();
+    double utilization = (elapsed > 0) ? (double) (busy - lastStatisticsBusy) / (double) elapsed : 0.0;
+    lastStatisticsTime = now;
+    lastStatisticsBusy = busy;
+    return Math.max(0.0, Math.min(1.0, utilization));
+  }
+
+  /**
+   * @return utilization since the last call, inbox depth and times of the stage
+   */
+  public String getStatistics() {
+    return "Stage " + name + " - threads: " + threads.size() + " utilization: "
+        + String.format("%.2f", getUtilization()) + " queue depth: " + getQueueDepth() + "/" + capacity
+        + " max: " + getMaxQueueDepth() + " processed: " + getProcessedCount() + " failed: "
+        + getFailedCount() + "\n  wait time (ms) " + waitTimes + "\n  service time (ms) " + serviceTimes
+        + "\n  blocked previous stage (ms) " + blockedTimes;
+  }
+
+  private class StageThread extends Thread {
+    private final Handler<T> handler;
+    private final int threadNo;
+
+    StageThread(Handler<T> handler, int threadNo) {
+      super(name + "_" + threadNo);
+      this.handler = handler;
+      this.threadNo = threadNo;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          StageEntry<T> entry = inbox.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+          if (entry == null) {
+            if (finished) {
+              break;
+            }
+            continue;
+          }
+
+          long start = System.nanoTime();
+          waitTimes.record(TimeUnit.NANOSECONDS.toMillis(start - entry.enqueued));
+          busySince.set(threadNo, start);
+          try {
+            if (handler.process(entry.item)) {
+              processed.incrementAndGet();
+            } else {
+              failed.incrementAndGet();
+            }
+          } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.error(e.getClass().getName() + " occured in stage " + name);
+            log.error(e.getMessage());
+          } finally {
+            long serviceTime = System.nanoTime() - start;
+            busySince.set(threadNo, 0);
+            completedBusy.addAndGet(threadNo, serviceTime);
+            serviceTimes.record(TimeUnit.NANOSECONDS.toMillis(serviceTime));
+          }
+        }
+      } catch (InterruptedException e) {
+        log.info("Thread " + getName() + " of stage " + name + " interrupted");
+      } finally {
+        terminated.countDown();
+      }
+      log.trace("End of run-Method in stage thread: " + getName());
+    }
+  }
+
+  private static class StageEntry<T> {
+    private final T item;
+    private final long enqueued;
+
+    StageEntry(T item, long enqueued) {
+      this.item = item;
+      this.enqueued = enqueued;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Keeps documents which exceeded the deadline of a Gate-Application out of the queue.
+ * Each document is written as gate-xml to 'quarantineDirectory' with a .profile file
+ * containing the stage, the deadline, the execution times and the stack of the interrupted thread.
+ * Quarantined documents are not processed again automatically.
+ *
+ * @author lgredel
+ *
+ */
+public class QuarantineStore {
+  private static Logger log = Logger.getLogger(QuarantineStore.class);
+
+  private static QuarantineStore INSTANCE;
+
+  private final File quarantineDir;
+  private long sequenceNo = 0;
+
+  private QuarantineStore() throws IOException {
+    quarantineDir = new File(GlobalParameters.loadConfigFile().getProperty("quarantineDirectory", "quarantine"));
+    if (!quarantineDir.exists() && !quarantineDir.mkdirs()) {
+      throw new IOException("Cannot create quarantine directory: " + quarantineDir.getAbsolutePath());
+    }
+  }
+
+  public static synchronized QuarantineStore getInstance() throws IOException {
+    if (INSTANCE == null) {
+      INSTANCE = new QuarantineStore();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * Write the message and its profile, the caller acknowledges the message afterwards
+   *
+   * @param message
+   * @param profile timing profile of the failed execution
+   * @return the written message file
+   * @throws IOException
+   */
+  public synchronized File quarantine(QueuedMessage message, Properties profile) throws IOException {
+    String name = System.currentTimeMillis() + "_" + (sequenceNo++);
+    File messageFile = new File(quarantineDir, name + ".xml");
+    File profileFile = new File(quarantineDir, name + ".profile");
+
+    profile.setProperty("decodedSize", String.valueOf(message.getDecodedSize()));
+    profile.setProperty("enqueueTime", String.valueOf(message.getEnqueueTime()));
+    profile.setProperty("quarantineTime", String.valueOf(System.currentTimeMillis()));
+    profile.setProperty("worker", Thread.currentThread().getName());
+
+    InputStream in = message.openStream();
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(messageFile);
+      IOUtils.copy(in, out);
+    } finally {
+      IOUtils.closeQuietly(out);
+      in.close();
+    }
+
+    out = new FileOutputStream(profileFile);
+    try {
+      profile.store(out, "Profile of quarantined document " + messageFile.getName());
+    } finally {
+      out.close();
+    }
+
+    log.info("Quarantined document in " + messageFile.getAbsolutePath());
+    return messageFile;
+  }
+}
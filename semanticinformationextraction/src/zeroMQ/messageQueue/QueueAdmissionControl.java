@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import utils.MemoryManager;
+
+/**
+ * Admission control of the MessageFileQueue based on the number of queued bytes
+ * and the free heap space.
+ *
+ * A message is admitted if the queued bytes stay below maxQueuedBytes and the
+ * free heap after the last collection stays above minFreeHeapBytes. An empty queue always admits one message,
+ * otherwise a single message above the budget would block the receiver forever.
+ *
+ * @author lgredel
+ *
+ */
+public class QueueAdmissionControl {
+  private static Logger log = Logger.getLogger(QueueAdmissionControl.class);
+
+  // log a waiting producer every 10 seconds
+  private static final long WAIT_LOG_INTERVAL = 10 * 1000;
+
+  private final long maxQueuedBytes;
+  private final long minFreeHeapBytes;
+  private final long recheckInterval;
+
+  private long queuedBytes = 0;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition spaceAvailable = lock.newCondition();
+
+  /**
+   * @param maxQueuedBytes maximum number of bytes held by queued messages
+   * @param minFreeHeapBytes free heap space which has to remain after admitting a message
+   * @param recheckInterval interval in ms to recheck the heap while waiting for dequeued messages
+   */
+  public QueueAdmissionControl(long maxQueuedBytes, long minFreeHeapBytes, long recheckInterval) {
+    super();
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.minFreeHeapBytes = minFreeHeapBytes;
+    this.recheckInterval = recheckInterval;
+  }
+
+  /**
+   * Reserve the size of a message in the budget, waiting until enough bytes
+   * have been dequeued and the heap has enough headroom
+   *
+   * @param size size of the message in bytes
+   * @throws InterruptedException
+   */
+  public void reserve(long size) throws InterruptedException {
+    long waitStart = System.currentTimeMillis();
+    long lastLog = waitStart;
+
+    lock.lockInterruptibly();
+    try {
+      while (!admits(size)) {
+        spaceAvailable.await(recheckInterval, TimeUnit.MILLISECONDS);
+
+        long now = System.currentTimeMillis();
+        if (now - lastLog >= WAIT_LOG_INTERVAL) {
+          log.info("Queue is full, waiting since " + (now - waitStart) + " ms to add message with size: "
+              + size + " (queued bytes: " + queuedBytes + ", free heap: " + freeHeap() + ")");
+          lastLog = now;
+        }
+      }
+      queuedBytes += size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reserve the size of a message in the budget without waiting
+   *
+   * @param size size of the message in bytes
+   * @return true if the message is admitted, else false
+   */
+  public boolean tryReserve(long size) {
+    lock.lock();
+    try {
+      if (!admits(size)) {
+        return false;
+      }
+      queuedBytes += size;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add the size of a message to the budget without checking the limits,
+   * used for messages recovered from a persistent queue
+   *
+   * @param size size of the message in bytes
+   */
+  public void reserveUnconditionally(long size) {
+    lock.lock();
+    try {
+      queuedBytes += size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Give the size of a dequeued message back to the budget
+   *
+   * @param size size of the message in bytes
+   */
+  public void release(long size) {
+    lock.lock();
+    try {
+      queuedBytes = Math.max(0, queuedBytes - size);
+      spaceAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getQueuedBytes() {
+    lock.lock();
+    try {
+      return queuedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxQueuedBytes() {
+    return maxQueuedBytes;
+  }
+
+  private boolean admits(long size) {
+    if (queuedBytes == 0) {
+      return true;
+    }
+
+    if (queuedBytes + size > maxQueuedBytes) {
+      return false;
+    }
+
+    return freeHeap() - size >= minFreeHeapBytes;
+  }
+
+  /**
+   * @return heap space, which can still be allocated until maxMemory is reached,
+   *         garbage left since the last collection is not counted as used
+   */
+  private static long freeHeap() {
+    return MemoryManager.getFreeHeapAfterCollection();
+  }
+}
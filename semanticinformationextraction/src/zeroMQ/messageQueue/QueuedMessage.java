@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A message of the MessageFileQueue.
+ * The message is kept as encoded block (see MessageCodec) and decoded
+ * only when the worker asks for it.
+ *
+ * A message taken from the queue must be given back with MessageFileQueue.acknowledge
+ * after processing, otherwise a persistent queue delivers the message again after a restart.
+ *
+ * @author lgredel
+ *
+ */
+public class QueuedMessage {
+
+  private byte[] payload = null;
+  private MappedSegmentStore.Record record = null;
+  private int decodedSize;
+  // number of chars of the message, -1 until known
+  private int charLength = -1;
+  private String digest = null;
+  // key of the IngressDeduplicator, only known for messages received in this run
+  private String dedupKey = null;
+
+  /* set by the SizeLaneQueue */
+  private long sequenceNo = 0;
+  private long enqueueTime = 0;
+  private SizeLaneQueue.WorkerSlot workerSlot = null;
+
+  public QueuedMessage(byte[] payload) {
+    this(payload, null, MessageCodec.decodedLength(payload));
+  }
+
+  QueuedMessage(byte[] payload, MappedSegmentStore.Record record, int decodedSize) {
+    super();
+    this.payload = payload;
+    this.record = record;
+    this.decodedSize = decodedSize;
+  }
+
+  /**
+   * Decode the message, the decoded String is not cached
+   *
+   * @return the gate-xml message
+   * @throws IOException if the message block is corrupt
+   */
+  public String getMessageString() throws IOException {
+    return MessageCodec.decode(payload);
+  }
+
+  /**
+   * Stream the UTF-8 bytes of the message without decoding it to a String
+   *
+   * @return stream of the gate-xml message, has to be closed by the caller
+   * @throws IOException if the message block is corrupt
+   */
+  public InputStream openStream() throws IOException {
+    return MessageCodec.openStream(payload);
+  }
+
+  /**
+   * The digest identifies the content of a message, a message delivered again has the same
+   * digest, a document re-sent with changed content has another one
+   *
+   * @return hex SHA-1 hash of the decoded message, computed on the first call
+   * @throws IOException if the message block is corrupt
+   */
+  public synchronized String getDigest() throws IOException {
+    if (digest != null) {
+      return digest;
+    }
+
+    MessageDigest messageDigest = null;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+
+    InputStream in = openStream();
+    try {
+      byte[] buffer = new byte[8192];
+      int read = 0;
+      while ((read = in.read(buffer)) != -1) {
+        messageDigest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : messageDigest.digest()) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    digest = hex.toString();
+    return digest;
+  }
+
+  /**
+   * @return size of the encoded message in bytes
+   */
+  public int getEncodedSize() {
+    if (payload != null) {
+      return payload.length;
+    }
+    return record.getLength();
+  }
+
+  /**
+   * @return number of UTF-8 bytes of the decoded message
+   */
+  public int getDecodedSize() {
+    return decodedSize;
+  }
+
+  /**
+   * The number of chars is compared with 'maxMessageLength' like in the receiver, a document
+   * with umlauts has more UTF-8 bytes than chars. The length is set when the message is queued,
+   * for a message recovered from the persistent queue or the checkpoint it is counted on the
+   * UTF-8 bytes without decoding the message.
+   *
+   * @return number of chars of the decoded message
+   * @throws IOException if the message block is corrupt
+   */
+  public synchronized int getCharLength() throws IOException {
+    if (charLength >= 0) {
+      return charLength;
+    }
+
+    int length = 0;
+    InputStream in = openStream();
+    try {
+      byte[] buffer = new byte[8192];
+      int read = 0;
+      while ((read = in.read(buffer)) != -1) {
+        for (int i = 0; i < read; i++) {
+          int b = buffer[i] & 0xFF;
+          // continuation bytes do not start a char, 4 byte sequences are surrogate pairs
+          if ((b & 0xC0) != 0x80) {
+            length += (b >= 0xF0) ? 2 : 1;
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    charLength = length;
+    return charLength;
+  }
+
+  /**
+   * @return key of the IngressDeduplicator or null if the message was not checked
+   */
+  public String getDedupKey() {
+    return dedupKey;
+  }
+
+  /**
+   * @return time in ms when the message was put in the queue
+   */
+  public long getEnqueueTime() {
+    return enqueueTime;
+  }
+
+  byte[] getPayload() {
+    return payload;
+  }
+
+  void setPayload(byte[] payload) {
+    this.payload = payload;
+  }
+
+  MappedSegmentStore.Record getRecord() {
+    return record;
+  }
+
+  void setCharLength(int charLength) {
+    this.charLength = charLength;
+  }
+
+  void setDedupKey(String dedupKey) {
+    this.dedupKey = dedupKey;
+  }
+
+  void setEnqueueTime(long enqueueTime) {
+    this.enqueueTime = enqueueTime;
+  }
+
+  long getSequenceNo() {
+    return sequenceNo;
+  }
+
+  void setSequenceNo(long sequenceNo) {
+    this.sequenceNo = sequenceNo;
+  }
+
+  SizeLaneQueue.WorkerSlot getWorkerSlot() {
+    return workerSlot;
+  }
+
+  void setWorkerSlot(SizeLaneQueue.WorkerSlot workerSlot) {
+    this.workerSlot = workerSlot;
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import gate.CorpusController;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.ResourceInstantiationException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import performance.PerformanceMeasurement;
+import preprocessing.PreprocessingApplication;
+import utils.ControllerPool;
+import utils.GateInitSingleton;
+import utils.SharedResources;
+import classification.SentimentClassification;
+
+/**
+ * Runs the segments of an oversized document through preprocessing and classification
+ * in parallel. Each segment uses a copy of the Gate-Applications: the applications of the
+ * worker or one of 'parallelism' - 1 copies shared by all workers, which are duplicated on the
+ * first segmented document and deleted when the last worker closes its processor. Workers of
+ * pooled controllers check out the controllers for each segment instead.
+ *
+ * At most 'parallelism' segment documents are loaded at the same time, the processed
+ * segments are handed to the SegmentHandler in the calling thread in the order of the
+ * segments and unloaded afterwards. The aggregation in the database stays in the worker
+ * thread, because the DatabaseFacade holds one hibernate session.
+ *
+ * @author lgredel
+ *
+ */
+public class SegmentedDocumentProcessor {
+  private static Logger log = Logger.getLogger(SegmentedDocumentProcessor.class);
+
+  private static final long SHARED_POLL_INTERVAL = 50;
+
+  // duplicated applications shared by the workers and the number of processors using them
+  private static final Object sharedLock = new Object();
+  private static BlockingQueue<SegmentApplications> sharedApplications = null;
+  private static List<SegmentApplications> duplicatedApplications = new ArrayList<SegmentApplications>();
+  private static int sharedUsers = 0;
+
+  private final CorpusController preprocessingGateApp;
+  private final CorpusController classificationGateApp;
+  private final ControllerPool preprocessingPool;
+  private final ControllerPool classificationPool;
+  private final int parallelism;
+  private final String name;
+  private PerformanceMeasurement timeMeasurement = null;
+
+  private ExecutorService executor = null;
+  private int segmentThreads = 0;
+  private BlockingQueue<SegmentApplications> idleApplications = null;
+  private BlockingQueue<SegmentApplications> sharedQueue = null;
+
+  /**
+   * Receives the processed segments in the worker thread
+   */
+  public interface SegmentHandler {
+    /**
+     * @param segmentDoc preprocessed segment, classified if it contains a SO annotation
+     * @param offset start of the segment in the complete document
+     * @throws Exception
+     */
+    void segmentProcessed(Document segmentDoc, long offset) throws Exception;
+  }
+
+  /**
+   * @param preprocessingGateApp preprocessing application of the worker
+   * @param classificationGateApp classification application of the worker
+   * @param parallelism number of segments processed at the same time
+   * @param name name of the worker, used for the segment threads
+   */
+  public SegmentedDocumentProcessor(CorpusController preprocessingGateApp,
+      CorpusController classificationGateApp, int parallelism, String name) {
+    super();
+    this.preprocessingGateApp = preprocessingGateApp;
+    this.classificationGateApp = classificationGateApp;
+    this.preprocessingPool = null;
+    this.classificationPool = null;
+    this.parallelism = Math.max(1, parallelism);
+    this.name = name;
+  }
+
+  /**
+   * The segment threads check out the controllers of the pools for each execution,
+   * no applications are duplicated
+   *
+   * @param preprocessingPool
+   * @param classificationPool
+   * @param parallelism number of segments processed at the same time
+   * @param name name of the worker, used for the segment threads
+   */
+  public SegmentedDocumentProcessor(ControllerPool preprocessingPool, ControllerPool classificationPool,
+      int parallelism, String name) {
+    super();
+    this.preprocessingGateApp = null;
+    this.classificationGateApp = null;
+    this.preprocessingPool = preprocessingPool;
+    this.classificationPool = classificationPool;
+    this.parallelism = Math.max(1, parallelism);
+    this.name = name;
+  }
+
+  public void setTimeMeasurement(PerformanceMeasurement timeMeasurement) {
+    this.timeMeasurement = timeMeasurement;
+  }
+
+  /**
+   * Process all segments of the text, if a segment fails the remaining segments
+   * are not processed
+   *
+   * @param text document text
+   * @param segments start and end offset of each segment, see DocumentSegmenter.split
+   * @param documentFeatures features of the complete document, copied to each segment
+   * @param handler
+   * @throws Exception of the failed segment or the handler
+   */
+  public void process(String text, List<int[]> segments, FeatureMap documentFeatures, SegmentHandler handler)
+      throws Exception {
+    initApplications();
+
+    LinkedList<Future<Document>> runningSegments = new LinkedList<Future<Document>>();
+    int nextSegment = 0;
+    int handledSegment = 0;
+
+    try {
+      while (nextSegment < segments.size() && runningSegments.size() < segmentThreads) {
+        runningSegments.add(submit(text, segments, nextSegment++, documentFeatures));
+      }
+
+      while (!runningSegments.isEmpty()) {
+        Document segmentDoc = awaitSegment(runningSegments.removeFirst());
+        try {
+          handler.segmentProcessed(segmentDoc, segments.get(handledSegment)[0]);
+        } finally {
+          GateInitSingleton.unloadGateResources(segmentDoc);
+        }
+        handledSegment++;
+
+        if (nextSegment < segments.size()) {
+          runningSegments.add(submit(text, segments, nextSegment++, documentFeatures));
+        }
+      }
+    } finally {
+      // failed document: wait for the segments in process and unload them
+      for (Future<Document> runningSegment : runningSegments) {
+        try {
+          GateInitSingleton.unloadGateResources(awaitSegment(runningSegment));
+        } catch (Exception e) {
+          log.debug(e.getClass().getName() + " occured on segment of failed document");
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop the segment threads, the shared applications are unloaded by the last processor
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    if (sharedQueue == null) {
+      return;
+    }
+    sharedQueue = null;
+
+    synchronized (sharedLock) {
+      if (--sharedUsers > 0) {
+        return;
+      }
+      for (SegmentApplications applications : duplicatedApplications) {
+        Factory.deleteResource(applications.preprocessingGateApp);
+        Factory.deleteResource(applications.classificationGateApp);
+      }
+      duplicatedApplications.clear();
+      sharedApplications = null;
+    }
+  }
+
+  private Future<Document> submit(final String text, final List<int[]> segments, final int segmentNo,
+      final FeatureMap documentFeatures) {
+    return executor.submit(new Callable<Document>() {
+      @Override
+      public Document call() throws Exception {
+        int[] segment = segments.get(segmentNo);
+        return processSegment(text.substring(segment[0], segment[1]), segmentNo, segment[0], documentFeatures);
+      }
+    });
+  }
+
+  private Document processSegment(String segmentText, int segmentNo, long offset, FeatureMap documentFeatures)
+      throws Exception {
+    SegmentApplications applications = takeApplications();
+    try {
+      FeatureMap params = Factory.newFeatureMap();
+      params.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, segmentText);
+      params.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, "text/plain");
+
+      FeatureMap features = Factory.newFeatureMap();
+      features.putAll(documentFeatures);
+      features.put("SegmentNo", Integer.valueOf(segmentNo));
+      features.put("SegmentOffset", Long.valueOf(offset));
+
+      Document segmentDoc = (Document) Factory.createResource("gate.corpora.DocumentImpl", params, features,
+          name + "_Segment_" + segmentNo);
+
+      long start = System.currentTimeMillis();
+      // unloads the segment on failure
+      applications.preprocessing.executeDocument(segmentDoc);
+
+      if (segmentDoc.getAnnotations().getAllTypes().contains("SO")) {
+        try {
+          applications.classification.executeApplication(segmentDoc);
+        } catch (Exception e) {
+          GateInitSingleton.unloadGateResources(segmentDoc);
+          throw e;
+        }
+      }
+      log.info("Processed segment " + segmentNo + " with " + segmentText.length() + " chars at offset " + offset
+          + " in " + (System.currentTimeMillis() - start) + " ms");
+
+      return segmentDoc;
+    } finally {
+      if (applications.shared) {
+        sharedQueue.put(applications);
+      } else {
+        idleApplications.put(applications);
+      }
+    }
+  }
+
+  /*
+   * The own applications of the worker or a shared copy, whichever is idle first
+   */
+  private SegmentApplications takeApplications() throws InterruptedException {
+    if (sharedQueue == null) {
+      return idleApplications.take();
+    }
+    while (true) {
+      SegmentApplications applications = idleApplications.poll();
+      if (applications == null) {
+        applications = sharedQueue.poll(SHARED_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+      }
+      if (applications != null) {
+        return applications;
+      }
+    }
+  }
+
+  private Document awaitSegment(Future<Document> runningSegment) throws Exception {
+    try {
+      return runningSegment.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /*
+   * The shared applications are duplicated on the first segmented document,
+   * without oversized documents the memory is not needed
+   */
+  private void initApplications() {
+    if (idleApplications != null) {
+      return;
+    }
+
+    idleApplications = new ArrayBlockingQueue<SegmentApplications>(parallelism);
+    if (preprocessingPool != null) {
+      for (int i = 0; i < parallelism; i++) {
+        idleApplications.add(new SegmentApplications(new PreprocessingApplication(preprocessingPool),
+            new SentimentClassification(classificationPool)));
+      }
+      segmentThreads = parallelism;
+    } else {
+      idleApplications.add(new SegmentApplications(preprocessingGateApp, classificationGateApp, false));
+      segmentThreads = 1 + joinSharedApplications();
+    }
+    log.info(name + " processes segments of oversized documents with " + segmentThreads + " threads");
+
+    executor = Executors.newFixedThreadPool(segmentThreads, new ThreadFactory() {
+      private int threadNo = 0;
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "_Segment_" + threadNo++);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /*
+   * Duplicate the shared applications if no other processor did
+   *
+   * @return number of shared applications
+   */
+  private int joinSharedApplications() {
+    if (parallelism == 1) {
+      return 0;
+    }
+
+    synchronized (sharedLock) {
+      if (sharedApplications == null) {
+        sharedApplications = new ArrayBlockingQueue<SegmentApplications>(parallelism - 1);
+        for (int i = 1; i < parallelism; i++) {
+          try {
+            SegmentApplications applications = new SegmentApplications(
+                SharedResources.duplicate(preprocessingGateApp),
+                SharedResources.duplicate(classificationGateApp), true);
+            duplicatedApplications.add(applications);
+            sharedApplications.add(applications);
+          } catch (ResourceInstantiationException e) {
+            log.error(e.getClass().getName() + " occured on duplicating shared applications for segment thread "
+                + i);
+            log.error(e.getMessage());
+            break;
+          }
+        }
+        log.info("Duplicated " + duplicatedApplications.size()
+            + " pairs of Gate-Applications shared by the segment threads of all workers");
+      }
+      sharedUsers++;
+      sharedQueue = sharedApplications;
+      return duplicatedApplications.size();
+    }
+  }
+
+  /**
+   * Gate-Applications used by one segment thread
+   */
+  private class SegmentApplications {
+    private final CorpusController preprocessingGateApp;
+    private final CorpusController classificationGateApp;
+    private final PreprocessingApplication preprocessing;
+    private final SentimentClassification classification;
+    private final boolean shared;
+
+    SegmentApplications(CorpusController preprocessingGateApp, CorpusController classificationGateApp,
+        boolean shared) {
+      this.shared = shared;
+      this.preprocessingGateApp = preprocessingGateApp;
+      this.classificationGateApp = classificationGateApp;
+      this.preprocessing = new PreprocessingApplication(preprocessingGateApp);
+      this.classification = new SentimentClassification(classificationGateApp);
+      this.preprocessing.setTimeMeasurement(timeMeasurement);
+      this.classification.setTimeMeasurement(timeMeasurement);
+    }
+
+    /*
+     * Applications of pooled controllers
+     */
+    SegmentApplications(PreprocessingApplication preprocessing, SentimentClassification classification) {
+      this.shared = false;
+      this.preprocessingGateApp = null;
+      this.classificationGateApp = null;
+      this.preprocessing = preprocessing;
+      this.classification = classification;
+      this.preprocessing.setTimeMeasurement(timeMeasurement);
+      this.classification.setTimeMeasurement(timeMeasurement);
+    }
+  }
+}
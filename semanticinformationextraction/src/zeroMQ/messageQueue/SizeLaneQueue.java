@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import performance.LatencyHistogram;
+
+/**
+ * Blocking queue of the MessageFileQueue, which sorts the messages by their
+ * decoded size into the lanes small, medium and large.
+ *
+ * Each lane has a worker share in percent of all workers. The medium and large lane
+ * may occupy at most their share of the workers, so huge documents cannot block
+ * all workers, the small lane may use every idle worker. A worker takes from the
+ * non-empty lane with the lowest number of workers in process relative to its share.
+ * A batch occupies one worker of its lane, its further messages are taken from the
+ * same lane with pollBatchMessage.
+ *
+ * Inside a lane the smallest message is taken first (shortest job first),
+ * a message waiting longer than maxLaneWait is taken before smaller ones. Both orders are
+ * sorted sets, so a message is removed from the other order in logarithmic time.
+ *
+ * After close the queue delivers the remaining messages and then returns null to the
+ * workers, after stopDelivery it returns null immediately.
+ *
+ * @author lgredel
+ *
+ */
+public class SizeLaneQueue {
+  private static Logger log = Logger.getLogger(SizeLaneQueue.class);
+
+  public static final String[] LANE_NAMES = { "small", "medium", "large" };
+
+  private final Lane[] lanes;
+  private final int capacity;
+  private final long maxLaneWait;
+  private final int statisticsInterval;
+
+  private int count = 0;
+  private int workerCount;
+  private long sequence = 0;
+  private long takenMessages = 0;
+  private boolean closed = false;
+  private boolean deliveryStopped = false;
+  private LatencyHistogram recentWaitTimes = new LatencyHistogram();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  /**
+   * @param capacity maximum number of queued messages
+   * @param smallMaxSize largest decoded size in bytes of the small lane
+   * @param mediumMaxSize largest decoded size in bytes of the medium lane
+   * @param laneShares worker share in percent of the small, medium and large lane
+   * @param workerCount number of workers taking from the queue
+   * @param maxLaneWait wait time in ms after which a message is taken regardless of its size
+   * @param statisticsInterval log the wait times of the lanes every statisticsInterval messages
+   */
+  public SizeLaneQueue(int capacity, long smallMaxSize, long mediumMaxSize, int[] laneShares,
+      int workerCount, long maxLaneWait, int statisticsInterval) {
+    super();
+    this.capacity = capacity;
+    this.workerCount = Math.max(1, workerCount);
+    this.maxLaneWait = maxLaneWait;
+    this.statisticsInterval = statisticsInterval;
+
+    lanes = new Lane[] { new Lane(LANE_NAMES[0], smallMaxSize, laneShares[0], false),
+        new Lane(LANE_NAMES[1], mediumMaxSize, laneShares[1], true),
+        new Lane(LANE_NAMES[2], Long.MAX_VALUE, laneShares[2], true) };
+  }
+
+  /**
+   * Insert the message in its lane, waiting if the queue is full
+   *
+   * @param message
+   * @throws InterruptedException
+   */
+  public void put(QueuedMessage message) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count >= capacity) {
+        notFull.await();
+      }
+      insert(message);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Insert the message in its lane
+   *
+   * @param message
+   * @return false if the queue is full
+   */
+  public boolean offer(QueuedMessage message) {
+    lock.lock();
+    try {
+      if (count >= capacity) {
+        return false;
+      }
+      insert(message);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Insert the message regardless of the capacity, used for recovered messages
+   *
+   * @param message
+   */
+  public void add(QueuedMessage message) {
+    lock.lock();
+    try {
+      insert(message);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Retrieves/removes the next message according to the lane shares,
+   * waiting if no lane can deliver a message
+   *
+   * @return the next message to process, completed has to be called after processing
+   * @throws InterruptedException
+   */
+  public QueuedMessage take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (true) {
+        if (deliveryStopped || (closed && count == 0)) {
+          return null;
+        }
+        Lane lane = selectLane();
+        if (lane != null) {
+          return remove(lane, null);
+        }
+        notEmpty.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Retrieves/removes the next message according to the lane shares,
+   * waiting up to timeout ms if no lane can deliver a message
+   *
+   * @param timeout maximum wait time in ms
+   * @return the next message to process or null if the timeout elapsed or the queue is closed,
+   *         completed has to be called after processing
+   * @throws InterruptedException
+   */
+  public QueuedMessage poll(long timeout) throws InterruptedException {
+    long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (true) {
+        if (deliveryStopped || (closed && count == 0)) {
+          return null;
+        }
+        Lane lane = selectLane();
+        if (lane != null) {
+          return remove(lane, null);
+        }
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Retrieves/removes a further message of the batch started with first, waiting up to
+   * timeout ms. The message is taken from the lane of first and shares its worker,
+   * so a batch never occupies more than one worker of a lane.
+   *
+   * @param first first message of the batch, returned by take or poll
+   * @param timeout maximum wait time in ms
+   * @return the next message of the batch or null if the timeout elapsed, the queue is closed
+   *         or first is completed already, completed has to be called after processing
+   * @throws InterruptedException
+   */
+  public QueuedMessage pollBatchMessage(QueuedMessage first, long timeout) throws InterruptedException {
+    long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      WorkerSlot slot = first.getWorkerSlot();
+      while (true) {
+        if (slot == null || deliveryStopped || (closed && count == 0)) {
+          return null;
+        }
+        if (!slot.lane.bySize.isEmpty()) {
+          return remove(slot.lane, slot);
+        }
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Deliver the remaining messages, afterwards take returns null
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop delivering messages, take returns null immediately
+   * and the remaining messages are returned
+   *
+   * @return all messages not taken yet
+   */
+  public List<QueuedMessage> stopDelivery() {
+    List<QueuedMessage> remainingMessages = new ArrayList<QueuedMessage>();
+    lock.lock();
+    try {
+      closed = true;
+      deliveryStopped = true;
+      for (Lane lane : lanes) {
+        remainingMessages.addAll(lane.fifo);
+        lane.fifo.clear();
+        lane.bySize.clear();
+      }
+      count = 0;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return remainingMessages;
+  }
+
+  /**
+   * @return true if take returns null, because the queue is closed and empty or the delivery is stopped
+   */
+  public boolean isFinished() {
+    lock.lock();
+    try {
+      return deliveryStopped || (closed && count == 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Mark the message as processed, after the last message of its batch the lane
+   * can deliver further messages to the worker
+   *
+   * @param message message returned by take, poll or pollBatchMessage
+   */
+  public void completed(QueuedMessage message) {
+    lock.lock();
+    try {
+      WorkerSlot slot = message.getWorkerSlot();
+      if (slot == null) {
+        return;
+      }
+      message.setWorkerSlot(null);
+      slot.messages--;
+      if (slot.messages == 0) {
+        slot.lane.inProcess = Math.max(0, slot.lane.inProcess - 1);
+        notEmpty.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return Math.max(0, capacity - count);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Set the number of workers the lane shares refer to
+   *
+   * @param workerCount
+   */
+  public void setWorkerCount(int workerCount) {
+    lock.lock();
+    try {
+      this.workerCount = Math.max(1, workerCount);
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return queued messages, workers in process and wait times in ms of each lane
+   */
+  public String getLaneStatistics() {
+    StringBuilder statistics = new StringBuilder();
+    lock.lock();
+    try {
+      for (Lane lane : lanes) {
+        statistics.append("Lane ").append(lane.name).append(" - queued: ").append(lane.bySize.size())
+            .append(" in process: ").append(lane.inProcess).append("/").append(lane.limit())
+            .append(" wait time (ms) ").append(lane.waitTimes).append("\n");
+      }
+    } finally {
+      lock.unlock();
+    }
+    return statistics.toString();
+  }
+
+  /**
+   * @param laneName one of LANE_NAMES
+   * @return wait times in ms of the messages taken from the lane
+   */
+  public LatencyHistogram getWaitTimes(String laneName) {
+    for (Lane lane : lanes) {
+      if (lane.name.equals(laneName)) {
+        return lane.waitTimes;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return wait times in ms of the messages taken from all lanes since the last call
+   */
+  public LatencyHistogram takeRecentWaitTimes() {
+    lock.lock();
+    try {
+      LatencyHistogram waitTimes = recentWaitTimes;
+      recentWaitTimes = new LatencyHistogram();
+      return waitTimes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return time in ms the oldest queued message is waiting, 0 if the queue is empty
+   */
+  public long getOldestWaitTime() {
+    long now = System.currentTimeMillis();
+    long oldestWaitTime = 0;
+    lock.lock();
+    try {
+      for (Lane lane : lanes) {
+        if (!lane.fifo.isEmpty()) {
+          oldestWaitTime = Math.max(oldestWaitTime, now - lane.fifo.first().getEnqueueTime());
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return oldestWaitTime;
+  }
+
+  private void insert(QueuedMessage message) {
+    int laneIndex = 0;
+    while (message.getDecodedSize() > lanes[laneIndex].maxSize) {
+      laneIndex++;
+    }
+
+    message.setSequenceNo(sequence++);
+    message.setEnqueueTime(System.currentTimeMillis());
+    lanes[laneIndex].bySize.add(message);
+    lanes[laneIndex].fifo.add(message);
+    count++;
+    notEmpty.signalAll();
+  }
+
+  private Lane selectLane() {
+    Lane selectedLane = null;
+    double selectedLoad = Double.MAX_VALUE;
+
+    for (Lane lane : lanes) {
+      if (lane.bySize.isEmpty() || lane.inProcess >= lane.limit()) {
+        continue;
+      }
+      double load = (double) lane.inProcess / (double) Math.max(1, lane.share);
+      if (load < selectedLoad) {
+        selectedLane = lane;
+        selectedLoad = load;
+      }
+    }
+    return selectedLane;
+  }
+
+  /**
+   * @param lane lane to take the message from
+   * @param slot worker slot of the batch or null to occupy a new worker of the lane
+   */
+  private QueuedMessage remove(Lane lane, WorkerSlot slot) {
+    long now = System.currentTimeMillis();
+    QueuedMessage message = lane.fifo.first();
+
+    if (now - message.getEnqueueTime() < maxLaneWait) {
+      message = lane.bySize.first();
+    }
+    lane.bySize.remove(message);
+    lane.fifo.remove(message);
+
+    count--;
+    if (slot == null) {
+      slot = new WorkerSlot(lane);
+      lane.inProcess++;
+    }
+    slot.messages++;
+    message.setWorkerSlot(slot);
+    lane.waitTimes.record(now - message.getEnqueueTime());
+    recentWaitTimes.record(now - message.getEnqueueTime());
+    notFull.signalAll();
+
+    takenMessages++;
+    if (statisticsInterval > 0 && takenMessages % statisticsInterval == 0) {
+      log.info("Lane statistics after " + takenMessages + " messages:\n" + getLaneStatistics());
+    }
+    return message;
+  }
+
+  private static int compareSequence(QueuedMessage message1, QueuedMessage message2) {
+    if (message1.getSequenceNo() != message2.getSequenceNo()) {
+      return (message1.getSequenceNo() < message2.getSequenceNo()) ? -1 : 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Worker of a lane occupied by one message or batch, guarded by the lock of the queue
+   */
+  static class WorkerSlot {
+    private final Lane lane;
+    private int messages = 0;
+
+    private WorkerSlot(Lane lane) {
+      this.lane = lane;
+    }
+  }
+
+  /**
+   * One size class of messages
+   */
+  private class Lane {
+    private final String name;
+    private final long maxSize;
+    private final int share;
+    private final boolean limited;
+    private final TreeSet<QueuedMessage> bySize = new TreeSet<QueuedMessage>(new Comparator<QueuedMessage>() {
+      @Override
+      public int compare(QueuedMessage message1, QueuedMessage message2) {
+        if (message1.getDecodedSize() != message2.getDecodedSize()) {
+          return (message1.getDecodedSize() < message2.getDecodedSize()) ? -1 : 1;
+        }
+        return compareSequence(message1, message2);
+      }
+    });
+    // the sequence numbers are unique, so the order of insertion is kept
+    private final TreeSet<QueuedMessage> fifo = new TreeSet<QueuedMessage>(new Comparator<QueuedMessage>() {
+      @Override
+      public int compare(QueuedMessage message1, QueuedMessage message2) {
+        return compareSequence(message1, message2);
+      }
+    });
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private int inProcess = 0;
+
+    Lane(String name, long maxSize, int share, boolean limited) {
+      this.name = name;
+      this.maxSize = maxSize;
+      this.share = share;
+      this.limited = limited;
+    }
+
+    /**
+     * @return maximum number of workers processing messages of this lane
+     */
+    int limit() {
+      if (!limited) {
+        return workerCount;
+      }
+      return Math.max(1, Math.round(workerCount * share / 100.0f));
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import gate.Document;
+import gate.Factory;
+import gate.creole.ResourceInstantiationException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Append-only journal of the completed processing stages per message, so a document
+ * delivered again after a crash (see 'persistentQueue') resumes at its first incomplete stage.
+ *
+ * The entries are keyed by the digest of the message (see QueuedMessage.getDigest), not by the
+ * JSI_WP3_ID: a document re-sent with changed content is an update and is processed again, only
+ * the same message delivered again is resumed or skipped.
+ *
+ * Only the stages a resumed document can skip are journaled. Each line of 'stageJournalFile' contains
+ * the time, the digest, the JSI_WP3_ID, the completed stage (preprocessed, committed or discarded) and
+ * for the preprocessed stage the preprocessed gate-xml file written for the archive ('writeOutputFile').
+ * A resumed document is loaded from this file and archived with it, so it is neither preprocessed nor
+ * written again. The classification is executed again, its results are only stored with the commit.
+ * A failed document (dead letter or quarantine) is discarded, its retry starts from the beginning.
+ * A document journaled as committed is only acknowledged. The last 'stageJournalCommittedEntries'
+ * committed documents are remembered, the file is compacted on start and when it grows.
+ * With 'stageJournalSync' every line is forced to the disk.
+ *
+ * @author lgredel
+ *
+ */
+public class StageJournal {
+  private static Logger log = Logger.getLogger(StageJournal.class);
+
+  public static final String PREPROCESSED = "preprocessed";
+  public static final String COMMITTED = "committed";
+  public static final String DISCARDED = "discarded";
+
+  private static final String ZIP_SUFFIX = ".zip";
+
+  private static StageJournal INSTANCE;
+
+  private final File journalFile;
+  private final boolean syncWrites;
+  private final int committedEntries;
+
+  // incomplete documents with their last completed stage, JSI_WP3_ID and preprocessed file
+  private final Map<String, String[]> openStages = new HashMap<String, String[]>();
+  private final Map<String, Boolean> committedDocuments;
+  private FileOutputStream journalOut;
+  private long journalLines = 0;
+  private long resumedDocuments = 0;
+  private long skippedDocuments = 0;
+  private long discardedDocuments = 0;
+
+  private StageJournal() throws IOException {
+    journalFile = new File(GlobalParameters.loadConfigFile().getProperty("stageJournalFile", "stageJournal.log"));
+    syncWrites = GlobalParameters.extractBooleanProperty("stageJournalSync", false);
+    committedEntries = Math.max(0, GlobalParameters.extractIntProperty("stageJournalCommittedEntries", 10000));
+
+    committedDocuments = new LinkedHashMap<String, Boolean>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > committedEntries;
+      }
+    };
+
+    loadJournal();
+    compact();
+    log.info("StageJournal started with " + openStages.size() + " incomplete documents of the last run");
+  }
+
+  /**
+   * @return the StageJournal, created on the first call
+   * @throws IOException if the journal cannot be written
+   */
+  public static synchronized StageJournal getInstance() throws IOException {
+    if (INSTANCE == null) {
+      INSTANCE = new StageJournal();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * @return the StageJournal if it was created, else null
+   */
+  public static synchronized StageJournal getStartedInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param key digest of the message
+   * @return true if the message was committed before
+   */
+  public synchronized boolean isCommitted(String key) {
+    return key != null && committedDocuments.containsKey(key);
+  }
+
+  /**
+   * @param key digest of the message
+   * @return the last completed stage of an incomplete document, else null
+   */
+  public synchronized String getCompletedStage(String key) {
+    String[] openStage = (key != null) ? openStages.get(key) : null;
+    return (openStage != null) ? openStage[0] : null;
+  }
+
+  /**
+   * Record a completed stage, the preprocessed stage is recorded with preprocessed
+   *
+   * @param key digest of the message
+   * @param id JSI_WP3_ID of the document
+   * @param stage
+   */
+  public synchronized void stageCompleted(String key, String id, String stage) {
+    stageCompleted(key, id, stage, "");
+  }
+
+  private synchronized void stageCompleted(String key, String id, String stage, String path) {
+    if (key == null) {
+      return;
+    }
+
+    if (COMMITTED.equals(stage) || DISCARDED.equals(stage)) {
+      openStages.remove(key);
+      if (COMMITTED.equals(stage)) {
+        committedDocuments.put(key, Boolean.TRUE);
+      }
+    } else {
+      openStages.put(key, new String[] { stage, id, path });
+    }
+    append(key, id, stage, path);
+  }
+
+  /**
+   * Forget an incomplete document which failed, so a retry starts from the beginning
+   *
+   * @param key digest of the message
+   */
+  public synchronized void discard(String key) {
+    String[] openStage = (key != null) ? openStages.get(key) : null;
+    if (openStage == null) {
+      return;
+    }
+    discardedDocuments++;
+    stageCompleted(key, openStage[1], DISCARDED);
+  }
+
+  /**
+   * Record the preprocessed stage with the preprocessed gate-xml file written for the archive
+   *
+   * @param key digest of the message
+   * @param id JSI_WP3_ID of the document
+   * @param preprocessedFile gate-xml file of the preprocessed document, optionally zipped
+   */
+  public void preprocessed(String key, String id, File preprocessedFile) {
+    stageCompleted(key, id, PREPROCESSED, preprocessedFile.getAbsolutePath());
+  }
+
+  /**
+   * @param key digest of the message
+   * @return the preprocessed gate-xml file of a message, which was not committed before the crash,
+   *         null if the file does not exist anymore and the document has to be preprocessed
+   */
+  public synchronized File getPreprocessedFile(String key) {
+    String[] openStage = (key != null) ? openStages.get(key) : null;
+    if (openStage == null || !PREPROCESSED.equals(openStage[0]) || openStage[2].isEmpty()) {
+      return null;
+    }
+    File preprocessedFile = new File(openStage[2]);
+    return preprocessedFile.isFile() ? preprocessedFile : null;
+  }
+
+  /**
+   * Load the preprocessed gate-xml file of a message, which was not committed before the crash
+   *
+   * @param key digest of the message
+   * @param id JSI_WP3_ID of the document
+   * @return the preprocessed document or null if the document has to be preprocessed
+   */
+  public Document loadPreprocessed(String key, String id) {
+    File preprocessedFile = getPreprocessedFile(key);
+    if (preprocessedFile == null) {
+      return null;
+    }
+
+    try {
+      URL documentURL = preprocessedFile.toURI().toURL();
+      String fileName = preprocessedFile.getName();
+      if (fileName.endsWith(ZIP_SUFFIX)) {
+        // GlobalParameters.zipStringToFile names the entry like the file without the suffix
+        documentURL = new URL("jar:" + documentURL + "!/"
+            + fileName.substring(0, fileName.length() - ZIP_SUFFIX.length()));
+      }
+      Document gateDoc = Factory.newDocument(documentURL, "UTF-8");
+      synchronized (this) {
+        resumedDocuments++;
+      }
+      log.info("Resuming document with JSI_WP3_ID: " + id + " from the preprocessed file: "
+          + preprocessedFile.getAbsolutePath());
+      return gateDoc;
+    } catch (ResourceInstantiationException e) {
+      log.error(e.getClass().getName() + " occured on loading preprocessed file: "
+          + preprocessedFile.getAbsolutePath());
+      log.error(e.getMessage());
+    } catch (MalformedURLException e) {
+      log.error(e.getClass().getName() + " occured on loading preprocessed file: "
+          + preprocessedFile.getAbsolutePath());
+      log.error(e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * A document journaled as committed was delivered again and is not processed
+   *
+   * @param id JSI_WP3_ID of the document
+   */
+  public synchronized void skipped(String id) {
+    skippedDocuments++;
+    log.info("Document with JSI_WP3_ID: " + id + " was committed before -> not processed again");
+  }
+
+  /**
+   * Append a line and compact the journal if it holds more than twice the remembered documents
+   */
+  private void append(String key, String id, String stage, String path) {
+    try {
+      journalOut.write((System.currentTimeMillis() + "\t" + key + "\t" + id + "\t" + stage + "\t" + path + "\n")
+          .getBytes("UTF-8"));
+      if (syncWrites) {
+        journalOut.getFD().sync();
+      }
+      journalLines++;
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on writing stage journal: " + journalFile.getAbsolutePath());
+      log.error(e.getMessage());
+    }
+
+    if (journalLines > 2L * (openStages.size() + committedDocuments.size()) + 1000) {
+      try {
+        compact();
+      } catch (IOException e) {
+        log.error(e.getClass().getName() + " occured on compacting stage journal: "
+            + journalFile.getAbsolutePath());
+        log.error(e.getMessage());
+      }
+    }
+  }
+
+  private void loadJournal() throws IOException {
+    if (!journalFile.isFile()) {
+      return;
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+    try {
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        // a line torn by the crash is ignored
+        if (fields.length != 5) {
+          continue;
+        }
+        if (COMMITTED.equals(fields[3]) || DISCARDED.equals(fields[3])) {
+          openStages.remove(fields[1]);
+          if (COMMITTED.equals(fields[3])) {
+            committedDocuments.put(fields[1], Boolean.TRUE);
+          }
+        } else {
+          openStages.put(fields[1], new String[] { fields[3], fields[2], fields[4] });
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Rewrite the journal with the remembered documents only
+   */
+  private void compact() throws IOException {
+    File tmpFile = new File(journalFile.getAbsolutePath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmpFile);
+    try {
+      long time = System.currentTimeMillis();
+      StringBuilder lines = new StringBuilder();
+      for (String key : committedDocuments.keySet()) {
+        lines.append(time).append('\t').append(key).append("\t\t").append(COMMITTED).append("\t\n");
+      }
+      for (Map.Entry<String, String[]> entry : openStages.entrySet()) {
+        lines.append(time).append('\t').append(entry.getKey()).append('\t').append(entry.getValue()[1])
+            .append('\t').append(entry.getValue()[0]).append('\t').append(entry.getValue()[2]).append('\n');
+      }
+      out.write(lines.toString().getBytes("UTF-8"));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    IOUtils.closeQuietly(journalOut);
+    try {
+      if (!tmpFile.renameTo(journalFile)) {
+        journalFile.delete();
+        if (!tmpFile.renameTo(journalFile)) {
+          throw new IOException("Cannot rename " + tmpFile.getName() + " to " + journalFile.getName());
+        }
+      }
+      journalLines = committedDocuments.size() + openStages.size();
+    } finally {
+      journalOut = new FileOutputStream(journalFile, true);
+    }
+  }
+
+  public synchronized String getStatistics() {
+    return "Stage journal: " + openStages.size() + " incomplete documents, " + resumedDocuments
+        + " resumed from the preprocessed file, " + skippedDocuments + " committed documents skipped, "
+        + discardedDocuments + " failed documents discarded";
+  }
+}
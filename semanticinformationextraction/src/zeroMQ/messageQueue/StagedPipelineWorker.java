@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import gate.CorpusController;
+import gate.Document;
+import hibernate.DatabaseFacade;
+import hibernate.entities.DocumentMetaData;
+import jcifs.smb.SmbFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.xml.bind.JAXB;
+
+import org.apache.commons.io.FileUtils;
+import org.hibernate.HibernateException;
+
+import performance.PerformanceMeasurement;
+import preprocessing.PreprocessingApplication;
+import utils.DeadlineExceededException;
+import utils.GateInitSingleton;
+import utils.GlobalParameters;
+import utils.MemoryManager;
+import utils.SharedResources;
+import classification.ClassifiedDocument;
+import classification.SentimentClassification;
+
+/**
+ * Processes the queued documents in four stages with bounded queues in between,
+ * so a slow network share or database does not stall the Gate-Applications:
+ *
+ * PARSE    ('parseThreads')    - load the Gate-Document and render the input gate-xml
+ * GATE     ('currentThreadNo') - preprocessing and classification, one application pair per thread
+ * PERSIST  (1 thread)          - DocumentMetaData, sentiment aggregation and commit
+ * ARCHIVE  ('archiveThreads')  - zip and copy the files to the network share, register the DocumentVersions
+ *
+ * Each stage waits while the queue of the next stage is full ('stageQueueCapacity').
+ * The DatabaseFacade holds one hibernate session, so the database work of PERSIST and
+ * ARCHIVE is serialized by a lock. The statistics of all stages are logged every
+ * 'stageStatisticsInterval' ms.
+ *
+ * Oversized documents are segmented by the CompletePipelineWorker only, the staged pipeline
+ * drops documents above 'maxMessageLength'.
+ *
+ * @author lgredel
+ *
+ */
+public class StagedPipelineWorker extends WorkerThread {
+
+  private static StagedPipelineWorker currentPipeline = null;
+
+  // the hibernate session of the DatabaseFacade is shared by PERSIST and ARCHIVE
+  private final Object databaseLock = new Object();
+
+  private final PipelineStage<PipelineDocument> parseStage;
+  private final PipelineStage<PipelineDocument> gateStage;
+  private final PipelineStage<PipelineDocument> persistStage;
+  private final PipelineStage<PipelineDocument> archiveStage;
+  private final List<PipelineStage<PipelineDocument>> stages = new ArrayList<PipelineStage<PipelineDocument>>();
+
+  private final boolean writeInputFile;
+  private final boolean writeOutputFile;
+  private final boolean writeResultXML;
+  private final boolean zipFile;
+  private final int maxMessageLength;
+
+  /**
+   * @param preprocessingGateApps one preprocessing application per GATE thread
+   * @param classificationGateApps one classification application per GATE thread
+   * @param workerThreadName
+   * @throws IOException
+   */
+  public StagedPipelineWorker(List<CorpusController> preprocessingGateApps,
+      List<CorpusController> classificationGateApps, String workerThreadName) throws IOException {
+    super(workerThreadName);
+
+    writeInputFile = Boolean.parseBoolean(configProperties.get("writeInputFile").toString());
+    writeOutputFile = Boolean.parseBoolean(configProperties.get("writeOutputFile").toString());
+    writeResultXML = Boolean.parseBoolean(configProperties.get("writeResultXML").toString());
+    zipFile = Boolean.parseBoolean(configProperties.get("zipFile").toString());
+    maxMessageLength = GlobalParameters.extractIntProperty("maxMessageLength", 1000000);
+
+    int capacity = GlobalParameters.extractIntProperty("stageQueueCapacity", 4);
+    int parseThreads = GlobalParameters.extractIntProperty("parseThreads", 1);
+    int archiveThreads = GlobalParameters.extractIntProperty("archiveThreads", 2);
+
+    List<ParseHandler> parseHandlers = new ArrayList<ParseHandler>();
+    for (int i = 0; i < parseThreads; i++) {
+      parseHandlers.add(new ParseHandler());
+    }
+
+    List<GateHandler> gateHandlers = new ArrayList<GateHandler>();
+    for (int i = 0; i < preprocessingGateApps.size(); i++) {
+      gateHandlers.add(new GateHandler(preprocessingGateApps.get(i), classificationGateApps.get(i),
+          workerThreadName + "_GATE_" + i));
+    }
+
+    List<PersistHandler> persistHandlers = Collections.singletonList(new PersistHandler(classificationGateApps
+        .get(0), workerThreadName + "_PERSIST"));
+
+    List<ArchiveHandler> archiveHandlers = new ArrayList<ArchiveHandler>();
+    for (int i = 0; i < archiveThreads; i++) {
+      archiveHandlers.add(new ArchiveHandler());
+    }
+
+    parseStage = new PipelineStage<PipelineDocument>(workerThreadName + "_PARSE", capacity, parseHandlers);
+    gateStage = new PipelineStage<PipelineDocument>(workerThreadName + "_GATE", capacity, gateHandlers);
+    persistStage = new PipelineStage<PipelineDocument>(workerThreadName + "_PERSIST", capacity, persistHandlers);
+    archiveStage = new PipelineStage<PipelineDocument>(workerThreadName + "_ARCHIVE", capacity, archiveHandlers);
+    stages.add(parseStage);
+    stages.add(gateStage);
+    stages.add(persistStage);
+    stages.add(archiveStage);
+  }
+
+  /**
+   * Thread run method
+   * take the messages from the queue and hand them to the PARSE stage.
+   * After the queue is shut down the stages finish one after the other,
+   * if the worker is interrupted the stages are interrupted.
+   */
+  @Override
+  public void run() {
+    for (PipelineStage<PipelineDocument> stage : stages) {
+      stage.start();
+    }
+
+    long statisticsInterval = GlobalParameters.extractLongProperty("stageStatisticsInterval", 60000);
+    Timer statisticsTimer = new Timer(this.getName() + "_Statistics", true);
+    statisticsTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        log.info(getStageStatistics());
+      }
+    }, statisticsInterval, statisticsInterval);
+
+    MemoryManager memoryManager = MemoryManager.getInstance();
+    long admissionCheckInterval = GlobalParameters.extractLongProperty("memoryAdmissionCheckInterval", 1000);
+    try {
+      while (true) {
+        // no further documents enter the stages while the heap is above the limit
+        while (!memoryManager.awaitAdmission(admissionCheckInterval)) {
+          log.debug(this.getName() + " waiting for heap admission, " + memoryManager.getHeapState());
+        }
+        QueuedMessage currentMessage = queue.takeMessage();
+        if (currentMessage == null) {
+          log.info("Queue is shut down -> " + this.getName() + " finishes the stages");
+          break;
+        }
+        parseStage.put(new PipelineDocument(currentMessage));
+      }
+
+      for (PipelineStage<PipelineDocument> stage : stages) {
+        stage.finish();
+        while (!stage.awaitTermination(statisticsInterval)) {
+          log.info("Waiting for stage " + stage.getName() + " to finish");
+        }
+      }
+    } catch (InterruptedException e) {
+      log.info(this.getName() + " interrupted -> interrupting the stages");
+      for (PipelineStage<PipelineDocument> stage : stages) {
+        stage.interrupt();
+      }
+      for (PipelineStage<PipelineDocument> stage : stages) {
+        for (PipelineDocument document : stage.drainInbox()) {
+          discard(document);
+        }
+      }
+    } finally {
+      statisticsTimer.cancel();
+      log.info(getStageStatistics());
+      log.info(memoryManager.getStatistics());
+      workerFinished();
+    }
+
+    log.trace("End of run-Method in StagedPipelineWorker: " + this.getName());
+  }
+
+  /**
+   * @return utilization, queue depth and times of each stage, the utilization
+   *         refers to the time since the last call
+   */
+  public String getStageStatistics() {
+    StringBuilder statistics = new StringBuilder();
+    for (PipelineStage<PipelineDocument> stage : stages) {
+      statistics.append(stage.getStatistics()).append("\n");
+    }
+    return statistics.toString();
+  }
+
+  /**
+   * @return the running staged pipeline or null if the CompletePipelineWorkers are used
+   */
+  public static StagedPipelineWorker getCurrentPipeline() {
+    return currentPipeline;
+  }
+
+  /**
+   * @return maximum number of documents in the pipeline: the document of the dispatcher
+   *         and the queued and processed documents of each stage
+   */
+  private int getPipelineSlots() {
+    int slots = 1;
+    for (PipelineStage<PipelineDocument> stage : stages) {
+      slots += stage.getCapacity() + stage.getThreadCount();
+    }
+    return slots;
+  }
+
+  /**
+   * Release a failed document like a failed single document of the CompletePipelineWorker:
+   * the message is acknowledged and not processed again
+   */
+  private void discard(PipelineDocument document) {
+    if (document.gateDoc != null) {
+      GateInitSingleton.unloadGateResources(document.gateDoc);
+      document.gateDoc = null;
+    }
+    queue.acknowledge(document.message);
+  }
+
+  /**
+   * Loads the Gate-Document of the message
+   */
+  private class ParseHandler implements PipelineStage.Handler<PipelineDocument> {
+
+    @Override
+    public boolean process(PipelineDocument document) throws InterruptedException {
+      try {
+        // chars like in the receiver, which does not queue larger documents in the staged mode
+        if (document.message.getCharLength() > maxMessageLength) {
+          log.error("Message with " + document.message.getCharLength()
+              + " chars exceeds maxMessageLength -> not processed by the staged pipeline");
+          discard(document);
+          return false;
+        }
+
+        long startLoadDocument = System.currentTimeMillis();
+        document.gateDoc = loadGateDocument(document.message);
+        log.debug("Loading Gate-Document needs : " + (System.currentTimeMillis() - startLoadDocument) + " ms ");
+
+        if (writeInputFile) {
+          document.inputXml = document.gateDoc.toXml();
+        }
+      } catch (Exception e) {
+        log.error("Exception " + e.getClass().getName() + " occured on loading document");
+        log.error(e.getMessage());
+        discard(document);
+        return false;
+      }
+
+      handOver(document, gateStage);
+      return true;
+    }
+  }
+
+  /**
+   * Preprocesses and classifies the document with the applications of the thread
+   */
+  private class GateHandler implements PipelineStage.Handler<PipelineDocument> {
+    private final PreprocessingApplication preprocessing;
+    private final SentimentClassification classification;
+    private final PerformanceMeasurement timeMeasurement;
+
+    GateHandler(CorpusController preprocessingGateApp, CorpusController classificationGateApp, String name)
+        throws IOException {
+      timeMeasurement = new PerformanceMeasurement(name);
+      preprocessing = new PreprocessingApplication(preprocessingGateApp);
+      classification = new SentimentClassification(classificationGateApp);
+      preprocessing.setTimeMeasurement(timeMeasurement);
+      classification.setTimeMeasurement(timeMeasurement);
+    }
+
+    @Override
+    public boolean process(PipelineDocument document) throws InterruptedException {
+      try {
+        try {
+          preprocessing.executeDocument(document.gateDoc);
+        } catch (Exception e) {
+          // unloaded by the preprocessing
+          document.gateDoc = null;
+          throw e;
+        }
+
+        if (writeOutputFile) {
+          document.preprocessedXml = document.gateDoc.toXml();
+        }
+
+        document.containsSO = document.gateDoc.getAnnotations().getAllTypes().contains("SO");
+        if (document.containsSO) {
+          classification.executeApplication(document.gateDoc);
+          if (writeOutputFile) {
+            document.classifiedXml = document.gateDoc.toXml();
+          }
+        }
+
+        document.documentText = document.gateDoc.getContent().toString();
+      } catch (DeadlineExceededException e) {
+        quarantine(document.message, e);
+        discard(document);
+        return false;
+      } catch (Exception e) {
+        log.error("Exception " + e.getClass().getName() + " occured on preprocessing document: ");
+        log.error(e.getMessage());
+        discard(document);
+        return false;
+      }
+
+      handOver(document, persistStage);
+      return true;
+    }
+  }
+
+  /**
+   * Saves the DocumentMetaData and the sentiments of the document in one transaction
+   */
+  private class PersistHandler implements PipelineStage.Handler<PipelineDocument> {
+    private final SentimentClassification classification;
+
+    PersistHandler(CorpusController classificationGateApp, String name) throws IOException {
+      // the application is not executed, only the aggregation is used
+      classification = new SentimentClassification(classificationGateApp);
+      classification.setTimeMeasurement(new PerformanceMeasurement(name));
+    }
+
+    @Override
+    public boolean process(PipelineDocument document) throws InterruptedException {
+      boolean committed = false;
+
+      synchronized (databaseLock) {
+        try {
+          int level = openHibernateSession();
+
+          document.dbDocument = classification.extractDocumentMetaData(document.gateDoc);
+          document.fileName = classification.extractIDFromGateFeature(document.gateDoc);
+
+          if (document.containsSO) {
+            log.info("Input Document contains SO -> starting with Knowledgebased CRISP Sentimentclassification on database DocumentMetaData-object: "
+                + document.dbDocument.getId());
+            ClassifiedDocument result = classification.aggregateDocument(document.gateDoc, document.dbDocument);
+
+            if (writeOutputFile && writeResultXML) {
+              StringWriter resultWriter = new StringWriter();
+              JAXB.marshal(result, resultWriter);
+              document.resultXml = resultWriter.toString();
+            }
+          } else {
+            log.info("Input Document contains no SO -> starting with PosNegWordRatio Sentiment on database DocumentMetaData-object: "
+                + document.dbDocument.getId());
+            DatabaseFacade.getSingletonFacade().deleteSentimentsWithClassifierType(document.dbDocument,
+                "PosNegWordRatio", "CRISP");
+            calculatePosNegWordRatioSentiment(document.gateDoc, document.dbDocument, classification);
+          }
+
+          if (!queue.beginCommit(Collections.singletonList(document.message))) {
+            log.info("Document with ID: " + document.dbDocument.getId()
+                + " was checkpointed during shutdown -> not committed");
+          } else {
+            commitDocuments(Collections.singletonList(document.dbDocument), level);
+            committed = true;
+          }
+        } catch (HibernateException hibex) {
+          log.error("HibernateException: " + hibex.getClass().getName() + " occured during processing Document");
+          log.error(hibex.getMessage());
+
+          if (tx != null) {
+            tx.rollback();
+          }
+        } catch (Exception e) {
+          log.error("Exception " + e.getClass().getName() + " occured on persisting document");
+          log.error(e.getMessage());
+        } finally {
+          DatabaseFacade.closeDBSession(hibernateSession);
+          hibernateSession = null;
+          tx = null;
+        }
+      }
+
+      if (!committed) {
+        discard(document);
+        return false;
+      }
+
+      // the archive stage only needs the rendered strings
+      GateInitSingleton.unloadGateResources(document.gateDoc);
+      document.gateDoc = null;
+
+      handOver(document, archiveStage);
+      return true;
+    }
+  }
+
+  /**
+   * Writes the files of the document, copies them to the network share and registers
+   * the DocumentVersions. The message is acknowledged afterwards, if the DocumentVersions
+   * cannot be registered it is kept in the DeadLetterStore and processed again later.
+   */
+  private class ArchiveHandler implements PipelineStage.Handler<PipelineDocument> {
+
+    @Override
+    public boolean process(PipelineDocument document) {
+      boolean archived = false;
+      Exception failure = null;
+      try {
+        List<ArchivedFile> files = new ArrayList<ArchivedFile>();
+        File outputDir = GlobalParameters.createTmpDirectoriesFromDate(document.dbDocument.getPublicationDate());
+
+        if (document.inputXml != null) {
+          files.add(archive("gate-xml", document.inputXml, new File(outputDir, document.fileName
+              + ".gate-xml.xml"), zipFile));
+        }
+        if (document.preprocessedXml != null) {
+          files.add(archive("preprocessed", document.preprocessedXml, new File(outputDir, document.fileName
+              + ".preprocessed.xml"), zipFile));
+        }
+        if (document.classifiedXml != null) {
+          files.add(archive("classified", document.classifiedXml, new File(outputDir, document.fileName
+              + ".classified.xml"), zipFile));
+        }
+        if (document.resultXml != null) {
+          File resultFile = new File(outputDir, document.fileName + ".result.xml");
+          if (zipFile) {
+            files.add(archive("result", document.resultXml, resultFile, true));
+          } else {
+            // like the CompletePipelineWorker the unzipped result is only written
+            FileUtils.writeStringToFile(resultFile, document.resultXml, "UTF-8");
+          }
+        }
+        files.add(archive("txt", document.documentText, new File(outputDir, document.fileName + ".txt"), true));
+
+        synchronized (databaseLock) {
+          try {
+            openHibernateSession();
+            databaseConn.startTransaction();
+            tx = databaseConn.getTx();
+            for (ArchivedFile file : files) {
+              databaseConn.createDocumentVersion(file.type, file.localFile, file.smbFile, document.dbDocument);
+            }
+            tx.commit();
+            archived = true;
+            log.info("Registered " + files.size() + " DocumentVersions of Document with ID: "
+                + document.dbDocument.getId());
+          } catch (HibernateException hibex) {
+            log.error("HibernateException: " + hibex.getClass().getName() + " occured on registering DocumentVersions");
+            log.error(hibex.getMessage());
+            failure = hibex;
+
+            if (tx != null) {
+              tx.rollback();
+            }
+          } finally {
+            DatabaseFacade.closeDBSession(hibernateSession);
+            hibernateSession = null;
+            tx = null;
+          }
+        }
+      } catch (Exception e) {
+        log.error("Exception " + e.getClass().getName() + " occured on archiving document with ID: "
+            + document.dbDocument.getId());
+        log.error(e.getMessage());
+        failure = e;
+      } finally {
+        if (archived) {
+          messagesCommitted(Collections.singletonList(document.message));
+        } else if (failure != null) {
+          // the document is committed without DocumentVersions, the retry processes it again
+          deadLetter(document.message, "archive", failure);
+        }
+        queue.acknowledge(document.message);
+      }
+      return archived;
+    }
+
+    private ArchivedFile archive(String type, String content, File file, boolean zip) throws IOException {
+      if (zip) {
+        file = GlobalParameters.zipStringToFile(content, file);
+      } else {
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+      }
+      SmbFile smbFile = networkConfig.copyFile(file, true);
+      return new ArchivedFile(type, file, smbFile);
+    }
+  }
+
+  /**
+   * Hand the document to the next stage, an interrupted document is released
+   */
+  private void handOver(PipelineDocument document, PipelineStage<PipelineDocument> nextStage)
+      throws InterruptedException {
+    try {
+      nextStage.put(document);
+    } catch (InterruptedException e) {
+      discard(document);
+      throw e;
+    }
+  }
+
+  /**
+   * A document passed through the stages, the Gate-Document is unloaded after PERSIST
+   */
+  private static class PipelineDocument {
+    private final QueuedMessage message;
+    private Document gateDoc = null;
+    private DocumentMetaData dbDocument = null;
+    private String fileName = null;
+    private boolean containsSO = false;
+    private String inputXml = null;
+    private String preprocessedXml = null;
+    private String classifiedXml = null;
+    private String resultXml = null;
+    private String documentText = null;
+
+    PipelineDocument(QueuedMessage message) {
+      this.message = message;
+    }
+  }
+
+  private static class ArchivedFile {
+    private final String type;
+    private final File localFile;
+    private final SmbFile smbFile;
+
+    ArchivedFile(String type, File localFile, SmbFile smbFile) {
+      this.type = type;
+      this.localFile = localFile;
+      this.smbFile = smbFile;
+    }
+  }
+
+  /**
+   * Load the application pairs for the GATE stage and start the staged pipeline
+   * instead of the CompletePipelineWorkers
+   *
+   * @throws Exception
+   */
+  public static void inizializePipeline() throws Exception {
+    String executionPipeline = configProperties.getProperty("pipelineExecution");
+    int gateThreads = GlobalParameters.extractIntProperty("currentThreadNo", 1);
+
+    File[] applicationFiles = selectApplicationFiles(executionPipeline);
+    List<CorpusController> preprocessingGateApps = new ArrayList<CorpusController>();
+    List<CorpusController> classificationGateApps = new ArrayList<CorpusController>();
+
+    preprocessingGateApps.add(GateInitSingleton.getInstance().loadApplication(applicationFiles[0]));
+    classificationGateApps.add(GateInitSingleton.getInstance().loadApplication(applicationFiles[1]));
+    for (int i = 1; i < gateThreads; i++) {
+      preprocessingGateApps.add(SharedResources.duplicate(preprocessingGateApps.get(0)));
+      classificationGateApps.add(SharedResources.duplicate(classificationGateApps.get(0)));
+    }
+
+    String workerThreadName = "StagedPipelineWorker";
+    log.info("Creating new StagedPipelineWorker for executionPipeline: " + executionPipeline + " with "
+        + gateThreads + " GATE threads");
+    StagedPipelineWorker pipeline = new StagedPipelineWorker(preprocessingGateApps, classificationGateApps,
+        workerThreadName);
+
+    // the lane limits refer to the documents in the pipeline
+    pipeline.queue.setWorkerCount(pipeline.getPipelineSlots());
+
+    currentPipeline = pipeline;
+    workerStarted();
+    pipeline.start();
+    currenThreadList.add(pipeline);
+  }
+
+}
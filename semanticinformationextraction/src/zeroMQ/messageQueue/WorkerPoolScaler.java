@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.messageQueue;
+
+import gate.CorpusController;
+import gate.Factory;
+import gate.creole.ResourceInstantiationException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import performance.LatencyHistogram;
+import utils.GlobalParameters;
+import utils.MemoryManager;
+import utils.SharedResources;
+
+/**
+ * Scales the number of CompletePipelineWorkers between 'workerPoolMin' and 'workerPoolMax'.
+ *
+ * Every 'workerPoolCheckInterval' ms the wait time of the messages in the queue is checked.
+ * If the 90th percentile of the recent wait times or the wait time of the oldest queued message
+ * exceeds 'workerPoolScaleUpWait' ms, the loaded Gate-Applications are duplicated and warmed up in
+ * this thread and a new worker is started, as long as the free heap after the last collection covers
+ * the estimated heap of a worker plus 'workerPoolHeapReserve' MB. The loaded applications are idle
+ * templates, every worker executes its own duplicates. A worker idle for more than 'workerPoolIdleTimeout' ms
+ * is retired while the queue is empty and its duplicated Gate-Applications are deleted. After every
+ * decision the pool waits 'workerPoolCooldown' ms before the next one.
+ *
+ * The heap estimate of a worker starts with 'workerHeapEstimate' MB, the heap measured on a scale up
+ * is smoothed into it and never lowers it below the configured value.
+ *
+ * @author lgredel
+ *
+ */
+public class WorkerPoolScaler extends Thread {
+  private static Logger log = Logger.getLogger(WorkerPoolScaler.class);
+
+  private static final long MB = 1024L * 1024L;
+
+  private final CorpusController preprocessingTemplate;
+  private final CorpusController classificationTemplate;
+  private final MessageFileQueue queue;
+
+  private final int minWorkers;
+  private final int maxWorkers;
+  private final long checkInterval;
+  private final long scaleUpWaitTime;
+  private final long idleTimeout;
+  private final long cooldown;
+  private final long heapReserve;
+
+  private final List<CompletePipelineWorker> workers = new ArrayList<CompletePipelineWorker>();
+  private int nextWorkerNo = 0;
+  private long lastDecision = 0;
+
+  // heap of the duplicated Gate-Applications of a worker, smoothed on every scale up
+  private final long configuredHeapEstimate;
+  private volatile long workerHeapEstimate;
+  private volatile int scaleUps = 0;
+  private volatile int scaleDowns = 0;
+  private volatile String lastDecisionReason = "none";
+
+  /**
+   * @param preprocessingTemplate loaded application, only duplicated for new workers
+   * @param classificationTemplate loaded application, only duplicated for new workers
+   * @param queue
+   */
+  public WorkerPoolScaler(CorpusController preprocessingTemplate, CorpusController classificationTemplate,
+      MessageFileQueue queue) {
+    super("WorkerPoolScaler");
+    setDaemon(true);
+    this.preprocessingTemplate = preprocessingTemplate;
+    this.classificationTemplate = classificationTemplate;
+    this.queue = queue;
+
+    minWorkers = Math.max(1, GlobalParameters.extractIntProperty("workerPoolMin", 1));
+    int threadNo = GlobalParameters.extractIntProperty("currentThreadNo", 1);
+    maxWorkers = Math.max(minWorkers, GlobalParameters.extractIntProperty("workerPoolMax", threadNo));
+    checkInterval = GlobalParameters.extractLongProperty("workerPoolCheckInterval", 10000);
+    scaleUpWaitTime = GlobalParameters.extractLongProperty("workerPoolScaleUpWait", 5000);
+    idleTimeout = GlobalParameters.extractLongProperty("workerPoolIdleTimeout", 5L * 60 * 1000);
+    cooldown = GlobalParameters.extractLongProperty("workerPoolCooldown", 60000);
+    heapReserve = GlobalParameters.extractLongProperty("workerPoolHeapReserve", 512) * MB;
+    configuredHeapEstimate = GlobalParameters.extractLongProperty("workerHeapEstimate", 256) * MB;
+    workerHeapEstimate = configuredHeapEstimate;
+  }
+
+  @Override
+  public void run() {
+    log.info("Worker pool scaler started with " + getWorkerCount() + " workers, min: " + minWorkers + " max: "
+        + maxWorkers);
+    try {
+      while (!queue.isShutdown()) {
+        Thread.sleep(checkInterval);
+        if (queue.isShutdown()) {
+          break;
+        }
+        evaluate();
+      }
+    } catch (InterruptedException e) {
+      log.info("Worker pool scaler interrupted");
+    }
+    // no further duplicates are needed
+    deleteApplications(preprocessingTemplate, classificationTemplate);
+    log.info("Worker pool scaler finished - " + getStatistics());
+  }
+
+  /**
+   * Scale up on a long wait time in the queue, scale down on an idle worker
+   */
+  private void evaluate() {
+    LatencyHistogram recentWaitTimes = queue.takeRecentWaitTimes();
+    long waitTime = Math.max(recentWaitTimes.percentile(90), queue.getOldestWaitTime());
+    long headroom = getHeapHeadroom();
+    int workerCount = getWorkerCount();
+
+    log.debug("Worker pool - workers: " + workerCount + " queue size: " + queue.size() + " wait time p90/oldest: "
+        + waitTime + " ms heap headroom: " + (headroom / MB) + " MB");
+
+    long now = System.currentTimeMillis();
+    if (now - lastDecision < cooldown) {
+      return;
+    }
+
+    if (waitTime > scaleUpWaitTime && workerCount < maxWorkers) {
+      if (headroom < workerHeapEstimate + heapReserve) {
+        decide("no scale up to " + (workerCount + 1) + " workers: wait time " + waitTime + " ms but heap headroom "
+            + (headroom / MB) + " MB below worker estimate " + (workerHeapEstimate / MB) + " MB + reserve "
+            + (heapReserve / MB) + " MB");
+        return;
+      }
+      addWorker("wait time " + waitTime + " ms above " + scaleUpWaitTime + " ms, heap headroom "
+          + (headroom / MB) + " MB");
+      return;
+    }
+
+    if (workerCount > minWorkers && queue.size() == 0) {
+      CompletePipelineWorker idleWorker = findIdleWorker(now);
+      if (idleWorker != null) {
+        idleWorker.retire();
+        decide("retire " + idleWorker.getName() + ": idle for " + (now - idleWorker.getIdleSince())
+            + " ms with empty queue");
+      }
+    }
+  }
+
+  private void addWorker(String reason) {
+    CorpusController preprocessingGateApp = null;
+    CorpusController classificationGateApp = null;
+    String workerThreadName = null;
+    synchronized (workers) {
+      workerThreadName = "CompletepipelineWorker_" + nextWorkerNo++;
+    }
+
+    long start = System.currentTimeMillis();
+    long heapBefore = getUsedHeap();
+    try {
+      preprocessingGateApp = SharedResources.duplicate(preprocessingTemplate);
+      classificationGateApp = SharedResources.duplicate(classificationTemplate);
+
+      // other workers allocate during the duplication, so a single measurement is only weighted by a quarter
+      long heapCost = getUsedHeap() - heapBefore;
+      if (heapCost > 0) {
+        workerHeapEstimate = Math.max(configuredHeapEstimate, (3 * workerHeapEstimate + heapCost) / 4);
+      }
+
+      try {
+        ControllerWarmup.warmUp(preprocessingGateApp, classificationGateApp);
+      } catch (Exception e) {
+        log.error(e.getClass().getName() + " occured on warm-up of Gate-Applications for " + workerThreadName);
+        log.error(e.getMessage());
+      }
+
+      CompletePipelineWorker.startWorker(preprocessingGateApp, classificationGateApp, workerThreadName, this);
+      scaleUps++;
+      decide("scale up to " + getWorkerCount() + " workers with " + workerThreadName + ": " + reason
+          + ", duplicated applications in " + (System.currentTimeMillis() - start) + " ms");
+    } catch (ResourceInstantiationException e) {
+      log.error(e.getClass().getName() + " occured on duplicating Gate-Applications for " + workerThreadName);
+      log.error(e.getMessage());
+      deleteApplications(preprocessingGateApp, classificationGateApp);
+      decide("scale up failed: " + e.getMessage());
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on starting " + workerThreadName);
+      log.error(e.getMessage());
+      deleteApplications(preprocessingGateApp, classificationGateApp);
+      decide("scale up failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param now
+   * @return the longest idle worker above the idle timeout
+   */
+  private CompletePipelineWorker findIdleWorker(long now) {
+    CompletePipelineWorker idleWorker = null;
+    synchronized (workers) {
+      for (CompletePipelineWorker worker : workers) {
+        long idleSince = worker.getIdleSince();
+        if (worker.isRetired() || idleSince == 0 || now - idleSince < idleTimeout) {
+          continue;
+        }
+        if (idleWorker == null || idleSince < idleWorker.getIdleSince()) {
+          idleWorker = worker;
+        }
+      }
+    }
+    return idleWorker;
+  }
+
+  private void decide(String reason) {
+    lastDecision = System.currentTimeMillis();
+    lastDecisionReason = reason;
+    log.info("Worker pool decision - " + reason);
+  }
+
+  /**
+   * Called by startWorker before the worker is started
+   *
+   * @param worker
+   */
+  void workerStarted(CompletePipelineWorker worker) {
+    int workerCount;
+    synchronized (workers) {
+      workers.add(worker);
+      nextWorkerNo = Math.max(nextWorkerNo, workers.size());
+      workerCount = workers.size();
+    }
+    queue.setWorkerCount(workerCount);
+  }
+
+  /**
+   * Called by the worker at the end of its run method, deletes the duplicated applications
+   * of a retired worker
+   *
+   * @param worker
+   */
+  void workerFinished(CompletePipelineWorker worker) {
+    int workerCount;
+    synchronized (workers) {
+      workers.remove(worker);
+      workerCount = workers.size();
+      if (!worker.isRetired()) {
+        return;
+      }
+      scaleDowns++;
+    }
+
+    synchronized (WorkerThread.currenThreadList) {
+      WorkerThread.currenThreadList.remove(worker);
+    }
+    deleteApplications(worker.getPreprocessingGateApp(), worker.getClassificationGateApp());
+    queue.setWorkerCount(workerCount);
+    log.info("Worker pool scaled down to " + workerCount + " workers, " + worker.getName() + " finished");
+  }
+
+  private void deleteApplications(CorpusController preprocessingGateApp, CorpusController classificationGateApp) {
+    if (preprocessingGateApp != null) {
+      Factory.deleteResource(preprocessingGateApp);
+    }
+    if (classificationGateApp != null) {
+      Factory.deleteResource(classificationGateApp);
+    }
+  }
+
+  private static long getUsedHeap() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * @return bytes the heap can still grow, garbage left since the last collection is not counted as used
+   */
+  private static long getHeapHeadroom() {
+    return Math.max(0, MemoryManager.getFreeHeapAfterCollection());
+  }
+
+  public int getWorkerCount() {
+    synchronized (workers) {
+      return workers.size();
+    }
+  }
+
+  public int getScaleUpCount() {
+    return scaleUps;
+  }
+
+  public int getScaleDownCount() {
+    return scaleDowns;
+  }
+
+  public long getWorkerHeapEstimate() {
+    return workerHeapEstimate;
+  }
+
+  public String getLastDecisionReason() {
+    return lastDecisionReason;
+  }
+
+  /**
+   * @return pool size, decisions and the last decision
+   */
+  public String getStatistics() {
+    return "workers: " + getWorkerCount() + " (" + minWorkers + "-" + maxWorkers + ") scale ups: " + scaleUps
+        + " scale downs: " + scaleDowns + " worker heap estimate: " + (workerHeapEstimate / MB)
+        + " MB last decision: " + lastDecisionReason;
+  }
+}
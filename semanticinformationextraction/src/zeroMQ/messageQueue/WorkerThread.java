@@ -19,6 +19,7 @@ import gate.Annotation;
 import gate.AnnotationSet;
 import gate.CorpusController;
 import gate.Document;
+import gate.Factory;
 import hibernate.DatabaseFacade;
 import hibernate.entities.DocumentMetaData;
 import hibernate.entities.Sentiment;
@@ -27,21 +28,31 @@ import hibernate.entities.SentimentClassifierType;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.net.MalformedURLException;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 
 import javax.xml.bind.JAXB;
 
 import org.apache.log4j.Logger;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
 
 import utils.CifsNetworkConfig;
+import utils.DeadlineExceededException;
 import utils.GateInitSingleton;
+import utils.GateXmlStreamLoader;
 import utils.GlobalParameters;
+import zeroMQ.receiver.IngressDeduplicator;
 import classification.ClassifiedDocument;
 import classification.SentimentClassification;
 import classification.SentimentDocument;
@@ -58,16 +69,23 @@ public abstract class WorkerThread extends Thread{
   
   protected static Logger log = Logger.getLogger(WorkerThread.class);
   protected static Properties configProperties = GlobalParameters.loadConfigFile();
-  protected CorpusController resetApplication = null;
   protected DatabaseFacade databaseConn = DatabaseFacade.getSingletonFacade();
   private GateInitSingleton gate = GateInitSingleton.getInstance();
   protected static SimpleDateFormat sdf = GlobalParameters.getFormat();
   protected static ArrayList<CorpusController> preprocessingApplications = new ArrayList<CorpusController>();
   protected static ArrayList<CorpusController> classificationApplications = new ArrayList<CorpusController>();
   protected static ArrayList<Thread> currenThreadList = new ArrayList<Thread>();
+
+  // workers started and not yet left their run method, the pool may grow and shrink
+  private static final Object runningWorkersLock = new Object();
+  private static int runningWorkers = 0;
   
   protected MessageFileQueue queue = null;
   protected CifsNetworkConfig networkConfig = null;
+  protected boolean streamDocumentLoading = GlobalParameters.extractBooleanProperty("streamDocumentLoading", false);
+
+  public Session hibernateSession;
+  protected Transaction tx = null;
   
   public WorkerThread() throws FileNotFoundException {
     super();
@@ -79,12 +97,6 @@ public abstract class WorkerThread extends Thread{
       log.error("Cannot initialize queue on Workerthreadconstructor");
       throw e1;
     }
-    
-    try {
-      resetApplication = gate.getResetApplication();
-    } catch (Exception e) {
-      log.error(e.getMessage());
-    }  
   }
 
   /**
@@ -105,7 +117,154 @@ public abstract class WorkerThread extends Thread{
   public static void setCurrenThreadList(ArrayList<Thread> currenThreadList) {
     WorkerThread.currenThreadList = currenThreadList;
   }
+
+  /**
+   * Wait until all workers have left their run method after the queue was shut down
+   * 
+   * @param timeout maximum wait time in ms
+   * @return true if all workers finished, false if the timeout elapsed
+   * @throws InterruptedException
+   */
+  public static boolean awaitFinishedWorkers(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (runningWorkersLock) {
+      while (runningWorkers > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        runningWorkersLock.wait(remaining);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return number of workers still running
+   */
+  public static long getRunningWorkers() {
+    synchronized (runningWorkersLock) {
+      return runningWorkers;
+    }
+  }
+
+  /**
+   * Count the worker as running, called before the worker is started
+   */
+  protected static void workerStarted() {
+    synchronized (runningWorkersLock) {
+      runningWorkers++;
+    }
+  }
+
+  /**
+   * Called by each worker leaving its run method
+   */
+  protected static void workerFinished() {
+    synchronized (runningWorkersLock) {
+      runningWorkers--;
+      runningWorkersLock.notifyAll();
+    }
+  }
   
+  /**
+   * Select the preprocessing and classification application files of the pipeline
+   * 
+   * @param executionPipeline 'JSI' or 'UHOH'
+   * @return preprocessing and classification application file, null for an unknown pipeline
+   */
+  protected static File[] selectApplicationFiles(String executionPipeline) {
+    File preprocessingApplicationFile = null;
+    File classificationApplicationFile = null;
+    if (executionPipeline.equalsIgnoreCase("JSI")) {
+      preprocessingApplicationFile = GlobalParameters.getJsiPreprocessingGateApp();
+      classificationApplicationFile = GlobalParameters.getJsiClassificatonGateApp();  
+    }else {
+      if (executionPipeline.equalsIgnoreCase("UHOH")) {
+        classificationApplicationFile = GlobalParameters.getUhohClassificationGateApp();
+        preprocessingApplicationFile = GlobalParameters.getUhohPreprocessingGateApp();
+      }
+    }
+    return new File[] { preprocessingApplicationFile, classificationApplicationFile };
+  }
+
+  /**
+   * Create the Gate-Document of the message. If 'streamDocumentLoading' is configured the
+   * document is built while the message is inflated, without decoding it to a String.
+   * Messages which are no gate-xml are loaded from the String.
+   * 
+   * @param currentMessage
+   * @return the Gate-Document of the message
+   * @throws Exception
+   */
+  protected Document loadGateDocument(QueuedMessage currentMessage) throws Exception {
+    if (streamDocumentLoading) {
+      InputStream messageStream = currentMessage.openStream();
+      try {
+        Document gateDoc = GateXmlStreamLoader.newDocument(messageStream);
+        if (gateDoc != null) {
+          return gateDoc;
+        }
+      } finally {
+        messageStream.close();
+      }
+      log.debug("Message is no gate-xml document -> loading Gate-Document from String");
+    }
+    return Factory.newDocument(currentMessage.getMessageString());
+  }
+
+  /**
+   * Open a new hibernate session for the current documents
+   * 
+   * @return transaction isolation level of the connection, restored after the commit
+   * @throws SQLException
+   */
+  protected int openHibernateSession() throws SQLException {
+    hibernateSession = databaseConn.openSession();
+    hibernateSession.setFlushMode(FlushMode.COMMIT);
+    int level = hibernateSession.connection().getTransactionIsolation();
+    log.trace("TransactionIsolationLevel: " + level);
+    hibernateSession.connection().setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+    databaseConn.setHibernateSession(hibernateSession);
+    return level;
+  }
+
+  /**
+   * Save the documents and commit them in one transaction
+   * 
+   * @param dbDocuments
+   * @param level transaction isolation level returned by openHibernateSession
+   * @throws SQLException
+   */
+  protected void commitDocuments(List<DocumentMetaData> dbDocuments, int level) throws SQLException {
+    databaseConn.startTransaction();
+    tx = databaseConn.getTx();
+    for (DocumentMetaData dbDocument : dbDocuments) {
+      databaseConn.saveOrUpdateObjectToDatabase(dbDocument);
+    }
+    log.trace("Starting commit");
+    long start = System.currentTimeMillis();
+    tx.commit();
+    long end = System.currentTimeMillis();
+    long commitTime = end - start;
+    log.trace("Commit time for " + dbDocuments.size() + " documents: " + commitTime);
+    hibernateSession.connection().setTransactionIsolation(level);
+    log.info("Added and committet " + dbDocuments.size() + " new Documents in Database with IDs: "
+        + extractIDs(dbDocuments) + " sucessfully");
+  }
+
+
+  protected static String extractIDs(List<DocumentMetaData> dbDocuments) {
+    StringBuilder ids = new StringBuilder();
+    for (DocumentMetaData dbDocument : dbDocuments) {
+      if (ids.length() > 0) {
+        ids.append(", ");
+      }
+      ids.append(dbDocument.getId());
+    }
+    return ids.toString();
+  }
+
   /**
    * Calculate the Pos/neg Word ratio Sentiment on the current Document
    * 
@@ -117,12 +276,22 @@ public abstract class WorkerThread extends Thread{
    */
   protected void calculatePosNegWordRatioSentiment(Document gateDoc, DocumentMetaData dbDocument, SentimentClassification classification) throws Exception{
     log.debug("Starting to calculate Pos/Neg WordRatio Sentiment on gateDoc: " + gateDoc.getName() + " and documentMetadata: " + dbDocument.getId());
+    int[] orientationTerms = countOrientationTerms(gateDoc);
+    String fileName = classification.extractIDFromGateFeature(gateDoc);
+
+    savePosNegWordRatioSentiment(orientationTerms[0], orientationTerms[1], fileName, dbDocument, classification);
+  }
+
+  /**
+   * Count the positive and negative OrientationTerm annotations of the document
+   * 
+   * @param gateDoc
+   * @return number of positive and negative orientation terms
+   */
+  protected static int[] countOrientationTerms(Document gateDoc) {
     int positive = 0;
     int negative = 0;
-    
-    SentimentClassifierType classifierType = DatabaseFacade.getSingletonFacade().loadSentimentClassifierType("PosNegWordRatio", "CRISP");
-    SentimentDocument currentDocLevel = new SentimentDocument(dbDocument,classifierType);   
-    
+
     AnnotationSet orientationTermAnnotations = gateDoc.getAnnotations().get("OrientationTerm");
     
     Iterator<Annotation> annotIter = orientationTermAnnotations.iterator();
@@ -137,6 +306,24 @@ public abstract class WorkerThread extends Thread{
           negative++;
       }
     }
+    return new int[] { positive, negative };
+  }
+
+  /**
+   * Save the Pos/neg Word ratio Sentiment of the counted orientation terms, used by
+   * segmented documents, which count the orientation terms segment by segment
+   * 
+   * @param positive number of positive orientation terms
+   * @param negative number of negative orientation terms
+   * @param fileName JSI_WP3_ID of the document
+   * @param dbDocument - DocumentMetaData Object where to save in database
+   * @param classification
+   * @throws Exception
+   */
+  protected void savePosNegWordRatioSentiment(int positive, int negative, String fileName,
+      DocumentMetaData dbDocument, SentimentClassification classification) throws Exception {
+    SentimentClassifierType classifierType = DatabaseFacade.getSingletonFacade().loadSentimentClassifierType("PosNegWordRatio", "CRISP");
+    SentimentDocument currentDocLevel = new SentimentDocument(dbDocument,classifierType);   
         
     log.info("Extracted " + positive + " and " + negative + "  Orientationterms on document with databaseID: " + dbDocument.getId());
     
@@ -165,8 +352,6 @@ public abstract class WorkerThread extends Thread{
       
       currentDocLevel.setDbsentiment(currentDocSentiment);
       
-      String fileName = classification.extractIDFromGateFeature(gateDoc);
-      
       File serializedResult = new File(GlobalParameters.getShareDirectory(), fileName + ".result.xml");      
       log.info("Starting marshalling Result of PosNegWordRatio  to: " + serializedResult.getAbsolutePath());
       
@@ -205,8 +390,6 @@ public abstract class WorkerThread extends Thread{
       boolean writeResultXML = Boolean.parseBoolean(configProperties.get("writeResultXML").toString());       
       if(writeResultXML){
         
-        fileName = classification.extractIDFromGateFeature(gateDoc);
-        
         File classificationResultXML = new File(GlobalParameters.getShareDirectory(), fileName + ".result.xml");
         log.info("Starting marshalling Result of Classification to: " + classificationResultXML.getAbsolutePath());
         ClassifiedDocument result = classification.getClassifiedDocument();
@@ -238,4 +421,84 @@ public abstract class WorkerThread extends Thread{
       log.error("Calculated score is NaN");
     }
   }
+
+  /**
+   * Keep a document which exceeded the deadline of an application out of the queue,
+   * the message is acknowledged by the caller
+   * 
+   * @param message
+   * @param deadlineEx
+   */
+  protected void quarantine(QueuedMessage message, DeadlineExceededException deadlineEx) {
+    discardJournal(message);
+    try {
+      QuarantineStore.getInstance().quarantine(message, deadlineEx.getProfile());
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on quarantining document of stage " + deadlineEx.getStage());
+      log.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Keep a failed document in the DeadLetterStore for a later retry,
+   * the message is acknowledged by the caller
+   * 
+   * @param message
+   * @param stage processing stage which failed
+   * @param failure
+   */
+  protected void deadLetter(QueuedMessage message, String stage, Exception failure) {
+    discardJournal(message);
+    DeadLetterStore deadLetterStore = DeadLetterStore.getStartedInstance();
+    if (deadLetterStore == null) {
+      return;
+    }
+    try {
+      deadLetterStore.deadLetter(message, stage, failure);
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on recording dead letter of stage " + stage);
+      log.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Forget the incomplete stages of a failed message and delete its preprocessed snapshot,
+   * if 'stageJournal' is configured
+   * 
+   * @param message
+   */
+  private void discardJournal(QueuedMessage message) {
+    StageJournal stageJournal = StageJournal.getStartedInstance();
+    if (stageJournal == null) {
+      return;
+    }
+    try {
+      stageJournal.discard(message.getDigest());
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on discarding stage journal entry");
+      log.error(e.getMessage());
+    }
+  }
+
+  /**
+   * The messages are committed, remove retried dead letters and report the keys to the
+   * IngressDeduplicator, so a re-sent copy is dropped
+   * 
+   * @param messages
+   */
+  protected void messagesCommitted(List<QueuedMessage> messages) {
+    DeadLetterStore deadLetterStore = DeadLetterStore.getStartedInstance();
+    if (deadLetterStore != null) {
+      for (QueuedMessage message : messages) {
+        deadLetterStore.resolved(message);
+      }
+    }
+
+    IngressDeduplicator deduplicator = IngressDeduplicator.getStartedInstance();
+    if (deduplicator != null) {
+      for (QueuedMessage message : messages) {
+        deduplicator.committed(message.getDedupKey());
+      }
+    }
+  }
 }
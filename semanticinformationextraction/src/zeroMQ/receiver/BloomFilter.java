@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.receiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bloom filter over message digests, which can be saved to and loaded from a file.
+ *
+ * The bit positions are derived from the first 16 bytes of the digest by double hashing,
+ * so the digest has to be a cryptographic hash (e.g. SHA-1) of the key.
+ *
+ * @author lgredel
+ *
+ */
+public class BloomFilter {
+  private static Logger log = Logger.getLogger(BloomFilter.class);
+
+  private static final int FILE_MAGIC = 0x424C4F4D;
+
+  private final long[] words;
+  private final long bitCount;
+  private final int hashCount;
+  private long insertions = 0;
+
+  /**
+   * @param expectedInsertions number of keys the filter is sized for
+   * @param falsePositiveRate false positive rate after expectedInsertions keys
+   */
+  public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    super();
+    long n = Math.max(1, expectedInsertions);
+    double p = Math.min(0.5, Math.max(1e-12, falsePositiveRate));
+
+    long bits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    words = new long[(int) Math.max(1, (bits + 63) / 64)];
+    bitCount = words.length * 64L;
+    hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+  }
+
+  private BloomFilter(long[] words, int hashCount, long insertions) {
+    super();
+    this.words = words;
+    this.bitCount = words.length * 64L;
+    this.hashCount = hashCount;
+    this.insertions = insertions;
+  }
+
+  /**
+   * @param digest digest of the key, at least 16 bytes
+   * @return false if the key was definitely not added, true if it was probably added
+   */
+  public synchronized boolean mightContain(byte[] digest) {
+    long hash1 = toLong(digest, 0);
+    long hash2 = toLong(digest, 8);
+    for (int i = 0; i < hashCount; i++) {
+      long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+      if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param digest digest of the key, at least 16 bytes
+   */
+  public synchronized void put(byte[] digest) {
+    long hash1 = toLong(digest, 0);
+    long hash2 = toLong(digest, 8);
+    for (int i = 0; i < hashCount; i++) {
+      long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+      words[(int) (bit >>> 6)] |= (1L << bit);
+    }
+    insertions++;
+  }
+
+  public synchronized long getInsertions() {
+    return insertions;
+  }
+
+  /**
+   * @return size of the bit array in bytes
+   */
+  public long getSizeInBytes() {
+    return words.length * 8L;
+  }
+
+  /**
+   * @return a copy of the filter, which can be saved while this filter is changed
+   */
+  public synchronized BloomFilter copy() {
+    return new BloomFilter(words.clone(), hashCount, insertions);
+  }
+
+  /**
+   * Write the filter to a temporary file and replace the file with it in one atomic move,
+   * so a crash while saving does not destroy the last saved filter
+   *
+   * @param file
+   * @throws IOException
+   */
+  public synchronized void save(File file) throws IOException {
+    File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(hashCount);
+      out.writeInt(words.length);
+      out.writeLong(insertions);
+      for (long word : words) {
+        out.writeLong(word);
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @param file file written by save
+   * @param expectedInsertions sizing used if the file does not exist or does not match
+   * @param falsePositiveRate sizing used if the file does not exist or does not match
+   * @return the loaded filter or a new empty filter
+   */
+  public static BloomFilter load(File file, long expectedInsertions, double falsePositiveRate) {
+    BloomFilter emptyFilter = new BloomFilter(expectedInsertions, falsePositiveRate);
+    if (!file.isFile()) {
+      return emptyFilter;
+    }
+
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      int magic = in.readInt();
+      int hashCount = in.readInt();
+      int wordCount = in.readInt();
+      long insertions = in.readLong();
+
+      if (magic != FILE_MAGIC || hashCount != emptyFilter.hashCount || wordCount != emptyFilter.words.length) {
+        log.info("Bloom filter in " + file.getAbsolutePath()
+            + " has a different size than configured, starting with an empty filter");
+        return emptyFilter;
+      }
+
+      long[] words = new long[wordCount];
+      for (int i = 0; i < wordCount; i++) {
+        words[i] = in.readLong();
+      }
+      return new BloomFilter(words, hashCount, insertions);
+    } catch (IOException e) {
+      log.error(e.getClass().getName() + " occured on loading bloom filter from: " + file.getAbsolutePath());
+      log.error(e.getMessage());
+      return emptyFilter;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          log.error(e.getMessage());
+        }
+      }
+    }
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xFF);
+    }
+    return value;
+  }
+}
@@ -17,6 +17,7 @@ package zeroMQ.receiver;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
@@ -27,10 +28,15 @@ import java.util.Random;
 import org.apache.log4j.Logger;
 import org.first.messaging.Messenger;
 
+import performance.ProcessingResourceProfiler;
+import preprocessing.SentimentObjectPrefilter;
 import utils.GateInitSingleton;
 import utils.GlobalParameters;
+import zeroMQ.messageQueue.ArchiveWriter;
 import zeroMQ.messageQueue.CompletePipelineWorker;
+import zeroMQ.messageQueue.DeadLetterStore;
 import zeroMQ.messageQueue.MessageFileQueue;
+import zeroMQ.messageQueue.StageJournal;
 import zeroMQ.messageQueue.WorkerThread;
 
 /**
@@ -55,6 +61,8 @@ public class CompletePipelineReceiver {
   private static int maxMessageBufferSize = GlobalParameters.extractMaxMessageBufferSize();
 
   private static final int SLEEP_TIMEOUT = GlobalParameters.extractSleepTimeout();
+
+  private static IngressDeduplicator deduplicator = null;
   
   /**
    * @param args
@@ -82,6 +90,18 @@ public class CompletePipelineReceiver {
       maxMessageLength = 1000000;
       log.info("Setting maxMessageLength to default: " + maxMessageLength);
     }
+    /*
+     * Documents above maxMessageLength are processed in segments by the workers,
+     * only documents above maxSegmentedMessageLength are dropped.
+     * The staged pipeline does not segment documents.
+     */
+    boolean segmentOversizedDocuments = GlobalParameters.extractBooleanProperty("segmentOversizedDocuments", true)
+        && !GlobalParameters.extractBooleanProperty("stagedPipeline", false);
+    int maxSegmentedMessageLength = GlobalParameters.extractIntProperty("maxSegmentedMessageLength", 20000000);
+    if (GlobalParameters.extractBooleanProperty("dedupEnabled", true)) {
+      deduplicator = IngressDeduplicator.getInstance();
+    }
+
     // Creates messaging thread
     messenger = new Messenger();
 
@@ -101,10 +121,11 @@ public class CompletePipelineReceiver {
     Random rand = new Random();
 
     String message = null;
+    String dedupKey = null;
     
     while (loop) {
 
-      int queueSize = queue.getFileMessages().size();
+      int queueSize = queue.size();
       
       generateRandomCommentOfMessageQueueSize(rand, queueSize);
 
@@ -117,7 +138,19 @@ public class CompletePipelineReceiver {
          * Receives a message from ZeroMQ
          */
         message =  messenger.getMessage();
-               
+        
+        /*
+         * Re-sent documents are dropped before they are parsed by GATE,
+         * checked once per received message, not on retries to add it to the queue
+         */
+        dedupKey = null;
+        if (message != null && deduplicator != null && !message.equals(Messenger.FINISH_COMMAND)) {
+          dedupKey = deduplicator.messageKey(message);
+          if (deduplicator.isDuplicate(dedupKey, message)) {
+            message = null;
+            continue;
+          }
+        }
       }
 
       
@@ -130,9 +163,12 @@ public class CompletePipelineReceiver {
                 
         if (messageLength > maxMessageLength) {
           
-          log.info("Documentsize to big: " + messageLength);
-          message = null;
-          continue;
+          if (!segmentOversizedDocuments || messageLength > maxSegmentedMessageLength) {
+            log.info("Documentsize to big: " + messageLength);
+            message = null;
+            continue;
+          }
+          log.debug("Document with size: " + messageLength + " is processed in segments");
         } 
         
         if (message.equals(Messenger.FINISH_COMMAND)) {
@@ -144,8 +180,17 @@ public class CompletePipelineReceiver {
           break;
         } else {
 
-          
-          boolean fileOffered =  queue.pushMessage(message);        
+          /*
+           * Blocks until the byte budget and the free heap admit the message,
+           * no further message is received from ZeroMQ meanwhile
+           */
+          boolean fileOffered = false;
+          try {
+            fileOffered = queue.putMessage(message, dedupKey);
+          } catch (InterruptedException e) {
+            log.error("Receiver interrupted while waiting for free space in queue");
+            log.error(e.getMessage());
+          }
 
           if(fileOffered){
             ++messageNum;
@@ -164,7 +209,7 @@ public class CompletePipelineReceiver {
             tries++;
                      
             if ((tries % 50) == 0) {
-              log.info("Queue is full");
+              log.info("Cannot add message to queue");
               System.out.println("Tried " + tries + " to send same document");
             }
           }
@@ -172,24 +217,44 @@ public class CompletePipelineReceiver {
       }
     }
 
-    /**
-     * Wait for finish on all Threads on queue
-     */
-    Iterator threadIt = currenThreadList.iterator();
-
-    while (threadIt.hasNext()) {
-
-      Thread currentThread = (Thread) threadIt.next();
-      try {
-        currentThread.join();
-
-      } catch (InterruptedException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
+    // workers left after the shutdown only hold checkpointed documents, they must not be in a commit
+    queue.awaitCommits(GlobalParameters.extractLongProperty("gracefulTimeout", 10L * 1000));
+    boolean workersRunning = WorkerThread.getRunningWorkers() > 0;
+    if (!workersRunning) {
+      GateInitSingleton.unloadGateResources();
+    }
+    queue.close();
+    if (deduplicator != null) {
+      deduplicator.save();
+      log.info(deduplicator.getStatistics());
+    }
+    if (DeadLetterStore.getStartedInstance() != null) {
+      log.info(DeadLetterStore.getStartedInstance().getStatistics());
+    }
+    if (StageJournal.getStartedInstance() != null) {
+      log.info(StageJournal.getStartedInstance().getStatistics());
+    }
+    if (SentimentObjectPrefilter.getStartedInstance() != null) {
+      log.info(SentimentObjectPrefilter.getStartedInstance().getStatistics());
+    }
+    if (ProcessingResourceProfiler.isEnabled()) {
+      log.info(ProcessingResourceProfiler.getInstance().getStatistics());
+      String profileFile = GlobalParameters.loadConfigFile().getProperty("prProfileFile");
+      if (profileFile != null) {
+        try {
+          ProcessingResourceProfiler.getInstance().export(new File(profileFile));
+        } catch (IOException e) {
+          log.error(e.getClass().getName() + " occured on exporting processing resource profile: " + profileFile);
+          log.error(e.getMessage());
+        }
       }
     }
 
-    GateInitSingleton.unloadGateResources();
+    if (workersRunning) {
+      log.info("Exit with " + WorkerThread.getRunningWorkers()
+          + " workers still running, their documents are checkpointed");
+      System.exit(0);
+    }
     log.info("Total received messages:" + messageNum);
   }
 
@@ -209,7 +274,7 @@ public class CompletePipelineReceiver {
     
     if (mod == 0) {
       System.out.println("Actual number of documents in queue is: " + queueSize
-          + " from: " + maxMessageBufferSize);
+          + " from: " + maxMessageBufferSize + " with " + queue.getQueuedBytes() + " bytes");
     }
   }
 
@@ -265,37 +330,76 @@ public class CompletePipelineReceiver {
 
   
   /**
-   * If FINISH-Command is received from ZeroMQ, stop/interrupt all Workerthreads
-   * on empty-MessageQueue
+   * If FINISH-Command is received from ZeroMQ, the workers process the remaining
+   * messages and finish. Documents not finished after 'drainTimeout' ms are checkpointed
+   * for the next start. Documents in their final commit are awaited until the commit ended,
+   * only afterwards the workers with checkpointed documents are interrupted.
    */
   public static void receivedFinishCommand() {
     log.info("Received finish command");
 
-    Iterator<Thread> stopThreadsIt = currenThreadList.iterator();
+    long drainTimeout = GlobalParameters.extractLongProperty("drainTimeout", 10L * 60 * 1000);
+    long gracefulTimeout = GlobalParameters.extractLongProperty("gracefulTimeout", 10L * 1000);
 
-    while (stopThreadsIt.hasNext()) {
-      WorkerThread th = (WorkerThread) stopThreadsIt.next();
-      log.trace("Starting to interrupt thread: " + th.getName());
+    long drainStart = System.currentTimeMillis();
+    queue.shutdown();
 
-      Integer waittime = new Integer(configProperties.get("gracefulTimeout").toString());
+    boolean drained = false;
+    try {
+      drained = WorkerThread.awaitFinishedWorkers(drainTimeout);
+    } catch (InterruptedException e) {
+      log.error("Receiver interrupted while waiting for workers to finish");
+      log.error(e.getMessage());
+    }
 
-      while (true) {
-        log.info("Waiting to stop Thread ... " + th.getName());
-        try {
-          Thread.sleep(waittime);
-        } catch (InterruptedException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
+    if (drained) {
+      log.info("All workers finished the queue in " + (System.currentTimeMillis() - drainStart) + " ms");
+      closeArchiveWriter(gracefulTimeout);
+      GateInitSingleton.closeControllerPools();
+      return;
+    }
+
+    log.info("Workers did not finish within " + drainTimeout + " ms, " + queue.size() + " queued and "
+        + queue.getInFlightCount() + " documents in process are checkpointed");
+    int checkpointed = queue.checkpoint(gracefulTimeout);
+    log.info(checkpointed + " documents checkpointed for the next start");
+    queue.awaitCommits(gracefulTimeout);
 
-        if (queue.getFileMessages().peek() == null) {
+    /*
+     * No worker is committing and the workers cannot commit checkpointed documents anymore,
+     * interrupting them only shortens the shutdown
+     */
+    synchronized (currenThreadList) {
+      Iterator<Thread> stopThreadsIt = currenThreadList.iterator();
+      while (stopThreadsIt.hasNext()) {
+        Thread th = stopThreadsIt.next();
+        if (th.isAlive()) {
           log.info("Interrupt Thread ..." + th.getName());
           th.interrupt();
-          break;
-        } else {
-          System.out.println("Waiting: ...");
         }
       }
     }
+
+    try {
+      if (WorkerThread.awaitFinishedWorkers(gracefulTimeout)) {
+        closeArchiveWriter(gracefulTimeout);
+        GateInitSingleton.closeControllerPools();
+      }
+    } catch (InterruptedException e) {
+      log.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Wait for the archive uploads and commit their DocumentVersions, only called
+   * after all workers finished. Files not uploaded are uploaded on the next start.
+   * 
+   * @param timeout maximum wait time in ms for the uploads
+   */
+  private static void closeArchiveWriter(long timeout) {
+    ArchiveWriter archiveWriter = ArchiveWriter.getStartedInstance();
+    if (archiveWriter != null) {
+      archiveWriter.close(timeout);
+    }
   }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2013, University of Hohenheim Department of Informations Systems 2
+ *
+ * This copyrighted material is made available to anyone wishing to use, modify,
+ * copy, or redistribute it subject to the terms and conditions of the GNU
+ * Lesser General Public License, as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this distribution. If not, see <http://www.gnu.org/licenses/>
+ */
+package zeroMQ.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import utils.GlobalParameters;
+
+/**
+ * Detects re-sent documents in the receiver, before they are parsed by GATE.
+ *
+ * The key of a message is the SHA-1 of its JSI_WP3_ID feature and its normalized
+ * document text (content of TextWithNodes without nodes, whitespace collapsed,
+ * lower case). A document re-sent with the same id but changed text is an update and
+ * gets a new key, features like the retrieval date do not change the key.
+ *
+ * The key is computed by the receiver and kept with the queued message, it is only remembered
+ * when the worker reports the commit of the document. A document which failed, was quarantined
+ * or was lost in a crash is not known, so a re-send by the upstream recovers it. A message sent
+ * again while the first copy is still in process is not dropped.
+ *
+ * The keys of the last 'dedupWindowSize' committed messages are held in an exact set. Older keys
+ * are only held in a bloom filter, which is saved in 'dedupBloomFile' and survives restarts.
+ * A key found in the bloom filter is a duplicate with a false positive rate of
+ * 'dedupFalsePositiveRate', rising above 'dedupExpectedDocuments' keys. A false positive would drop
+ * a unique document, so these messages are queued and only dropped if 'dedupDropBloomMatches' = true.
+ * The filter is saved every 'dedupSaveInterval' committed keys from a copy, outside of the lock.
+ *
+ * The key is computed in one pass over the message outside of the lock of the deduplicator,
+ * messages above 'dedupMaxLength' chars are not checked.
+ *
+ * @author lgredel
+ *
+ */
+public class IngressDeduplicator {
+  private static Logger log = Logger.getLogger(IngressDeduplicator.class);
+
+  private static Properties configProperties = GlobalParameters.loadConfigFile();
+
+  private static final Pattern JSI_ID_PATTERN = Pattern.compile(
+      "<Name[^>]*>\\s*JSI_WP3_ID\\s*</Name>\\s*<Value[^>]*>([^<]*)</Value>");
+
+  private static final String TEXT_START_TAG = "<TextWithNodes>";
+  private static final String TEXT_END_TAG = "</TextWithNodes>";
+  private static final String NODE_TAG = "<Node";
+
+  private static IngressDeduplicator INSTANCE;
+
+  private final BloomFilter bloomFilter;
+  private final File bloomFile;
+  private final Map<String, Boolean> recentKeys;
+  private final boolean dropBloomMatches;
+  private final int saveInterval;
+  private final int statisticsInterval;
+  private final long expectedDocuments;
+  private final int maxLength;
+
+  private long checkedMessages = 0;
+  private long uncheckedMessages = 0;
+  private long uniqueMessages = 0;
+  private long committedMessages = 0;
+  private long windowDuplicates = 0;
+  private long bloomDuplicates = 0;
+  private long bloomMatchesPassed = 0;
+  private long droppedBytes = 0;
+  private long unsavedKeys = 0;
+
+  // serializes the saves of the copies, an older copy does not replace a newer file
+  private final Object saveLock = new Object();
+  private long savedInsertions = 0;
+
+  private IngressDeduplicator() {
+    super();
+    final int windowSize = GlobalParameters.extractIntProperty("dedupWindowSize", 100000);
+    expectedDocuments = GlobalParameters.extractLongProperty("dedupExpectedDocuments", 2000000L);
+    dropBloomMatches = GlobalParameters.extractBooleanProperty("dedupDropBloomMatches", false);
+    saveInterval = GlobalParameters.extractIntProperty("dedupSaveInterval", 1000);
+    statisticsInterval = GlobalParameters.extractIntProperty("dedupStatisticsInterval", 1000);
+    maxLength = GlobalParameters.extractIntProperty("dedupMaxLength", 2000000);
+
+    double falsePositiveRate = 0.0001;
+    String falsePositiveRateStr = configProperties.getProperty("dedupFalsePositiveRate");
+    if (falsePositiveRateStr != null) {
+      try {
+        falsePositiveRate = Double.parseDouble(falsePositiveRateStr.trim());
+      } catch (NumberFormatException nfe) {
+        log.error("Cannot read dedupFalsePositiveRate " + falsePositiveRateStr + " as double-Value from config-File");
+        log.info("Setting dedupFalsePositiveRate to default: " + falsePositiveRate);
+      }
+    }
+
+    recentKeys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > windowSize;
+      }
+    };
+
+    bloomFile = new File(configProperties.getProperty("dedupBloomFile", "dedup.bloom"));
+    bloomFilter = BloomFilter.load(bloomFile, expectedDocuments, falsePositiveRate);
+    log.info("Loaded dedup bloom filter from " + bloomFile.getAbsolutePath() + " with "
+        + bloomFilter.getInsertions() + " keys (" + bloomFilter.getSizeInBytes() + " bytes)");
+  }
+
+  /**
+   * @return the IngressDeduplicator, created on the first call
+   */
+  public static synchronized IngressDeduplicator getInstance() {
+    if (INSTANCE == null) {
+      INSTANCE = new IngressDeduplicator();
+    }
+    return INSTANCE;
+  }
+
+  /**
+   * @return the IngressDeduplicator if it was created, else null
+   */
+  public static synchronized IngressDeduplicator getStartedInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Compute the key of a message, the lock of the deduplicator is not held
+   *
+   * @param message gate-xml message
+   * @return hex SHA-1 of the JSI_WP3_ID and the normalized text, null if the message is not checked
+   */
+  public String messageKey(String message) {
+    if (message.length() > maxLength) {
+      synchronized (this) {
+        uncheckedMessages++;
+      }
+      log.debug("Message with " + message.length() + " chars exceeds dedupMaxLength -> not checked for duplicates");
+      return null;
+    }
+
+    byte[] digest = digest(extractJSIID(message), message);
+    return (digest != null) ? toHex(digest) : null;
+  }
+
+  /**
+   * Check if a message with this key was committed before
+   *
+   * @param key key of the message, see messageKey
+   * @param message gate-xml message
+   * @return true if the message is a duplicate and should not be queued
+   */
+  public synchronized boolean isDuplicate(String key, String message) {
+    checkedMessages++;
+    if (key == null) {
+      return false;
+    }
+
+    boolean duplicate = false;
+    if (recentKeys.containsKey(key)) {
+      windowDuplicates++;
+      duplicate = true;
+      log.info("Dropping duplicate message with JSI_WP3_ID: " + extractJSIID(message)
+          + " (committed in recent window)");
+    } else if (bloomFilter.mightContain(fromHex(key))) {
+      if (dropBloomMatches) {
+        bloomDuplicates++;
+        duplicate = true;
+        log.info("Dropping duplicate message with JSI_WP3_ID: " + extractJSIID(message) + " (found in bloom filter)");
+      } else {
+        bloomMatchesPassed++;
+        log.info("Message with JSI_WP3_ID: " + extractJSIID(message) + " found in bloom filter, queued anyway");
+      }
+    } else {
+      uniqueMessages++;
+    }
+
+    if (duplicate) {
+      droppedBytes += message.length();
+    }
+
+    if (statisticsInterval > 0 && checkedMessages % statisticsInterval == 0) {
+      log.info(getStatistics());
+    }
+    return duplicate;
+  }
+
+  /**
+   * Remember the key of a committed message, called by the workers after the commit
+   *
+   * @param key key of the message, null if the message was not checked
+   */
+  public void committed(String key) {
+    if (key == null) {
+      return;
+    }
+
+    BloomFilter snapshot = null;
+    synchronized (this) {
+      committedMessages++;
+      if (recentKeys.put(key, Boolean.TRUE) == null) {
+        bloomFilter.put(fromHex(key));
+        unsavedKeys++;
+      }
+
+      if (saveInterval > 0 && unsavedKeys >= saveInterval) {
+        snapshot = takeSnapshot();
+      }
+    }
+
+    if (snapshot != null) {
+      save(snapshot);
+    }
+  }
+
+  /**
+   * Save the bloom filter, has to be called on shutdown
+   */
+  public void save() {
+    save(takeSnapshot());
+  }
+
+  private synchronized BloomFilter takeSnapshot() {
+    unsavedKeys = 0;
+    return bloomFilter.copy();
+  }
+
+  /*
+   * Write the copy without holding the lock of isDuplicate
+   */
+  private void save(BloomFilter snapshot) {
+    synchronized (saveLock) {
+      if (snapshot.getInsertions() < savedInsertions) {
+        return;
+      }
+      try {
+        snapshot.save(bloomFile);
+        savedInsertions = snapshot.getInsertions();
+      } catch (IOException e) {
+        log.error(e.getClass().getName() + " occured on saving dedup bloom filter to: "
+            + bloomFile.getAbsolutePath());
+        log.error(e.getMessage());
+      }
+    }
+
+    if (snapshot.getInsertions() > expectedDocuments) {
+      log.info("Dedup bloom filter contains " + snapshot.getInsertions() + " keys, more than "
+          + expectedDocuments + " expected documents, the false positive rate is increasing."
+          + " Increase 'dedupExpectedDocuments' and delete " + bloomFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * @return counters of checked and dropped messages
+   */
+  public synchronized String getStatistics() {
+    return "Dedup - checked: " + checkedMessages + " too long to check: " + uncheckedMessages + " unique: "
+        + uniqueMessages + " committed: " + committedMessages + " dropped (window): " + windowDuplicates
+        + " dropped (bloom): " + bloomDuplicates + " bloom matches queued: " + bloomMatchesPassed
+        + " saved message chars: " + droppedBytes;
+  }
+
+  public synchronized long getDroppedMessages() {
+    return windowDuplicates + bloomDuplicates;
+  }
+
+  /**
+   * @param message gate-xml message
+   * @return value of the document feature JSI_WP3_ID or an empty String
+   */
+  static String extractJSIID(String message) {
+    int textStart = message.indexOf(TEXT_START_TAG);
+    CharSequence features = (textStart < 0) ? message : message.subSequence(0, textStart);
+
+    Matcher matcher = JSI_ID_PATTERN.matcher(features);
+    if (matcher.find()) {
+      return matcher.group(1).trim();
+    }
+    return "";
+  }
+
+  /**
+   * @param message gate-xml message
+   * @return document text without nodes, whitespace collapsed and in lower case
+   */
+  static String normalizeContent(String message) {
+    int start = 0;
+    int end = message.length();
+    int textStart = message.indexOf(TEXT_START_TAG);
+    int textEnd = message.lastIndexOf(TEXT_END_TAG);
+    if (textStart >= 0 && textEnd > textStart) {
+      start = textStart + TEXT_START_TAG.length();
+      end = textEnd;
+    }
+
+    StringBuilder text = new StringBuilder(end - start);
+    boolean whitespace = false;
+    for (int i = start; i < end; i++) {
+      char c = message.charAt(i);
+      if (c == '<' && message.startsWith(NODE_TAG, i)) {
+        // <Node id="..."/> is removed
+        int tagEnd = message.indexOf('>', i);
+        if (tagEnd > 0 && tagEnd < end && message.charAt(tagEnd - 1) == '/') {
+          i = tagEnd;
+          continue;
+        }
+      }
+
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B') {
+        whitespace = true;
+      } else {
+        if (whitespace && text.length() > 0) {
+          text.append(' ');
+        }
+        whitespace = false;
+        text.append(Character.toLowerCase(c));
+      }
+    }
+    return text.toString();
+  }
+
+  private static byte[] digest(String jsiID, String message) {
+    try {
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+      messageDigest.update(jsiID.getBytes("UTF-8"));
+      messageDigest.update((byte) 0);
+      messageDigest.update(normalizeContent(message).getBytes("UTF-8"));
+      return messageDigest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      log.error("SHA-1 is not available, message is not checked for duplicates");
+      log.error(e.getMessage());
+    } catch (UnsupportedEncodingException e) {
+      log.error("Cannot encode message as UTF-8, message is not checked for duplicates");
+      log.error(e.getMessage());
+    }
+    return null;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+}